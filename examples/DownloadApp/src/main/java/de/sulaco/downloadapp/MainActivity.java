@@ -144,6 +144,16 @@ public class MainActivity extends Activity implements DownloadListener {
                 return "ERROR_DESTINATION_IS_NOT_A_DIRECTORY";
             case DownloadState.ERROR_DESTINATION_IS_NOT_WRITEABLE:
                 return "ERROR_DESTINATION_IS_NOT_WRITEABLE";
+            case DownloadState.STALLED:
+                return "STALLED";
+            case DownloadState.THROUGHPUT_TOO_LOW:
+                return "THROUGHPUT_TOO_LOW";
+            case DownloadState.NO_PEERS:
+                return "NO_PEERS";
+            case DownloadState.DEADLINE_EXCEEDED:
+                return "DEADLINE_EXCEEDED";
+            case DownloadState.ERROR_INSUFFICIENT_SPACE:
+                return "ERROR_INSUFFICIENT_SPACE";
             default:
                 throw new IllegalArgumentException("invalid downloadState");
         }
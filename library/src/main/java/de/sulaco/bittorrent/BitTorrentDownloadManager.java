@@ -20,12 +20,26 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.Uri;
 import android.support.v4.content.LocalBroadcastManager;
 
+import java.util.concurrent.Executor;
+
+import de.sulaco.bittorrent.service.DownloadEventBus;
 import de.sulaco.bittorrent.service.downloader.DownloadListener;
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.DownloadProgressListener;
+import de.sulaco.bittorrent.service.downloader.StreamServer;
+import de.sulaco.bittorrent.service.downloader.TtorrentDownloader;
 import de.sulaco.bittorrent.service.intent.AbortRequest;
 import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
+import de.sulaco.bittorrent.service.intent.ConfigurationRequest;
+import de.sulaco.bittorrent.service.intent.DownloadProgressBatchBroadcast;
+import de.sulaco.bittorrent.service.intent.DownloadProgressBroadcast;
 import de.sulaco.bittorrent.service.intent.DownloadRequest;
+import de.sulaco.bittorrent.service.intent.PauseRequest;
+import de.sulaco.bittorrent.service.intent.RemoveRequest;
+import de.sulaco.bittorrent.service.intent.ResumeRequest;
 
 import static de.sulaco.bittorrent.service.util.RequireNonNull.requireNonNull;
 
@@ -33,7 +47,9 @@ public class BitTorrentDownloadManager {
 
     private Context context;
     private volatile DownloadListener downloadListener;
+    private boolean isSubscribedToEventBus = false;
     private final IntentFilter progressFilter = new IntentFilter(BitTorrentIntentConstants.ACTION_BROADCAST_PROGRESS);
+    private final IntentFilter progressBatchFilter = new IntentFilter(BitTorrentIntentConstants.ACTION_BROADCAST_PROGRESS_BATCH);
     private final IntentFilter endFilter = new IntentFilter(BitTorrentIntentConstants.ACTION_BROADCAST_END);
 
     private final BroadcastReceiver progressBroadcastReceiver = new BroadcastReceiver() {
@@ -43,6 +59,13 @@ public class BitTorrentDownloadManager {
         }
     };
 
+    private final BroadcastReceiver progressBatchBroadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            handleProgressBatchBroadcast(intent, downloadListener);
+        }
+    };
+
     private final BroadcastReceiver endBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -55,6 +78,10 @@ public class BitTorrentDownloadManager {
         this.context = context;
     }
 
+    /**
+     * Registers a listener for download events. A {@link DownloadProgressListener}
+     * additionally receives the details of each progress update.
+     */
     public void registerDownloadListener(DownloadListener listener) {
         requireNonNull(listener, "listener must not be null");
         if (downloadListener != null) {
@@ -64,26 +91,105 @@ public class BitTorrentDownloadManager {
         registerBroadcastReceivers();
     }
 
+    /**
+     * Registers a listener that receives the download events directly from the service
+     * instead of through local broadcasts. Events are delivered on the given executor,
+     * or on the download thread if the executor is null.
+     */
+    public void registerDownloadListener(DownloadListener listener, Executor executor) {
+        requireNonNull(listener, "listener must not be null");
+        if (downloadListener != null) {
+            throw new IllegalStateException("download listener is already registered");
+        }
+        downloadListener = listener;
+        isSubscribedToEventBus = true;
+        DownloadEventBus.getInstance().subscribe(listener, executor);
+    }
+
     public void unregisterDownloadListener(DownloadListener listener) {
         if (downloadListener != listener) {
             throw new IllegalStateException("download listener is not registered");
         }
         downloadListener = null;
-        unregisterBroadcastReceivers();
+        if (isSubscribedToEventBus) {
+            isSubscribedToEventBus = false;
+            DownloadEventBus.getInstance().unsubscribe(listener);
+        } else {
+            unregisterBroadcastReceivers();
+        }
     }
 
-    public void enqueue(DownloadRequest downloadRequest) {
+    /**
+     * Returns the id of the enqueued download.
+     */
+    public String enqueue(DownloadRequest downloadRequest) {
         context.startService(downloadRequest.createIntent(context));
+        return downloadRequest.getDownloadId();
     }
 
+    /**
+     * Aborts the running download and all queued downloads. Same as {@link #abortAll()}.
+     */
     public void abort() {
+        abortAll();
+    }
+
+    public void abortAll() {
         context.startService(AbortRequest.createIntent(context));
     }
 
+    /**
+     * Aborts a single download, no matter whether it is queued or running.
+     */
+    public void abort(String downloadId) {
+        context.startService(AbortRequest.createIntent(context, downloadId));
+    }
+
+    /**
+     * Removes a queued download. Has no effect on a download that is running already.
+     */
+    public void remove(String downloadId) {
+        context.startService(RemoveRequest.createIntent(context, downloadId));
+    }
+
+    /**
+     * Pauses a download. A running download stays connected to its peers, so that it
+     * continues without delay when it is resumed.
+     */
+    public void pause(String downloadId) {
+        context.startService(PauseRequest.createIntent(context, downloadId));
+    }
+
+    public void resume(String downloadId) {
+        context.startService(ResumeRequest.createIntent(context, downloadId));
+    }
+
+    /**
+     * Returns the local HTTP URI of a file of a streaming download or null if the torrent
+     * file cannot be loaded. The URI supports range requests, which block until the
+     * requested content is downloaded. Requests fail until the download has started.
+     */
+    public Uri getStreamUri(Uri torrentFile, int fileIndex) {
+        requireNonNull(torrentFile, "torrentFile must not be null");
+        String infoHash = TtorrentDownloader.getInfoHash(torrentFile.getPath());
+        if (infoHash == null) {
+            return null;
+        }
+        String url = StreamServer.getInstance().getStreamUrl(infoHash, fileIndex);
+        return url != null ? Uri.parse(url) : null;
+    }
+
+    public void configure(ConfigurationRequest configurationRequest) {
+        context.startService(configurationRequest.createIntent(context));
+    }
+
     private void registerBroadcastReceivers() {
         LocalBroadcastManager.getInstance(context).registerReceiver(
                 progressBroadcastReceiver,
                 progressFilter);
+        LocalBroadcastManager.getInstance(context).registerReceiver(
+                progressBatchBroadcastReceiver,
+                progressBatchFilter);
         LocalBroadcastManager.getInstance(context).registerReceiver(
                 endBroadcastReceiver,
                 endFilter);
@@ -91,6 +197,7 @@ public class BitTorrentDownloadManager {
 
     private void unregisterBroadcastReceivers() {
         LocalBroadcastManager.getInstance(context).unregisterReceiver(progressBroadcastReceiver);
+        LocalBroadcastManager.getInstance(context).unregisterReceiver(progressBatchBroadcastReceiver);
         LocalBroadcastManager.getInstance(context).unregisterReceiver(endBroadcastReceiver);
     }
 
@@ -100,6 +207,35 @@ public class BitTorrentDownloadManager {
         }
         String torrentFile = intent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE);
         int progress = intent.getIntExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESS, -1);
+        notifyProgress(listener, torrentFile, progress, DownloadProgressBroadcast.getDetails(intent));
+    }
+
+    private static void handleProgressBatchBroadcast(Intent intent, DownloadListener listener) {
+        if (listener == null) {
+            return;
+        }
+        String[] torrentFiles = intent.getStringArrayExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILES);
+        int[] progresses = intent.getIntArrayExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESSES);
+        if (torrentFiles == null || progresses == null) {
+            return;
+        }
+        for (int i = 0; i < Math.min(torrentFiles.length, progresses.length); ++i) {
+            notifyProgress(
+                    listener,
+                    torrentFiles[i],
+                    progresses[i],
+                    DownloadProgressBatchBroadcast.getDetails(intent, i));
+        }
+    }
+
+    private static void notifyProgress(
+            DownloadListener listener,
+            String torrentFile,
+            int progress,
+            DownloadProgress details) {
+        if (details != null && listener instanceof DownloadProgressListener) {
+            ((DownloadProgressListener) listener).onDownloadProgress(torrentFile, details);
+        }
         if (progress == 0) {
             listener.onDownloadStart(torrentFile);
         } else {
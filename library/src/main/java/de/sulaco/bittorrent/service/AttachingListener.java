@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloadListener;
+
+/**
+ * Shares the events of a download with the duplicate requests attached to it. Duplicates
+ * with another torrent file path receive the events under their own id and path. The
+ * journal entries of the duplicates end together with the download.
+ */
+class AttachingListener implements IdentifiedDownloadListener {
+
+    private static class Duplicate {
+        final String downloadId;
+        final String torrentFile;
+
+        Duplicate(String downloadId, String torrentFile) {
+            this.downloadId = downloadId;
+            this.torrentFile = torrentFile;
+        }
+    }
+
+    private final IdentifiedDownloadListener listener;
+    private final DownloadJournal journal;
+    private final Map<String, Map<String, Duplicate>> duplicates = new HashMap<>();
+    private final Map<String, String> attachedDownloadIds = new HashMap<>();
+    private final Map<String, String> torrentFiles = new HashMap<>();
+
+    /**
+     * The journal may be null.
+     */
+    public AttachingListener(IdentifiedDownloadListener listener, DownloadJournal journal) {
+        this.listener = listener;
+        this.journal = journal;
+    }
+
+    public synchronized void attach(String downloadId, String torrentFile,
+                                    String duplicateId, String duplicateTorrentFile) {
+        Map<String, Duplicate> attached = duplicates.get(downloadId);
+        if (attached == null) {
+            attached = new LinkedHashMap<>();
+            duplicates.put(downloadId, attached);
+        }
+        attached.put(duplicateId, new Duplicate(duplicateId, duplicateTorrentFile));
+        attachedDownloadIds.put(duplicateId, downloadId);
+        torrentFiles.put(downloadId, torrentFile);
+    }
+
+    public synchronized boolean isAttached(String downloadId) {
+        return attachedDownloadIds.containsKey(downloadId);
+    }
+
+    /**
+     * Ends the duplicates of a download that ends without events, e.g. a queued
+     * download that gets removed.
+     */
+    public void endDuplicates(String downloadId, String torrentFile, int downloadState) {
+        for (Duplicate duplicate : detach(downloadId)) {
+            if (journal != null) {
+                journal.end(duplicate.downloadId, downloadState);
+            }
+            if (!duplicate.torrentFile.equals(torrentFile)) {
+                listener.onDownloadEnd(duplicate.downloadId, duplicate.torrentFile, downloadState);
+            }
+        }
+    }
+
+    /**
+     * Detaches a single duplicate and ends its journal entry. Returns false if no
+     * duplicate with the download id is attached.
+     */
+    public boolean detachDuplicate(String duplicateId, int downloadState) {
+        String torrentFile;
+        Duplicate detached;
+        synchronized (this) {
+            String downloadId = attachedDownloadIds.remove(duplicateId);
+            if (downloadId == null) {
+                return false;
+            }
+            torrentFile = torrentFiles.get(downloadId);
+            Map<String, Duplicate> attached = duplicates.get(downloadId);
+            detached = attached.remove(duplicateId);
+            if (attached.isEmpty()) {
+                duplicates.remove(downloadId);
+                torrentFiles.remove(downloadId);
+            }
+        }
+        if (journal != null) {
+            journal.end(detached.downloadId, downloadState);
+        }
+        if (!detached.torrentFile.equals(torrentFile)) {
+            listener.onDownloadEnd(detached.downloadId, detached.torrentFile, downloadState);
+        }
+        return true;
+    }
+
+    private synchronized List<Duplicate> detach(String downloadId) {
+        Map<String, Duplicate> attached = duplicates.remove(downloadId);
+        torrentFiles.remove(downloadId);
+        if (attached == null) {
+            return new ArrayList<Duplicate>();
+        }
+        attachedDownloadIds.keySet().removeAll(attached.keySet());
+        return new ArrayList<>(attached.values());
+    }
+
+    /**
+     * Returns one duplicate per torrent file that differs from the torrent file.
+     */
+    private synchronized List<Duplicate> getNotifiedDuplicates(String downloadId, String torrentFile) {
+        List<Duplicate> notified = new ArrayList<>();
+        List<String> notifiedFiles = new ArrayList<>();
+        Map<String, Duplicate> attached = duplicates.get(downloadId);
+        if (attached != null) {
+            for (Duplicate duplicate : attached.values()) {
+                if (!duplicate.torrentFile.equals(torrentFile)
+                        && !notifiedFiles.contains(duplicate.torrentFile)) {
+                    notified.add(duplicate);
+                    notifiedFiles.add(duplicate.torrentFile);
+                }
+            }
+        }
+        return notified;
+    }
+
+    @Override
+    public void onDownloadStart(String downloadId, String torrentFile) {
+        listener.onDownloadStart(downloadId, torrentFile);
+        for (Duplicate duplicate : getNotifiedDuplicates(downloadId, torrentFile)) {
+            listener.onDownloadStart(duplicate.downloadId, duplicate.torrentFile);
+        }
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, DownloadProgress downloadProgress) {
+        listener.onDownloadProgress(downloadId, torrentFile, downloadProgress);
+        for (Duplicate duplicate : getNotifiedDuplicates(downloadId, torrentFile)) {
+            listener.onDownloadProgress(duplicate.downloadId, duplicate.torrentFile, downloadProgress);
+        }
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, int progress) {
+        listener.onDownloadProgress(downloadId, torrentFile, progress);
+        for (Duplicate duplicate : getNotifiedDuplicates(downloadId, torrentFile)) {
+            listener.onDownloadProgress(duplicate.downloadId, duplicate.torrentFile, progress);
+        }
+    }
+
+    @Override
+    public void onDownloadEnd(String downloadId, String torrentFile, int downloadState) {
+        listener.onDownloadEnd(downloadId, torrentFile, downloadState);
+        endDuplicates(downloadId, torrentFile, downloadState);
+    }
+}
@@ -18,10 +18,38 @@ package de.sulaco.bittorrent.service;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.net.Uri;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import de.sulaco.bittorrent.service.downloader.BandwidthLimiter;
+import de.sulaco.bittorrent.service.downloader.DownloadListener;
 import de.sulaco.bittorrent.service.downloader.Downloader;
+import de.sulaco.bittorrent.service.downloader.DownloaderFactory;
+import de.sulaco.bittorrent.service.downloader.FileSelector;
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloader;
+import de.sulaco.bittorrent.service.downloader.PausableDownloader;
+import de.sulaco.bittorrent.service.downloader.PeerConnectionLimiter;
+import de.sulaco.bittorrent.service.downloader.StallPolicy;
+import de.sulaco.bittorrent.service.downloader.StreamServer;
 import de.sulaco.bittorrent.service.downloader.TtorrentDownloader;
 import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
+import de.sulaco.bittorrent.service.intent.DownloadRequest;
+import de.sulaco.bittorrent.service.intent.DownloadState;
 
 /**
  * <p/>
@@ -32,55 +60,1030 @@ import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
  * through {@link android.content.Context#startService(Intent)} calls; the
  * service is started as needed, handles each Intent in turn using a worker
  * thread, and stops itself when done.
+ * <p/>
+ * If more than one active download is configured (see
+ * {@link de.sulaco.bittorrent.service.intent.ConfigurationRequest}), the worker
+ * thread hands each download to a thread of its own with its own {@link Downloader}.
+ * Requests beyond the limit stay in the FIFO queue of the IntentService.
+ * <p/>
+ * Download requests are recorded in a journal. If the process dies, the service
+ * is restarted and enqueues the unfinished downloads again.
  */
 public class BitTorrentDownloadService extends IntentService {
 
+    private static final String RESUME_DIRECTORY = "ttorrent-resume";
+    private static final String JOURNAL_FILE = "ttorrent-queue.journal";
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 10;
+
+    private static volatile int maxActiveDownloads = 1;
+    private static volatile long progressIntervalMillis = 0;
+    private static volatile int minProgressDelta = 1;
+    private static volatile boolean isBroadcastEnabled = true;
+    private static volatile boolean isPreemptionEnabled = false;
+    private static volatile StallPolicy stallPolicy = new StallPolicy();
+    private static volatile int preallocationMode = TtorrentDownloader.PREALLOCATION_SPARSE;
+    private static volatile boolean isMemoryMappedStorageEnabled = false;
+    private static volatile long writeCacheSize = TtorrentDownloader.DEFAULT_WRITE_CACHE_SIZE;
+
+    private static class RunningDownload {
+        final Intent intent;
+        final Downloader downloader;
+        final String downloadId;
+        final String torrentFile;
+        final String destinationDirectory;
+        final int priority;
+        boolean isPausing = false;
+        boolean isPaused = false;
+
+        RunningDownload(Intent intent, Downloader downloader) {
+            this.intent = intent;
+            this.downloader = downloader;
+            this.downloadId = DownloadQueue.getDownloadId(intent);
+            this.torrentFile = intent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE);
+            this.destinationDirectory = intent.getStringExtra(
+                    BitTorrentIntentConstants.EXTRA_DESTINATION_DIRECTORY);
+            this.priority = DownloadQueue.getPriority(intent);
+        }
+    }
+
     private int pendingAbortCount = 0;
+    private int pendingIntentCount = 0;
     private Downloader downloader;
+    private DownloaderFactory downloaderFactory;
+    private LocalBroadcaster downloadListener;
+    private DownloadJournal journal;
+    private JournalingListener journalingListener;
+    private final Set<Downloader> activeDownloaders = new HashSet<>();
+    private final DownloadQueue queuedDownloads = new DownloadQueue();
+    private final Map<String, RunningDownload> runningDownloads = new HashMap<>();
+    private final Map<String, Intent> pausedDownloads = new LinkedHashMap<>();
+    private IdentifyingListener identifyingListener;
+    private PausingListener pausingListener;
+    private AttachingListener attachingListener;
+    private final Map<String, String> downloadIdsByKey = new HashMap<>();
+    private final Map<String, String> downloadKeysById = new HashMap<>();
+    private boolean isSequentialDownloaderDisabled = false;
+    private int requeuedDownloadCount = 0;
+    private ExecutorService downloadExecutor;
+    private ExecutorService journalExecutor;
+    private Executor keyExecutor;
 
     public BitTorrentDownloadService() {
         super("BitTorrentDownload");
-        attachDownloader(new TtorrentDownloader());
+    }
+
+    static int getMaxActiveDownloads() {
+        return maxActiveDownloads;
+    }
+
+    static void setMaxActiveDownloads(int count) {
+        maxActiveDownloads = count;
+    }
+
+    static long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    static int getMinProgressDelta() {
+        return minProgressDelta;
+    }
+
+    static void setProgressPolicy(long intervalMillis, int minDelta) {
+        progressIntervalMillis = intervalMillis;
+        minProgressDelta = minDelta;
+    }
+
+    static boolean isBroadcastEnabled() {
+        return isBroadcastEnabled;
+    }
+
+    static void setBroadcastEnabled(boolean enabled) {
+        isBroadcastEnabled = enabled;
+    }
+
+    static boolean isPreemptionEnabled() {
+        return isPreemptionEnabled;
+    }
+
+    static void setPreemptionEnabled(boolean enabled) {
+        isPreemptionEnabled = enabled;
+    }
+
+    static StallPolicy getStallPolicy() {
+        return stallPolicy;
+    }
+
+    static void setStallPolicy(StallPolicy policy) {
+        stallPolicy = policy;
+    }
+
+    static int getPreallocationMode() {
+        return preallocationMode;
+    }
+
+    static void setPreallocationMode(int mode) {
+        preallocationMode = mode;
+    }
+
+    static boolean isMemoryMappedStorageEnabled() {
+        return isMemoryMappedStorageEnabled;
+    }
+
+    static void setMemoryMappedStorageEnabled(boolean enabled) {
+        isMemoryMappedStorageEnabled = enabled;
+    }
+
+    static long getWriteCacheSize() {
+        return writeCacheSize;
+    }
+
+    static void setWriteCacheSize(long bytes) {
+        writeCacheSize = bytes;
     }
 
     synchronized boolean isAbortPending() {
         return pendingAbortCount > 0;
     }
 
+    synchronized int getActiveDownloadCount() {
+        return activeDownloaders.size();
+    }
+
+    synchronized int getQueuedDownloadCount() {
+        return queuedDownloads.size();
+    }
+
+    synchronized int getPausedDownloadCount() {
+        int count = pausedDownloads.size();
+        for (RunningDownload runningDownload : runningDownloads.values()) {
+            if (runningDownload.isPaused) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
     void attachDownloader(Downloader downloader) {
         this.downloader = downloader;
-        this.downloader.setDownloadListener(new LocalBroadcaster(this));
+        this.downloader.setDownloadListener(getDownloadListener());
+    }
+
+    void attachDownloaderFactory(DownloaderFactory downloaderFactory) {
+        this.downloaderFactory = downloaderFactory;
+    }
+
+    /**
+     * Must be attached before the downloader.
+     */
+    synchronized void attachJournal(DownloadJournal journal) {
+        this.journal = journal;
+        this.journalingListener = new JournalingListener(journal, getLocalBroadcaster());
+    }
+
+    private synchronized DownloadListener getDownloadListener() {
+        if (identifyingListener == null) {
+            identifyingListener = new IdentifyingListener(
+                    getPausingListener(),
+                    new IdentifyingListener.DownloadIdLookup() {
+                        @Override
+                        public String getDownloadId(String torrentFile) {
+                            return getRunningDownloadId(torrentFile);
+                        }
+                    });
+        }
+        return identifyingListener;
+    }
+
+    /**
+     * Returns the torrent file itself if no download of it is running.
+     */
+    private synchronized String getRunningDownloadId(String torrentFile) {
+        for (RunningDownload runningDownload : runningDownloads.values()) {
+            if (runningDownload.torrentFile.equals(torrentFile)) {
+                return runningDownload.downloadId;
+            }
+        }
+        return torrentFile;
+    }
+
+    private synchronized PausingListener getPausingListener() {
+        if (pausingListener == null) {
+            pausingListener = new PausingListener(getAttachingListener());
+        }
+        return pausingListener;
+    }
+
+    private synchronized AttachingListener getAttachingListener() {
+        if (attachingListener == null) {
+            attachingListener = new AttachingListener(
+                    journalingListener != null ? journalingListener : getLocalBroadcaster(),
+                    journal);
+        }
+        return attachingListener;
+    }
+
+    private synchronized LocalBroadcaster getLocalBroadcaster() {
+        if (downloadListener == null) {
+            downloadListener = new LocalBroadcaster(this);
+            downloadListener.setProgressPolicy(progressIntervalMillis, minProgressDelta);
+            downloadListener.setBroadcastEnabled(isBroadcastEnabled);
+        }
+        return downloadListener;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        boolean isAttachedToContext = getBaseContext() != null;
+        if (journal == null && isAttachedToContext) {
+            journalExecutor = createJournalExecutor();
+            attachJournal(new DownloadJournal(
+                    new File(getFilesDir(), JOURNAL_FILE),
+                    journalExecutor));
+        }
+        if (downloaderFactory == null) {
+            attachDownloaderFactory(new DownloaderFactory() {
+                @Override
+                public Downloader createDownloader() {
+                    return createTtorrentDownloader();
+                }
+            });
+        }
+        if (downloader == null) {
+            attachDownloader(downloaderFactory.createDownloader());
+        }
+        if (isAttachedToContext) {
+            recoverUnfinishedDownloads();
+        }
+    }
+
+    /**
+     * Enqueues the downloads that a previous process did not finish. Intents that
+     * get enqueued twice share their download id and are handled once. Paused
+     * downloads stay paused until they are resumed.
+     */
+    private void recoverUnfinishedDownloads() {
+        if (journal == null) {
+            return;
+        }
+        for (DownloadJournal.Entry entry : journal.getUnfinishedEntries()) {
+            Intent intent = new DownloadRequest()
+                    .setDownloadId(entry.id)
+                    .setTorrentFile(createPathUri(entry.torrentFile))
+                    .setDestinationDirectory(createPathUri(entry.destinationDirectory))
+                    .setPriority(entry.priority)
+                    .setMaxDownloadRate(entry.maxDownloadRate)
+                    .setMaxUploadRate(entry.maxUploadRate)
+                    .setMaxPeerConnections(entry.maxPeerConnections)
+                    .setStreaming(entry.isStreaming)
+                    .setFilePriorities(entry.filePriorities)
+                    .createIntent(this);
+            if (entry.isPaused) {
+                addPausedDownload(intent);
+            } else {
+                startService(intent);
+            }
+        }
+    }
+
+    /**
+     * The journal stores decoded paths. Parsing them as uri strings would cut them at
+     * '#' or '?' and decode '%'.
+     */
+    private static Uri createPathUri(String path) {
+        return new Uri.Builder().path(path).build();
+    }
+
+    private synchronized void addPausedDownload(Intent intent) {
+        String downloadId = DownloadQueue.getDownloadId(intent);
+        if (!isKnownDownload(downloadId)) {
+            pausedDownloads.put(downloadId, intent);
+        }
+    }
+
+    private Downloader createTtorrentDownloader() {
+        TtorrentDownloader ttorrentDownloader = new TtorrentDownloader();
+        ttorrentDownloader.setResumeDirectory(new File(getFilesDir(), RESUME_DIRECTORY));
+        ttorrentDownloader.setStallPolicy(stallPolicy);
+        ttorrentDownloader.setPreallocationMode(preallocationMode);
+        ttorrentDownloader.setMemoryMappedStorageEnabled(isMemoryMappedStorageEnabled);
+        ttorrentDownloader.setWriteCacheSize(writeCacheSize);
+        return ttorrentDownloader;
     }
 
+    @Override
+    public void onDestroy() {
+        synchronized (this) {
+            if (downloadExecutor != null) {
+                downloadExecutor.shutdown();
+                downloadExecutor = null;
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            if (journalExecutor != null) {
+                journalExecutor.shutdown();
+                journalExecutor = null;
+            }
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Keeps the disk writes of the journal off the main thread.
+     */
+    private static ExecutorService createJournalExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DownloadJournal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns START_STICKY while a journal is attached so that the service gets restarted
+     * after the process was killed. The restart delivers a null intent.
+     */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_ABORT_DOWNLOAD)) {
-            synchronized (this) {
-                pendingAbortCount += 1;
-                downloader.setEnabled(false);
+        if (intent == null) {
+            // restarted after the process was killed
+        } else if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_START_DOWNLOAD)) {
+            enqueueDownload(intent);
+        } else if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_ABORT_DOWNLOAD)) {
+            if (intent.hasExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)) {
+                abortDownload(intent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID));
+            } else {
+                synchronized (this) {
+                    pendingAbortCount += 1;
+                    disableDownloaders();
+                    abortQueuedDownloads();
+                }
+            }
+        } else if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_REMOVE_DOWNLOAD)) {
+            removeQueuedDownload(intent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID));
+        } else if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_PAUSE_DOWNLOAD)) {
+            pauseDownload(intent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID));
+        } else if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_RESUME_DOWNLOAD)) {
+            resumeDownload(intent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID));
+        } else if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_CONFIGURE)) {
+            configure(intent);
+        }
+        synchronized (this) {
+            pendingIntentCount += 1;
+            notifyAll();
+        }
+        int result = super.onStartCommand(intent, flags, startId);
+        return journal != null ? START_STICKY : result;
+    }
+
+    /**
+     * Indexes the download by its id. Download intents without id get one assigned.
+     * Intents that are enqueued again with the id of a known download are ignored.
+     * Runs on the main thread, the download key is computed in the background.
+     */
+    private synchronized void enqueueDownload(Intent intent) {
+        String downloadId = DownloadQueue.getDownloadId(intent);
+        if (downloadId == null) {
+            downloadId = UUID.randomUUID().toString();
+            intent.putExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID, downloadId);
+        }
+        if (isKnownDownload(downloadId)) {
+            return;
+        }
+        if (journal != null && !journal.isUnfinished(downloadId)) {
+            journal.enqueue(createJournalEntry(downloadId, intent));
+        }
+        queuedDownloads.add(intent);
+        resolveQueuedDownloadKey(intent);
+        if (isPreemptionEnabled) {
+            preemptDownload(DownloadQueue.getPriority(intent));
+        }
+    }
+
+    private static DownloadJournal.Entry createJournalEntry(String downloadId, Intent intent) {
+        DownloadJournal.Entry entry = new DownloadJournal.Entry(
+                downloadId,
+                intent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE),
+                intent.getStringExtra(BitTorrentIntentConstants.EXTRA_DESTINATION_DIRECTORY));
+        entry.priority = DownloadQueue.getPriority(intent);
+        entry.maxDownloadRate =
+                intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_DOWNLOAD_RATE, 0);
+        entry.maxUploadRate =
+                intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_UPLOAD_RATE, 0);
+        entry.maxPeerConnections =
+                intent.getIntExtra(BitTorrentIntentConstants.EXTRA_MAX_PEER_CONNECTIONS, 0);
+        entry.isStreaming =
+                intent.getBooleanExtra(BitTorrentIntentConstants.EXTRA_STREAMING, false);
+        entry.filePriorities =
+                intent.getIntArrayExtra(BitTorrentIntentConstants.EXTRA_FILE_PRIORITIES);
+        return entry;
+    }
+
+    private boolean isKnownDownload(String downloadId) {
+        return queuedDownloads.get(downloadId) != null
+                || pausedDownloads.containsKey(downloadId)
+                || runningDownloads.containsKey(downloadId)
+                || getAttachingListener().isAttached(downloadId);
+    }
+
+    /**
+     * Pauses the running download with the lowest priority if it is lower than the given
+     * priority and no download slot is free.
+     */
+    private void preemptDownload(int priority) {
+        RunningDownload lowestDownload = null;
+        int activeCount = 0;
+        for (RunningDownload runningDownload : runningDownloads.values()) {
+            if (runningDownload.isPausing) {
+                continue;
+            }
+            activeCount += 1;
+            if (runningDownload.isPaused) {
+                // keeps its slot until resumed
+                continue;
             }
+            if (lowestDownload == null || runningDownload.priority < lowestDownload.priority) {
+                lowestDownload = runningDownload;
+            }
+        }
+        if (activeCount < maxActiveDownloads
+                || lowestDownload == null
+                || lowestDownload.priority >= priority) {
+            return;
+        }
+        lowestDownload.isPausing = true;
+        getPausingListener().pause(lowestDownload.downloadId);
+        disableRunningDownload(lowestDownload);
+    }
+
+    /**
+     * Computes the download key of a queued download on the key executor. A request
+     * for a torrent that is already queued or running with the same destination gets
+     * attached to that download. Downloads that are started before their key is known
+     * get it computed by their download thread, see {@link #prepareDownload}.
+     */
+    private void resolveQueuedDownloadKey(final Intent intent) {
+        getKeyExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                String downloadKey = createDownloadKey(intent);
+                synchronized (BitTorrentDownloadService.this) {
+                    String downloadId = DownloadQueue.getDownloadId(intent);
+                    if (downloadKey == null
+                            || queuedDownloads.get(downloadId) == null
+                            || downloadKeysById.containsKey(downloadId)) {
+                        return;
+                    }
+                    String existingId = registerDownloadKey(downloadId, downloadKey);
+                    if (existingId != null) {
+                        queuedDownloads.remove(downloadId);
+                        getAttachingListener().attach(
+                                existingId,
+                                getTorrentFile(existingId),
+                                downloadId,
+                                intent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE));
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized Executor getKeyExecutor() {
+        if (keyExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    1, 1,
+                    IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "DownloadKeys");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            keyExecutor = executor;
+        }
+        return keyExecutor;
+    }
+
+    /**
+     * Must be attached before downloads are enqueued.
+     */
+    synchronized void attachKeyExecutor(Executor keyExecutor) {
+        this.keyExecutor = keyExecutor;
+    }
+
+    /**
+     * Registers the key of the download unless another download has the same key.
+     * Returns the id of that download or null if the key was registered.
+     */
+    private String registerDownloadKey(String downloadId, String downloadKey) {
+        String existingId = downloadIdsByKey.get(downloadKey);
+        if (existingId != null && !existingId.equals(downloadId)) {
+            return existingId;
         }
-        return super.onStartCommand(intent, flags, startId);
+        downloadIdsByKey.put(downloadKey, downloadId);
+        downloadKeysById.put(downloadId, downloadKey);
+        return null;
     }
 
+    /**
+     * Identifies a download by the info hash of its torrent and its destination.
+     * Returns null if the torrent file cannot be loaded. Parses the torrent file,
+     * so it is called without holding the service lock.
+     */
+    private static String createDownloadKey(Intent intent) {
+        String infoHash = TtorrentDownloader.getInfoHash(
+                intent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE));
+        if (infoHash == null) {
+            return null;
+        }
+        String destinationDirectory = intent.getStringExtra(
+                BitTorrentIntentConstants.EXTRA_DESTINATION_DIRECTORY);
+        return infoHash + ":" + new File(destinationDirectory).getAbsolutePath();
+    }
+
+    private String getTorrentFile(String downloadId) {
+        RunningDownload runningDownload = runningDownloads.get(downloadId);
+        if (runningDownload != null) {
+            return runningDownload.torrentFile;
+        }
+        Intent pausedIntent = pausedDownloads.get(downloadId);
+        if (pausedIntent != null) {
+            return pausedIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE);
+        }
+        return queuedDownloads.get(downloadId).getStringExtra(
+                BitTorrentIntentConstants.EXTRA_TORRENT_FILE);
+    }
+
+    private void removeDownloadKey(String downloadId) {
+        String downloadKey = downloadKeysById.remove(downloadId);
+        if (downloadKey != null) {
+            downloadIdsByKey.remove(downloadKey);
+        }
+    }
+
+    /**
+     * Ends the journal entries of all queued downloads, paused ones included. Their
+     * intents are skipped.
+     */
+    private void abortQueuedDownloads() {
+        List<Intent> intents = queuedDownloads.removeAll();
+        intents.addAll(pausedDownloads.values());
+        pausedDownloads.clear();
+        for (Intent intent : intents) {
+            String downloadId = DownloadQueue.getDownloadId(intent);
+            endJournalEntry(downloadId, DownloadState.ABORTED);
+            removeDownloadKey(downloadId);
+            getAttachingListener().endDuplicates(
+                    downloadId,
+                    intent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE),
+                    DownloadState.ABORTED);
+        }
+    }
+
+    /**
+     * Returns true if the download was queued. Its requester and the requesters of
+     * attached duplicates receive an end broadcast.
+     */
+    private synchronized boolean removeQueuedDownload(String downloadId) {
+        if (getAttachingListener().detachDuplicate(downloadId, DownloadState.ABORTED)) {
+            return true;
+        }
+        Intent intent = queuedDownloads.remove(downloadId);
+        if (intent == null) {
+            intent = pausedDownloads.remove(downloadId);
+        }
+        if (intent == null) {
+            return false;
+        }
+        String torrentFile = intent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE);
+        endJournalEntry(downloadId, DownloadState.ABORTED);
+        removeDownloadKey(downloadId);
+        getLocalBroadcaster().onDownloadEnd(downloadId, torrentFile, DownloadState.ABORTED);
+        getAttachingListener().endDuplicates(downloadId, torrentFile, DownloadState.ABORTED);
+        return true;
+    }
+
+    private synchronized void abortDownload(String downloadId) {
+        if (removeQueuedDownload(downloadId)) {
+            return;
+        }
+        RunningDownload runningDownload = runningDownloads.get(downloadId);
+        if (runningDownload != null) {
+            disableRunningDownload(runningDownload);
+            getPausingListener().cancelPause(runningDownload.downloadId);
+        }
+    }
+
+    /**
+     * A paused running download keeps its slot and its peers. A paused queued download
+     * is not started until it is resumed. Downloaders that cannot pause ignore the request.
+     */
+    private synchronized void pauseDownload(String downloadId) {
+        Intent intent = queuedDownloads.remove(downloadId);
+        if (intent != null) {
+            pausedDownloads.put(downloadId, intent);
+            pauseJournalEntry(downloadId);
+            return;
+        }
+        RunningDownload runningDownload = runningDownloads.get(downloadId);
+        if (runningDownload == null
+                || runningDownload.isPausing
+                || runningDownload.isPaused
+                || !(runningDownload.downloader instanceof PausableDownloader)) {
+            return;
+        }
+        runningDownload.isPaused = true;
+        ((PausableDownloader) runningDownload.downloader).setPaused(true);
+        pauseJournalEntry(downloadId);
+    }
+
+    /**
+     * A resumed queued download gets started by the worker thread in addition to the
+     * downloads of the pending intents.
+     */
+    private synchronized void resumeDownload(String downloadId) {
+        Intent intent = pausedDownloads.remove(downloadId);
+        if (intent != null) {
+            resumeJournalEntry(downloadId);
+            queuedDownloads.add(intent);
+            requeuedDownloadCount += 1;
+            notifyAll();
+            if (isPreemptionEnabled) {
+                preemptDownload(DownloadQueue.getPriority(intent));
+            }
+            return;
+        }
+        RunningDownload runningDownload = runningDownloads.get(downloadId);
+        if (runningDownload != null && runningDownload.isPaused) {
+            runningDownload.isPaused = false;
+            ((PausableDownloader) runningDownload.downloader).setPaused(false);
+            resumeJournalEntry(downloadId);
+        }
+    }
+
+    private void disableRunningDownload(RunningDownload runningDownload) {
+        runningDownload.downloader.setEnabled(false);
+        if (runningDownload.downloader == downloader) {
+            isSequentialDownloaderDisabled = true;
+        }
+    }
+
+    private synchronized void trackJournalEntry(String downloadId) {
+        if (journalingListener != null) {
+            journalingListener.track(downloadId);
+        }
+    }
+
+    private void pauseJournalEntry(String downloadId) {
+        if (journal != null) {
+            journal.pause(downloadId);
+        }
+    }
+
+    private void resumeJournalEntry(String downloadId) {
+        if (journal != null) {
+            journal.resume(downloadId);
+        }
+    }
+
+    private synchronized void endJournalEntry(String downloadId, int downloadState) {
+        if (journal != null) {
+            journal.end(downloadId, downloadState);
+        }
+    }
+
+    private void configure(Intent intent) {
+        setMaxActiveDownloads(intent.getIntExtra(
+                BitTorrentIntentConstants.EXTRA_MAX_ACTIVE_DOWNLOADS,
+                maxActiveDownloads));
+        setProgressPolicy(
+                intent.getLongExtra(
+                        BitTorrentIntentConstants.EXTRA_PROGRESS_INTERVAL,
+                        progressIntervalMillis),
+                intent.getIntExtra(
+                        BitTorrentIntentConstants.EXTRA_MIN_PROGRESS_DELTA,
+                        minProgressDelta));
+        setBroadcastEnabled(intent.getBooleanExtra(
+                BitTorrentIntentConstants.EXTRA_BROADCAST_ENABLED,
+                isBroadcastEnabled));
+        setPreemptionEnabled(intent.getBooleanExtra(
+                BitTorrentIntentConstants.EXTRA_PREEMPTION_ENABLED,
+                isPreemptionEnabled));
+        BandwidthLimiter bandwidthLimiter = BandwidthLimiter.getInstance();
+        bandwidthLimiter.setGlobalLimits(
+                intent.getLongExtra(
+                        BitTorrentIntentConstants.EXTRA_MAX_DOWNLOAD_RATE,
+                        bandwidthLimiter.getGlobalDownloadLimit()),
+                intent.getLongExtra(
+                        BitTorrentIntentConstants.EXTRA_MAX_UPLOAD_RATE,
+                        bandwidthLimiter.getGlobalUploadLimit()));
+        PeerConnectionLimiter peerConnectionLimiter = PeerConnectionLimiter.getInstance();
+        peerConnectionLimiter.setMaxConnections(intent.getIntExtra(
+                BitTorrentIntentConstants.EXTRA_MAX_PEER_CONNECTIONS,
+                peerConnectionLimiter.getMaxConnections()));
+        setStallPolicy(new StallPolicy()
+                .setStallWindow(intent.getLongExtra(
+                        BitTorrentIntentConstants.EXTRA_STALL_WINDOW,
+                        stallPolicy.getStallWindow()))
+                .setMinThroughput(intent.getLongExtra(
+                        BitTorrentIntentConstants.EXTRA_MIN_THROUGHPUT,
+                        stallPolicy.getMinThroughput()))
+                .setGracePeriod(intent.getLongExtra(
+                        BitTorrentIntentConstants.EXTRA_GRACE_PERIOD,
+                        stallPolicy.getGracePeriod()))
+                .setDeadline(intent.getLongExtra(
+                        BitTorrentIntentConstants.EXTRA_DEADLINE,
+                        stallPolicy.getDeadline())));
+        setPreallocationMode(intent.getIntExtra(
+                BitTorrentIntentConstants.EXTRA_PREALLOCATION_MODE,
+                preallocationMode));
+        setMemoryMappedStorageEnabled(intent.getBooleanExtra(
+                BitTorrentIntentConstants.EXTRA_MEMORY_MAPPED_STORAGE_ENABLED,
+                isMemoryMappedStorageEnabled));
+        setWriteCacheSize(intent.getLongExtra(
+                BitTorrentIntentConstants.EXTRA_WRITE_CACHE_SIZE,
+                writeCacheSize));
+        synchronized (this) {
+            if (downloader instanceof TtorrentDownloader) {
+                // concurrent downloaders are created with the current policy
+                ((TtorrentDownloader) downloader).setStallPolicy(stallPolicy);
+                ((TtorrentDownloader) downloader).setPreallocationMode(preallocationMode);
+                ((TtorrentDownloader) downloader).setMemoryMappedStorageEnabled(
+                        isMemoryMappedStorageEnabled);
+                ((TtorrentDownloader) downloader).setWriteCacheSize(writeCacheSize);
+            }
+            if (downloadListener != null) {
+                downloadListener.setProgressPolicy(progressIntervalMillis, minProgressDelta);
+                downloadListener.setBroadcastEnabled(isBroadcastEnabled);
+            }
+        }
+    }
+
+    /**
+     * Each download intent starts the queued download with the highest priority, which
+     * is not necessarily the download of the intent itself.
+     */
     @Override
     protected void onHandleIntent(Intent intent) {
-        if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_ABORT_DOWNLOAD)) {
-            synchronized (this) {
-                pendingAbortCount -= 1;
-                if (pendingAbortCount == 0) {
-                    downloader.setEnabled(true);
+        synchronized (this) {
+            pendingIntentCount = Math.max(0, pendingIntentCount - 1);
+        }
+        if (intent == null) {
+            // nothing to do
+        } else if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_ABORT_DOWNLOAD)) {
+            if (!intent.hasExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)) {
+                synchronized (this) {
+                    pendingAbortCount -= 1;
+                    if (pendingAbortCount == 0) {
+                        downloader.setEnabled(true);
+                    }
                 }
             }
-        } else if (isAbortPending()) {
-            // skip intent
         } else if (intent.getAction().equals(BitTorrentIntentConstants.ACTION_START_DOWNLOAD)) {
-            final String torrentFile = intent.getStringExtra(
-                    BitTorrentIntentConstants.EXTRA_TORRENT_FILE);
-            final String destinationDirectory = intent.getStringExtra(
-                    BitTorrentIntentConstants.EXTRA_DESTINATION_DIRECTORY);
+            startNextDownload();
+        }
+        waitForActiveDownloadsIfIdle();
+    }
+
+    private void startNextDownload() {
+        if (maxActiveDownloads > 1) {
+            startConcurrentDownload();
+        } else {
+            startSequentialDownload();
+        }
+    }
+
+    /**
+     * Returns null if the queue is empty or an abort is pending.
+     */
+    private synchronized RunningDownload pollNextDownload(Downloader nextDownloader) {
+        if (isAbortPending()) {
+            return null;
+        }
+        Intent intent = queuedDownloads.poll();
+        if (intent == null) {
+            return null;
+        }
+        RunningDownload runningDownload = new RunningDownload(intent, nextDownloader);
+        runningDownloads.put(runningDownload.downloadId, runningDownload);
+        return runningDownload;
+    }
+
+    /**
+     * Runs on the download thread. Computes the download key if it is not known yet.
+     * Returns false if the download got attached to a download with the same key.
+     */
+    private boolean prepareDownload(RunningDownload runningDownload) {
+        String downloadKey;
+        synchronized (this) {
+            downloadKey = downloadKeysById.get(runningDownload.downloadId);
+        }
+        if (downloadKey == null) {
+            downloadKey = createDownloadKey(runningDownload.intent);
+        }
+        return startDownload(runningDownload, downloadKey);
+    }
+
+    private synchronized boolean startDownload(RunningDownload runningDownload, String downloadKey) {
+        String existingId = downloadKey != null
+                ? registerDownloadKey(runningDownload.downloadId, downloadKey)
+                : null;
+        if (existingId != null) {
+            runningDownloads.remove(runningDownload.downloadId);
+            getAttachingListener().attach(
+                    existingId,
+                    getTorrentFile(existingId),
+                    runningDownload.downloadId,
+                    runningDownload.torrentFile);
+            notifyAll();
+            return false;
+        }
+        Intent intent = runningDownload.intent;
+        BandwidthLimiter.getInstance().setLimits(
+                runningDownload.downloadId,
+                intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_DOWNLOAD_RATE, 0),
+                intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_UPLOAD_RATE, 0));
+        PeerConnectionLimiter.getInstance().setLimit(
+                runningDownload.downloadId,
+                intent.getIntExtra(BitTorrentIntentConstants.EXTRA_MAX_PEER_CONNECTIONS, 0));
+        StreamServer.getInstance().setStreaming(
+                runningDownload.downloadId,
+                intent.getBooleanExtra(BitTorrentIntentConstants.EXTRA_STREAMING, false));
+        int[] filePriorities =
+                intent.getIntArrayExtra(BitTorrentIntentConstants.EXTRA_FILE_PRIORITIES);
+        if (filePriorities != null) {
+            FileSelector.getInstance().setFilePriorities(
+                    runningDownload.downloadId,
+                    filePriorities);
+        } else {
+            FileSelector.getInstance().removeFilePriorities(runningDownload.downloadId);
+        }
+        trackJournalEntry(runningDownload.downloadId);
+        return true;
+    }
+
+    private void startSequentialDownload() {
+        RunningDownload runningDownload = pollNextDownload(downloader);
+        if (runningDownload == null) {
+            return;
+        }
+        boolean isStarted = false;
+        try {
+            isStarted = prepareDownload(runningDownload);
+            if (isStarted) {
+                download(downloader, runningDownload);
+            }
+        } finally {
+            synchronized (this) {
+                if (isStarted) {
+                    onDownloadEnd(runningDownload);
+                }
+                if (isSequentialDownloaderDisabled) {
+                    isSequentialDownloaderDisabled = false;
+                    if (!isAbortPending()) {
+                        downloader.setEnabled(true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a paused download again. It is started by the worker thread in addition
+     * to the downloads of the pending intents.
+     */
+    private synchronized void onDownloadEnd(RunningDownload runningDownload) {
+        runningDownloads.remove(runningDownload.downloadId);
+        BandwidthLimiter.getInstance().removeLimits(runningDownload.downloadId);
+        PeerConnectionLimiter.getInstance().removeLimit(runningDownload.downloadId);
+        StreamServer.getInstance().setStreaming(runningDownload.downloadId, false);
+        FileSelector.getInstance().removeFilePriorities(runningDownload.downloadId);
+        if (runningDownload.isPaused) {
+            ((PausableDownloader) runningDownload.downloader).setPaused(false);
+        }
+        if (isAbortPending()) {
+            getPausingListener().cancelPause(runningDownload.downloadId);
+        } else if (getPausingListener().takePaused(runningDownload.downloadId)) {
+            queuedDownloads.requeue(runningDownload.intent);
+            requeuedDownloadCount += 1;
+            notifyAll();
+            return;
+        }
+        removeDownloadKey(runningDownload.downloadId);
+        notifyAll();
+    }
+
+    /**
+     * Concurrent downloaders are not enabled again. They end their current
+     * download and get discarded.
+     */
+    private void disableDownloaders() {
+        downloader.setEnabled(false);
+        for (Downloader activeDownloader : activeDownloaders) {
+            activeDownloader.setEnabled(false);
+        }
+    }
+
+    private void startConcurrentDownload() {
+        final Downloader concurrentDownloader;
+        final RunningDownload runningDownload;
+        synchronized (this) {
+            try {
+                while (activeDownloaders.size() >= maxActiveDownloads) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (isAbortPending() || queuedDownloads.isEmpty()) {
+                // abort was requested while waiting for a free slot
+                return;
+            }
+            concurrentDownloader = downloaderFactory.createDownloader();
+            runningDownload = pollNextDownload(concurrentDownloader);
+            concurrentDownloader.setDownloadListener(getDownloadListener());
+            activeDownloaders.add(concurrentDownloader);
+            if (downloadExecutor == null) {
+                downloadExecutor = Executors.newCachedThreadPool();
+            }
+        }
+        downloadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean isStarted = false;
+                try {
+                    isStarted = prepareDownload(runningDownload);
+                    if (isStarted) {
+                        download(concurrentDownloader, runningDownload);
+                    }
+                } finally {
+                    onConcurrentDownloadEnd(runningDownload, isStarted);
+                }
+            }
+        });
+    }
 
-            downloader.download(torrentFile, destinationDirectory);
+    /**
+     * Downloaders that support it look up the settings of the download by its id.
+     */
+    private static void download(Downloader downloader, RunningDownload runningDownload) {
+        if (downloader instanceof IdentifiedDownloader) {
+            ((IdentifiedDownloader) downloader).download(
+                    runningDownload.downloadId,
+                    runningDownload.torrentFile,
+                    runningDownload.destinationDirectory);
+        } else {
+            downloader.download(runningDownload.torrentFile, runningDownload.destinationDirectory);
+        }
+    }
+
+    private synchronized void onConcurrentDownloadEnd(RunningDownload runningDownload, boolean isStarted) {
+        activeDownloaders.remove(runningDownload.downloader);
+        if (isStarted) {
+            onDownloadEnd(runningDownload);
+        } else {
+            notifyAll();
+        }
+    }
+
+    /**
+     * IntentService stops itself as soon as its queue is empty. Keep the worker thread
+     * busy while concurrent downloads are still running and no further intent is pending.
+     * Paused downloads that were queued again are started in between.
+     */
+    private void waitForActiveDownloadsIfIdle() {
+        while (waitForRequeuedDownloadIfIdle()) {
+            startNextDownload();
+        }
+    }
+
+    /**
+     * Returns true if a download was queued again and needs to be started.
+     */
+    private synchronized boolean waitForRequeuedDownloadIfIdle() {
+        try {
+            while (requeuedDownloadCount == 0
+                    && !activeDownloaders.isEmpty()
+                    && pendingIntentCount == 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (requeuedDownloadCount == 0) {
+            return false;
         }
+        requeuedDownloadCount -= 1;
+        return true;
     }
 }
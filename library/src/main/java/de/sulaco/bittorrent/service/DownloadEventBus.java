@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import java.util.concurrent.Executor;
+
+import de.sulaco.bittorrent.service.downloader.DownloadListener;
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.DownloadProgressListener;
+
+import static de.sulaco.bittorrent.service.util.RequireNonNull.requireNonNull;
+
+/**
+ * Delivers download events of {@link BitTorrentDownloadService} to listeners in the
+ * same process without marshalling them into Intents. Subscribers without executor
+ * are called directly on the download thread and no objects are allocated per event.
+ * Subscribers with executor get one Runnable per event.
+ */
+public final class DownloadEventBus implements DownloadProgressListener {
+
+    private static final DownloadEventBus INSTANCE = new DownloadEventBus();
+
+    private static final class Subscriber {
+        final DownloadListener listener;
+        final Executor executor;
+
+        Subscriber(DownloadListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private volatile Subscriber[] subscribers = new Subscriber[0];
+
+    private DownloadEventBus() {
+    }
+
+    public static DownloadEventBus getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Subscribes a listener. Pass null as executor to receive the events directly on
+     * the download thread.
+     */
+    public synchronized void subscribe(DownloadListener listener, Executor executor) {
+        requireNonNull(listener, "listener must not be null");
+        Subscriber[] newSubscribers = new Subscriber[subscribers.length + 1];
+        System.arraycopy(subscribers, 0, newSubscribers, 0, subscribers.length);
+        newSubscribers[subscribers.length] = new Subscriber(listener, executor);
+        subscribers = newSubscribers;
+    }
+
+    public synchronized void unsubscribe(DownloadListener listener) {
+        for (int i = 0; i < subscribers.length; ++i) {
+            if (subscribers[i].listener == listener) {
+                Subscriber[] newSubscribers = new Subscriber[subscribers.length - 1];
+                System.arraycopy(subscribers, 0, newSubscribers, 0, i);
+                System.arraycopy(subscribers, i + 1, newSubscribers, i, newSubscribers.length - i);
+                subscribers = newSubscribers;
+                return;
+            }
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return subscribers.length > 0;
+    }
+
+    @Override
+    public void onDownloadStart(final String torrentFile) {
+        for (final Subscriber subscriber : subscribers) {
+            if (subscriber.executor == null) {
+                subscriber.listener.onDownloadStart(torrentFile);
+            } else {
+                subscriber.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscriber.listener.onDownloadStart(torrentFile);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void onDownloadProgress(final String torrentFile, final DownloadProgress downloadProgress) {
+        for (final Subscriber subscriber : subscribers) {
+            if (!(subscriber.listener instanceof DownloadProgressListener)) {
+                continue;
+            }
+            final DownloadProgressListener listener = (DownloadProgressListener) subscriber.listener;
+            if (subscriber.executor == null) {
+                listener.onDownloadProgress(torrentFile, downloadProgress);
+            } else {
+                subscriber.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDownloadProgress(torrentFile, downloadProgress);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void onDownloadProgress(final String torrentFile, final int progress) {
+        for (final Subscriber subscriber : subscribers) {
+            if (subscriber.executor == null) {
+                subscriber.listener.onDownloadProgress(torrentFile, progress);
+            } else {
+                subscriber.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscriber.listener.onDownloadProgress(torrentFile, progress);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void onDownloadEnd(final String torrentFile, final int downloadState) {
+        for (final Subscriber subscriber : subscribers) {
+            if (subscriber.executor == null) {
+                subscriber.listener.onDownloadEnd(torrentFile, downloadState);
+            } else {
+                subscriber.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscriber.listener.onDownloadEnd(torrentFile, downloadState);
+                    }
+                });
+            }
+        }
+    }
+}
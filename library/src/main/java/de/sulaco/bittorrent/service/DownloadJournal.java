@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import static de.sulaco.bittorrent.service.util.RequireNonNull.requireNonNull;
+
+/**
+ * Append-only journal of the download queue. Each record carries a CRC32 so that a
+ * record torn by a crash ends the replay. The journal is compacted to the unfinished
+ * entries when it is opened and truncated whenever the queue runs empty.
+ * <p>
+ * The entries are updated right away, the records are written in order by the write
+ * executor so that callers on the main thread do not wait for the disk.
+ */
+class DownloadJournal {
+
+    static class Entry {
+        final String id;
+        final String torrentFile;
+        final String destinationDirectory;
+        int priority = 0;
+        long maxDownloadRate = 0;
+        long maxUploadRate = 0;
+        int maxPeerConnections = 0;
+        boolean isStreaming = false;
+        int[] filePriorities;
+        boolean isStarted = false;
+        boolean isPaused = false;
+        int progress = 0;
+
+        Entry(String id, String torrentFile, String destinationDirectory) {
+            this.id = id;
+            this.torrentFile = torrentFile;
+            this.destinationDirectory = destinationDirectory;
+        }
+    }
+
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_START = 2;
+    private static final byte RECORD_CHECKPOINT = 3;
+    private static final byte RECORD_END = 4;
+    private static final byte RECORD_PAUSE = 5;
+    private static final byte RECORD_RESUME = 6;
+
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    // length and checksum
+    private static final int RECORD_FRAME_LENGTH = 12;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private final File file;
+    private final Executor writeExecutor;
+    private final Map<String, Entry> unfinishedEntries = new LinkedHashMap<>();
+    // only used by the write executor
+    private FileOutputStream output;
+    // length of the complete records, a failed write may leave a torn record behind
+    private long validLength = 0;
+
+    /**
+     * Writes the records on the calling thread.
+     */
+    public DownloadJournal(File file) {
+        this(file, DIRECT_EXECUTOR);
+    }
+
+    /**
+     * The write executor has to run the records one at a time in order, e.g. a
+     * single thread executor.
+     */
+    DownloadJournal(File file, Executor writeExecutor) {
+        requireNonNull(file, "file must not be null");
+        requireNonNull(writeExecutor, "writeExecutor must not be null");
+        this.file = file;
+        this.writeExecutor = writeExecutor;
+        replay();
+        final List<byte[]> records = createCompactedRecords();
+        write(new Runnable() {
+            @Override
+            public void run() {
+                compact(records);
+            }
+        });
+    }
+
+    /**
+     * Returns the entries without end record in the order they were enqueued.
+     */
+    public synchronized List<Entry> getUnfinishedEntries() {
+        return new ArrayList<>(unfinishedEntries.values());
+    }
+
+    public synchronized boolean isUnfinished(String id) {
+        return unfinishedEntries.containsKey(id);
+    }
+
+    public synchronized boolean hasUnfinishedEntries() {
+        return !unfinishedEntries.isEmpty();
+    }
+
+    public void enqueue(String id, String torrentFile, String destinationDirectory) {
+        enqueue(new Entry(id, torrentFile, destinationDirectory));
+    }
+
+    /**
+     * Records the entry with the settings of its request.
+     */
+    public synchronized void enqueue(Entry entry) {
+        unfinishedEntries.put(entry.id, entry);
+        append(createEnqueueRecord(entry), true);
+    }
+
+    public synchronized void start(String id) {
+        Entry entry = unfinishedEntries.get(id);
+        if (entry != null) {
+            entry.isStarted = true;
+            append(createRecord(RECORD_START, id), false);
+        }
+    }
+
+    public synchronized void checkpoint(String id, int progress) {
+        Entry entry = unfinishedEntries.get(id);
+        if (entry != null) {
+            entry.progress = progress;
+            append(createRecord(RECORD_CHECKPOINT, id, progress), false);
+        }
+    }
+
+    public synchronized void pause(String id) {
+        Entry entry = unfinishedEntries.get(id);
+        if (entry != null && !entry.isPaused) {
+            entry.isPaused = true;
+            append(createRecord(RECORD_PAUSE, id), true);
+        }
+    }
+
+    public synchronized void resume(String id) {
+        Entry entry = unfinishedEntries.get(id);
+        if (entry != null && entry.isPaused) {
+            entry.isPaused = false;
+            append(createRecord(RECORD_RESUME, id), true);
+        }
+    }
+
+    public synchronized void end(String id, int downloadState) {
+        if (unfinishedEntries.remove(id) == null) {
+            return;
+        }
+        if (unfinishedEntries.isEmpty()) {
+            write(new Runnable() {
+                @Override
+                public void run() {
+                    closeOutput();
+                    file.delete();
+                    validLength = 0;
+                }
+            });
+        } else {
+            append(createRecord(RECORD_END, id, downloadState), true);
+        }
+    }
+
+    public synchronized void close() {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+            }
+        });
+    }
+
+    private void closeOutput() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            output = null;
+        }
+    }
+
+    private void replay() {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new FileInputStream(file));
+            byte[] record;
+            while ((record = readRecord(input)) != null) {
+                applyRecord(new DataInputStream(new ByteArrayInputStream(record)));
+                validLength += record.length + RECORD_FRAME_LENGTH;
+            }
+        } catch (IOException e) {
+            // a torn or corrupt record ends the replay
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private static byte[] readRecord(DataInputStream input) throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_LENGTH) {
+            throw new IOException("invalid record length");
+        }
+        byte[] record = new byte[length];
+        input.readFully(record);
+        long checksum = input.readLong();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if (crc.getValue() != checksum) {
+            throw new IOException("checksum mismatch");
+        }
+        return record;
+    }
+
+    private void applyRecord(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        String id = record.readUTF();
+        if (type == RECORD_ENQUEUE) {
+            String torrentFile = record.readUTF();
+            String destinationDirectory = record.readUTF();
+            Entry entry = new Entry(id, torrentFile, destinationDirectory);
+            // records of older journals end after the destination
+            if (record.available() > 0) {
+                readSettings(record, entry);
+            }
+            unfinishedEntries.put(id, entry);
+            return;
+        }
+        Entry entry = unfinishedEntries.get(id);
+        if (entry == null) {
+            return;
+        }
+        if (type == RECORD_START) {
+            entry.isStarted = true;
+        } else if (type == RECORD_CHECKPOINT) {
+            entry.progress = record.readInt();
+        } else if (type == RECORD_END) {
+            unfinishedEntries.remove(id);
+        } else if (type == RECORD_PAUSE) {
+            entry.isPaused = true;
+        } else if (type == RECORD_RESUME) {
+            entry.isPaused = false;
+        }
+    }
+
+    private List<byte[]> createCompactedRecords() {
+        List<byte[]> records = new ArrayList<byte[]>();
+        for (Entry entry : unfinishedEntries.values()) {
+            records.add(createEnqueueRecord(entry));
+            if (entry.isStarted) {
+                records.add(createRecord(RECORD_START, entry.id));
+            }
+            if (entry.progress > 0) {
+                records.add(createRecord(RECORD_CHECKPOINT, entry.id, entry.progress));
+            }
+            if (entry.isPaused) {
+                records.add(createRecord(RECORD_PAUSE, entry.id));
+            }
+        }
+        return records;
+    }
+
+    private static void readSettings(DataInputStream record, Entry entry) throws IOException {
+        entry.priority = record.readInt();
+        entry.maxDownloadRate = record.readLong();
+        entry.maxUploadRate = record.readLong();
+        entry.isStreaming = record.readBoolean();
+        int fileCount = record.readInt();
+        if (fileCount >= 0) {
+            if (fileCount > MAX_RECORD_LENGTH) {
+                throw new IOException("invalid file count");
+            }
+            entry.filePriorities = new int[fileCount];
+            for (int i = 0; i < fileCount; ++i) {
+                entry.filePriorities[i] = record.readInt();
+            }
+        }
+        // records of older journals end after the file priorities
+        if (record.available() > 0) {
+            entry.maxPeerConnections = record.readInt();
+        }
+    }
+
+    /**
+     * Rewrites the journal with the records of the unfinished entries only.
+     */
+    private void compact(List<byte[]> records) {
+        if (records.isEmpty()) {
+            file.delete();
+            validLength = 0;
+            return;
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpOutput = null;
+        try {
+            tmpOutput = new FileOutputStream(tmpFile);
+            long length = 0;
+            for (byte[] record : records) {
+                tmpOutput.write(record);
+                length += record.length;
+            }
+            tmpOutput.getFD().sync();
+            tmpOutput.close();
+            tmpOutput = null;
+            if (tmpFile.renameTo(file)) {
+                validLength = length;
+            } else {
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            closeQuietly(tmpOutput);
+            tmpFile.delete();
+        }
+    }
+
+    private void append(final byte[] record, final boolean sync) {
+        write(new Runnable() {
+            @Override
+            public void run() {
+                writeRecord(record, sync);
+            }
+        });
+    }
+
+    private void write(Runnable task) {
+        try {
+            writeExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the queue keeps working without durability
+        }
+    }
+
+    private void writeRecord(byte[] record, boolean sync) {
+        try {
+            if (output == null) {
+                File directory = file.getParentFile();
+                if (directory != null && !directory.isDirectory()) {
+                    directory.mkdirs();
+                }
+                output = new FileOutputStream(file, true);
+                FileChannel channel = output.getChannel();
+                if (channel.size() > validLength) {
+                    // records appended after a torn record would be lost on replay
+                    channel.truncate(validLength);
+                }
+                validLength = channel.size();
+            }
+            output.write(record);
+            if (sync) {
+                output.getFD().sync();
+            }
+            validLength += record.length;
+        } catch (IOException e) {
+            // the queue keeps working without durability
+            truncateOutput();
+            closeOutput();
+        }
+    }
+
+    /**
+     * Cuts off a partially written record. If that fails too, the next write does it.
+     */
+    private void truncateOutput() {
+        if (output != null) {
+            try {
+                output.getChannel().truncate(validLength);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static byte[] createEnqueueRecord(Entry entry) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        try {
+            data.writeByte(RECORD_ENQUEUE);
+            data.writeUTF(entry.id);
+            data.writeUTF(entry.torrentFile);
+            data.writeUTF(entry.destinationDirectory);
+            data.writeInt(entry.priority);
+            data.writeLong(entry.maxDownloadRate);
+            data.writeLong(entry.maxUploadRate);
+            data.writeBoolean(entry.isStreaming);
+            if (entry.filePriorities != null) {
+                data.writeInt(entry.filePriorities.length);
+                for (int filePriority : entry.filePriorities) {
+                    data.writeInt(filePriority);
+                }
+            } else {
+                data.writeInt(-1);
+            }
+            data.writeInt(entry.maxPeerConnections);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame(payload.toByteArray());
+    }
+
+    private static byte[] createRecord(byte type, String id) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        try {
+            data.writeByte(type);
+            data.writeUTF(id);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame(payload.toByteArray());
+    }
+
+    private static byte[] createRecord(byte type, String id, int value) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        try {
+            data.writeByte(type);
+            data.writeUTF(id);
+            data.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return frame(payload.toByteArray());
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + RECORD_FRAME_LENGTH);
+        DataOutputStream data = new DataOutputStream(record);
+        try {
+            data.writeInt(payload.length);
+            data.write(payload);
+            data.writeLong(crc.getValue());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return record.toByteArray();
+    }
+
+    private static void closeQuietly(InputStream input) {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void closeQuietly(FileOutputStream output) {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
+
+/**
+ * Backlog of download intents. Intents with a higher priority are polled first,
+ * intents with the same priority in arrival order. Intents are indexed by their
+ * download id. Removed intents are only marked and skipped when they are polled.
+ */
+class DownloadQueue {
+
+    private static class Entry implements Comparable<Entry> {
+        final Intent intent;
+        final String downloadId;
+        final int priority;
+        final long sequence;
+        boolean isRemoved = false;
+
+        Entry(Intent intent, String downloadId, int priority, long sequence) {
+            this.intent = intent;
+            this.downloadId = downloadId;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long nextSequence = 0;
+    private int removedCount = 0;
+
+    static String getDownloadId(Intent intent) {
+        return intent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID);
+    }
+
+    static int getPriority(Intent intent) {
+        return intent.getIntExtra(BitTorrentIntentConstants.EXTRA_PRIORITY, 0);
+    }
+
+    /**
+     * Replaces a queued intent with the same download id.
+     */
+    public void add(Intent intent) {
+        remove(getDownloadId(intent));
+        Entry entry = new Entry(intent, getDownloadId(intent), getPriority(intent), nextSequence++);
+        queue.add(entry);
+        entries.put(entry.downloadId, entry);
+    }
+
+    /**
+     * Queues the intent of a paused download ahead of the intents with the same
+     * priority that did not start yet.
+     */
+    public void requeue(Intent intent) {
+        remove(getDownloadId(intent));
+        Entry entry = new Entry(intent, getDownloadId(intent), getPriority(intent), -(nextSequence++));
+        queue.add(entry);
+        entries.put(entry.downloadId, entry);
+    }
+
+    public Intent get(String downloadId) {
+        Entry entry = entries.get(downloadId);
+        return entry != null ? entry.intent : null;
+    }
+
+    /**
+     * Returns null if no intent with the download id is queued.
+     */
+    public Intent remove(String downloadId) {
+        Entry entry = entries.remove(downloadId);
+        if (entry == null) {
+            return null;
+        }
+        entry.isRemoved = true;
+        removedCount += 1;
+        if (removedCount > entries.size()) {
+            purgeRemovedEntries();
+        }
+        return entry.intent;
+    }
+
+    /**
+     * Returns null if the queue is empty.
+     */
+    public Intent poll() {
+        Entry entry = queue.poll();
+        while (entry != null && entry.isRemoved) {
+            removedCount -= 1;
+            entry = queue.poll();
+        }
+        if (entry == null) {
+            return null;
+        }
+        entries.remove(entry.downloadId);
+        return entry.intent;
+    }
+
+    /**
+     * Returns the intents in no particular order and empties the queue.
+     */
+    public List<Intent> removeAll() {
+        List<Intent> intents = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            intents.add(entry.intent);
+        }
+        queue.clear();
+        entries.clear();
+        removedCount = 0;
+        return intents;
+    }
+
+    /**
+     * Rebuilds the heap once the marked entries outnumber the queued ones, so that
+     * removal stays amortized O(log n).
+     */
+    private void purgeRemovedEntries() {
+        queue.clear();
+        queue.addAll(entries.values());
+        removedCount = 0;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.DownloadProgressListener;
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloadListener;
+
+/**
+ * Adds the download id to the events of downloaders that only report the torrent file.
+ * Events that come with their id are forwarded unchanged.
+ */
+class IdentifyingListener implements DownloadProgressListener, IdentifiedDownloadListener {
+
+    interface DownloadIdLookup {
+        /**
+         * Returns the id of the running download of the torrent file.
+         */
+        String getDownloadId(String torrentFile);
+    }
+
+    private final IdentifiedDownloadListener listener;
+    private final DownloadIdLookup lookup;
+
+    public IdentifyingListener(IdentifiedDownloadListener listener, DownloadIdLookup lookup) {
+        this.listener = listener;
+        this.lookup = lookup;
+    }
+
+    @Override
+    public void onDownloadStart(String torrentFile) {
+        onDownloadStart(lookup.getDownloadId(torrentFile), torrentFile);
+    }
+
+    @Override
+    public void onDownloadProgress(String torrentFile, DownloadProgress downloadProgress) {
+        onDownloadProgress(lookup.getDownloadId(torrentFile), torrentFile, downloadProgress);
+    }
+
+    @Override
+    public void onDownloadProgress(String torrentFile, int progress) {
+        onDownloadProgress(lookup.getDownloadId(torrentFile), torrentFile, progress);
+    }
+
+    @Override
+    public void onDownloadEnd(String torrentFile, int downloadState) {
+        onDownloadEnd(lookup.getDownloadId(torrentFile), torrentFile, downloadState);
+    }
+
+    @Override
+    public void onDownloadStart(String downloadId, String torrentFile) {
+        listener.onDownloadStart(downloadId, torrentFile);
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, DownloadProgress downloadProgress) {
+        listener.onDownloadProgress(downloadId, torrentFile, downloadProgress);
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, int progress) {
+        listener.onDownloadProgress(downloadId, torrentFile, progress);
+    }
+
+    @Override
+    public void onDownloadEnd(String downloadId, String torrentFile, int downloadState) {
+        listener.onDownloadEnd(downloadId, torrentFile, downloadState);
+    }
+}
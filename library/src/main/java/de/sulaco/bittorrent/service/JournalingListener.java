@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloadListener;
+
+/**
+ * Records progress checkpoints and end states of the running downloads in the
+ * {@link DownloadJournal} and forwards all events.
+ */
+class JournalingListener implements IdentifiedDownloadListener {
+
+    private static final int CHECKPOINT_STEP = 10;
+
+    private final DownloadJournal journal;
+    private final IdentifiedDownloadListener listener;
+    private final Map<String, Integer> checkpointProgresses = new HashMap<>();
+
+    public JournalingListener(DownloadJournal journal, IdentifiedDownloadListener listener) {
+        this.journal = journal;
+        this.listener = listener;
+    }
+
+    /**
+     * Records the start of a download that is about to start. Only tracked downloads
+     * get checkpoints and an end record.
+     */
+    public synchronized void track(String downloadId) {
+        checkpointProgresses.put(downloadId, 0);
+        journal.start(downloadId);
+    }
+
+    @Override
+    public void onDownloadStart(String downloadId, String torrentFile) {
+        listener.onDownloadStart(downloadId, torrentFile);
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, DownloadProgress downloadProgress) {
+        listener.onDownloadProgress(downloadId, torrentFile, downloadProgress);
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, int progress) {
+        synchronized (this) {
+            Integer checkpointProgress = checkpointProgresses.get(downloadId);
+            if (checkpointProgress != null && progress >= checkpointProgress + CHECKPOINT_STEP) {
+                checkpointProgresses.put(downloadId, progress);
+                journal.checkpoint(downloadId, progress);
+            }
+        }
+        listener.onDownloadProgress(downloadId, torrentFile, progress);
+    }
+
+    @Override
+    public void onDownloadEnd(String downloadId, String torrentFile, int downloadState) {
+        synchronized (this) {
+            if (checkpointProgresses.remove(downloadId) != null) {
+                journal.end(downloadId, downloadState);
+            }
+        }
+        listener.onDownloadEnd(downloadId, torrentFile, downloadState);
+    }
+}
@@ -20,13 +20,70 @@ import android.content.Context;
 import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
 
-import de.sulaco.bittorrent.service.downloader.DownloadListener;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.DownloadProgressListener;
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloadListener;
 import de.sulaco.bittorrent.service.intent.DownloadEndBroadcast;
+import de.sulaco.bittorrent.service.intent.DownloadProgressBatchBroadcast;
 import de.sulaco.bittorrent.service.intent.DownloadProgressBroadcast;
 
-class LocalBroadcaster implements DownloadListener {
+/**
+ * Publishes download events to the {@link DownloadEventBus} and, unless disabled, as
+ * local broadcasts. Progress updates are throttled by a minimum delta and, if a progress
+ * interval is set, coalesced into one batch broadcast per interval. The last progress of
+ * a download is always published before its end. Progress details are attached to the
+ * progress broadcasts. Events are published after the lock is released, so that slow
+ * subscribers do not hold up other downloads and may call back into the service.
+ * Progress is tracked per download id; events without an id use the torrent file as id.
+ */
+class LocalBroadcaster implements DownloadProgressListener, IdentifiedDownloadListener {
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 10;
+
+    private static class ProgressState {
+        final String torrentFile;
+        int broadcastProgress = 0;
+        int latestProgress = 0;
+        DownloadProgress latestDetails;
+
+        ProgressState(String torrentFile) {
+            this.torrentFile = torrentFile;
+        }
+    }
+
+    /**
+     * Progress to publish once the lock is released.
+     */
+    private class ProgressEvent {
+        final String torrentFile;
+        final int progress;
+        final DownloadProgress details;
+        final boolean isBroadcast;
+
+        ProgressEvent(ProgressState progressState) {
+            this.torrentFile = progressState.torrentFile;
+            this.progress = progressState.latestProgress;
+            this.details = getLatestDetails(progressState);
+            this.isBroadcast = isBroadcastEnabled;
+        }
+    }
 
     private Context context;
+    private final DownloadEventBus eventBus = DownloadEventBus.getInstance();
+    private boolean isBroadcastEnabled = true;
+    private final Map<String, ProgressState> progressStates = new HashMap<>();
+    private long progressIntervalMillis = 0;
+    private int minProgressDelta = 1;
+    private ScheduledThreadPoolExecutor tickExecutor;
+    private boolean isTickScheduled = false;
 
     public LocalBroadcaster(Context context) {
         if (context == null) {
@@ -35,16 +92,186 @@ class LocalBroadcaster implements DownloadListener {
         this.context = context;
     }
 
+    public synchronized void setProgressPolicy(long progressIntervalMillis, int minProgressDelta) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        this.minProgressDelta = minProgressDelta;
+    }
+
+    /**
+     * Disabled broadcasts leave the event bus as the only receiver of download events.
+     */
+    public synchronized void setBroadcastEnabled(boolean enabled) {
+        isBroadcastEnabled = enabled;
+    }
+
+    @Override
     public void onDownloadStart(String torrentFile) {
-        broadcast(DownloadProgressBroadcast.createProgressIntent(torrentFile, 0));
+        onDownloadStart(torrentFile, torrentFile);
+    }
+
+    @Override
+    public void onDownloadProgress(String torrentFile, DownloadProgress downloadProgress) {
+        onDownloadProgress(torrentFile, torrentFile, downloadProgress);
     }
 
+    @Override
     public void onDownloadProgress(String torrentFile, int progress) {
-        broadcast(DownloadProgressBroadcast.createProgressIntent(torrentFile, progress));
+        onDownloadProgress(torrentFile, torrentFile, progress);
     }
 
+    @Override
     public void onDownloadEnd(String torrentFile, int downloadState) {
-        broadcast(DownloadEndBroadcast.createIntent(torrentFile, downloadState));
+        onDownloadEnd(torrentFile, torrentFile, downloadState);
+    }
+
+    @Override
+    public void onDownloadStart(String downloadId, String torrentFile) {
+        boolean isBroadcast;
+        synchronized (this) {
+            progressStates.put(downloadId, new ProgressState(torrentFile));
+            isBroadcast = isBroadcastEnabled;
+        }
+        eventBus.onDownloadStart(torrentFile);
+        if (isBroadcast) {
+            broadcast(DownloadProgressBroadcast.createProgressIntent(torrentFile, 0));
+        }
+    }
+
+    @Override
+    public synchronized void onDownloadProgress(String downloadId, String torrentFile,
+                                                DownloadProgress downloadProgress) {
+        getProgressState(downloadId, torrentFile).latestDetails = downloadProgress;
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, int progress) {
+        ProgressEvent event;
+        synchronized (this) {
+            ProgressState progressState = getProgressState(downloadId, torrentFile);
+            progressState.latestProgress = progress;
+            if (!isProgressDue(progressState)) {
+                return;
+            }
+            if (progressIntervalMillis != 0) {
+                scheduleTick();
+                return;
+            }
+            progressState.broadcastProgress = progress;
+            event = new ProgressEvent(progressState);
+        }
+        publishProgress(event);
+    }
+
+    @Override
+    public void onDownloadEnd(String downloadId, String torrentFile, int downloadState) {
+        ProgressEvent lastEvent = null;
+        boolean isBroadcast;
+        synchronized (this) {
+            ProgressState progressState = progressStates.remove(downloadId);
+            if (progressState != null
+                    && progressState.latestProgress != progressState.broadcastProgress) {
+                lastEvent = new ProgressEvent(progressState);
+            }
+            isBroadcast = isBroadcastEnabled;
+        }
+        if (lastEvent != null) {
+            publishProgress(lastEvent);
+        }
+        eventBus.onDownloadEnd(torrentFile, downloadState);
+        if (isBroadcast) {
+            broadcast(DownloadEndBroadcast.createIntent(torrentFile, downloadState));
+        }
+    }
+
+    private ProgressState getProgressState(String downloadId, String torrentFile) {
+        ProgressState progressState = progressStates.get(downloadId);
+        if (progressState == null) {
+            progressState = new ProgressState(torrentFile);
+            progressStates.put(downloadId, progressState);
+        }
+        return progressState;
+    }
+
+    private boolean isProgressDue(ProgressState progressState) {
+        int delta = progressState.latestProgress - progressState.broadcastProgress;
+        return delta >= minProgressDelta
+                || (progressState.latestProgress == 100 && delta > 0);
+    }
+
+    private void scheduleTick() {
+        if (isTickScheduled) {
+            return;
+        }
+        if (tickExecutor == null) {
+            tickExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "LocalBroadcaster");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            tickExecutor.setKeepAliveTime(IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            tickExecutor.allowCoreThreadTimeOut(true);
+        }
+        isTickScheduled = true;
+        tickExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                broadcastProgressBatch();
+            }
+        }, progressIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void broadcastProgressBatch() {
+        List<ProgressEvent> events = new ArrayList<>();
+        boolean isBroadcast;
+        synchronized (this) {
+            isTickScheduled = false;
+            for (ProgressState progressState : progressStates.values()) {
+                if (isProgressDue(progressState)) {
+                    progressState.broadcastProgress = progressState.latestProgress;
+                    events.add(new ProgressEvent(progressState));
+                }
+            }
+            isBroadcast = isBroadcastEnabled;
+        }
+        DownloadProgressBatchBroadcast batch = new DownloadProgressBatchBroadcast();
+        for (ProgressEvent event : events) {
+            publishProgressToEventBus(event);
+            batch.addProgress(event.torrentFile, event.progress, event.details);
+        }
+        if (isBroadcast && !batch.isEmpty()) {
+            broadcast(batch.createIntent());
+        }
+    }
+
+    private void publishProgress(ProgressEvent event) {
+        publishProgressToEventBus(event);
+        if (event.isBroadcast) {
+            broadcast(new DownloadProgressBroadcast()
+                    .setTorrentFile(event.torrentFile)
+                    .setProgress(event.progress)
+                    .setDetails(event.details)
+                    .createIntent());
+        }
+    }
+
+    private void publishProgressToEventBus(ProgressEvent event) {
+        if (event.details != null) {
+            eventBus.onDownloadProgress(event.torrentFile, event.details);
+        }
+        eventBus.onDownloadProgress(event.torrentFile, event.progress);
+    }
+
+    /**
+     * Returns the details only if they belong to the latest progress.
+     */
+    private static DownloadProgress getLatestDetails(ProgressState progressState) {
+        DownloadProgress details = progressState.latestDetails;
+        return details != null && details.getProgress() == progressState.latestProgress
+                ? details
+                : null;
     }
 
     private void broadcast(Intent intent) {
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloadListener;
+import de.sulaco.bittorrent.service.intent.DownloadState;
+
+/**
+ * Forwards all events except the ABORTED end of paused downloads. A paused download
+ * is not finished, neither for the journal nor for its requester.
+ */
+class PausingListener implements IdentifiedDownloadListener {
+
+    private final IdentifiedDownloadListener listener;
+    private final Set<String> pausingIds = new HashSet<>();
+    private final Map<String, String> pausedTorrentFiles = new HashMap<>();
+
+    public PausingListener(IdentifiedDownloadListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Marks the download as paused. Must be called before its downloader gets disabled.
+     */
+    public synchronized void pause(String downloadId) {
+        pausingIds.add(downloadId);
+    }
+
+    /**
+     * Returns true if the download ended because it was paused and clears the mark.
+     */
+    public synchronized boolean takePaused(String downloadId) {
+        pausingIds.remove(downloadId);
+        return pausedTorrentFiles.remove(downloadId) != null;
+    }
+
+    /**
+     * Turns a pause into an abort. If the download ended already, its ABORTED end
+     * is forwarded now.
+     */
+    public void cancelPause(String downloadId) {
+        String torrentFile;
+        synchronized (this) {
+            pausingIds.remove(downloadId);
+            torrentFile = pausedTorrentFiles.remove(downloadId);
+        }
+        if (torrentFile != null) {
+            listener.onDownloadEnd(downloadId, torrentFile, DownloadState.ABORTED);
+        }
+    }
+
+    @Override
+    public void onDownloadStart(String downloadId, String torrentFile) {
+        listener.onDownloadStart(downloadId, torrentFile);
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, DownloadProgress downloadProgress) {
+        listener.onDownloadProgress(downloadId, torrentFile, downloadProgress);
+    }
+
+    @Override
+    public void onDownloadProgress(String downloadId, String torrentFile, int progress) {
+        listener.onDownloadProgress(downloadId, torrentFile, progress);
+    }
+
+    @Override
+    public void onDownloadEnd(String downloadId, String torrentFile, int downloadState) {
+        synchronized (this) {
+            if (pausingIds.remove(downloadId) && downloadState == DownloadState.ABORTED) {
+                pausedTorrentFiles.put(downloadId, torrentFile);
+                return;
+            }
+        }
+        listener.onDownloadEnd(downloadId, torrentFile, downloadState);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Client;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Distributes global download and upload rate limits among the running downloads and
+ * applies per download limits. Downloads are identified by their id. Limits are in
+ * bytes per second, 0 means unlimited.
+ * The share of a download that needs less than the global limit allows is split among
+ * the others. Limits can be changed at any time and take effect on running clients.
+ *
+ * ttorrent throttles each peer connection on its own against the rate limits of the
+ * torrent, so the limit of a download is divided by its number of connected peers.
+ */
+public final class BandwidthLimiter {
+
+    private static final BandwidthLimiter INSTANCE = new BandwidthLimiter();
+
+    private static final long UPDATE_INTERVAL_NANOS = 1000L * 1000 * 1000;
+
+    private static class Limits {
+        long maxDownloadRate;
+        long maxUploadRate;
+    }
+
+    private long maxDownloadRate = 0;
+    private long maxUploadRate = 0;
+    private final Map<String, Limits> downloadLimits = new HashMap<>();
+    private final Map<String, Client> clients = new LinkedHashMap<>();
+    private final Map<String, Limits> effectiveLimits = new HashMap<>();
+    private long lastUpdateNanos = 0;
+
+    BandwidthLimiter() {
+    }
+
+    public static BandwidthLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void setGlobalLimits(long maxDownloadRate, long maxUploadRate) {
+        this.maxDownloadRate = maxDownloadRate;
+        this.maxUploadRate = maxUploadRate;
+        apply();
+    }
+
+    public synchronized long getGlobalDownloadLimit() {
+        return maxDownloadRate;
+    }
+
+    public synchronized long getGlobalUploadLimit() {
+        return maxUploadRate;
+    }
+
+    /**
+     * Sets the limits of the download with the id. They stay in effect until they are
+     * removed.
+     */
+    public synchronized void setLimits(String downloadId, long maxDownloadRate, long maxUploadRate) {
+        Limits limits = new Limits();
+        limits.maxDownloadRate = maxDownloadRate;
+        limits.maxUploadRate = maxUploadRate;
+        downloadLimits.put(downloadId, limits);
+        apply();
+    }
+
+    public synchronized void removeLimits(String downloadId) {
+        if (downloadLimits.remove(downloadId) != null) {
+            apply();
+        }
+    }
+
+    /**
+     * Returns the download rate limit that is in effect for the running download or 0.
+     */
+    public synchronized long getDownloadRateLimit(String downloadId) {
+        Limits limits = effectiveLimits.get(downloadId);
+        return limits != null ? limits.maxDownloadRate : 0;
+    }
+
+    /**
+     * Returns the upload rate limit that is in effect for the running download or 0.
+     */
+    public synchronized long getUploadRateLimit(String downloadId) {
+        Limits limits = effectiveLimits.get(downloadId);
+        return limits != null ? limits.maxUploadRate : 0;
+    }
+
+    synchronized void register(String downloadId, Client client) {
+        clients.put(downloadId, client);
+        apply();
+    }
+
+    synchronized void unregister(String downloadId) {
+        clients.remove(downloadId);
+        effectiveLimits.remove(downloadId);
+        apply();
+    }
+
+    /**
+     * Applies the limits again if the last update is older than a second, so that
+     * they follow the number of connected peers.
+     */
+    synchronized void update() {
+        if (System.nanoTime() - lastUpdateNanos >= UPDATE_INTERVAL_NANOS) {
+            apply();
+        }
+    }
+
+    private void apply() {
+        lastUpdateNanos = System.nanoTime();
+        if (clients.isEmpty()) {
+            return;
+        }
+        long[] downloadCaps = new long[clients.size()];
+        long[] uploadCaps = new long[clients.size()];
+        int i = 0;
+        for (String downloadId : clients.keySet()) {
+            Limits limits = downloadLimits.get(downloadId);
+            downloadCaps[i] = limits != null ? limits.maxDownloadRate : 0;
+            uploadCaps[i] = limits != null ? limits.maxUploadRate : 0;
+            ++i;
+        }
+        long[] downloadRates = allocate(maxDownloadRate, downloadCaps);
+        long[] uploadRates = allocate(maxUploadRate, uploadCaps);
+        i = 0;
+        for (Map.Entry<String, Client> entry : clients.entrySet()) {
+            Limits limits = new Limits();
+            limits.maxDownloadRate = downloadRates[i];
+            limits.maxUploadRate = uploadRates[i];
+            effectiveLimits.put(entry.getKey(), limits);
+            applyToClient(entry.getValue(), limits);
+            ++i;
+        }
+    }
+
+    private static void applyToClient(Client client, Limits limits) {
+        int divisor = Math.max(1, PeerConnectionLimiter.countConnectedPeers(client));
+        client.setMaxDownloadRate(toPeerKiloBytes(limits.maxDownloadRate, divisor));
+        client.setMaxUploadRate(toPeerKiloBytes(limits.maxUploadRate, divisor));
+    }
+
+    /**
+     * ttorrent expects KB/s where 0 means unlimited.
+     */
+    private static double toPeerKiloBytes(long bytesPerSecond, int connectedPeers) {
+        return bytesPerSecond / 1024.0 / connectedPeers;
+    }
+
+    /**
+     * Splits the global limit among downloads with the given caps by max-min fairness.
+     * Caps and results of 0 mean unlimited.
+     */
+    static long[] allocate(long globalLimit, final long[] caps) {
+        long[] rates = new long[caps.length];
+        if (globalLimit <= 0) {
+            System.arraycopy(caps, 0, rates, 0, caps.length);
+            return rates;
+        }
+        Integer[] order = new Integer[caps.length];
+        for (int i = 0; i < caps.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                long leftCap = effectiveCap(caps, left);
+                long rightCap = effectiveCap(caps, right);
+                return leftCap < rightCap ? -1 : (leftCap == rightCap ? 0 : 1);
+            }
+        });
+        long remaining = globalLimit;
+        for (int i = 0; i < order.length; ++i) {
+            long share = remaining / (order.length - i);
+            long rate = Math.max(1, Math.min(effectiveCap(caps, order[i]), share));
+            rates[order[i]] = rate;
+            remaining = Math.max(0, remaining - rate);
+        }
+        return rates;
+    }
+
+    private static long effectiveCap(long[] caps, int i) {
+        return caps[i] > 0 ? caps[i] : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of direct buffers in power of two size classes from {@link #MIN_BUFFER_SIZE} to
+ * {@link #MAX_BUFFER_SIZE}. Buffers are reference counted, a buffer returns to the pool
+ * once its last holder released it. The pool owns at most {@link #MAX_POOLED_BYTES} of
+ * buffers across all downloads. Requests that cannot be served from it get heap buffers
+ * that are left to the garbage collector.
+ *
+ * Retaining and releasing buffers that do not belong to the pool has no effect.
+ */
+public final class BufferPool {
+
+    static final int MIN_BUFFER_SIZE = 16 * 1024;
+    static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+    static final long MAX_POOLED_BYTES = 32L * 1024 * 1024;
+
+    private static final BufferPool INSTANCE = new BufferPool(MAX_POOLED_BYTES);
+
+    private final long maxPooledBytes;
+    private final List<ArrayDeque<ByteBuffer>> freeBuffers;
+    private final Map<ByteBuffer, Integer> referenceCounts = new IdentityHashMap<>();
+    private long pooledBytes = 0;
+    private long usedBytes = 0;
+    private long misses = 0;
+
+    BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        int sizeClasses = getSizeClass(MAX_BUFFER_SIZE) + 1;
+        freeBuffers = new ArrayList<>(sizeClasses);
+        for (int i = 0; i < sizeClasses; ++i) {
+            freeBuffers.add(new ArrayDeque<ByteBuffer>());
+        }
+    }
+
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a buffer with position 0 and the given limit. The caller holds its only
+     * reference.
+     */
+    public synchronized ByteBuffer acquire(int length) {
+        if (length > MAX_BUFFER_SIZE) {
+            ++misses;
+            return ByteBuffer.allocate(length);
+        }
+        int sizeClass = getSizeClass(length);
+        int capacity = MIN_BUFFER_SIZE << sizeClass;
+        ByteBuffer buffer = freeBuffers.get(sizeClass).poll();
+        if (buffer == null) {
+            ++misses;
+            if (pooledBytes + capacity > maxPooledBytes && !evictFreeBuffers(capacity)) {
+                return ByteBuffer.allocate(length);
+            }
+            buffer = ByteBuffer.allocateDirect(capacity);
+            pooledBytes += capacity;
+        }
+        buffer.clear();
+        buffer.limit(length);
+        referenceCounts.put(buffer, 1);
+        usedBytes += capacity;
+        return buffer;
+    }
+
+    /**
+     * Adds a reference to a pooled buffer. Returns false if the buffer does not belong
+     * to the pool.
+     */
+    public synchronized boolean retain(ByteBuffer buffer) {
+        Integer count = referenceCounts.get(buffer);
+        if (count == null) {
+            return false;
+        }
+        referenceCounts.put(buffer, count + 1);
+        return true;
+    }
+
+    /**
+     * Drops a reference to a pooled buffer, the buffer must not be used afterwards.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        Integer count = referenceCounts.get(buffer);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            referenceCounts.put(buffer, count - 1);
+            return;
+        }
+        referenceCounts.remove(buffer);
+        usedBytes -= buffer.capacity();
+        freeBuffers.get(getSizeClass(buffer.capacity())).push(buffer);
+    }
+
+    /**
+     * Returns the bytes of the direct buffers that the pool owns, in use or free.
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Returns the bytes of the pooled buffers that are in use.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the number of requests that could not be served by a free buffer.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Drops free buffers of other size classes until the capacity fits into the budget.
+     */
+    private boolean evictFreeBuffers(int capacity) {
+        for (int i = freeBuffers.size() - 1; i >= 0; --i) {
+            while (pooledBytes + capacity > maxPooledBytes && !freeBuffers.get(i).isEmpty()) {
+                pooledBytes -= freeBuffers.get(i).pop().capacity();
+            }
+        }
+        return pooledBytes + capacity <= maxPooledBytes;
+    }
+
+    private static int getSizeClass(int length) {
+        int sizeClass = 0;
+        while ((MIN_BUFFER_SIZE << sizeClass) < length) {
+            ++sizeClass;
+        }
+        return sizeClass;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Client;
+import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.common.Peer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ttorrent client that asks {@link PeerConnectionLimiter} before it connects to a peer.
+ * Discovered peers beyond the limit are ignored, new connections beyond the limit,
+ * incoming or outgoing, are closed.
+ */
+class ConnectionLimitedClient extends Client {
+
+    private final String downloadId;
+    private final PeerConnectionLimiter peerConnectionLimiter;
+
+    ConnectionLimitedClient(
+            InetAddress address,
+            SharedTorrent torrent,
+            String downloadId,
+            PeerConnectionLimiter peerConnectionLimiter) throws IOException {
+        super(address, torrent);
+        this.downloadId = downloadId;
+        this.peerConnectionLimiter = peerConnectionLimiter;
+    }
+
+    @Override
+    public void handleDiscoveredPeers(List<Peer> peers) {
+        int availableConnections = peerConnectionLimiter.getAvailableConnections(downloadId);
+        if (peers != null && peers.size() > availableConnections) {
+            peers = new ArrayList<>(peers.subList(0, availableConnections));
+        }
+        super.handleDiscoveredPeers(peers);
+    }
+
+    @Override
+    public void handleNewPeerConnection(SocketChannel channel, byte[] peerId) {
+        if (!peerConnectionLimiter.tryAcquire(downloadId)) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            return;
+        }
+        try {
+            super.handleNewPeerConnection(channel, peerId);
+        } finally {
+            peerConnectionLimiter.release(downloadId);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Storage that hands writes to a disk I/O thread, so that a slow write does not stall
+ * the peer threads of ttorrent. All downloads share the thread, the flash storage of a
+ * device serves one request at a time anyway.
+ *
+ * The stage takes ownership of written buffers, ttorrent's pieces drop their buffer
+ * once written. Buffers of the {@link BufferPool} are retained until written. The listener is told when {@link #MAX_QUEUED_WRITES} writes are queued
+ * and when the queue drained to half of it. Peer threads block once twice as many
+ * writes are queued. Reads of queued content are served from the queue.
+ *
+ * A failed write fails all further requests, see {@link #hasFailed()}.
+ */
+class DiskIoStage implements TorrentByteStorage {
+
+    static final int MAX_QUEUED_WRITES = 8;
+
+    private static final ExecutorService DISK_IO_EXECUTOR =
+            Executors.newSingleThreadExecutor(createThreadFactory("DiskIo"));
+    private static final Executor NOTIFICATION_EXECUTOR =
+            Executors.newSingleThreadExecutor(createThreadFactory("DiskIoNotification"));
+
+    interface Listener {
+        void onQueueFull();
+
+        void onQueueDrained();
+    }
+
+    private final TorrentByteStorage storage;
+    private final Listener listener;
+    private final Executor executor;
+    private final Executor notificationExecutor;
+    private final TreeMap<Long, ByteBuffer> queuedWrites = new TreeMap<>();
+    private int queueDepth = 0;
+    private boolean isFull = false;
+    private long latencyNanos = 0;
+    private IOException failure;
+
+    public DiskIoStage(TorrentByteStorage storage, Listener listener) {
+        this(storage, listener, DISK_IO_EXECUTOR, NOTIFICATION_EXECUTOR);
+    }
+
+    DiskIoStage(
+            TorrentByteStorage storage,
+            Listener listener,
+            Executor executor,
+            Executor notificationExecutor) {
+        this.storage = storage;
+        this.listener = listener;
+        this.executor = executor;
+        this.notificationExecutor = notificationExecutor;
+    }
+
+    @Override
+    public long size() {
+        return storage.size();
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, long offset) throws IOException {
+        int length = buffer.remaining();
+        synchronized (this) {
+            checkFailure();
+            Map.Entry<Long, ByteBuffer> entry = queuedWrites.floorEntry(offset);
+            if (entry != null
+                    && entry.getKey() + entry.getValue().remaining() >= offset + length) {
+                ByteBuffer queued = entry.getValue().duplicate();
+                queued.position(queued.position() + (int) (offset - entry.getKey()));
+                queued.limit(queued.position() + length);
+                buffer.put(queued);
+                return length;
+            }
+            try {
+                while (overlapsQueuedWrite(offset, length)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkFailure();
+        }
+        return storage.read(buffer, offset);
+    }
+
+    /**
+     * Queues the write and returns right away unless the queue is full.
+     */
+    @Override
+    public int write(final ByteBuffer buffer, final long offset) throws IOException {
+        final int length = buffer.remaining();
+        final long enqueueNanos = System.nanoTime();
+        synchronized (this) {
+            try {
+                while (queueDepth >= 2 * MAX_QUEUED_WRITES
+                        || queuedWrites.containsKey(offset)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            checkFailure();
+            BufferPool.getInstance().retain(buffer);
+            queuedWrites.put(offset, buffer);
+            ++queueDepth;
+            if (!isFull && queueDepth >= MAX_QUEUED_WRITES) {
+                isFull = true;
+                notifyListener(true);
+            }
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException exception = null;
+                try {
+                    if (!hasFailed()) {
+                        // the queued buffer keeps its position for reads
+                        storage.write(buffer.duplicate(), offset);
+                    }
+                } catch (IOException e) {
+                    exception = e;
+                }
+                onWritten(offset, exception, System.nanoTime() - enqueueNanos);
+                BufferPool.getInstance().release(buffer);
+            }
+        });
+        return length;
+    }
+
+    /**
+     * Waits until the queued writes are done and flushes the underlying storage on the
+     * disk I/O thread if it is {@link Flushable}.
+     */
+    public void flush() throws IOException {
+        runOnDiskIoThread(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                if (storage instanceof Flushable) {
+                    ((Flushable) storage).flush();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns true if a write failed. The content of the write is lost.
+     */
+    public synchronized boolean hasFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Returns the number of writes that are queued or in progress.
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Returns the time the latest write spent in the queue and in progress in
+     * milliseconds.
+     */
+    public synchronized long getLatencyMillis() {
+        return latencyNanos / 1000000;
+    }
+
+    @Override
+    public void close() throws IOException {
+        runOnDiskIoThread(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                storage.close();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void finish() throws IOException {
+        runOnDiskIoThread(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                storage.finish();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean isFinished() {
+        return storage.isFinished();
+    }
+
+    private synchronized void onWritten(long offset, IOException exception, long nanos) {
+        queuedWrites.remove(offset);
+        --queueDepth;
+        latencyNanos = nanos;
+        if (exception != null && failure == null) {
+            failure = exception;
+        }
+        if (isFull && queueDepth <= MAX_QUEUED_WRITES / 2) {
+            isFull = false;
+            notifyListener(false);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Runs the task after the writes queued so far. Failures of the writes are thrown
+     * after the task ran.
+     */
+    private void runOnDiskIoThread(Callable<Void> task) throws IOException {
+        FutureTask<Void> future = new FutureTask<>(task);
+        executor.execute(future);
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        synchronized (this) {
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("disk write failed", failure);
+        }
+    }
+
+    /**
+     * Returns true if content of the range is queued but not written yet.
+     */
+    public synchronized boolean isQueued(long offset, long length) {
+        return overlapsQueuedWrite(offset, length);
+    }
+
+    private boolean overlapsQueuedWrite(long offset, long length) {
+        Map.Entry<Long, ByteBuffer> entry = queuedWrites.floorEntry(offset);
+        if (entry != null && entry.getKey() + entry.getValue().remaining() > offset) {
+            return true;
+        }
+        Long nextOffset = queuedWrites.higherKey(offset);
+        return nextOffset != null && nextOffset < offset + length;
+    }
+
+    /**
+     * Listeners are notified in order on a thread of their own, so that they may lock
+     * the torrent while it waits for the disk I/O thread.
+     */
+    private void notifyListener(final boolean isQueueFull) {
+        if (listener == null) {
+            return;
+        }
+        notificationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isQueueFull) {
+                    listener.onQueueFull();
+                } else {
+                    listener.onQueueDrained();
+                }
+            }
+        });
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+/**
+ * Snapshot of a running download.
+ */
+public class DownloadProgress {
+
+    public static final long UNKNOWN_ETA = -1;
+
+    private int progress;
+    private long totalBytes;
+    private long downloadedBytes;
+    private long uploadedBytes;
+    private long downloadRate;
+    private long uploadRate;
+    private int connectedPeers;
+    private int seedingPeers;
+    private long etaSeconds = UNKNOWN_ETA;
+    private long downloadRateLimit;
+    private long uploadRateLimit;
+    private long dirtyBytes;
+    private long flushLatencyMillis;
+    private int diskQueueDepth;
+    private long diskLatencyMillis;
+    private long bufferPoolUsedBytes;
+    private long bufferPoolMisses;
+
+    public DownloadProgress() {
+    }
+
+    /**
+     * Returns the progress in percent.
+     */
+    public int getProgress() {
+        return progress;
+    }
+
+    public DownloadProgress setProgress(int progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public DownloadProgress setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+        return this;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public DownloadProgress setDownloadedBytes(long downloadedBytes) {
+        this.downloadedBytes = downloadedBytes;
+        return this;
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public DownloadProgress setUploadedBytes(long uploadedBytes) {
+        this.uploadedBytes = uploadedBytes;
+        return this;
+    }
+
+    /**
+     * Returns the download rate in bytes per second, averaged over a sliding window.
+     */
+    public long getDownloadRate() {
+        return downloadRate;
+    }
+
+    public DownloadProgress setDownloadRate(long downloadRate) {
+        this.downloadRate = downloadRate;
+        return this;
+    }
+
+    /**
+     * Returns the upload rate in bytes per second, averaged over a sliding window.
+     */
+    public long getUploadRate() {
+        return uploadRate;
+    }
+
+    public DownloadProgress setUploadRate(long uploadRate) {
+        this.uploadRate = uploadRate;
+        return this;
+    }
+
+    public int getConnectedPeers() {
+        return connectedPeers;
+    }
+
+    public DownloadProgress setConnectedPeers(int connectedPeers) {
+        this.connectedPeers = connectedPeers;
+        return this;
+    }
+
+    public int getSeedingPeers() {
+        return seedingPeers;
+    }
+
+    public DownloadProgress setSeedingPeers(int seedingPeers) {
+        this.seedingPeers = seedingPeers;
+        return this;
+    }
+
+    /**
+     * Returns the estimated time until completion or UNKNOWN_ETA.
+     */
+    public long getEtaSeconds() {
+        return etaSeconds;
+    }
+
+    public DownloadProgress setEtaSeconds(long etaSeconds) {
+        this.etaSeconds = etaSeconds;
+        return this;
+    }
+
+    /**
+     * Returns the download rate limit in bytes per second that is currently in effect
+     * for the download or 0 if unlimited.
+     */
+    public long getDownloadRateLimit() {
+        return downloadRateLimit;
+    }
+
+    public DownloadProgress setDownloadRateLimit(long downloadRateLimit) {
+        this.downloadRateLimit = downloadRateLimit;
+        return this;
+    }
+
+    /**
+     * Returns the upload rate limit in bytes per second that is currently in effect
+     * for the download or 0 if unlimited.
+     */
+    public long getUploadRateLimit() {
+        return uploadRateLimit;
+    }
+
+    public DownloadProgress setUploadRateLimit(long uploadRateLimit) {
+        this.uploadRateLimit = uploadRateLimit;
+        return this;
+    }
+
+    /**
+     * Returns the number of received bytes that are cached but not written to storage yet.
+     */
+    public long getDirtyBytes() {
+        return dirtyBytes;
+    }
+
+    public DownloadProgress setDirtyBytes(long dirtyBytes) {
+        this.dirtyBytes = dirtyBytes;
+        return this;
+    }
+
+    /**
+     * Returns the duration of the latest write of cached pieces to storage in
+     * milliseconds.
+     */
+    public long getFlushLatencyMillis() {
+        return flushLatencyMillis;
+    }
+
+    public DownloadProgress setFlushLatencyMillis(long flushLatencyMillis) {
+        this.flushLatencyMillis = flushLatencyMillis;
+        return this;
+    }
+
+    /**
+     * Returns the number of received pieces that wait for the disk I/O thread or are
+     * being written.
+     */
+    public int getDiskQueueDepth() {
+        return diskQueueDepth;
+    }
+
+    public DownloadProgress setDiskQueueDepth(int diskQueueDepth) {
+        this.diskQueueDepth = diskQueueDepth;
+        return this;
+    }
+
+    /**
+     * Returns the time in milliseconds that the latest piece took from being queued for
+     * the disk I/O thread until it was written.
+     */
+    public long getDiskLatencyMillis() {
+        return diskLatencyMillis;
+    }
+
+    public DownloadProgress setDiskLatencyMillis(long diskLatencyMillis) {
+        this.diskLatencyMillis = diskLatencyMillis;
+        return this;
+    }
+
+    /**
+     * Returns the bytes of pooled buffers in use by all downloads, see {@link BufferPool}.
+     */
+    public long getBufferPoolUsedBytes() {
+        return bufferPoolUsedBytes;
+    }
+
+    public DownloadProgress setBufferPoolUsedBytes(long bufferPoolUsedBytes) {
+        this.bufferPoolUsedBytes = bufferPoolUsedBytes;
+        return this;
+    }
+
+    /**
+     * Returns the number of buffer requests of all downloads that the pool could not
+     * serve with a free buffer since the application started.
+     */
+    public long getBufferPoolMisses() {
+        return bufferPoolMisses;
+    }
+
+    public DownloadProgress setBufferPoolMisses(long bufferPoolMisses) {
+        this.bufferPoolMisses = bufferPoolMisses;
+        return this;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the file priorities of downloads. Pieces are requested in the order of the
+ * highest priority of the files they cover, pieces that only cover files with priority
+ * 0 are not requested at all.
+ */
+public final class FileSelector {
+
+    public static final int SKIP = 0;
+    public static final int NORMAL = 1;
+
+    private static final FileSelector INSTANCE = new FileSelector();
+
+    private final Map<String, int[]> filePriorities = new HashMap<>();
+
+    FileSelector() {
+    }
+
+    public static FileSelector getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the priorities of the files of the download with the id, indexed like the
+     * files within the torrent. Files without a priority get {@link #NORMAL}. Has to be
+     * set before the download starts.
+     */
+    public synchronized void setFilePriorities(String downloadId, int[] priorities) {
+        filePriorities.put(downloadId, priorities.clone());
+    }
+
+    public synchronized void removeFilePriorities(String downloadId) {
+        filePriorities.remove(downloadId);
+    }
+
+    /**
+     * Returns null if all files are downloaded without priorities.
+     */
+    synchronized int[] getFilePriorities(String downloadId) {
+        int[] priorities = filePriorities.get(downloadId);
+        return priorities != null ? priorities.clone() : null;
+    }
+
+    /**
+     * Returns true if any file is skipped. The priorities may be null.
+     */
+    static boolean hasSkippedFiles(int[] filePriorities) {
+        if (filePriorities != null) {
+            for (int priority : filePriorities) {
+                if (priority <= SKIP) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the priority of each piece, the highest priority of the files the piece
+     * covers. Files without a priority get the given default priority.
+     */
+    static int[] getPiecePriorities(
+            long[] fileSizes,
+            int[] filePriorities,
+            int defaultPriority,
+            long pieceLength,
+            int pieceCount) {
+        int[] piecePriorities = new int[pieceCount];
+        long fileOffset = 0;
+        for (int i = 0; i < fileSizes.length; ++i) {
+            int priority = i < filePriorities.length ? filePriorities[i] : defaultPriority;
+            if (fileSizes[i] > 0) {
+                int firstPiece = (int) (fileOffset / pieceLength);
+                int lastPiece = (int) Math.min(
+                        (fileOffset + fileSizes[i] - 1) / pieceLength,
+                        pieceCount - 1);
+                for (int piece = firstPiece; piece <= lastPiece; ++piece) {
+                    piecePriorities[piece] = Math.max(piecePriorities[piece], priority);
+                }
+            }
+            fileOffset += fileSizes[i];
+        }
+        return piecePriorities;
+    }
+}
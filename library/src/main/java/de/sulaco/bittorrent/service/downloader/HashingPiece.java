@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Piece;
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * Piece that feeds its blocks into a SHA-1 digest while they are received, so that the
+ * completed piece is validated without reading it back from storage. Blocks that arrive
+ * ahead of the hashed range wait in a small reorder buffer. The piece falls back to the
+ * read-back validation of ttorrent if the buffer overflows or blocks overlap.
+ *
+ * Blocks are assembled in a buffer of the {@link BufferPool} like ttorrent assembles
+ * them in a buffer of its own. The buffer is released once the piece is written.
+ */
+class HashingPiece extends Piece {
+
+    static final int MAX_REORDER_BYTES = 64 * 1024;
+
+    private static final Field VALID_FIELD = findValidField();
+
+    private final TorrentByteStorage bucket;
+    private final long pieceOffset;
+    private final int length;
+    private final byte[] hash;
+    private final BufferPool bufferPool;
+    private final TreeMap<Integer, ByteBuffer> reorderBuffer = new TreeMap<>();
+    private int reorderBytes = 0;
+    private MessageDigest digest;
+    private int hashedLength = 0;
+    private Boolean receivedValid;
+    private ByteBuffer data;
+
+    public HashingPiece(
+            TorrentByteStorage bucket, int index, long offset, int length, byte[] hash) {
+        this(bucket, index, offset, length, hash, BufferPool.getInstance());
+    }
+
+    HashingPiece(
+            TorrentByteStorage bucket,
+            int index,
+            long offset,
+            int length,
+            byte[] hash,
+            BufferPool bufferPool) {
+        super(bucket, index, offset, length, hash, false);
+        this.bucket = bucket;
+        this.pieceOffset = offset;
+        this.length = length;
+        this.hash = hash;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Returns false if the validation state of ttorrent's pieces cannot be set.
+     */
+    public static boolean isSupported() {
+        return VALID_FIELD != null;
+    }
+
+    /**
+     * Records the block like ttorrent does. A piece that starts over with its first
+     * block drops the blocks received so far, the completed piece is written as a whole.
+     */
+    @Override
+    public synchronized void record(ByteBuffer block, int offset) throws IOException {
+        if (data == null || offset == 0) {
+            releaseBuffers();
+            data = bufferPool.acquire(length);
+        }
+        if (offset == 0) {
+            restartHashing();
+        }
+        if (digest != null) {
+            hashBlock(block, offset);
+        }
+        int position = block.position();
+        data.position(offset);
+        data.put(block);
+        block.position(position);
+        if (block.remaining() + offset == length) {
+            data.rewind();
+            try {
+                bucket.write(data, pieceOffset);
+            } finally {
+                bufferPool.release(data);
+                data = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the buffers of an incomplete piece to the pool.
+     */
+    public synchronized void releaseBuffers() {
+        if (data != null) {
+            bufferPool.release(data);
+            data = null;
+        }
+        stopHashing();
+    }
+
+    /**
+     * Validates the piece by its received blocks if all of them were hashed, otherwise by
+     * reading it from storage.
+     */
+    @Override
+    public synchronized boolean validate() throws IOException {
+        if (receivedValid == null) {
+            return super.validate();
+        }
+        boolean isValid = receivedValid;
+        receivedValid = null;
+        try {
+            VALID_FIELD.setBoolean(this, isValid);
+        } catch (IllegalAccessException e) {
+            return super.validate();
+        }
+        return isValid;
+    }
+
+    private void restartHashing() {
+        stopHashing();
+        hashedLength = 0;
+        receivedValid = null;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            digest = null;
+        }
+    }
+
+    private void hashBlock(ByteBuffer block, int offset) {
+        if (offset == hashedLength) {
+            update(block.duplicate());
+            while (!reorderBuffer.isEmpty() && reorderBuffer.firstKey() == hashedLength) {
+                ByteBuffer pending = reorderBuffer.pollFirstEntry().getValue();
+                reorderBytes -= pending.remaining();
+                update(pending);
+                bufferPool.release(pending);
+            }
+        } else if (offset > hashedLength
+                && !reorderBuffer.containsKey(offset)
+                && reorderBytes + block.remaining() <= MAX_REORDER_BYTES) {
+            ByteBuffer copy = bufferPool.acquire(block.remaining());
+            copy.put(block.duplicate());
+            copy.flip();
+            reorderBuffer.put(offset, copy);
+            reorderBytes += copy.remaining();
+        } else {
+            stopHashing();
+        }
+    }
+
+    private void update(ByteBuffer block) {
+        hashedLength += block.remaining();
+        digest.update(block);
+        if (hashedLength == length) {
+            receivedValid = Arrays.equals(digest.digest(), hash);
+            stopHashing();
+        } else if (hashedLength > length) {
+            stopHashing();
+        }
+    }
+
+    /**
+     * Drops the digest. A result that is already known is kept for the validation.
+     */
+    private void stopHashing() {
+        digest = null;
+        for (ByteBuffer pending : reorderBuffer.values()) {
+            bufferPool.release(pending);
+        }
+        reorderBuffer.clear();
+        reorderBytes = 0;
+    }
+
+    private static Field findValidField() {
+        try {
+            Field field = Piece.class.getDeclaredField("valid");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+/**
+ * Receives the events of a download together with its id, see
+ * {@link IdentifiedDownloader}. The same torrent file can be downloaded to several
+ * destinations at once.
+ */
+public interface IdentifiedDownloadListener {
+    void onDownloadStart(String downloadId, String torrentFile);
+
+    /**
+     * Called right before onDownloadProgress(String, String, int) of the same update.
+     */
+    void onDownloadProgress(String downloadId, String torrentFile, DownloadProgress downloadProgress);
+
+    void onDownloadProgress(String downloadId, String torrentFile, int progress);
+    void onDownloadEnd(String downloadId, String torrentFile, int downloadState);
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+/**
+ * Downloader that looks up the settings of a download by its id, see
+ * {@link BandwidthLimiter}, {@link FileSelector} and {@link StreamServer}. The same torrent
+ * file can be downloaded to several destinations at once. Listeners that implement
+ * {@link IdentifiedDownloadListener} receive the events together with the id.
+ */
+public interface IdentifiedDownloader extends Downloader {
+    void download(String downloadId, String torrentFile, String destinationDirectory);
+}
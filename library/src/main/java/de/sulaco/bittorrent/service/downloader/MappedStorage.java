@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage that maps the files of a torrent in windows. Pieces are copied straight into
+ * the mapped pages and existing content is verified from them, instead of going through
+ * positional reads and writes with a bounce buffer each. The least recently used windows are
+ * released once more than {@link #MAX_WINDOWS} are mapped.
+ *
+ * The file storage of ttorrent stays in place. It renames the partial files when the
+ * torrent is finished and serves all requests once the mapping failed or the storage
+ * got finished.
+ */
+class MappedStorage implements TorrentByteStorage, PieceVerifier.ContentSource {
+
+    static final long WINDOW_SIZE = 16L * 1024 * 1024;
+    static final int MAX_WINDOWS = 8;
+
+    private final TorrentByteStorage fileStorage;
+    private final RandomAccessFile[] files;
+    private final long[] offsets;
+    private final long[] sizes;
+    private final long size;
+    private final Map<Long, MappedByteBuffer> windows =
+            new LinkedHashMap<Long, MappedByteBuffer>(MAX_WINDOWS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                    return size() > MAX_WINDOWS;
+                }
+            };
+    private boolean isMapped = true;
+
+    /**
+     * The content files have to exist with their final size, as ttorrent's file storage
+     * creates them.
+     */
+    public MappedStorage(TorrentByteStorage fileStorage, List<File> contentFiles, long[] sizes)
+            throws IOException {
+        this.fileStorage = fileStorage;
+        this.sizes = sizes.clone();
+        this.files = new RandomAccessFile[contentFiles.size()];
+        this.offsets = new long[contentFiles.size()];
+        long offset = 0;
+        try {
+            for (int i = 0; i < files.length; ++i) {
+                if (sizes[i] > 0) {
+                    files[i] = new RandomAccessFile(contentFiles.get(i), "rw");
+                }
+                offsets[i] = offset;
+                offset += sizes[i];
+            }
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+        this.size = offset;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, long offset) throws IOException {
+        checkBounds(offset, buffer.remaining());
+        int position = buffer.position();
+        while (buffer.hasRemaining()) {
+            ByteBuffer region = getRegion(
+                    offset + buffer.position() - position,
+                    buffer.remaining());
+            if (region == null) {
+                buffer.position(position);
+                return fileStorage.read(buffer, offset);
+            }
+            buffer.put(region);
+        }
+        return buffer.position() - position;
+    }
+
+    @Override
+    public int write(ByteBuffer buffer, long offset) throws IOException {
+        checkBounds(offset, buffer.remaining());
+        int position = buffer.position();
+        while (buffer.hasRemaining()) {
+            ByteBuffer region = getRegion(
+                    offset + buffer.position() - position,
+                    buffer.remaining());
+            if (region == null) {
+                buffer.position(position);
+                return fileStorage.write(buffer, offset);
+            }
+            ByteBuffer source = buffer.duplicate();
+            source.limit(source.position() + region.remaining());
+            region.put(source);
+            buffer.position(source.position());
+        }
+        return buffer.position() - position;
+    }
+
+    /**
+     * Hashes the given range from the mapped pages. Falls back to a read into the
+     * scratch buffer, which has to hold the range.
+     */
+    @Override
+    public void update(MessageDigest digest, long offset, int length, ByteBuffer scratch)
+            throws IOException {
+        checkBounds(offset, length);
+        int hashed = 0;
+        while (hashed < length) {
+            ByteBuffer region = getRegion(offset + hashed, length - hashed);
+            if (region == null) {
+                digest.reset();
+                scratch.clear();
+                scratch.limit(length);
+                fileStorage.read(scratch, offset);
+                scratch.flip();
+                digest.update(scratch);
+                return;
+            }
+            hashed += region.remaining();
+            digest.update(region);
+        }
+    }
+
+    public synchronized boolean isMapped() {
+        return isMapped;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        unmap();
+        fileStorage.close();
+    }
+
+    @Override
+    public synchronized void finish() throws IOException {
+        unmap();
+        fileStorage.finish();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return fileStorage.isFinished();
+    }
+
+    private void checkBounds(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > size) {
+            throw new IOException("Range out of bounds: " + offset + "+" + length);
+        }
+    }
+
+    /**
+     * Returns the mapped bytes from the offset up to the given length, limited by the
+     * end of the window and the end of the file. Returns null if the storage is not
+     * mapped (anymore). Regions stay valid after the storage got unmapped, so that they
+     * can be copied without holding the lock.
+     */
+    private synchronized ByteBuffer getRegion(long offset, int length) {
+        if (!isMapped) {
+            return null;
+        }
+        int file = findFile(offset);
+        long position = offset - offsets[file];
+        long windowStart = position / WINDOW_SIZE * WINDOW_SIZE;
+        MappedByteBuffer window;
+        try {
+            window = getWindow(file, windowStart);
+        } catch (IOException e) {
+            unmap();
+            return null;
+        }
+        ByteBuffer region = window.duplicate();
+        int start = (int) (position - windowStart);
+        region.position(start);
+        region.limit((int) Math.min(region.capacity(), start + (long) length));
+        return region;
+    }
+
+    private MappedByteBuffer getWindow(int file, long windowStart) throws IOException {
+        Long key = offsets[file] + windowStart;
+        MappedByteBuffer window = windows.get(key);
+        if (window == null) {
+            window = files[file].getChannel().map(
+                    FileChannel.MapMode.READ_WRITE,
+                    windowStart,
+                    Math.min(WINDOW_SIZE, sizes[file] - windowStart));
+            windows.put(key, window);
+        }
+        return window;
+    }
+
+    private int findFile(long offset) {
+        int index = Arrays.binarySearch(offsets, offset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        // skip empty files that share their offset with the next file
+        while (index + 1 < offsets.length && offsets[index + 1] == offset) {
+            ++index;
+        }
+        return index;
+    }
+
+    /**
+     * The mapped pages are released by the garbage collector, they stay valid for
+     * buffers that are still in use.
+     */
+    private void unmap() {
+        isMapped = false;
+        windows.clear();
+        closeFiles();
+    }
+
+    private void closeFiles() {
+        for (RandomAccessFile file : files) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Client;
+import com.turn.ttorrent.client.peer.SharingPeer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of peer connections of all running downloads together and of single
+ * downloads. ttorrent runs each peer connection on threads of its own, so the limits
+ * also bound the number of threads. 0 means unlimited.
+ */
+public final class PeerConnectionLimiter {
+
+    private static final PeerConnectionLimiter INSTANCE = new PeerConnectionLimiter();
+
+    private int maxConnections = 0;
+    private int pendingConnections = 0;
+    private final Map<String, Client> clients = new HashMap<>();
+    private final Map<String, Integer> downloadLimits = new HashMap<>();
+    private final Map<String, Integer> pendingDownloadConnections = new HashMap<>();
+
+    PeerConnectionLimiter() {
+    }
+
+    public static PeerConnectionLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the maximum number of connected peers. Running downloads keep the peers
+     * they are connected to but do not connect to further ones while the limit is
+     * exceeded.
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connected peers of a single download. It stays in
+     * effect until it is removed.
+     */
+    public synchronized void setLimit(String downloadId, int maxConnections) {
+        downloadLimits.put(downloadId, maxConnections);
+    }
+
+    public synchronized void removeLimit(String downloadId) {
+        downloadLimits.remove(downloadId);
+    }
+
+    synchronized void register(String downloadId, Client client) {
+        clients.put(downloadId, client);
+    }
+
+    synchronized void unregister(String downloadId) {
+        clients.remove(downloadId);
+    }
+
+    /**
+     * Returns the number of peers that the download may still connect.
+     */
+    synchronized int getAvailableConnections(String downloadId) {
+        int availableConnections = Integer.MAX_VALUE;
+        Integer downloadLimit = downloadLimits.get(downloadId);
+        if (downloadLimit != null && downloadLimit > 0) {
+            Client client = clients.get(downloadId);
+            Integer pending = pendingDownloadConnections.get(downloadId);
+            int connectedPeers = (client != null ? countConnectedPeers(client) : 0)
+                    + (pending != null ? pending : 0);
+            availableConnections = Math.max(0, downloadLimit - connectedPeers);
+        }
+        if (maxConnections > 0) {
+            int connectedPeers = pendingConnections;
+            for (Client client : clients.values()) {
+                connectedPeers += countConnectedPeers(client);
+            }
+            availableConnections = Math.min(
+                    availableConnections,
+                    Math.max(0, maxConnections - connectedPeers));
+        }
+        return availableConnections;
+    }
+
+    /**
+     * Reserves a connection of the download if the limits allow one more. The
+     * reservation counts until {@link #release(String)} is called, by then the peer is
+     * either connected or not.
+     */
+    synchronized boolean tryAcquire(String downloadId) {
+        if (getAvailableConnections(downloadId) == 0) {
+            return false;
+        }
+        ++pendingConnections;
+        Integer pending = pendingDownloadConnections.get(downloadId);
+        pendingDownloadConnections.put(downloadId, pending != null ? pending + 1 : 1);
+        return true;
+    }
+
+    synchronized void release(String downloadId) {
+        --pendingConnections;
+        Integer pending = pendingDownloadConnections.remove(downloadId);
+        if (pending != null && pending > 1) {
+            pendingDownloadConnections.put(downloadId, pending - 1);
+        }
+    }
+
+    static int countConnectedPeers(Client client) {
+        int connectedPeers = 0;
+        for (SharingPeer peer : client.getPeers()) {
+            if (peer.isConnected()) {
+                ++connectedPeers;
+            }
+        }
+        return connectedPeers;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes the available content of a torrent on all cores. Each worker verifies a
+ * contiguous range of pieces with positional FileChannel reads into a direct buffer
+ * and a MessageDigest of its own. Content in {@link MappedStorage} is hashed from the
+ * mapped pages.
+ */
+class PieceVerifier {
+
+    interface CancellationSignal {
+        boolean isCancelled();
+    }
+
+    /**
+     * The content of a torrent as one contiguous range of bytes.
+     */
+    interface ContentSource {
+        long size();
+
+        /**
+         * Hashes the given range. The scratch buffer holds the range if the
+         * content has to be read first.
+         */
+        void update(MessageDigest digest, long offset, int length, ByteBuffer scratch)
+                throws IOException;
+    }
+
+    private static final int PIECE_HASH_SIZE = 20;
+    private static final int TASKS_PER_THREAD = 4;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 10;
+
+    private final int threadCount;
+    private final ExecutorService executor;
+
+    public PieceVerifier(int threadCount) {
+        this.threadCount = threadCount;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threadCount,
+                threadCount,
+                IDLE_THREAD_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "PieceVerifier");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the valid pieces or null if the verification got cancelled.
+     */
+    public BitSet verify(ResumableSharedTorrent torrent, CancellationSignal cancellationSignal)
+            throws IOException, InterruptedException {
+        MappedStorage mappedStorage = torrent.getMappedStorage();
+        if (mappedStorage != null) {
+            return verify(
+                    mappedStorage,
+                    torrent.getPieceLength(),
+                    torrent.getPieceHashes(),
+                    cancellationSignal);
+        }
+        final ContentReader reader = new ContentReader(
+                torrent.getContentFiles(),
+                torrent.getContentFileSizes());
+        try {
+            return verify(
+                    reader,
+                    torrent.getPieceLength(),
+                    torrent.getPieceHashes(),
+                    cancellationSignal);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private BitSet verify(
+            ContentSource reader,
+            int pieceLength,
+            byte[] pieceHashes,
+            CancellationSignal cancellationSignal)
+            throws IOException, InterruptedException {
+        int pieceCount = pieceHashes.length / PIECE_HASH_SIZE;
+        int taskCount = Math.max(1, Math.min(pieceCount, threadCount * TASKS_PER_THREAD));
+        List<Callable<BitSet>> tasks = new ArrayList<>(taskCount);
+        for (int task = 0; task < taskCount; ++task) {
+            int firstPiece = (int) ((long) pieceCount * task / taskCount);
+            int endPiece = (int) ((long) pieceCount * (task + 1) / taskCount);
+            tasks.add(new RangeVerification(
+                    reader, pieceLength, pieceHashes, firstPiece, endPiece, cancellationSignal));
+        }
+        BitSet validPieces = new BitSet(pieceCount);
+        for (Future<BitSet> result : executor.invokeAll(tasks)) {
+            try {
+                validPieces.or(result.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        return cancellationSignal.isCancelled() ? null : validPieces;
+    }
+
+    private static class RangeVerification implements Callable<BitSet> {
+        private final ContentSource reader;
+        private final int pieceLength;
+        private final byte[] pieceHashes;
+        private final int firstPiece;
+        private final int endPiece;
+        private final CancellationSignal cancellationSignal;
+
+        RangeVerification(
+                ContentSource reader,
+                int pieceLength,
+                byte[] pieceHashes,
+                int firstPiece,
+                int endPiece,
+                CancellationSignal cancellationSignal) {
+            this.reader = reader;
+            this.pieceLength = pieceLength;
+            this.pieceHashes = pieceHashes;
+            this.firstPiece = firstPiece;
+            this.endPiece = endPiece;
+            this.cancellationSignal = cancellationSignal;
+        }
+
+        @Override
+        public BitSet call() throws IOException, NoSuchAlgorithmException {
+            BitSet validPieces = new BitSet();
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(pieceLength);
+            byte[] expectedHash = new byte[PIECE_HASH_SIZE];
+            for (int piece = firstPiece; piece < endPiece; ++piece) {
+                if (cancellationSignal.isCancelled()) {
+                    break;
+                }
+                long offset = (long) piece * pieceLength;
+                int length = (int) Math.min(pieceLength, reader.size() - offset);
+                reader.update(digest, offset, length, buffer);
+                System.arraycopy(pieceHashes, piece * PIECE_HASH_SIZE, expectedHash, 0, PIECE_HASH_SIZE);
+                if (Arrays.equals(digest.digest(), expectedHash)) {
+                    validPieces.set(piece);
+                }
+            }
+            return validPieces;
+        }
+    }
+
+    /**
+     * Reads the content of a torrent as one contiguous range of bytes. Positional
+     * reads allow the workers to share the file channels.
+     */
+    private static class ContentReader implements ContentSource {
+        private final List<RandomAccessFile> files = new ArrayList<>();
+        private final FileChannel[] channels;
+        private final long[] offsets;
+        private final long size;
+
+        ContentReader(List<File> contentFiles, long[] sizes) throws IOException {
+            channels = new FileChannel[contentFiles.size()];
+            offsets = new long[contentFiles.size()];
+            long offset = 0;
+            try {
+                for (int i = 0; i < channels.length; ++i) {
+                    if (contentFiles.get(i).exists()) {
+                        RandomAccessFile file = new RandomAccessFile(contentFiles.get(i), "r");
+                        files.add(file);
+                        channels[i] = file.getChannel();
+                    }
+                    offsets[i] = offset;
+                    offset += sizes[i];
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            size = offset;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void update(MessageDigest digest, long offset, int length, ByteBuffer buffer)
+                throws IOException {
+            buffer.clear();
+            buffer.limit(length);
+            read(buffer, offset);
+            buffer.flip();
+            digest.update(buffer);
+        }
+
+        /**
+         * Fills the remaining buffer. Missing content is read as zeros.
+         */
+        void read(ByteBuffer buffer, long offset) throws IOException {
+            int file = findFile(offset);
+            while (buffer.hasRemaining() && file < channels.length) {
+                long position = offset - offsets[file];
+                long fileEnd = file + 1 < offsets.length ? offsets[file + 1] : size;
+                int limit = buffer.limit();
+                buffer.limit((int) Math.min(limit, buffer.position() + fileEnd - offset));
+                while (channels[file] != null && buffer.hasRemaining()) {
+                    int count = channels[file].read(buffer, position);
+                    if (count < 0) {
+                        break;
+                    }
+                    position += count;
+                    offset += count;
+                }
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                    ++offset;
+                }
+                buffer.limit(limit);
+                ++file;
+            }
+        }
+
+        private int findFile(long offset) {
+            int index = Arrays.binarySearch(offsets, offset);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            // skip empty files that share their offset with the next file
+            while (index + 1 < offsets.length && offsets[index + 1] == offset) {
+                ++index;
+            }
+            return index;
+        }
+
+        void close() {
+            for (RandomAccessFile file : files) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.bcodec.BDecoder;
+import com.turn.ttorrent.bcodec.BEValue;
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+import com.turn.ttorrent.common.Torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reserves the files of a torrent before the download starts, so that a download
+ * fails right away if the volume is too small. The files are created where ttorrent
+ * expects them, partial files for new content. Files that are skipped by their
+ * priority are left alone.
+ */
+class Preallocator {
+
+    private static final int ZERO_BLOCK_SIZE = 64 * 1024;
+
+    private final List<File> storageFiles;
+    private final long[] fileSizes;
+    private final int[] filePriorities;
+
+    /**
+     * The file priorities may be null to reserve all files.
+     */
+    public Preallocator(Torrent torrent, File destination, int[] filePriorities)
+            throws IOException {
+        this.fileSizes = getFileSizes(torrent);
+        this.filePriorities = filePriorities != null ? filePriorities : new int[0];
+        this.storageFiles = new ArrayList<>(fileSizes.length);
+        for (String filename : torrent.getFilenames()) {
+            storageFiles.add(getStorageFile(new File(destination, filename)));
+        }
+    }
+
+    /**
+     * Returns the number of bytes the reserved files still have to grow.
+     */
+    public long getMissingBytes() {
+        long missingBytes = 0;
+        for (int i = 0; i < fileSizes.length; ++i) {
+            if (isReserved(i)) {
+                missingBytes += Math.max(0, fileSizes[i] - storageFiles.get(i).length());
+            }
+        }
+        return missingBytes;
+    }
+
+    /**
+     * Sets the files to their final length. In sparse mode the file system allocates
+     * blocks as pieces arrive, in full mode zeros are written so that all blocks are
+     * allocated up front. Returns false if cancelled.
+     */
+    public boolean preallocate(boolean full, PieceVerifier.CancellationSignal cancellationSignal)
+            throws IOException {
+        for (int i = 0; i < fileSizes.length; ++i) {
+            File storageFile = storageFiles.get(i);
+            if (!isReserved(i) || storageFile.length() >= fileSizes[i]) {
+                continue;
+            }
+            File parent = storageFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+            try {
+                if (full) {
+                    if (!writeZeros(file.getChannel(), fileSizes[i], cancellationSignal)) {
+                        return false;
+                    }
+                } else {
+                    file.setLength(fileSizes[i]);
+                }
+            } finally {
+                file.close();
+            }
+        }
+        return true;
+    }
+
+    private boolean isReserved(int fileIndex) {
+        return fileSizes[fileIndex] > 0
+                && (fileIndex >= filePriorities.length
+                        || filePriorities[fileIndex] > FileSelector.SKIP);
+    }
+
+    private static boolean writeZeros(
+            FileChannel channel,
+            long size,
+            PieceVerifier.CancellationSignal cancellationSignal) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate(ZERO_BLOCK_SIZE);
+        long position = channel.size();
+        while (position < size) {
+            if (cancellationSignal.isCancelled()) {
+                return false;
+            }
+            zeros.clear();
+            zeros.limit((int) Math.min(ZERO_BLOCK_SIZE, size - position));
+            while (zeros.hasRemaining()) {
+                position += channel.write(zeros, position);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * ttorrent continues a partial file if there is one, it writes to an existing
+     * target directly and creates a partial file otherwise.
+     */
+    static File getStorageFile(File target) {
+        File partial = new File(target.getAbsolutePath()
+                + TorrentByteStorage.PARTIAL_FILE_NAME_SUFFIX);
+        return partial.exists() || !target.exists() ? partial : target;
+    }
+
+    /**
+     * Returns the sizes of the files in the order of {@link Torrent#getFilenames()}.
+     */
+    static long[] getFileSizes(Torrent torrent) throws IOException {
+        Map<String, BEValue> info =
+                BDecoder.bdecode(ByteBuffer.wrap(torrent.getEncoded())).getMap().get("info").getMap();
+        if (!info.containsKey("files")) {
+            return new long[] {info.get("length").getLong()};
+        }
+        List<BEValue> files = info.get("files").getList();
+        long[] fileSizes = new long[files.size()];
+        for (int i = 0; i < fileSizes.length; ++i) {
+            fileSizes[i] = files.get(i).getMap().get("length").getLong();
+        }
+        return fileSizes;
+    }
+}
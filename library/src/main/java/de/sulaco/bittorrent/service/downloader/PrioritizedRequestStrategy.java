@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Piece;
+import com.turn.ttorrent.client.strategy.RequestStrategy;
+
+import java.util.BitSet;
+import java.util.SortedSet;
+
+/**
+ * Narrows the interesting pieces down to the pieces with the highest priority before
+ * the wrapped strategy chooses among them. Without priorities all pieces are equal.
+ */
+class PrioritizedRequestStrategy implements RequestStrategy {
+
+    private final RequestStrategy requestStrategy;
+    private volatile int[] piecePriorities;
+
+    public PrioritizedRequestStrategy(RequestStrategy requestStrategy) {
+        this.requestStrategy = requestStrategy;
+    }
+
+    public void setPiecePriorities(int[] piecePriorities) {
+        this.piecePriorities = piecePriorities;
+    }
+
+    /**
+     * Expects at least one interesting piece with a priority above 0.
+     */
+    @Override
+    public Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces) {
+        int[] priorities = piecePriorities;
+        if (priorities == null) {
+            return requestStrategy.choosePiece(rarest, interesting, pieces);
+        }
+        int maxPriority = Integer.MIN_VALUE;
+        for (int i = interesting.nextSetBit(0); i >= 0; i = interesting.nextSetBit(i + 1)) {
+            maxPriority = Math.max(maxPriority, priorities[i]);
+        }
+        BitSet prioritized = new BitSet(pieces.length);
+        for (int i = interesting.nextSetBit(0); i >= 0; i = interesting.nextSetBit(i + 1)) {
+            if (priorities[i] == maxPriority) {
+                prioritized.set(i);
+            }
+        }
+        return requestStrategy.choosePiece(rarest, prioritized, pieces);
+    }
+}
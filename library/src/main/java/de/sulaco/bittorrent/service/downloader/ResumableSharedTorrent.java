@@ -0,0 +1,657 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Piece;
+import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.client.peer.SharingPeer;
+import com.turn.ttorrent.client.strategy.RequestStrategy;
+import com.turn.ttorrent.client.strategy.RequestStrategyImplRarest;
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+import com.turn.ttorrent.common.Torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SharedTorrent that skips the hash check of pieces that are known to be valid, that
+ * can be paused and that can download a selection of its files.
+ */
+class ResumableSharedTorrent extends SharedTorrent {
+
+    private final File destination;
+    private BitSet verifiedPieces;
+    private boolean isContentVerified = false;
+    private boolean isInitializing = false;
+    private int nextPieceIndex = 0;
+    private boolean isPaused = false;
+    private final Set<SharingPeer> readyPeers = new HashSet<>();
+    private final PrioritizedRequestStrategy prioritizedStrategy;
+    private int[] filePriorities;
+    private BitSet wantedPieces;
+    private boolean hasSkippedPieces = false;
+    private volatile boolean isSelectionComplete = false;
+    private final BitSet discardedPieces = new BitSet();
+    private MappedStorage mappedStorage;
+    private volatile WriteBackCache writeCache;
+    private volatile DiskIoStage diskIoStage;
+    private boolean isThrottled = false;
+    private boolean isClosed = false;
+
+    public ResumableSharedTorrent(Torrent torrent, File destination, BitSet verifiedPieces)
+            throws IOException, NoSuchAlgorithmException {
+        this(torrent, destination, verifiedPieces, new RequestStrategyImplRarest());
+    }
+
+    public ResumableSharedTorrent(
+            Torrent torrent,
+            File destination,
+            BitSet verifiedPieces,
+            RequestStrategy requestStrategy) throws IOException, NoSuchAlgorithmException {
+        this(torrent,
+                destination,
+                verifiedPieces,
+                new PrioritizedRequestStrategy(requestStrategy));
+    }
+
+    private ResumableSharedTorrent(
+            Torrent torrent,
+            File destination,
+            BitSet verifiedPieces,
+            PrioritizedRequestStrategy prioritizedStrategy)
+            throws IOException, NoSuchAlgorithmException {
+        super(torrent, destination, false, prioritizedStrategy);
+        this.destination = destination;
+        this.verifiedPieces = verifiedPieces;
+        this.prioritizedStrategy = prioritizedStrategy;
+    }
+
+    @Override
+    public synchronized void init() throws InterruptedException, IOException {
+        isInitializing = true;
+        nextPieceIndex = 0;
+        try {
+            super.init();
+        } finally {
+            isInitializing = false;
+        }
+        if (isContentVerified) {
+            invalidateUnverifiedPieces();
+        }
+        hashPiecesOnReceive();
+        updateSelectionComplete();
+    }
+
+    /**
+     * Returns the buffers of incomplete pieces to the {@link BufferPool}. Closing a
+     * closed torrent has no effect.
+     */
+    @Override
+    public void close() {
+        List<HashingPiece> hashingPieces = new ArrayList<>();
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            super.close();
+            if (!isInitialized()) {
+                return;
+            }
+            for (int i = 0; i < getPieceCount(); ++i) {
+                Piece piece = getPiece(i);
+                if (piece instanceof HashingPiece) {
+                    hashingPieces.add((HashingPiece) piece);
+                }
+            }
+        }
+        // peer threads hold the piece lock when they call back into the torrent
+        for (HashingPiece hashingPiece : hashingPieces) {
+            hashingPiece.releaseBuffers();
+        }
+    }
+
+    /**
+     * While initializing, SharedTorrent creates the pieces in ascending order and asks
+     * once per piece whether it is seeding. Pieces created in seeder mode are not hashed.
+     */
+    @Override
+    public boolean isSeeder() {
+        if (isInitializing) {
+            return verifiedPieces.get(nextPieceIndex++) || isContentVerified;
+        }
+        return super.isSeeder();
+    }
+
+    /**
+     * Stops requesting pieces, chokes the given peers and writes the cached pieces to
+     * storage. Peers that get unchoked by the client are choked again as soon as they
+     * request a block. Connections, pieces and files stay open. The pieces are written
+     * without holding the lock of the torrent.
+     */
+    public void pause(Collection<SharingPeer> peers) {
+        synchronized (this) {
+            isPaused = true;
+            for (SharingPeer peer : peers) {
+                if (peer.isConnected()) {
+                    peer.choke();
+                }
+            }
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            // the cache is flushed again when the torrent is closed
+        }
+    }
+
+    /**
+     * Requests pieces again from the peers that became ready while paused.
+     */
+    public synchronized void resume() {
+        isPaused = false;
+        if (!isThrottled) {
+            requestFromReadyPeers();
+        }
+    }
+
+    /**
+     * Stops requesting pieces while the disk I/O queue is full. Peers that request a
+     * block in the meantime are choked.
+     */
+    synchronized void throttle() {
+        isThrottled = true;
+    }
+
+    synchronized void unthrottle() {
+        isThrottled = false;
+        if (!isPaused) {
+            requestFromReadyPeers();
+        }
+    }
+
+    private void requestFromReadyPeers() {
+        for (SharingPeer peer : readyPeers) {
+            if (peer.isConnected() && !peer.isChoked() && !peer.isDownloading()) {
+                super.handlePeerReady(peer);
+            }
+        }
+        readyPeers.clear();
+    }
+
+    public synchronized boolean isPaused() {
+        return isPaused;
+    }
+
+    /**
+     * Replaces the file storage of ttorrent by {@link MappedStorage}, which keeps the
+     * file storage as fallback. Returns false if the storage cannot be replaced. Has to
+     * be called before the torrent is initialized.
+     */
+    public synchronized boolean useMappedStorage() {
+        try {
+            Field bucketField = getBucketField();
+            TorrentByteStorage fileStorage = (TorrentByteStorage) bucketField.get(this);
+            MappedStorage storage =
+                    new MappedStorage(fileStorage, getContentFiles(), getContentFileSizes());
+            bucketField.set(this, storage);
+            mappedStorage = storage;
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns null if the torrent uses the file storage of ttorrent.
+     */
+    public synchronized MappedStorage getMappedStorage() {
+        return mappedStorage;
+    }
+
+    /**
+     * Puts a {@link WriteBackCache} with the given budget in front of the storage.
+     * Returns false if the storage cannot be replaced. Has to be called before the
+     * torrent is initialized.
+     */
+    public synchronized boolean useWriteCache(long maxDirtyBytes) {
+        try {
+            Field bucketField = getBucketField();
+            TorrentByteStorage storage = (TorrentByteStorage) bucketField.get(this);
+            WriteBackCache cache = new WriteBackCache(storage, maxDirtyBytes);
+            bucketField.set(this, cache);
+            writeCache = cache;
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns null if the torrent writes pieces right away.
+     */
+    public WriteBackCache getWriteCache() {
+        return writeCache;
+    }
+
+    /**
+     * Puts a {@link DiskIoStage} in front of the storage, so that pieces are written on
+     * the disk I/O thread. Requests of pieces are throttled while its queue is full.
+     * Returns false if the storage cannot be replaced. Has to be called before the
+     * torrent is initialized.
+     */
+    public synchronized boolean useDiskIoStage() {
+        try {
+            Field bucketField = getBucketField();
+            TorrentByteStorage storage = (TorrentByteStorage) bucketField.get(this);
+            DiskIoStage stage = new DiskIoStage(storage, new DiskIoStage.Listener() {
+                @Override
+                public void onQueueFull() {
+                    throttle();
+                }
+
+                @Override
+                public void onQueueDrained() {
+                    unthrottle();
+                }
+            });
+            bucketField.set(this, stage);
+            diskIoStage = stage;
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns null if pieces are written on the peer threads.
+     */
+    public DiskIoStage getDiskIoStage() {
+        return diskIoStage;
+    }
+
+    /**
+     * Returns true if a piece could not be written, its content is lost.
+     */
+    public boolean hasStorageFailed() {
+        DiskIoStage stage = diskIoStage;
+        return stage != null && stage.hasFailed();
+    }
+
+    /**
+     * Writes the queued and cached pieces to storage. Does not lock the torrent.
+     */
+    public void flush() throws IOException {
+        DiskIoStage stage = diskIoStage;
+        WriteBackCache cache = writeCache;
+        if (stage != null) {
+            stage.flush();
+        } else if (cache != null) {
+            cache.flush();
+        }
+    }
+
+    private static Field getPiecesField() throws NoSuchFieldException {
+        Field piecesField = SharedTorrent.class.getDeclaredField("pieces");
+        piecesField.setAccessible(true);
+        return piecesField;
+    }
+
+    private static Field getCompletedPiecesField() throws NoSuchFieldException {
+        Field completedPiecesField = SharedTorrent.class.getDeclaredField("completedPieces");
+        completedPiecesField.setAccessible(true);
+        return completedPiecesField;
+    }
+
+    private static Field getLeftField() throws NoSuchFieldException {
+        Field leftField = SharedTorrent.class.getDeclaredField("left");
+        leftField.setAccessible(true);
+        return leftField;
+    }
+
+    private static Field getBucketField() throws NoSuchFieldException {
+        Field bucketField = SharedTorrent.class.getDeclaredField("bucket");
+        bucketField.setAccessible(true);
+        return bucketField;
+    }
+
+    /**
+     * Replaces the pieces that are not valid yet by {@link HashingPiece}s, which are
+     * validated without reading them back from storage. Keeps ttorrent's pieces if they
+     * cannot be replaced.
+     */
+    private void hashPiecesOnReceive() {
+        if (!HashingPiece.isSupported()) {
+            return;
+        }
+        try {
+            Field bucketField = getBucketField();
+            Piece[] pieces = (Piece[]) getPiecesField().get(this);
+            TorrentByteStorage bucket = (TorrentByteStorage) bucketField.get(this);
+            byte[] pieceHashes = getPieceHashes();
+            long pieceLength = getPieceLength();
+            for (int i = 0; i < pieces.length; ++i) {
+                if (!pieces[i].isValid()) {
+                    long offset = i * pieceLength;
+                    pieces[i] = new HashingPiece(
+                            bucket,
+                            i,
+                            offset,
+                            (int) Math.min(pieceLength, getSize() - offset),
+                            Arrays.copyOfRange(
+                                    pieceHashes,
+                                    i * Torrent.PIECE_HASH_SIZE,
+                                    (i + 1) * Torrent.PIECE_HASH_SIZE));
+                }
+            }
+        } catch (Exception e) {
+            // ttorrent validates the pieces by reading them back
+        }
+    }
+
+    /**
+     * Sets the priorities of the files, see {@link FileSelector}. Has to be set before
+     * the torrent is initialized, the selection does not change afterwards.
+     */
+    public synchronized void setFilePriorities(int[] filePriorities) throws IOException {
+        int pieceCount = getPieceHashes().length / Torrent.PIECE_HASH_SIZE;
+        int[] piecePriorities = FileSelector.getPiecePriorities(
+                getContentFileSizes(),
+                filePriorities,
+                FileSelector.NORMAL,
+                getPieceLength(),
+                pieceCount);
+        this.filePriorities = filePriorities.clone();
+        wantedPieces = new BitSet(pieceCount);
+        for (int i = 0; i < pieceCount; ++i) {
+            if (piecePriorities[i] > FileSelector.SKIP) {
+                wantedPieces.set(i);
+            }
+        }
+        hasSkippedPieces = wantedPieces.cardinality() < pieceCount;
+        prioritizedStrategy.setPiecePriorities(piecePriorities);
+    }
+
+    /**
+     * Returns true if files are skipped and all pieces of the other files are verified.
+     * Does not lock the torrent.
+     */
+    public boolean isSelectionComplete() {
+        return isSelectionComplete;
+    }
+
+    /**
+     * Returns the completion of the selected files in percent.
+     */
+    @Override
+    public float getCompletion() {
+        if (!hasSkippedPieces || wantedPieces.isEmpty() || !isInitialized()) {
+            return super.getCompletion();
+        }
+        BitSet completedPieces = getCompletedPieces();
+        completedPieces.and(wantedPieces);
+        return completedPieces.cardinality() * 100f / wantedPieces.cardinality();
+    }
+
+    /**
+     * Moves the selected files to their targets and deletes the partial files of skipped
+     * files once the selection is complete. Has to be called after the torrent is closed.
+     */
+    public synchronized void finishSelection() throws IOException {
+        if (!hasSkippedPieces || isFinished()) {
+            return;
+        }
+        long pieceLength = getPieceLength();
+        long fileOffset = 0;
+        for (int i = 0; i < files.size(); ++i) {
+            long fileSize = files.get(i).size;
+            File target = new File(destination, files.get(i).file.getPath());
+            File contentFile = getContentFile(target);
+            if (!contentFile.equals(target)) {
+                if (i >= filePriorities.length || filePriorities[i] > FileSelector.SKIP) {
+                    if (!contentFile.renameTo(target)) {
+                        throw new IOException("Cannot move " + contentFile + " to " + target);
+                    }
+                } else if (contentFile.delete() && fileSize > 0) {
+                    discardedPieces.set(
+                            (int) (fileOffset / pieceLength),
+                            (int) ((fileOffset + fileSize - 1) / pieceLength) + 1);
+                }
+            }
+            fileOffset += fileSize;
+        }
+    }
+
+    /**
+     * Returns the verified pieces whose content is on disk. Pieces that are still
+     * queued or cached are left out, no piece is resumable once a write failed.
+     */
+    public synchronized BitSet getResumablePieces() {
+        if (hasStorageFailed()) {
+            return new BitSet();
+        }
+        BitSet resumablePieces = getCompletedPieces();
+        resumablePieces.andNot(discardedPieces);
+        DiskIoStage stage = diskIoStage;
+        WriteBackCache cache = writeCache;
+        boolean hasQueuedWrites = stage != null && stage.getQueueDepth() > 0;
+        boolean hasDirtyBytes = cache != null && cache.getDirtyBytes() > 0;
+        if (!hasQueuedWrites && !hasDirtyBytes) {
+            return resumablePieces;
+        }
+        try {
+            long pieceLength = getPieceLength();
+            for (int i = resumablePieces.nextSetBit(0);
+                    i >= 0;
+                    i = resumablePieces.nextSetBit(i + 1)) {
+                // a piece leaves the queue once it is cached
+                if ((stage != null && stage.isQueued(i * pieceLength, pieceLength))
+                        || (cache != null && cache.isDirty(i * pieceLength, pieceLength))) {
+                    resumablePieces.clear(i);
+                }
+            }
+        } catch (IOException e) {
+            resumablePieces.clear();
+        }
+        return resumablePieces;
+    }
+
+    /**
+     * Peers are only asked for pieces of the selected files. Peers that have none of
+     * them stay idle like peers without interesting pieces.
+     */
+    @Override
+    public synchronized void handlePeerReady(SharingPeer peer) {
+        if (isPaused || isThrottled) {
+            readyPeers.add(peer);
+            return;
+        }
+        if (hasSkippedPieces) {
+            BitSet interesting = peer.getAvailablePieces();
+            interesting.and(wantedPieces);
+            interesting.andNot(getCompletedPieces());
+            interesting.andNot(getRequestedPieces());
+            if (interesting.isEmpty()) {
+                return;
+            }
+        }
+        super.handlePeerReady(peer);
+    }
+
+    @Override
+    public synchronized void handlePieceSent(SharingPeer peer, Piece piece) {
+        super.handlePieceSent(peer, piece);
+        if (isPaused || isThrottled) {
+            peer.choke();
+        }
+    }
+
+    @Override
+    public synchronized void handlePieceCompleted(SharingPeer peer, Piece piece)
+            throws IOException {
+        super.handlePieceCompleted(peer, piece);
+        updateSelectionComplete();
+    }
+
+    @Override
+    public synchronized void handlePeerDisconnected(SharingPeer peer) {
+        readyPeers.remove(peer);
+        super.handlePeerDisconnected(peer);
+    }
+
+    /**
+     * Replaces the pieces that are known to be valid by the result of a verification of
+     * the whole content, see {@link PieceVerifier}. All other pieces are known to be
+     * invalid, so that init does not hash any piece. Has no effect once the torrent is
+     * initialized.
+     */
+    public synchronized void setVerifiedContent(BitSet validPieces) {
+        this.verifiedPieces = validPieces;
+        try {
+            // init may only skip the hashing if the pieces can be invalidated afterwards
+            getPiecesField();
+            getCompletedPiecesField();
+            getLeftField();
+            getBucketField();
+            isContentVerified = true;
+        } catch (NoSuchFieldException e) {
+            // ttorrent hashes the pieces that are not valid
+        }
+    }
+
+    /**
+     * Turns the pieces that init took as valid without hashing them into missing pieces.
+     */
+    private void invalidateUnverifiedPieces() throws IOException {
+        try {
+            Piece[] pieces = (Piece[]) getPiecesField().get(this);
+            BitSet completedPieces = (BitSet) getCompletedPiecesField().get(this);
+            Field leftField = getLeftField();
+            TorrentByteStorage bucket = (TorrentByteStorage) getBucketField().get(this);
+            byte[] pieceHashes = getPieceHashes();
+            long pieceLength = getPieceLength();
+            long left = leftField.getLong(this);
+            for (int i = verifiedPieces.nextClearBit(0);
+                    i < pieces.length;
+                    i = verifiedPieces.nextClearBit(i + 1)) {
+                long offset = i * pieceLength;
+                long length = Math.min(pieceLength, getSize() - offset);
+                pieces[i] = new Piece(
+                        bucket,
+                        i,
+                        offset,
+                        length,
+                        Arrays.copyOfRange(
+                                pieceHashes,
+                                i * Torrent.PIECE_HASH_SIZE,
+                                (i + 1) * Torrent.PIECE_HASH_SIZE),
+                        false);
+                completedPieces.clear(i);
+                left += length;
+            }
+            leftField.setLong(this, left);
+        } catch (NoSuchFieldException e) {
+            throw new IOException("cannot invalidate pieces", e);
+        } catch (IllegalAccessException e) {
+            throw new IOException("cannot invalidate pieces", e);
+        }
+    }
+
+    private void updateSelectionComplete() {
+        if (hasSkippedPieces) {
+            BitSet missingPieces = (BitSet) wantedPieces.clone();
+            missingPieces.andNot(getCompletedPieces());
+            isSelectionComplete = missingPieces.isEmpty();
+        }
+    }
+
+    public File getDestination() {
+        return destination;
+    }
+
+    public int getPieceLength() throws IOException {
+        return decoded_info.get("piece length").getInt();
+    }
+
+    /**
+     * Returns the concatenated SHA-1 hashes of all pieces.
+     */
+    public byte[] getPieceHashes() throws IOException {
+        return decoded_info.get("pieces").getBytes();
+    }
+
+    public long[] getContentFileSizes() {
+        long[] sizes = new long[files.size()];
+        for (int i = 0; i < sizes.length; ++i) {
+            sizes[i] = files.get(i).size;
+        }
+        return sizes;
+    }
+
+    /**
+     * Returns the files that hold the content once the download is finished.
+     */
+    public List<File> getTargetFiles() {
+        List<File> targetFiles = new ArrayList<>(files.size());
+        for (TorrentFile torrentFile : files) {
+            targetFiles.add(new File(destination, torrentFile.file.getPath()));
+        }
+        return targetFiles;
+    }
+
+    /**
+     * Returns the files that currently hold the content, i.e. the partial
+     * file while the content is being downloaded.
+     */
+    public List<File> getContentFiles() {
+        List<File> contentFiles = new ArrayList<>(files.size());
+        for (TorrentFile torrentFile : files) {
+            contentFiles.add(getContentFile(new File(destination, torrentFile.file.getPath())));
+        }
+        return contentFiles;
+    }
+
+    /**
+     * Returns true if any content of the torrent is available in the destination.
+     */
+    public static boolean hasContent(Torrent torrent, File destination) {
+        for (String filename : torrent.getFilenames()) {
+            if (getContentFile(new File(destination, filename)).length() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the partial file of the target while it is being downloaded.
+     */
+    static File getContentFile(File target) {
+        File partial = new File(target.getAbsolutePath()
+                + TorrentByteStorage.PARTIAL_FILE_NAME_SUFFIX);
+        return partial.exists() ? partial : target;
+    }
+}
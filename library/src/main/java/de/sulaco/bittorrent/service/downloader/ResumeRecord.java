@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Verified pieces of a torrent together with the state of its content files
+ * at the time the pieces were recorded.
+ */
+class ResumeRecord {
+
+    private static final int VERSION = 2;
+
+    static class FileState {
+        final String path;
+        final long length;
+        final long lastModified;
+
+        FileState(String path, long length, long lastModified) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        static FileState of(File file) {
+            return new FileState(file.getAbsolutePath(), file.length(), file.lastModified());
+        }
+    }
+
+    final String infoHash;
+    final String destination;
+    final BitSet verifiedPieces;
+    final List<FileState> files;
+
+    ResumeRecord(
+            String infoHash,
+            String destination,
+            BitSet verifiedPieces,
+            List<FileState> files) {
+        this.infoHash = infoHash;
+        this.destination = destination;
+        this.verifiedPieces = verifiedPieces;
+        this.files = files;
+    }
+
+    /**
+     * Requires unchanged files, a file written after the record was taken may hold
+     * content that has not been verified.
+     */
+    boolean matchesContentFiles() {
+        for (FileState state : files) {
+            File file = new File(state.path);
+            if (!file.isFile()
+                    || file.length() != state.length
+                    || file.lastModified() != state.lastModified) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(infoHash);
+            out.writeUTF(destination);
+            writeBitSet(out, verifiedPieces);
+            out.writeInt(files.size());
+            for (FileState state : files) {
+                out.writeUTF(state.path);
+                out.writeLong(state.length);
+                out.writeLong(state.lastModified);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("cannot write " + file);
+        }
+    }
+
+    static ResumeRecord read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION) {
+                throw new IOException("unsupported resume record version");
+            }
+            String infoHash = in.readUTF();
+            String destination = in.readUTF();
+            BitSet verifiedPieces = readBitSet(in);
+            int fileCount = in.readInt();
+            List<FileState> files = new ArrayList<>(fileCount);
+            for (int i = 0; i < fileCount; ++i) {
+                files.add(new FileState(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            return new ResumeRecord(infoHash, destination, verifiedPieces, files);
+        } finally {
+            in.close();
+        }
+    }
+
+    // BitSet.toByteArray() and BitSet.valueOf() require API level 19
+    private static void writeBitSet(DataOutputStream out, BitSet bitSet) throws IOException {
+        int length = bitSet.length();
+        out.writeInt(length);
+        for (int i = 0; i < length; i += 8) {
+            int value = 0;
+            for (int bit = 0; bit < 8; ++bit) {
+                if (bitSet.get(i + bit)) {
+                    value |= 1 << bit;
+                }
+            }
+            out.writeByte(value);
+        }
+    }
+
+    private static BitSet readBitSet(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("invalid bitfield length");
+        }
+        BitSet bitSet = new BitSet(length);
+        for (int i = 0; i < length; i += 8) {
+            int value = in.readUnsignedByte();
+            for (int bit = 0; bit < 8; ++bit) {
+                if ((value & (1 << bit)) != 0) {
+                    bitSet.set(i + bit);
+                }
+            }
+        }
+        return bitSet;
+    }
+}
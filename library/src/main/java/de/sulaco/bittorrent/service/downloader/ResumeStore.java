@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.common.Torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static de.sulaco.bittorrent.service.util.RequireNonNull.requireNonNull;
+
+/**
+ * Persists the verified pieces of torrents so that a restarted download does not
+ * need to hash the content that is already available.
+ */
+class ResumeStore {
+
+    private final File directory;
+
+    public ResumeStore(File directory) {
+        requireNonNull(directory, "directory must not be null");
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the verified pieces of a previous download or an empty
+     * bitfield if the content has changed since then.
+     */
+    public BitSet load(Torrent torrent, File destination) {
+        File recordFile = getRecordFile(torrent.getHexInfoHash(), destination);
+        if (!recordFile.exists()) {
+            return new BitSet();
+        }
+        try {
+            ResumeRecord record = ResumeRecord.read(recordFile);
+            if (record.infoHash.equals(torrent.getHexInfoHash())
+                    && record.destination.equals(destination.getAbsolutePath())
+                    && record.matchesContentFiles()) {
+                return record.verifiedPieces;
+            }
+        } catch (IOException e) {
+            // fall through and discard record
+        }
+        recordFile.delete();
+        return new BitSet();
+    }
+
+    /**
+     * Records the verified pieces together with the current state of the content
+     * files. The record is discarded if a file changes afterwards.
+     */
+    public void save(ResumableSharedTorrent torrent) {
+        if (!torrent.isInitialized()) {
+            return;
+        }
+        BitSet verifiedPieces = torrent.getResumablePieces();
+        List<ResumeRecord.FileState> files = new ArrayList<>();
+        for (File contentFile : torrent.getContentFiles()) {
+            files.add(ResumeRecord.FileState.of(contentFile));
+        }
+        ResumeRecord record = new ResumeRecord(
+                torrent.getHexInfoHash(),
+                torrent.getDestination().getAbsolutePath(),
+                verifiedPieces,
+                files);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        try {
+            record.write(getRecordFile(record.infoHash, torrent.getDestination()));
+        } catch (IOException e) {
+            // resume data is an optimization only
+        }
+    }
+
+    private File getRecordFile(String infoHash, File destination) {
+        String destinationKey = Integer.toHexString(destination.getAbsolutePath().hashCode());
+        return new File(directory, infoHash + "-" + destinationKey + ".resume");
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import de.sulaco.bittorrent.service.intent.DownloadState;
+
+/**
+ * Applies a {@link StallPolicy} to the bytes received by a download. The stall clock
+ * starts with the download and can be restarted, e.g. while the client is validating.
+ */
+class StallDetector {
+
+    static final int NOT_STALLED = 0;
+
+    private static final long NANOS_PER_MILLI = 1000L * 1000;
+    private static final long THROUGHPUT_CHECK_INTERVAL_NANOS = 1000L * NANOS_PER_MILLI;
+
+    private static class Sample {
+        final long nanos;
+        final long bytes;
+
+        Sample(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long stallWindowNanos;
+    private final long minThroughput;
+    private final long gracePeriodNanos;
+    private final long deadlineNanos;
+    private final int stallState;
+    private final long startNanos;
+    private final ArrayDeque<Sample> samples = new ArrayDeque<>();
+    private long monitorStartNanos;
+    private long lastIncreaseNanos;
+
+    /**
+     * The stall state is the result of a download that receives nothing within the
+     * stall window.
+     */
+    StallDetector(StallPolicy policy, int stallState, long nanos) {
+        this.stallWindowNanos = policy.getStallWindow() * NANOS_PER_MILLI;
+        this.minThroughput = policy.getMinThroughput();
+        this.gracePeriodNanos = policy.getGracePeriod() * NANOS_PER_MILLI;
+        this.deadlineNanos = policy.getDeadline() * NANOS_PER_MILLI;
+        this.stallState = stallState;
+        this.startNanos = nanos;
+        restart(nanos, 0);
+    }
+
+    StallDetector(StallPolicy policy, long nanos) {
+        this(policy, DownloadState.STALLED, nanos);
+    }
+
+    /**
+     * Restarts the stall clock. The deadline is not affected.
+     */
+    void restart(long nanos, long totalBytes) {
+        samples.clear();
+        samples.addLast(new Sample(nanos, totalBytes));
+        monitorStartNanos = nanos;
+        lastIncreaseNanos = nanos;
+    }
+
+    /**
+     * Adds the total number of bytes received until the given time.
+     */
+    void addSample(long nanos, long totalBytes) {
+        Sample last = samples.peekLast();
+        if (totalBytes == last.bytes) {
+            return;
+        }
+        samples.addLast(new Sample(nanos, totalBytes));
+        lastIncreaseNanos = nanos;
+        // keep the latest sample at or before the window start as reference
+        long windowStartNanos = nanos - stallWindowNanos;
+        while (samples.size() > 1) {
+            Iterator<Sample> iterator = samples.iterator();
+            iterator.next();
+            if (iterator.next().nanos > windowStartNanos) {
+                break;
+            }
+            samples.removeFirst();
+        }
+    }
+
+    /**
+     * Returns a DownloadState if the download has to be given up, NOT_STALLED otherwise.
+     */
+    int check(long nanos) {
+        if (deadlineNanos > 0 && nanos - startNanos >= deadlineNanos) {
+            return DownloadState.DEADLINE_EXCEEDED;
+        }
+        long monitoredNanos = nanos - monitorStartNanos;
+        if (gracePeriodNanos > 0
+                && monitoredNanos >= gracePeriodNanos
+                && lastIncreaseNanos == monitorStartNanos) {
+            return DownloadState.NO_PEERS;
+        }
+        if (stallWindowNanos == 0 || monitoredNanos < gracePeriodNanos + stallWindowNanos) {
+            return NOT_STALLED;
+        }
+        long bytes = getBytesSince(nanos - stallWindowNanos);
+        if (bytes == 0) {
+            return stallState;
+        }
+        if (minThroughput > 0 && bytes * 1000 * NANOS_PER_MILLI / stallWindowNanos < minThroughput) {
+            return DownloadState.THROUGHPUT_TOO_LOW;
+        }
+        return NOT_STALLED;
+    }
+
+    /**
+     * Returns the time until the next check could change the result or 0 if no check
+     * is necessary.
+     */
+    long getNanosUntilNextCheck(long nanos) {
+        long nextCheckNanos = Long.MAX_VALUE;
+        if (deadlineNanos > 0) {
+            nextCheckNanos = Math.min(nextCheckNanos, startNanos + deadlineNanos);
+        }
+        if (gracePeriodNanos > 0 && lastIncreaseNanos == monitorStartNanos) {
+            nextCheckNanos = Math.min(nextCheckNanos, monitorStartNanos + gracePeriodNanos);
+        }
+        if (stallWindowNanos > 0) {
+            long firstWindowEndNanos = monitorStartNanos + gracePeriodNanos + stallWindowNanos;
+            if (nanos < firstWindowEndNanos) {
+                nextCheckNanos = Math.min(nextCheckNanos, firstWindowEndNanos);
+            } else if (minThroughput > 0) {
+                nextCheckNanos = Math.min(nextCheckNanos, nanos + THROUGHPUT_CHECK_INTERVAL_NANOS);
+            } else {
+                nextCheckNanos = Math.min(nextCheckNanos, lastIncreaseNanos + stallWindowNanos);
+            }
+        }
+        if (nextCheckNanos == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, nextCheckNanos - nanos);
+    }
+
+    private long getBytesSince(long nanos) {
+        Sample reference = samples.peekFirst();
+        for (Sample sample : samples) {
+            if (sample.nanos > nanos) {
+                break;
+            }
+            reference = sample;
+        }
+        return samples.peekLast().bytes - reference.bytes;
+    }
+}
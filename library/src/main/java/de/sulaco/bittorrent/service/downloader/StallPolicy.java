@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+/**
+ * Decides when a download is given up. All durations are in milliseconds, 0 disables
+ * the respective check.
+ */
+public class StallPolicy {
+
+    private long stallWindowMillis = 0;
+    private long minThroughput = 0;
+    private long gracePeriodMillis = 0;
+    private long deadlineMillis = 0;
+
+    public StallPolicy() {
+    }
+
+    public long getStallWindow() {
+        return stallWindowMillis;
+    }
+
+    /**
+     * Sets the sliding window over which received bytes are counted. A download that
+     * receives nothing within the window ends with DownloadState.STALLED.
+     */
+    public StallPolicy setStallWindow(long millis) {
+        this.stallWindowMillis = millis;
+        return this;
+    }
+
+    public long getMinThroughput() {
+        return minThroughput;
+    }
+
+    /**
+     * Sets the minimum average throughput in bytes per second over the stall window.
+     * A slower download ends with DownloadState.THROUGHPUT_TOO_LOW.
+     */
+    public StallPolicy setMinThroughput(long bytesPerSecond) {
+        this.minThroughput = bytesPerSecond;
+        return this;
+    }
+
+    public long getGracePeriod() {
+        return gracePeriodMillis;
+    }
+
+    /**
+     * Sets the time for peer discovery before the stall window is applied. A download
+     * that receives nothing within the grace period ends with DownloadState.NO_PEERS.
+     */
+    public StallPolicy setGracePeriod(long millis) {
+        this.gracePeriodMillis = millis;
+        return this;
+    }
+
+    public long getDeadline() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Sets the maximum duration of a download, regardless of its progress. A download
+     * that takes longer ends with DownloadState.DEADLINE_EXCEEDED.
+     */
+    public StallPolicy setDeadline(long millis) {
+        this.deadlineMillis = millis;
+        return this;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the stall checks of all downloads on a single timer thread. A download reports
+ * its activity by plain writes to its {@link Watch}, the timer thread picks them up
+ * whenever a check of the download is due. Downloads without any check enabled do
+ * not schedule a timer at all.
+ */
+final class StallTracker {
+
+    private static final StallTracker INSTANCE = new StallTracker(
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StallTracker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+
+    interface StallListener {
+        void onStalled(int downloadState);
+    }
+
+    /**
+     * Activity of a single download. All methods may be called from any thread.
+     */
+    final class Watch implements Runnable {
+        private final StallDetector stallDetector;
+        private final StallListener stallListener;
+        // written by the download, read by the timer thread
+        private volatile long downloadedBytes;
+        private volatile long activityNanos;
+        private volatile long restartNanos;
+        private volatile boolean isCancelled = false;
+        private volatile boolean isPaused = false;
+        // confined to the timer thread
+        private long appliedRestartNanos;
+        private ScheduledFuture<?> future;
+
+        private Watch(StallDetector stallDetector, StallListener stallListener, long nanos) {
+            this.stallDetector = stallDetector;
+            this.stallListener = stallListener;
+            this.activityNanos = nanos;
+            this.restartNanos = nanos;
+            this.appliedRestartNanos = nanos;
+        }
+
+        /**
+         * Reports the total number of bytes received so far.
+         */
+        void onActivity(long nanos, long totalBytes) {
+            downloadedBytes = totalBytes;
+            activityNanos = nanos;
+        }
+
+        /**
+         * Restarts the stall clock, e.g. on a state change of the client.
+         */
+        void onRestart(long nanos, long totalBytes) {
+            onActivity(nanos, totalBytes);
+            restartNanos = nanos;
+        }
+
+        /**
+         * Suspends the checks while paused. Resuming restarts the stall clock.
+         */
+        void setPaused(boolean paused) {
+            if (isPaused == paused) {
+                return;
+            }
+            if (!paused) {
+                onRestart(System.nanoTime(), downloadedBytes);
+            }
+            isPaused = paused;
+            if (!paused) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isCancelled && future == null) {
+                            schedule(System.nanoTime());
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Stops the checks. The listener is not called after cancel returns unless a
+         * check is running at the same time.
+         */
+        void cancel() {
+            isCancelled = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future != null) {
+                        future.cancel(false);
+                        future = null;
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            future = null;
+            if (isCancelled || isPaused) {
+                return;
+            }
+            long nanos = System.nanoTime();
+            applyActivity();
+            int stallState = stallDetector.check(nanos);
+            if (stallState != StallDetector.NOT_STALLED) {
+                isCancelled = true;
+                stallListener.onStalled(stallState);
+                return;
+            }
+            schedule(nanos);
+        }
+
+        private void applyActivity() {
+            // read the timestamps first, the bytes may only be newer
+            long restartNanos = this.restartNanos;
+            long activityNanos = this.activityNanos;
+            long downloadedBytes = this.downloadedBytes;
+            if (restartNanos != appliedRestartNanos) {
+                appliedRestartNanos = restartNanos;
+                stallDetector.restart(restartNanos, downloadedBytes);
+            } else {
+                stallDetector.addSample(activityNanos, downloadedBytes);
+            }
+        }
+
+        private void schedule(long nanos) {
+            long delayNanos = stallDetector.getNanosUntilNextCheck(nanos);
+            if (delayNanos > 0) {
+                future = executor.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+
+    StallTracker(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    static StallTracker getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts the checks of a download. The listener is called on the timer thread
+     * once the download is given up.
+     */
+    Watch watch(StallDetector stallDetector, StallListener stallListener) {
+        final Watch watch = new Watch(stallDetector, stallListener, System.nanoTime());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!watch.isCancelled) {
+                    watch.schedule(System.nanoTime());
+                }
+            }
+        });
+        return watch;
+    }
+}
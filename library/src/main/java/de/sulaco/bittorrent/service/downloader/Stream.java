@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * Content of a streaming download. Readers wait for the pieces they need, which moves
+ * the playhead of the request strategy. Observes the client to learn about completed
+ * pieces.
+ */
+class Stream implements Observer {
+
+    private final String infoHash;
+    private final List<File> targetFiles;
+    private final long[] fileOffsets;
+    private final long[] fileSizes;
+    private final long pieceLength;
+    private final StreamingRequestStrategy requestStrategy;
+    private BitSet completedPieces = new BitSet();
+    private boolean isComplete = false;
+    private boolean isEnded = false;
+
+    /**
+     * The request strategy may be null if the content is complete already.
+     */
+    Stream(String infoHash,
+           List<File> targetFiles,
+           long[] fileSizes,
+           long pieceLength,
+           StreamingRequestStrategy requestStrategy) {
+        this.infoHash = infoHash;
+        this.targetFiles = targetFiles;
+        this.fileSizes = fileSizes;
+        this.pieceLength = pieceLength;
+        this.requestStrategy = requestStrategy;
+        this.fileOffsets = new long[fileSizes.length];
+        long offset = 0;
+        for (int i = 0; i < fileSizes.length; ++i) {
+            fileOffsets[i] = offset;
+            offset += fileSizes[i];
+        }
+    }
+
+    String getInfoHash() {
+        return infoHash;
+    }
+
+    int getFileCount() {
+        return fileSizes.length;
+    }
+
+    long getFileSize(int fileIndex) {
+        return fileSizes[fileIndex];
+    }
+
+    String getFileName(int fileIndex) {
+        return targetFiles.get(fileIndex).getName();
+    }
+
+    /**
+     * Returns the file that currently holds the content.
+     */
+    File getContentFile(int fileIndex) {
+        return ResumableSharedTorrent.getContentFile(targetFiles.get(fileIndex));
+    }
+
+    /**
+     * Blocks until the piece at the offset of the file is verified. Returns the number
+     * of bytes from the offset up to the given length that are available on disk.
+     *
+     * @throws IOException if the download ended without completing the content
+     */
+    synchronized long waitForContent(int fileIndex, long offset, long length)
+            throws IOException, InterruptedException {
+        long start = fileOffsets[fileIndex] + offset;
+        long end = start + length;
+        int firstPiece = (int) (start / pieceLength);
+        if (requestStrategy != null && !isComplete) {
+            requestStrategy.setPlayhead(firstPiece);
+        }
+        while (!isComplete && !completedPieces.get(firstPiece)) {
+            if (isEnded) {
+                throw new IOException("download ended");
+            }
+            wait();
+        }
+        if (isComplete) {
+            return length;
+        }
+        int nextMissingPiece = completedPieces.nextClearBit(firstPiece);
+        return Math.min(end, nextMissingPiece * pieceLength) - start;
+    }
+
+    synchronized void setCompletedPieces(BitSet completedPieces) {
+        this.completedPieces = completedPieces;
+        notifyAll();
+    }
+
+    /**
+     * All content is available from now on.
+     */
+    synchronized void complete() {
+        isComplete = true;
+        notifyAll();
+    }
+
+    /**
+     * Readers of missing content fail from now on.
+     */
+    synchronized void end() {
+        isEnded = true;
+        notifyAll();
+    }
+
+    @Override
+    public void update(Observable observable, Object data) {
+        setCompletedPieces(((Client) observable).getTorrent().getCompletedPieces());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Answers a single HTTP request for a file of a {@link Stream}. Supports GET and HEAD
+ * with a single byte range. Content is copied from disk to the socket by
+ * FileChannel.transferTo as soon as its pieces are verified.
+ */
+class StreamConnection implements Runnable {
+
+    private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final long MAX_TRANSFER_SIZE = 1024 * 1024;
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final StreamServer streamServer;
+    private final SocketChannel channel;
+
+    StreamConnection(StreamServer streamServer, SocketChannel channel) {
+        this.streamServer = streamServer;
+        this.channel = channel;
+    }
+
+    @Override
+    public void run() {
+        try {
+            serve();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // client went away or download ended
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void serve() throws IOException, InterruptedException {
+        String[] lines = readHeader();
+        if (lines == null) {
+            return;
+        }
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2) {
+            sendStatus(400, "Bad Request");
+            return;
+        }
+        boolean isHead = requestLine[0].equals("HEAD");
+        if (!isHead && !requestLine[0].equals("GET")) {
+            sendStatus(405, "Method Not Allowed");
+            return;
+        }
+        String[] path = requestLine[1].split("/");
+        Stream stream = path.length == 3 ? streamServer.getStream(path[1]) : null;
+        int fileIndex = stream != null ? parseFileIndex(path[2], stream.getFileCount()) : -1;
+        if (fileIndex < 0) {
+            sendStatus(404, "Not Found");
+            return;
+        }
+        long fileSize = stream.getFileSize(fileIndex);
+        String range = parseHeaderFields(lines).get("range");
+        long start = 0;
+        long length = fileSize;
+        StringBuilder response = new StringBuilder();
+        if (range != null) {
+            long[] bounds = parseRange(range, fileSize);
+            if (bounds == null) {
+                send("HTTP/1.1 416 Range Not Satisfiable\r\n"
+                        + "Content-Range: bytes */" + fileSize + "\r\n"
+                        + "Content-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n");
+                return;
+            }
+            start = bounds[0];
+            length = bounds[1] - bounds[0] + 1;
+            response.append("HTTP/1.1 206 Partial Content\r\n")
+                    .append("Content-Range: bytes ").append(start).append('-').append(bounds[1])
+                    .append('/').append(fileSize).append("\r\n");
+        } else {
+            response.append("HTTP/1.1 200 OK\r\n");
+        }
+        String contentType = URLConnection.guessContentTypeFromName(stream.getFileName(fileIndex));
+        response.append("Content-Type: ")
+                .append(contentType != null ? contentType : DEFAULT_CONTENT_TYPE).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n")
+                .append("Connection: close\r\n\r\n");
+        send(response.toString());
+        if (!isHead) {
+            transfer(stream, fileIndex, start, length);
+        }
+    }
+
+    private void transfer(Stream stream, int fileIndex, long offset, long length)
+            throws IOException, InterruptedException {
+        RandomAccessFile file = null;
+        try {
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                long available = stream.waitForContent(
+                        fileIndex,
+                        position,
+                        Math.min(remaining, MAX_TRANSFER_SIZE));
+                if (file == null) {
+                    // a partial file that gets renamed stays readable
+                    file = new RandomAccessFile(stream.getContentFile(fileIndex), "r");
+                }
+                transferTo(file.getChannel(), position, available);
+                position += available;
+                remaining -= available;
+            }
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    private void transferTo(FileChannel fileChannel, long position, long count) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long bytes = fileChannel.transferTo(position + transferred, count - transferred, channel);
+            if (bytes <= 0) {
+                throw new IOException("content not available");
+            }
+            transferred += bytes;
+        }
+    }
+
+    /**
+     * Returns the lines of the request header or null if the connection was closed.
+     */
+    private String[] readHeader() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        int headerEnd;
+        while ((headerEnd = findHeaderEnd(buffer)) < 0) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("header too large");
+            }
+            if (channel.read(buffer) < 0) {
+                return null;
+            }
+        }
+        return new String(buffer.array(), 0, headerEnd, HEADER_CHARSET).split("\r\n");
+    }
+
+    private static int findHeaderEnd(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        for (int i = 3; i < buffer.position(); ++i) {
+            if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    private static Map<String, String> parseHeaderFields(String[] lines) {
+        Map<String, String> fields = new HashMap<>();
+        for (int i = 1; i < lines.length; ++i) {
+            int separator = lines[i].indexOf(':');
+            if (separator > 0) {
+                fields.put(
+                        lines[i].substring(0, separator).trim().toLowerCase(Locale.US),
+                        lines[i].substring(separator + 1).trim());
+            }
+        }
+        return fields;
+    }
+
+    private static int parseFileIndex(String value, int fileCount) {
+        try {
+            int fileIndex = Integer.parseInt(value);
+            return fileIndex >= 0 && fileIndex < fileCount ? fileIndex : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the first and the last byte of a single range or null if the range
+     * cannot be satisfied.
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int separator = spec.indexOf('-');
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, separator).trim();
+            String last = spec.substring(separator + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                long suffixLength = Long.parseLong(last);
+                start = Math.max(0, size - suffixLength);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(last));
+            }
+            if (start < 0 || start > end) {
+                return null;
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void sendStatus(int code, String reason) throws IOException {
+        send("HTTP/1.1 " + code + " " + reason + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n\r\n");
+    }
+
+    private void send(String header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header.getBytes(HEADER_CHARSET));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves the files of streaming downloads over HTTP on the loopback interface, so that
+ * media players can start playback before a download is finished. Range requests
+ * block until the requested pieces are verified. Content of completed downloads stays
+ * available for the lifetime of the process.
+ *
+ * The URL of a file is http://127.0.0.1:port/infohash/index with the index of the
+ * file within the torrent.
+ */
+public final class StreamServer {
+
+    private static final StreamServer INSTANCE = new StreamServer();
+
+    private final Set<String> streamingDownloadIds = new HashSet<>();
+    private final Map<String, Stream> streams = new HashMap<>();
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+
+    StreamServer() {
+    }
+
+    public static StreamServer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Marks the download with the id as streaming. Has to be set before the download
+     * starts.
+     */
+    public synchronized void setStreaming(String downloadId, boolean streaming) {
+        if (streaming) {
+            streamingDownloadIds.add(downloadId);
+        } else {
+            streamingDownloadIds.remove(downloadId);
+        }
+    }
+
+    /**
+     * Returns the URL of a file of the torrent or null if the server cannot be started.
+     * The URL can be handed to a player before the download starts, requests fail until
+     * the download is running.
+     */
+    public synchronized String getStreamUrl(String infoHash, int fileIndex) {
+        int port = start();
+        if (port < 0) {
+            return null;
+        }
+        return "http://127.0.0.1:" + port + "/" + infoHash + "/" + fileIndex;
+    }
+
+    synchronized boolean isStreaming(String downloadId) {
+        return streamingDownloadIds.contains(downloadId);
+    }
+
+    synchronized void register(Stream stream) {
+        Stream previousStream = streams.put(stream.getInfoHash(), stream);
+        if (previousStream != null) {
+            previousStream.end();
+        }
+        start();
+    }
+
+    /**
+     * The content of a completed stream stays available.
+     */
+    synchronized void unregister(Stream stream, boolean completed) {
+        if (completed) {
+            stream.complete();
+            return;
+        }
+        stream.end();
+        if (streams.get(stream.getInfoHash()) == stream) {
+            streams.remove(stream.getInfoHash());
+        }
+    }
+
+    synchronized Stream getStream(String infoHash) {
+        return streams.get(infoHash);
+    }
+
+    synchronized void stop() {
+        if (serverChannel == null) {
+            return;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        executor.shutdownNow();
+        serverChannel = null;
+        executor = null;
+    }
+
+    /**
+     * Returns the port or -1 if the server socket cannot be bound.
+     */
+    private int start() {
+        if (serverChannel == null) {
+            try {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            } catch (IOException e) {
+                serverChannel = null;
+                return -1;
+            }
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "StreamServer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.execute(createAcceptor(serverChannel, executor));
+        }
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private Runnable createAcceptor(
+            final ServerSocketChannel serverChannel,
+            final ExecutorService executor) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        SocketChannel channel = serverChannel.accept();
+                        executor.execute(new StreamConnection(StreamServer.this, channel));
+                    }
+                } catch (Exception e) {
+                    // server stopped
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Piece;
+import com.turn.ttorrent.client.strategy.RequestStrategy;
+import com.turn.ttorrent.client.strategy.RequestStrategyImplRarest;
+
+import java.util.BitSet;
+import java.util.SortedSet;
+
+/**
+ * Requests the pieces within a window after the playhead in order. Pieces outside the
+ * window are requested rarest first. The playhead starts at the first piece, so that
+ * playback can begin early.
+ */
+class StreamingRequestStrategy implements RequestStrategy {
+
+    private final long windowBytes;
+    private final RequestStrategy fallbackStrategy = new RequestStrategyImplRarest();
+    private volatile int playhead = 0;
+
+    StreamingRequestStrategy(long windowBytes) {
+        this.windowBytes = windowBytes;
+    }
+
+    void setPlayhead(int pieceIndex) {
+        playhead = pieceIndex;
+    }
+
+    int getPlayhead() {
+        return playhead;
+    }
+
+    @Override
+    public Piece choosePiece(SortedSet<Piece> rarest, BitSet interesting, Piece[] pieces) {
+        int start = playhead;
+        int windowPieces = (int) Math.max(1, windowBytes / Math.max(1, pieces[0].size()));
+        int end = (int) Math.min(pieces.length, (long) start + windowPieces);
+        int index = interesting.nextSetBit(start);
+        if (index >= 0 && index < end) {
+            return pieces[index];
+        }
+        return fallbackStrategy.choosePiece(rarest, interesting, pieces);
+    }
+}
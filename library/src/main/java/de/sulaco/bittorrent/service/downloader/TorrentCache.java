@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.common.Torrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of parsed torrent files. An entry is reloaded as soon as the
+ * size or the modification time of its file changes.
+ */
+class TorrentCache {
+
+    private static class CachedTorrent {
+        final long length;
+        final long lastModified;
+        final Torrent torrent;
+
+        CachedTorrent(long length, long lastModified, Torrent torrent) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.torrent = torrent;
+        }
+    }
+
+    private final Map<String, CachedTorrent> entries;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public TorrentCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        entries = new LinkedHashMap<String, CachedTorrent>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedTorrent> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public Torrent load(File torrentFile) throws IOException, NoSuchAlgorithmException {
+        String key = torrentFile.getAbsolutePath();
+        long length = torrentFile.length();
+        long lastModified = torrentFile.lastModified();
+        synchronized (this) {
+            CachedTorrent entry = entries.get(key);
+            if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+                ++hitCount;
+                return entry.torrent;
+            }
+            ++missCount;
+        }
+        Torrent torrent = Torrent.load(torrentFile);
+        synchronized (this) {
+            entries.put(key, new CachedTorrent(length, lastModified, torrent));
+        }
+        return torrent;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
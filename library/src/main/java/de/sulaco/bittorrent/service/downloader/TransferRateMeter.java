@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import java.util.ArrayDeque;
+
+/**
+ * Measures a transfer rate over a sliding time window.
+ */
+class TransferRateMeter {
+
+    private static class Sample {
+        final long nanos;
+        final long bytes;
+
+        Sample(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long windowNanos;
+    private final ArrayDeque<Sample> samples = new ArrayDeque<>();
+
+    public TransferRateMeter(long windowNanos) {
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * Adds the total number of bytes transferred until the given time.
+     */
+    public void addSample(long nanos, long totalBytes) {
+        samples.addLast(new Sample(nanos, totalBytes));
+        // keep one sample at or beyond the window start as reference
+        while (samples.size() > 2) {
+            Sample first = samples.removeFirst();
+            if (nanos - samples.peekFirst().nanos < windowNanos) {
+                samples.addFirst(first);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the rate in bytes per second.
+     */
+    public long getRate() {
+        if (samples.size() < 2) {
+            return 0;
+        }
+        Sample first = samples.peekFirst();
+        Sample last = samples.peekLast();
+        long elapsedNanos = last.nanos - first.nanos;
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return (last.bytes - first.bytes) * 1000000000L / elapsedNanos;
+    }
+}
@@ -26,108 +26,239 @@ import java.util.Observer;
 import de.sulaco.bittorrent.service.intent.DownloadState;
 
 class TtorrentClientObserver {
-    private long nameTimeOfLastActivity;
     private boolean isEnabled = true;
+    private int stallState = StallDetector.NOT_STALLED;
+    private boolean isPaused = false;
+    private Client activeClient;
+    private StallTracker.Watch activeWatch;
 
     public synchronized void setEnabled(boolean enabled) {
         isEnabled = enabled;
         notifyAll();
     }
 
+    public synchronized boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Pauses the active client and the clients to come. The stall checks are suspended
+     * while paused. Returns right away, the download thread pauses the torrent, which
+     * waits for its lock and writes the cached pieces.
+     */
+    public void setPaused(boolean paused) {
+        StallTracker.Watch watch;
+        synchronized (this) {
+            isPaused = paused;
+            watch = activeWatch;
+            notifyAll();
+        }
+        applyPause(null, watch, paused);
+    }
+
+    /**
+     * Starts the stall checks of a download before it is prepared, so that the deadline
+     * covers the whole download and a preparation that hangs is given up. The checks
+     * run until {@link #endWatch()}.
+     */
+    public void startWatch(StallDetector stallDetector) {
+        StallTracker.Watch watch = StallTracker.getInstance().watch(stallDetector, createStallListener());
+        boolean paused;
+        synchronized (this) {
+            stallState = StallDetector.NOT_STALLED;
+            activeWatch = watch;
+            paused = isPaused;
+        }
+        if (paused) {
+            applyPause(null, watch, true);
+        }
+    }
+
+    public void endWatch() {
+        StallTracker.Watch watch;
+        synchronized (this) {
+            watch = activeWatch;
+            activeWatch = null;
+        }
+        if (watch != null) {
+            watch.cancel();
+        }
+    }
+
+    /**
+     * Returns a signal for the preparation of the download that is cancelled once the
+     * observer is disabled or the download stalled. Each query counts as activity.
+     */
+    public PieceVerifier.CancellationSignal createPreparationSignal() {
+        return new PieceVerifier.CancellationSignal() {
+            @Override
+            public boolean isCancelled() {
+                StallTracker.Watch watch;
+                synchronized (TtorrentClientObserver.this) {
+                    if (!isEnabled || stallState != StallDetector.NOT_STALLED) {
+                        return true;
+                    }
+                    watch = activeWatch;
+                }
+                if (watch != null) {
+                    watch.onRestart(System.nanoTime(), 0);
+                }
+                return false;
+            }
+        };
+    }
+
     /**
-     * Returns DownloadState.ABORTED if ClientObserver is disabled
+     * Returns the state of a download whose preparation was cancelled.
      */
-    public synchronized int waitForCompletionOrTimeout(Client client, long timeoutMillis) {
-        boolean timedOut = false;
-        nameTimeOfLastActivity = System.nanoTime();
-        client.addObserver(createActivityObserver());
+    public synchronized int getCancellationState() {
+        return stallState != StallDetector.NOT_STALLED ? stallState : DownloadState.ABORTED;
+    }
+
+    /**
+     * Returns DownloadState.ABORTED if ClientObserver is disabled. The watch has to be
+     * started.
+     */
+    public int waitForCompletionOrTimeout(Client client) {
+        StallTracker.Watch watch;
+        boolean paused;
+        synchronized (this) {
+            activeClient = client;
+            watch = activeWatch;
+            paused = isPaused;
+        }
+        if (paused) {
+            applyPause(client, watch, true);
+        }
+        Observer activityObserver = createActivityObserver(watch);
+        client.addObserver(activityObserver);
         try {
-            while (isEnabled && !isClientDone(client) && !timedOut) {
-                timedOut = waitForNextActivity(timeoutMillis);
+            return waitForCompletionOrStall(client, paused);
+        } finally {
+            client.deleteObserver(activityObserver);
+            synchronized (this) {
+                activeClient = null;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         }
-        return determineDownloadState(client, timedOut);
     }
 
-    private int determineDownloadState(Client client, boolean timedOut) {
-        Client.ClientState clientState = client.getState();
-        if (clientState == Client.ClientState.DONE) {
-            return DownloadState.COMPLETED;
-        } else if (clientState == Client.ClientState.ERROR) {
-            return DownloadState.ERROR;
-        } else if (timedOut) {
-            return DownloadState.TIMED_OUT;
+    /**
+     * Called without holding the monitor, ttorrent notifies the observers while it
+     * holds the lock of the torrent. Client and watch may be null.
+     */
+    private static void applyPause(Client client, StallTracker.Watch watch, boolean paused) {
+        if (watch != null) {
+            watch.setPaused(paused);
+        }
+        if (client == null || !(client.getTorrent() instanceof ResumableSharedTorrent)) {
+            return;
+        }
+        ResumableSharedTorrent sharedTorrent = (ResumableSharedTorrent) client.getTorrent();
+        if (paused) {
+            sharedTorrent.pause(client.getPeers());
         } else {
-            return DownloadState.ABORTED;
+            sharedTorrent.resume();
         }
     }
 
-    private boolean waitForNextActivity(long timeoutMillis) throws InterruptedException {
-        if (timeoutMillis == 0) {
-            waitForeverForNextActivity();
-            return false;
-        } else {
-            return waitTillTimeoutForNextActivity(timeoutMillis);
+    /**
+     * Applies pause changes to the torrent of the client while waiting.
+     */
+    private int waitForCompletionOrStall(Client client, boolean paused) {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (isEnabled
+                            && !isClientDone(client)
+                            && stallState == StallDetector.NOT_STALLED
+                            && isPaused == paused) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return determineDownloadState(client);
+                }
+                if (isPaused == paused) {
+                    return determineDownloadState(client);
+                }
+                paused = isPaused;
+            }
+            applyPause(client, null, paused);
         }
     }
 
-    private boolean waitTillTimeoutForNextActivity(long timeoutMillis) throws InterruptedException {
-        long millisTillTimeout = getMillisUntilTimeout(timeoutMillis);
-        if (millisTillTimeout > 0) {
-            wait(millisTillTimeout);
-            return false;
+    private int determineDownloadState(Client client) {
+        Client.ClientState clientState = client.getState();
+        if (clientState == Client.ClientState.DONE || isSelectionComplete(client)) {
+            return DownloadState.COMPLETED;
+        } else if (clientState == Client.ClientState.ERROR) {
+            return DownloadState.ERROR;
+        } else if (stallState != StallDetector.NOT_STALLED) {
+            return stallState;
         } else {
-            // timeout reached
-            return true;
+            return DownloadState.ABORTED;
         }
     }
 
-    private void waitForeverForNextActivity() throws InterruptedException {
-        wait();
-    }
-
     boolean isClientDone(Client client) {
         Client.ClientState state = client.getState();
-        return state == Client.ClientState.DONE || state == Client.ClientState.ERROR;
+        return state == Client.ClientState.DONE
+                || state == Client.ClientState.ERROR
+                || isSelectionComplete(client);
     }
 
-    @NonNull
-    private Observer createActivityObserver() {
-        return new Observer() {
-            private float lastCompletion = -1.0f;
+    /**
+     * The client keeps sharing when files are skipped, the download is done once the
+     * selected files are complete.
+     */
+    private static boolean isSelectionComplete(Client client) {
+        return client.getTorrent() instanceof ResumableSharedTorrent
+                && ((ResumableSharedTorrent) client.getTorrent()).isSelectionComplete();
+    }
 
-            private boolean isInactive(Client client, Client.ClientState clientState) {
-                if (clientState != Client.ClientState.SHARING) {
-                    return false;
-                }
-                float completion = client.getTorrent().getCompletion();
-                if (completion > lastCompletion) {
-                    lastCompletion = completion;
-                    return false;
+    @NonNull
+    private StallTracker.StallListener createStallListener() {
+        return new StallTracker.StallListener() {
+            @Override
+            public void onStalled(int downloadState) {
+                synchronized (TtorrentClientObserver.this) {
+                    stallState = downloadState;
+                    TtorrentClientObserver.this.notifyAll();
                 }
-                return true;
             }
+        };
+    }
+
+    /**
+     * Received bytes are the only activity once the client is sharing. Before, each
+     * update restarts the stall clock, so that validation does not count as a stall.
+     * Updates are handed to the watch without locking, only the end of the client
+     * wakes up the waiting thread.
+     */
+    @NonNull
+    private Observer createActivityObserver(final StallTracker.Watch watch) {
+        return new Observer() {
+            private volatile boolean isSharing = false;
 
             @Override
             public void update(Observable observable, Object data) {
-                if (isInactive((Client) observable, (Client.ClientState) data)) {
-                    return;
+                Client client = (Client) observable;
+                Client.ClientState clientState = (Client.ClientState) data;
+                long downloaded = client.getTorrent().getDownloaded();
+                if (clientState == Client.ClientState.SHARING) {
+                    isSharing = true;
+                }
+                if (isSharing) {
+                    watch.onActivity(System.nanoTime(), downloaded);
+                } else {
+                    watch.onRestart(System.nanoTime(), downloaded);
+                }
+                if (isClientDone(client)) {
+                    synchronized (TtorrentClientObserver.this) {
+                        TtorrentClientObserver.this.notifyAll();
+                    }
                 }
-                notifyActivity();
             }
         };
     }
-
-    private synchronized void notifyActivity() {
-        nameTimeOfLastActivity = System.nanoTime();
-        notifyAll();
-    }
-
-    private long getMillisUntilTimeout(long timeoutMillis) {
-        long currentNanoTime = System.nanoTime();
-        long deltaMillis = (currentNanoTime - nameTimeOfLastActivity) / 1000000;
-        return timeoutMillis - deltaMillis;
-    }
-}
\ No newline at end of file
+}
@@ -18,10 +18,13 @@ package de.sulaco.bittorrent.service.downloader;
 
 import com.turn.ttorrent.client.Client;
 import com.turn.ttorrent.client.SharedTorrent;
+import com.turn.ttorrent.client.peer.SharingPeer;
 import com.turn.ttorrent.common.Torrent;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.BitSet;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -29,7 +32,12 @@ import de.sulaco.bittorrent.service.intent.DownloadState;
 
 import static de.sulaco.bittorrent.service.util.RequireNonNull.requireNonNull;
 
-public class TtorrentDownloader implements Downloader {
+public class TtorrentDownloader implements PausableDownloader, IdentifiedDownloader {
+
+    public static final int PREALLOCATION_SPARSE = 0;
+    public static final int PREALLOCATION_FULL = 1;
+
+    public static final long DEFAULT_WRITE_CACHE_SIZE = 4L * 1024 * 1024;
 
     private final static DownloadListener EMPTY_LISTENER = new DownloadListener() {
         @Override
@@ -55,17 +63,103 @@ public class TtorrentDownloader implements Downloader {
         }
     }
 
+    private final static long CHECKPOINT_INTERVAL_NANOS = 30L * 1000 * 1000 * 1000;
+
+    private final static long RATE_WINDOW_NANOS = 10L * 1000 * 1000 * 1000;
+
+    private final static PieceVerifier PIECE_VERIFIER =
+            new PieceVerifier(Runtime.getRuntime().availableProcessors());
+
+    private final static long STREAMING_WINDOW_BYTES = 16L * 1024 * 1024;
+
+    private final static int TORRENT_CACHE_CAPACITY = 32;
+    private final static TorrentCache TORRENT_CACHE = new TorrentCache(TORRENT_CACHE_CAPACITY);
+
     private DownloadListener downloadListener = EMPTY_LISTENER;
     private final TtorrentClientObserver ttorrentClientObserver = new TtorrentClientObserver();
-    private long timeoutMillis = 0;
+    // settings are not guarded by the downloader lock, which download() holds until
+    // the download ends
+    private volatile long timeoutMillis = 0;
+    private volatile int preallocationMode = PREALLOCATION_SPARSE;
+    private volatile boolean isMemoryMappedStorageEnabled = false;
+    private volatile long writeCacheSize = DEFAULT_WRITE_CACHE_SIZE;
+    private volatile StallPolicy stallPolicy;
+    private ResumeStore resumeStore;
 
     public TtorrentDownloader() {
     }
 
-    public synchronized void setTimeout(long millis) {
+    static TorrentCache getTorrentCache() {
+        return TORRENT_CACHE;
+    }
+
+    /**
+     * Returns the hex encoded info hash of the torrent file or null if it cannot be
+     * loaded. The parsed torrent stays cached for the download.
+     */
+    public static String getInfoHash(String torrentFile) {
+        File file = new File(torrentFile);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return TORRENT_CACHE.load(file).getHexInfoHash();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public void setTimeout(long millis) {
         timeoutMillis = millis;
     }
 
+    /**
+     * Sets the policy that decides when a download is given up. Replaces the timeout,
+     * pass null to fall back to it.
+     */
+    public void setStallPolicy(StallPolicy stallPolicy) {
+        this.stallPolicy = stallPolicy;
+    }
+
+    /**
+     * Sets how the files are reserved before a download starts. Both modes check the
+     * free space of the destination first. {@link #PREALLOCATION_SPARSE} sets the files
+     * to their final length and lets the file system allocate blocks as pieces arrive,
+     * {@link #PREALLOCATION_FULL} writes zeros to allocate all blocks up front.
+     */
+    public void setPreallocationMode(int preallocationMode) {
+        this.preallocationMode = preallocationMode;
+    }
+
+    /**
+     * Lets downloads read and write their files through memory mappings, see
+     * {@link MappedStorage}. Takes effect with {@link #PREALLOCATION_FULL} and without
+     * skipped files only, writing to mapped pages of a sparse file kills the process if
+     * the volume is full.
+     * Downloads fall back to file channels if the files cannot be mapped.
+     */
+    public void setMemoryMappedStorageEnabled(boolean enabled) {
+        isMemoryMappedStorageEnabled = enabled;
+    }
+
+    /**
+     * Sets the memory budget in bytes of the {@link WriteBackCache} of each download.
+     * Pass 0 to write pieces right away. Downloads that are streamed or that use memory
+     * mapped storage do not cache pieces.
+     */
+    public void setWriteCacheSize(long bytes) {
+        writeCacheSize = bytes;
+    }
+
+    /**
+     * Enables fast resume. The verified pieces of each torrent are stored in the
+     * given directory so that a restarted download skips the hash check of
+     * unchanged content. Pass null to disable fast resume.
+     */
+    public synchronized void setResumeDirectory(File directory) {
+        resumeStore = directory != null ? new ResumeStore(directory) : null;
+    }
+
     @Override
     public synchronized void setDownloadListener(DownloadListener downloadListener) {
         this.downloadListener = downloadListener != null ? downloadListener : EMPTY_LISTENER;
@@ -76,29 +170,185 @@ public class TtorrentDownloader implements Downloader {
         ttorrentClientObserver.setEnabled(enabled);
     }
 
+    /**
+     * Pauses the running download and the downloads to come until resumed.
+     */
+    @Override
+    public void setPaused(boolean paused) {
+        ttorrentClientObserver.setPaused(paused);
+    }
+
+    /**
+     * Uses the torrent file as download id.
+     */
+    @Override
+    public void download(String torrentFile, String destinationDirectory) {
+        download(torrentFile, torrentFile, destinationDirectory);
+    }
+
     @Override
     public synchronized void download(
-            final String torrentFile,
-            final String destinationDirectory) {
+            String downloadId,
+            String torrentFile,
+            String destinationDirectory) {
         requireNonNull(torrentFile, "torrentFile must not be null");
         requireNonNull(destinationDirectory, "destinationDirectory must not be null");
+        requireNonNull(downloadId, "downloadId must not be null");
+        DownloadProgressListener listener = createDownloadListener(downloadId);
         try {
-            downloadListener.onDownloadStart(torrentFile);
-            int downloadState = tryDownload(torrentFile, destinationDirectory);
-            downloadListener.onDownloadEnd(torrentFile, downloadState);
+            listener.onDownloadStart(torrentFile);
+            int downloadState = watchDownload(listener, downloadId, torrentFile, destinationDirectory);
+            listener.onDownloadEnd(torrentFile, downloadState);
         }
         catch (DownloadException e) {
-            downloadListener.onDownloadEnd(torrentFile, e.getReason());
+            listener.onDownloadEnd(torrentFile, e.getReason());
         }
     }
 
-    private int tryDownload(String torrentFile, String destinationDirectory) {
+    /**
+     * Returns a listener for the events of one download that adds its id for an
+     * {@link IdentifiedDownloadListener}.
+     */
+    private DownloadProgressListener createDownloadListener(final String downloadId) {
+        final DownloadListener listener = downloadListener;
+        if (listener instanceof IdentifiedDownloadListener) {
+            final IdentifiedDownloadListener identifiedListener =
+                    (IdentifiedDownloadListener) listener;
+            return new DownloadProgressListener() {
+                @Override
+                public void onDownloadStart(String torrentFile) {
+                    identifiedListener.onDownloadStart(downloadId, torrentFile);
+                }
+
+                @Override
+                public void onDownloadProgress(String torrentFile, DownloadProgress downloadProgress) {
+                    identifiedListener.onDownloadProgress(downloadId, torrentFile, downloadProgress);
+                }
+
+                @Override
+                public void onDownloadProgress(String torrentFile, int progress) {
+                    identifiedListener.onDownloadProgress(downloadId, torrentFile, progress);
+                }
+
+                @Override
+                public void onDownloadEnd(String torrentFile, int downloadState) {
+                    identifiedListener.onDownloadEnd(downloadId, torrentFile, downloadState);
+                }
+            };
+        }
+        return new DownloadProgressListener() {
+            @Override
+            public void onDownloadStart(String torrentFile) {
+                listener.onDownloadStart(torrentFile);
+            }
+
+            @Override
+            public void onDownloadProgress(String torrentFile, DownloadProgress downloadProgress) {
+                if (listener instanceof DownloadProgressListener) {
+                    ((DownloadProgressListener) listener).onDownloadProgress(torrentFile, downloadProgress);
+                }
+            }
+
+            @Override
+            public void onDownloadProgress(String torrentFile, int progress) {
+                listener.onDownloadProgress(torrentFile, progress);
+            }
+
+            @Override
+            public void onDownloadEnd(String torrentFile, int downloadState) {
+                listener.onDownloadEnd(torrentFile, downloadState);
+            }
+        };
+    }
+
+    /**
+     * The stall checks start before the download is prepared.
+     */
+    private int watchDownload(
+            DownloadProgressListener listener,
+            String downloadId,
+            String torrentFile,
+            String destinationDirectory) {
+        ttorrentClientObserver.startWatch(createStallDetector());
+        try {
+            return tryDownload(listener, downloadId, torrentFile, destinationDirectory);
+        } finally {
+            ttorrentClientObserver.endWatch();
+        }
+    }
+
+    private int tryDownload(
+            DownloadProgressListener listener,
+            String downloadId,
+            String torrentFile,
+            String destinationDirectory) {
         File destinationDir = new File(destinationDirectory);
         validateDestination(destinationDir);
         Torrent torrent = loadTorrent(torrentFile);
-        Observer clientObserver = createClientObserver(torrentFile);
-        Client client = createClient(torrent, destinationDir, clientObserver);
-        return downloadContent(client);
+        int[] filePriorities = FileSelector.getInstance().getFilePriorities(downloadId);
+        boolean hasContent = ResumableSharedTorrent.hasContent(torrent, destinationDir);
+        // the settings may change while the download runs
+        boolean isFullyPreallocated = preallocationMode == PREALLOCATION_FULL;
+        preallocate(torrent, destinationDir, filePriorities, isFullyPreallocated);
+        StreamingRequestStrategy streamingStrategy =
+                StreamServer.getInstance().isStreaming(downloadId)
+                        ? new StreamingRequestStrategy(STREAMING_WINDOW_BYTES)
+                        : null;
+        ResumableSharedTorrent sharedTorrent = createSharedTorrent(
+                torrent,
+                destinationDir,
+                streamingStrategy,
+                filePriorities,
+                hasContent,
+                isFullyPreallocated);
+        try {
+            return shareTorrent(sharedTorrent, listener, downloadId, torrentFile, streamingStrategy);
+        } finally {
+            // ttorrent closes the torrent only if its client ran
+            sharedTorrent.close();
+        }
+    }
+
+    private int shareTorrent(
+            ResumableSharedTorrent sharedTorrent,
+            DownloadProgressListener listener,
+            String downloadId,
+            String torrentFile,
+            StreamingRequestStrategy streamingStrategy) {
+        Observer clientObserver = createClientObserver(listener, downloadId, torrentFile);
+        Client client = createClient(sharedTorrent, downloadId, clientObserver);
+        if (resumeStore != null) {
+            client.addObserver(createCheckpointObserver(sharedTorrent));
+        }
+        Stream stream = null;
+        if (streamingStrategy != null) {
+            stream = createStream(sharedTorrent, streamingStrategy);
+            client.addObserver(stream);
+            StreamServer.getInstance().register(stream);
+        }
+        int downloadState = DownloadState.ERROR;
+        BandwidthLimiter.getInstance().register(downloadId, client);
+        PeerConnectionLimiter.getInstance().register(downloadId, client);
+        try {
+            downloadState = downloadContent(client);
+            if (downloadState == DownloadState.COMPLETED) {
+                downloadState = sharedTorrent.hasStorageFailed()
+                        ? DownloadState.ERROR
+                        : finishSelection(sharedTorrent);
+            }
+        } finally {
+            PeerConnectionLimiter.getInstance().unregister(downloadId);
+            BandwidthLimiter.getInstance().unregister(downloadId);
+            if (stream != null) {
+                StreamServer.getInstance().unregister(
+                        stream,
+                        downloadState == DownloadState.COMPLETED);
+            }
+        }
+        if (resumeStore != null) {
+            resumeStore.save(sharedTorrent);
+        }
+        return downloadState;
     }
 
     private void validateDestination(File destination) {
@@ -113,18 +363,100 @@ public class TtorrentDownloader implements Downloader {
         }
     }
 
-    private Observer createClientObserver(final String torrentFile) {
+    /**
+     * Reserves the files of the torrent, see {@link Preallocator}.
+     */
+    private void preallocate(
+            Torrent torrent,
+            File destination,
+            int[] filePriorities,
+            boolean isFull) {
+        boolean isCompleted;
+        try {
+            Preallocator preallocator = new Preallocator(torrent, destination, filePriorities);
+            if (preallocator.getMissingBytes() > destination.getUsableSpace()) {
+                throw new DownloadException(DownloadState.ERROR_INSUFFICIENT_SPACE);
+            }
+            isCompleted = preallocator.preallocate(
+                    isFull,
+                    ttorrentClientObserver.createPreparationSignal());
+        } catch (IOException e) {
+            throw new DownloadException(DownloadState.ERROR);
+        }
+        if (!isCompleted) {
+            throw new DownloadException(ttorrentClientObserver.getCancellationState());
+        }
+    }
+
+    private Observer createClientObserver(
+            final DownloadProgressListener listener,
+            final String downloadId,
+            final String torrentFile) {
         return new Observer() {
             private int progress = 0;
+            private final TransferRateMeter downloadRateMeter =
+                    new TransferRateMeter(RATE_WINDOW_NANOS);
+            private final TransferRateMeter uploadRateMeter =
+                    new TransferRateMeter(RATE_WINDOW_NANOS);
 
             @Override
             public void update(Observable observable, Object data) {
                 Client client = (Client) observable;
-                float completion = client.getTorrent().getCompletion();
+                SharedTorrent sharedTorrent = client.getTorrent();
+                long nanos = System.nanoTime();
+                downloadRateMeter.addSample(nanos, sharedTorrent.getDownloaded());
+                uploadRateMeter.addSample(nanos, sharedTorrent.getUploaded());
+                BandwidthLimiter.getInstance().update();
+                float completion = sharedTorrent.getCompletion();
                 if ((int) completion >= progress + 1) {
                     progress = (int) completion;
-                    downloadListener.onDownloadProgress(torrentFile, progress);
+                    listener.onDownloadProgress(torrentFile, createDownloadProgress(client, progress));
+                    listener.onDownloadProgress(torrentFile, progress);
+                }
+            }
+
+            private DownloadProgress createDownloadProgress(Client client, int progress) {
+                SharedTorrent sharedTorrent = client.getTorrent();
+                int connectedPeers = 0;
+                int seedingPeers = 0;
+                for (SharingPeer peer : client.getPeers()) {
+                    if (peer.isConnected()) {
+                        ++connectedPeers;
+                        if (peer.isSeed()) {
+                            ++seedingPeers;
+                        }
+                    }
                 }
+                long downloadRate = downloadRateMeter.getRate();
+                long left = sharedTorrent.getLeft();
+                WriteBackCache writeCache =
+                        ((ResumableSharedTorrent) sharedTorrent).getWriteCache();
+                DiskIoStage diskIoStage =
+                        ((ResumableSharedTorrent) sharedTorrent).getDiskIoStage();
+                return new DownloadProgress()
+                        .setProgress(progress)
+                        .setTotalBytes(sharedTorrent.getSize())
+                        .setDownloadedBytes(sharedTorrent.getDownloaded())
+                        .setUploadedBytes(sharedTorrent.getUploaded())
+                        .setDownloadRate(downloadRate)
+                        .setUploadRate(uploadRateMeter.getRate())
+                        .setConnectedPeers(connectedPeers)
+                        .setSeedingPeers(seedingPeers)
+                        .setDownloadRateLimit(
+                                BandwidthLimiter.getInstance().getDownloadRateLimit(downloadId))
+                        .setUploadRateLimit(
+                                BandwidthLimiter.getInstance().getUploadRateLimit(downloadId))
+                        .setEtaSeconds(left == 0
+                                ? 0
+                                : downloadRate > 0 ? left / downloadRate : DownloadProgress.UNKNOWN_ETA)
+                        .setDirtyBytes(writeCache != null ? writeCache.getDirtyBytes() : 0)
+                        .setFlushLatencyMillis(
+                                writeCache != null ? writeCache.getFlushLatencyMillis() : 0)
+                        .setDiskQueueDepth(diskIoStage != null ? diskIoStage.getQueueDepth() : 0)
+                        .setDiskLatencyMillis(
+                                diskIoStage != null ? diskIoStage.getLatencyMillis() : 0)
+                        .setBufferPoolUsedBytes(BufferPool.getInstance().getUsedBytes())
+                        .setBufferPoolMisses(BufferPool.getInstance().getMisses());
             }
         };
     }
@@ -135,17 +467,163 @@ public class TtorrentDownloader implements Downloader {
             throw new DownloadException(DownloadState.ERROR_TORRENT_FILE_NOT_FOUND);
         }
         try {
-            return Torrent.load(new File(torrentFile));
+            return TORRENT_CACHE.load(file);
         } catch (Exception e) {
             throw new DownloadException(DownloadState.ERROR_LOADING_TORRENT_FILE);
         }
     }
 
-    private Client createClient(Torrent torrent, File destination, Observer observer) {
+    private Observer createCheckpointObserver(final ResumableSharedTorrent sharedTorrent) {
+        return new Observer() {
+            private long lastCheckpointNanos = System.nanoTime();
+
+            @Override
+            public void update(Observable observable, Object data) {
+                long nanos = System.nanoTime();
+                if (nanos - lastCheckpointNanos >= CHECKPOINT_INTERVAL_NANOS) {
+                    lastCheckpointNanos = nanos;
+                    try {
+                        sharedTorrent.flush();
+                    } catch (IOException e) {
+                        // cached pieces are left out of the checkpoint
+                    }
+                    resumeStore.save(sharedTorrent);
+                }
+            }
+        };
+    }
+
+    private Stream createStream(
+            ResumableSharedTorrent sharedTorrent,
+            StreamingRequestStrategy streamingStrategy) {
+        try {
+            return new Stream(
+                    sharedTorrent.getHexInfoHash(),
+                    sharedTorrent.getTargetFiles(),
+                    sharedTorrent.getContentFileSizes(),
+                    sharedTorrent.getPieceLength(),
+                    streamingStrategy);
+        } catch (IOException e) {
+            throw new DownloadException(DownloadState.ERROR);
+        }
+    }
+
+    /**
+     * The request strategy may be null to request the rarest pieces first, the file
+     * priorities may be null to download all files. Content that existed before the
+     * files were reserved is verified on all cores. Pieces are written on the disk I/O
+     * thread, see {@link DiskIoStage}, unless the download is streamed.
+     */
+    private ResumableSharedTorrent createSharedTorrent(
+            Torrent torrent,
+            File destination,
+            StreamingRequestStrategy streamingStrategy,
+            int[] filePriorities,
+            boolean hasContent,
+            boolean isFullyPreallocated) {
+        BitSet verifiedPieces = resumeStore != null
+                ? resumeStore.load(torrent, destination)
+                : new BitSet();
+        boolean verifyContent = verifiedPieces.isEmpty() && hasContent;
+        ResumableSharedTorrent sharedTorrent;
+        try {
+            sharedTorrent = streamingStrategy != null
+                    ? new ResumableSharedTorrent(torrent, destination, verifiedPieces, streamingStrategy)
+                    : new ResumableSharedTorrent(torrent, destination, verifiedPieces);
+        } catch (Exception e) {
+            throw new DownloadException(DownloadState.ERROR);
+        }
+        boolean isCreated = false;
+        try {
+            setUpStorage(sharedTorrent, streamingStrategy, filePriorities, isFullyPreallocated);
+            if (verifyContent) {
+                verifyContent(sharedTorrent);
+            }
+            isCreated = true;
+        } finally {
+            if (!isCreated) {
+                sharedTorrent.close();
+            }
+        }
+        return sharedTorrent;
+    }
+
+    private void setUpStorage(
+            ResumableSharedTorrent sharedTorrent,
+            StreamingRequestStrategy streamingStrategy,
+            int[] filePriorities,
+            boolean isFullyPreallocated) {
+        try {
+            if (filePriorities != null) {
+                sharedTorrent.setFilePriorities(filePriorities);
+            }
+            // skipped files are not preallocated
+            boolean isMapped = isMemoryMappedStorageEnabled
+                    && isFullyPreallocated
+                    && !FileSelector.hasSkippedFiles(filePriorities)
+                    && sharedTorrent.useMappedStorage();
+            // streams read completed pieces from the files
+            if (streamingStrategy == null) {
+                long cacheSize = writeCacheSize;
+                if (!isMapped && cacheSize > 0) {
+                    sharedTorrent.useWriteCache(cacheSize);
+                }
+                sharedTorrent.useDiskIoStage();
+            }
+        } catch (Exception e) {
+            throw new DownloadException(DownloadState.ERROR);
+        }
+    }
+
+    /**
+     * Hashes existing content on all cores. Its result replaces the hashing of ttorrent,
+     * which would otherwise check every piece once more when the torrent is initialized,
+     * and unlike it can be cancelled.
+     */
+    private void verifyContent(ResumableSharedTorrent sharedTorrent) {
+        BitSet validPieces;
+        try {
+            validPieces = PIECE_VERIFIER.verify(
+                    sharedTorrent,
+                    ttorrentClientObserver.createPreparationSignal());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            validPieces = null;
+        } catch (Exception e) {
+            // ttorrent hashes all pieces itself
+            return;
+        }
+        if (validPieces == null) {
+            throw new DownloadException(ttorrentClientObserver.getCancellationState());
+        }
+        sharedTorrent.setVerifiedContent(validPieces);
+    }
+
+    /**
+     * Moves the selected files to their targets if files were skipped. ttorrent only
+     * does so once all pieces are complete.
+     */
+    private int finishSelection(ResumableSharedTorrent sharedTorrent) {
+        try {
+            sharedTorrent.finishSelection();
+            return DownloadState.COMPLETED;
+        } catch (IOException e) {
+            return DownloadState.ERROR;
+        }
+    }
+
+    private Client createClient(
+            ResumableSharedTorrent sharedTorrent,
+            String downloadId,
+            Observer observer) {
         Client client;
         try {
             InetAddress inetAddress = InetAddress.getLocalHost();
-            client = new Client(inetAddress, new SharedTorrent(torrent, destination));
+            client = new ConnectionLimitedClient(
+                    inetAddress,
+                    sharedTorrent,
+                    downloadId,
+                    PeerConnectionLimiter.getInstance());
         } catch (Exception e) {
             throw new DownloadException(DownloadState.ERROR);
         }
@@ -155,10 +633,20 @@ public class TtorrentDownloader implements Downloader {
 
     private int downloadContent(Client client) {
         client.download();
-        int downloadState = ttorrentClientObserver.waitForCompletionOrTimeout(
-                client,
-                timeoutMillis);
+        int downloadState = ttorrentClientObserver.waitForCompletionOrTimeout(client);
         client.stop();
         return downloadState;
     }
+
+    private StallDetector createStallDetector() {
+        StallPolicy policy = stallPolicy;
+        if (policy != null) {
+            return new StallDetector(policy, System.nanoTime());
+        }
+        // the timeout is a stall window that ends with TIMED_OUT
+        return new StallDetector(
+                new StallPolicy().setStallWindow(timeoutMillis),
+                DownloadState.TIMED_OUT,
+                System.nanoTime());
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Storage that keeps written pieces in memory and writes them to the underlying storage
+ * in batches sorted by offset once their size exceeds the budget. Flash storage handles
+ * a few sequential writes far better than many random ones. Reads of cached content are
+ * served from memory.
+ *
+ * Content that could not be flushed stays cached, see {@link #isDirty(long, long)}.
+ * Cached copies are held in buffers of the {@link BufferPool}.
+ */
+class WriteBackCache implements TorrentByteStorage, Flushable {
+
+    private final TorrentByteStorage storage;
+    private final long maxDirtyBytes;
+    private final TreeMap<Long, ByteBuffer> dirtyBuffers = new TreeMap<>();
+    private long dirtyBytes = 0;
+    private long flushLatencyNanos = 0;
+
+    public WriteBackCache(TorrentByteStorage storage, long maxDirtyBytes) {
+        this.storage = storage;
+        this.maxDirtyBytes = maxDirtyBytes;
+    }
+
+    @Override
+    public long size() {
+        return storage.size();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer buffer, long offset) throws IOException {
+        int length = buffer.remaining();
+        Map.Entry<Long, ByteBuffer> entry = dirtyBuffers.floorEntry(offset);
+        if (entry != null && entry.getKey() + entry.getValue().remaining() >= offset + length) {
+            ByteBuffer cached = entry.getValue().duplicate();
+            cached.position(cached.position() + (int) (offset - entry.getKey()));
+            cached.limit(cached.position() + length);
+            buffer.put(cached);
+            return length;
+        }
+        if (isDirty(offset, length)) {
+            flush();
+        }
+        return storage.read(buffer, offset);
+    }
+
+    /**
+     * Caches a copy of the buffer. Writes that do not fit into the budget at all are
+     * passed through.
+     */
+    @Override
+    public synchronized int write(ByteBuffer buffer, long offset) throws IOException {
+        int length = buffer.remaining();
+        ByteBuffer replaced = dirtyBuffers.get(offset);
+        if (replaced != null && replaced.remaining() == length) {
+            dirtyBuffers.remove(offset);
+            dirtyBytes -= length;
+            BufferPool.getInstance().release(replaced);
+        } else if (isDirty(offset, length)) {
+            flush();
+        }
+        if (dirtyBytes + length > maxDirtyBytes) {
+            flush();
+        }
+        if (length > maxDirtyBytes) {
+            return storage.write(buffer, offset);
+        }
+        ByteBuffer copy = BufferPool.getInstance().acquire(length);
+        copy.put(buffer);
+        copy.flip();
+        dirtyBuffers.put(offset, copy);
+        dirtyBytes += length;
+        return length;
+    }
+
+    /**
+     * Writes all cached content in the order of its offsets. Content that was not
+     * written stays cached if the underlying storage fails.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (dirtyBuffers.isEmpty()) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            Iterator<Map.Entry<Long, ByteBuffer>> iterator = dirtyBuffers.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, ByteBuffer> entry = iterator.next();
+                ByteBuffer buffer = entry.getValue();
+                int length = buffer.remaining();
+                storage.write(buffer.duplicate(), entry.getKey());
+                iterator.remove();
+                dirtyBytes -= length;
+                BufferPool.getInstance().release(buffer);
+            }
+        } finally {
+            flushLatencyNanos = System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * Returns true if content of the range is cached but not written yet.
+     */
+    public synchronized boolean isDirty(long offset, long length) {
+        Map.Entry<Long, ByteBuffer> entry = dirtyBuffers.floorEntry(offset);
+        if (entry != null && entry.getKey() + entry.getValue().remaining() > offset) {
+            return true;
+        }
+        Long nextOffset = dirtyBuffers.higherKey(offset);
+        return nextOffset != null && nextOffset < offset + length;
+    }
+
+    /**
+     * Returns the number of cached bytes that are not written yet.
+     */
+    public synchronized long getDirtyBytes() {
+        return dirtyBytes;
+    }
+
+    /**
+     * Returns the duration of the latest flush in milliseconds.
+     */
+    public synchronized long getFlushLatencyMillis() {
+        return flushLatencyNanos / 1000000;
+    }
+
+    /**
+     * Flushes the cache before the underlying storage is closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Override
+    public synchronized void finish() throws IOException {
+        flush();
+        storage.finish();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return storage.isFinished();
+    }
+}
@@ -23,9 +23,24 @@ import de.sulaco.bittorrent.service.BitTorrentDownloadService;
 
 public class AbortRequest {
 
+    /**
+     * Aborts the running download and all queued downloads.
+     */
     public static Intent createIntent(Context context) {
         Intent intent = new Intent(context, BitTorrentDownloadService.class);
         intent.setAction(BitTorrentIntentConstants.ACTION_ABORT_DOWNLOAD);
         return intent;
     }
+
+    /**
+     * Aborts a single download, no matter whether it is queued or running.
+     */
+    public static Intent createIntent(Context context, String downloadId) {
+        if (downloadId == null) {
+            throw new IllegalStateException("downloadId must not be null");
+        }
+        Intent intent = createIntent(context);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID, downloadId);
+        return intent;
+    }
 }
@@ -23,15 +23,37 @@ public final class BitTorrentIntentConstants {
     public static final String ACTION_ABORT_DOWNLOAD =
             "de.sulaco.android.ttorrent.service.ABORT_DOWNLOAD";
 
+    public static final String ACTION_REMOVE_DOWNLOAD =
+            "de.sulaco.android.ttorrent.service.REMOVE_DOWNLOAD";
+
+    public static final String ACTION_PAUSE_DOWNLOAD =
+            "de.sulaco.android.ttorrent.service.PAUSE_DOWNLOAD";
+
+    public static final String ACTION_RESUME_DOWNLOAD =
+            "de.sulaco.android.ttorrent.service.RESUME_DOWNLOAD";
+
+    public static final String ACTION_CONFIGURE =
+            "de.sulaco.android.ttorrent.service.CONFIGURE";
+
     /** Broadcast intent action sent by the download manager when a download completes. */
     public static final String ACTION_BROADCAST_END = "de.sulaco.android.ttorrent.service.ACTION_BROADCAST_END";
 
     public static final String ACTION_BROADCAST_PROGRESS =
             "de.sulaco.android.ttorrent.service.ACTION_BROADCAST_PROGRESS";
 
+    /** Broadcast intent action that carries the progress of several downloads at once. */
+    public static final String ACTION_BROADCAST_PROGRESS_BATCH =
+            "de.sulaco.android.ttorrent.service.ACTION_BROADCAST_PROGRESS_BATCH";
+
     public static final String EXTRA_TORRENT_FILE =
             "de.sulaco.android.ttorrent.service.TORRENT_FILE";
 
+    public static final String EXTRA_DOWNLOAD_ID =
+            "de.sulaco.android.ttorrent.service.DOWNLOAD_ID";
+
+    public static final String EXTRA_PRIORITY =
+            "de.sulaco.android.ttorrent.service.PRIORITY";
+
     public static final String EXTRA_DESTINATION_DIRECTORY =
             "de.sulaco.android.ttorrent.service.DESTINATION_DIRECTORY";
 
@@ -41,4 +63,121 @@ public final class BitTorrentIntentConstants {
     public static final String EXTRA_DOWNLOAD_PROGRESS =
             "de.sulaco.android.ttorrent.service.DOWNLOAD_PROGRESS";
 
+    public static final String EXTRA_TOTAL_BYTES =
+            "de.sulaco.android.ttorrent.service.TOTAL_BYTES";
+
+    public static final String EXTRA_DOWNLOADED_BYTES =
+            "de.sulaco.android.ttorrent.service.DOWNLOADED_BYTES";
+
+    public static final String EXTRA_UPLOADED_BYTES =
+            "de.sulaco.android.ttorrent.service.UPLOADED_BYTES";
+
+    /** Download rate in bytes per second. */
+    public static final String EXTRA_DOWNLOAD_RATE =
+            "de.sulaco.android.ttorrent.service.DOWNLOAD_RATE";
+
+    /** Upload rate in bytes per second. */
+    public static final String EXTRA_UPLOAD_RATE =
+            "de.sulaco.android.ttorrent.service.UPLOAD_RATE";
+
+    public static final String EXTRA_CONNECTED_PEERS =
+            "de.sulaco.android.ttorrent.service.CONNECTED_PEERS";
+
+    public static final String EXTRA_SEEDING_PEERS =
+            "de.sulaco.android.ttorrent.service.SEEDING_PEERS";
+
+    public static final String EXTRA_ETA_SECONDS =
+            "de.sulaco.android.ttorrent.service.ETA_SECONDS";
+
+    public static final String EXTRA_DOWNLOAD_RATE_LIMIT =
+            "de.sulaco.android.ttorrent.service.DOWNLOAD_RATE_LIMIT";
+
+    public static final String EXTRA_UPLOAD_RATE_LIMIT =
+            "de.sulaco.android.ttorrent.service.UPLOAD_RATE_LIMIT";
+
+    /** Received bytes that are cached but not written to storage yet. */
+    public static final String EXTRA_DIRTY_BYTES =
+            "de.sulaco.android.ttorrent.service.DIRTY_BYTES";
+
+    /** Duration of the latest write of cached pieces in milliseconds. */
+    public static final String EXTRA_FLUSH_LATENCY =
+            "de.sulaco.android.ttorrent.service.FLUSH_LATENCY";
+
+    /** Received pieces that wait for the disk I/O thread or are being written. */
+    public static final String EXTRA_DISK_QUEUE_DEPTH =
+            "de.sulaco.android.ttorrent.service.DISK_QUEUE_DEPTH";
+
+    /** Time in milliseconds the latest piece took from being queued until written. */
+    public static final String EXTRA_DISK_LATENCY =
+            "de.sulaco.android.ttorrent.service.DISK_LATENCY";
+
+    /** Bytes of pooled buffers in use by all downloads. */
+    public static final String EXTRA_BUFFER_POOL_USED_BYTES =
+            "de.sulaco.android.ttorrent.service.BUFFER_POOL_USED_BYTES";
+
+    /** Buffer requests that the pool could not serve with a free buffer. */
+    public static final String EXTRA_BUFFER_POOL_MISSES =
+            "de.sulaco.android.ttorrent.service.BUFFER_POOL_MISSES";
+
+    public static final String EXTRA_MAX_DOWNLOAD_RATE =
+            "de.sulaco.android.ttorrent.service.MAX_DOWNLOAD_RATE";
+
+    public static final String EXTRA_MAX_UPLOAD_RATE =
+            "de.sulaco.android.ttorrent.service.MAX_UPLOAD_RATE";
+
+    /** Bundles with the progress details of a batch broadcast. */
+    public static final String EXTRA_DOWNLOAD_PROGRESS_DETAILS =
+            "de.sulaco.android.ttorrent.service.DOWNLOAD_PROGRESS_DETAILS";
+
+    public static final String EXTRA_TORRENT_FILES =
+            "de.sulaco.android.ttorrent.service.TORRENT_FILES";
+
+    public static final String EXTRA_DOWNLOAD_PROGRESSES =
+            "de.sulaco.android.ttorrent.service.DOWNLOAD_PROGRESSES";
+
+    public static final String EXTRA_MAX_ACTIVE_DOWNLOADS =
+            "de.sulaco.android.ttorrent.service.MAX_ACTIVE_DOWNLOADS";
+
+    public static final String EXTRA_PROGRESS_INTERVAL =
+            "de.sulaco.android.ttorrent.service.PROGRESS_INTERVAL";
+
+    public static final String EXTRA_MIN_PROGRESS_DELTA =
+            "de.sulaco.android.ttorrent.service.MIN_PROGRESS_DELTA";
+
+    public static final String EXTRA_BROADCAST_ENABLED =
+            "de.sulaco.android.ttorrent.service.BROADCAST_ENABLED";
+
+    public static final String EXTRA_PREEMPTION_ENABLED =
+            "de.sulaco.android.ttorrent.service.PREEMPTION_ENABLED";
+
+    public static final String EXTRA_STALL_WINDOW =
+            "de.sulaco.android.ttorrent.service.STALL_WINDOW";
+
+    public static final String EXTRA_MIN_THROUGHPUT =
+            "de.sulaco.android.ttorrent.service.MIN_THROUGHPUT";
+
+    public static final String EXTRA_GRACE_PERIOD =
+            "de.sulaco.android.ttorrent.service.GRACE_PERIOD";
+
+    public static final String EXTRA_DEADLINE =
+            "de.sulaco.android.ttorrent.service.DEADLINE";
+
+    public static final String EXTRA_MAX_PEER_CONNECTIONS =
+            "de.sulaco.android.ttorrent.service.MAX_PEER_CONNECTIONS";
+
+    public static final String EXTRA_STREAMING =
+            "de.sulaco.android.ttorrent.service.STREAMING";
+
+    public static final String EXTRA_FILE_PRIORITIES =
+            "de.sulaco.android.ttorrent.service.FILE_PRIORITIES";
+
+    public static final String EXTRA_PREALLOCATION_MODE =
+            "de.sulaco.android.ttorrent.service.PREALLOCATION_MODE";
+
+    public static final String EXTRA_MEMORY_MAPPED_STORAGE_ENABLED =
+            "de.sulaco.android.ttorrent.service.MEMORY_MAPPED_STORAGE_ENABLED";
+
+    public static final String EXTRA_WRITE_CACHE_SIZE =
+            "de.sulaco.android.ttorrent.service.WRITE_CACHE_SIZE";
+
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.intent;
+
+import android.content.Context;
+import android.content.Intent;
+
+import de.sulaco.bittorrent.service.BitTorrentDownloadService;
+import de.sulaco.bittorrent.service.downloader.TtorrentDownloader;
+
+/**
+ * Changes the settings of {@link BitTorrentDownloadService}. Settings stay in effect
+ * for the lifetime of the application process. Each request replaces all settings,
+ * settings that are not set fall back to their defaults.
+ */
+public class ConfigurationRequest {
+    public static final int PREALLOCATION_SPARSE = TtorrentDownloader.PREALLOCATION_SPARSE;
+    public static final int PREALLOCATION_FULL = TtorrentDownloader.PREALLOCATION_FULL;
+
+    private int maxActiveDownloads = 1;
+    private long progressIntervalMillis = 0;
+    private int minProgressDelta = 1;
+    private boolean isBroadcastEnabled = true;
+    private boolean isPreemptionEnabled = false;
+    private long maxDownloadRate = 0;
+    private long maxUploadRate = 0;
+    private long stallWindowMillis = 0;
+    private long minThroughput = 0;
+    private long gracePeriodMillis = 0;
+    private long deadlineMillis = 0;
+    private int maxPeerConnections = 0;
+    private int preallocationMode = PREALLOCATION_SPARSE;
+    private boolean isMemoryMappedStorageEnabled = false;
+    private long writeCacheSize = TtorrentDownloader.DEFAULT_WRITE_CACHE_SIZE;
+
+    public ConfigurationRequest() {
+    }
+
+    /**
+     * Sets the number of torrents that are downloaded at the same time. Further download
+     * requests wait in a backlog ordered by priority. The default of 1 downloads one
+     * torrent after the other.
+     */
+    public ConfigurationRequest setMaxActiveDownloads(int maxActiveDownloads) {
+        this.maxActiveDownloads = maxActiveDownloads;
+        return this;
+    }
+
+    /**
+     * Sets the minimum time between two progress broadcasts. Progress updates within
+     * the interval are coalesced and the updates of all downloads are sent as a single
+     * {@link BitTorrentIntentConstants#ACTION_BROADCAST_PROGRESS_BATCH} broadcast.
+     * The default of 0 broadcasts each update on its own as soon as it occurs.
+     */
+    public ConfigurationRequest setProgressInterval(long millis) {
+        this.progressIntervalMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sets the minimum progress change in percent that is broadcast. The final
+     * progress of a download is always broadcast before its end. Default is 1.
+     */
+    public ConfigurationRequest setMinProgressDelta(int percent) {
+        this.minProgressDelta = percent;
+        return this;
+    }
+
+    /**
+     * Enables the local broadcasts of download events. Applications that receive the
+     * events through {@link de.sulaco.bittorrent.service.DownloadEventBus} only may
+     * disable them. Default is true.
+     */
+    public ConfigurationRequest setBroadcastEnabled(boolean enabled) {
+        this.isBroadcastEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Lets a download request with a higher priority pause the running download with
+     * the lowest priority if all download slots are in use. The paused download is
+     * queued again and resumes from its verified pieces. Default is false.
+     */
+    public ConfigurationRequest setPreemptionEnabled(boolean enabled) {
+        this.isPreemptionEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Limits the total download rate of all downloads in bytes per second. Bandwidth
+     * that a download with a lower limit of its own leaves unused is shared by the
+     * others. Takes effect on running downloads. Default is 0, unlimited.
+     */
+    public ConfigurationRequest setMaxDownloadRate(long bytesPerSecond) {
+        this.maxDownloadRate = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Limits the total upload rate of all downloads in bytes per second.
+     * Default is 0, unlimited.
+     */
+    public ConfigurationRequest setMaxUploadRate(long bytesPerSecond) {
+        this.maxUploadRate = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the sliding window over which the received bytes of a download are counted.
+     * A download that receives nothing within the window ends with
+     * {@link DownloadState#STALLED}. Default is 0, downloads never stall.
+     */
+    public ConfigurationRequest setStallWindow(long millis) {
+        this.stallWindowMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sets the minimum average throughput in bytes per second over the stall window.
+     * A slower download ends with {@link DownloadState#THROUGHPUT_TOO_LOW}.
+     * Default is 0, no minimum.
+     */
+    public ConfigurationRequest setMinThroughput(long bytesPerSecond) {
+        this.minThroughput = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the time a download has to find peers before the stall window is applied.
+     * A download that receives nothing within the grace period ends with
+     * {@link DownloadState#NO_PEERS}. Default is 0, no grace period.
+     */
+    public ConfigurationRequest setGracePeriod(long millis) {
+        this.gracePeriodMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sets the maximum duration of a download regardless of its progress. A download
+     * that takes longer ends with {@link DownloadState#DEADLINE_EXCEEDED}.
+     * Default is 0, no deadline.
+     */
+    public ConfigurationRequest setDeadline(long millis) {
+        this.deadlineMillis = millis;
+        return this;
+    }
+
+    /**
+     * Limits the number of connected peers of all downloads together. Each peer
+     * connection needs threads of its own. Default is 0, unlimited.
+     */
+    public ConfigurationRequest setMaxPeerConnections(int maxPeerConnections) {
+        this.maxPeerConnections = maxPeerConnections;
+        return this;
+    }
+
+    /**
+     * Sets how the files of a download are reserved before it starts. A download ends
+     * with {@link DownloadState#ERROR_INSUFFICIENT_SPACE} right away if its files do
+     * not fit into the free space of the destination. {@link #PREALLOCATION_SPARSE}
+     * sets the files to their final length, {@link #PREALLOCATION_FULL} writes them
+     * with zeros so that flash storage is not fragmented by pieces arriving in random
+     * order. Default is {@link #PREALLOCATION_SPARSE}.
+     */
+    public ConfigurationRequest setPreallocationMode(int preallocationMode) {
+        this.preallocationMode = preallocationMode;
+        return this;
+    }
+
+    /**
+     * Lets downloads write and verify their files through memory mappings instead of
+     * file channels. Takes effect for downloads with {@link #PREALLOCATION_FULL} and
+     * without skipped files. Downloads fall back to file channels if their files cannot
+     * be mapped. Default is false.
+     */
+    public ConfigurationRequest setMemoryMappedStorageEnabled(boolean enabled) {
+        this.isMemoryMappedStorageEnabled = enabled;
+        return this;
+    }
+
+    /**
+     * Sets the memory in bytes that each download may use to cache received pieces.
+     * Cached pieces are written in batches sorted by offset, which spares flash storage
+     * many small random writes. They are written at the latest when the download is
+     * paused or ends. Downloads that are streamed or use memory mapped storage write
+     * pieces right away. Pass 0 to disable the cache. Default is 4 MB.
+     */
+    public ConfigurationRequest setWriteCacheSize(long bytes) {
+        this.writeCacheSize = bytes;
+        return this;
+    }
+
+    public Intent createIntent(Context context) {
+        if (maxActiveDownloads < 1) {
+            throw new IllegalStateException("maxActiveDownloads must be at least 1");
+        }
+        if (progressIntervalMillis < 0) {
+            throw new IllegalStateException("progressInterval must not be negative");
+        }
+        if (minProgressDelta < 1 || minProgressDelta > 100) {
+            throw new IllegalStateException("minProgressDelta out of range");
+        }
+        if (maxDownloadRate < 0 || maxUploadRate < 0) {
+            throw new IllegalStateException("rate limits must not be negative");
+        }
+        if (stallWindowMillis < 0 || minThroughput < 0 || gracePeriodMillis < 0 || deadlineMillis < 0) {
+            throw new IllegalStateException("stall settings must not be negative");
+        }
+        if (maxPeerConnections < 0) {
+            throw new IllegalStateException("maxPeerConnections must not be negative");
+        }
+        if (preallocationMode != PREALLOCATION_SPARSE && preallocationMode != PREALLOCATION_FULL) {
+            throw new IllegalStateException("invalid preallocationMode");
+        }
+        if (writeCacheSize < 0) {
+            throw new IllegalStateException("writeCacheSize must not be negative");
+        }
+        Intent intent = new Intent(context, BitTorrentDownloadService.class);
+        intent.setAction(BitTorrentIntentConstants.ACTION_CONFIGURE);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MAX_ACTIVE_DOWNLOADS, maxActiveDownloads);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_PROGRESS_INTERVAL, progressIntervalMillis);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MIN_PROGRESS_DELTA, minProgressDelta);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_BROADCAST_ENABLED, isBroadcastEnabled);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_PREEMPTION_ENABLED, isPreemptionEnabled);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MAX_DOWNLOAD_RATE, maxDownloadRate);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MAX_UPLOAD_RATE, maxUploadRate);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_STALL_WINDOW, stallWindowMillis);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MIN_THROUGHPUT, minThroughput);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_GRACE_PERIOD, gracePeriodMillis);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_DEADLINE, deadlineMillis);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MAX_PEER_CONNECTIONS, maxPeerConnections);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_PREALLOCATION_MODE, preallocationMode);
+        intent.putExtra(
+                BitTorrentIntentConstants.EXTRA_MEMORY_MAPPED_STORAGE_ENABLED,
+                isMemoryMappedStorageEnabled);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_WRITE_CACHE_SIZE, writeCacheSize);
+        return intent;
+    }
+}
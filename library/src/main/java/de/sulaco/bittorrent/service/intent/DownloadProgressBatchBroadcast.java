@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.intent;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+
+/**
+ * Progress of several downloads that is broadcast at once.
+ */
+public class DownloadProgressBatchBroadcast {
+
+    private final List<String> torrentFiles = new ArrayList<>();
+    private final List<Integer> progresses = new ArrayList<>();
+    private final List<DownloadProgress> details = new ArrayList<>();
+
+    public DownloadProgressBatchBroadcast() {
+    }
+
+    public DownloadProgressBatchBroadcast addProgress(String torrentFile, int progress) {
+        return addProgress(torrentFile, progress, null);
+    }
+
+    /**
+     * Adds the progress of a download. The details are optional.
+     */
+    public DownloadProgressBatchBroadcast addProgress(
+            String torrentFile,
+            int progress,
+            DownloadProgress downloadProgress) {
+        torrentFiles.add(torrentFile);
+        progresses.add(progress);
+        details.add(downloadProgress);
+        return this;
+    }
+
+    /**
+     * Returns the details of the i-th download in a batch broadcast or null if
+     * the download has none.
+     */
+    public static DownloadProgress getDetails(Intent intent, int i) {
+        Parcelable[] bundles = intent.getParcelableArrayExtra(
+                BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESS_DETAILS);
+        int[] progresses = intent.getIntArrayExtra(
+                BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESSES);
+        if (bundles == null || progresses == null || i >= bundles.length || i >= progresses.length) {
+            return null;
+        }
+        return DownloadProgressBroadcast.readDetailsBundle((Bundle) bundles[i], progresses[i]);
+    }
+
+    public boolean isEmpty() {
+        return torrentFiles.isEmpty();
+    }
+
+    public Intent createIntent() {
+        if (torrentFiles.isEmpty()) {
+            throw new IllegalStateException("batch must not be empty");
+        }
+        int[] progressArray = new int[progresses.size()];
+        Bundle[] detailsArray = new Bundle[details.size()];
+        for (int i = 0; i < progressArray.length; ++i) {
+            if (torrentFiles.get(i) == null) {
+                throw new IllegalStateException("torrentFile must not be null");
+            }
+            progressArray[i] = progresses.get(i);
+            if (progressArray[i] < 0 || progressArray[i] > 100) {
+                throw new IllegalStateException("progress out of range");
+            }
+            detailsArray[i] = details.get(i) != null
+                    ? DownloadProgressBroadcast.createDetailsBundle(details.get(i))
+                    : new Bundle();
+        }
+        Intent intent = new Intent(BitTorrentIntentConstants.ACTION_BROADCAST_PROGRESS_BATCH);
+        intent.putExtra(
+                BitTorrentIntentConstants.EXTRA_TORRENT_FILES,
+                torrentFiles.toArray(new String[torrentFiles.size()]));
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESSES, progressArray);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESS_DETAILS, detailsArray);
+        return intent;
+    }
+}
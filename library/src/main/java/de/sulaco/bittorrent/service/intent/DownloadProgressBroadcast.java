@@ -17,11 +17,15 @@
 package de.sulaco.bittorrent.service.intent;
 
 import android.content.Intent;
+import android.os.Bundle;
+
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
 
 public class DownloadProgressBroadcast {
 
     private String torrentFile;
     private int progress;
+    private DownloadProgress details;
 
     public DownloadProgressBroadcast() {
     }
@@ -43,6 +47,14 @@ public class DownloadProgressBroadcast {
         return this;
     }
 
+    /**
+     * Adds bytes, transfer rates, peers, ETA and storage metrics to the broadcast.
+     */
+    public DownloadProgressBroadcast setDetails(DownloadProgress details) {
+        this.details = details;
+        return this;
+    }
+
     public Intent createIntent() {
         if (torrentFile == null) {
             throw new IllegalStateException("torrentFile must not be null");
@@ -53,7 +65,70 @@ public class DownloadProgressBroadcast {
         Intent intent = new Intent(BitTorrentIntentConstants.ACTION_BROADCAST_PROGRESS);
         intent.putExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE, torrentFile);
         intent.putExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESS, progress);
+        if (details != null) {
+            intent.putExtras(createDetailsBundle(details));
+        }
         return intent;
     }
 
+    /**
+     * Returns the details of a progress broadcast or null if the broadcast has none.
+     */
+    public static DownloadProgress getDetails(Intent intent) {
+        Bundle extras = intent.getExtras();
+        if (extras == null) {
+            return null;
+        }
+        return readDetailsBundle(
+                extras,
+                extras.getInt(BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESS));
+    }
+
+    static Bundle createDetailsBundle(DownloadProgress details) {
+        Bundle bundle = new Bundle();
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_TOTAL_BYTES, details.getTotalBytes());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_DOWNLOADED_BYTES, details.getDownloadedBytes());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_UPLOADED_BYTES, details.getUploadedBytes());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_DOWNLOAD_RATE, details.getDownloadRate());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_UPLOAD_RATE, details.getUploadRate());
+        bundle.putInt(BitTorrentIntentConstants.EXTRA_CONNECTED_PEERS, details.getConnectedPeers());
+        bundle.putInt(BitTorrentIntentConstants.EXTRA_SEEDING_PEERS, details.getSeedingPeers());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_ETA_SECONDS, details.getEtaSeconds());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_DOWNLOAD_RATE_LIMIT, details.getDownloadRateLimit());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_UPLOAD_RATE_LIMIT, details.getUploadRateLimit());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_DIRTY_BYTES, details.getDirtyBytes());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_FLUSH_LATENCY, details.getFlushLatencyMillis());
+        bundle.putInt(BitTorrentIntentConstants.EXTRA_DISK_QUEUE_DEPTH, details.getDiskQueueDepth());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_DISK_LATENCY, details.getDiskLatencyMillis());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_BUFFER_POOL_USED_BYTES, details.getBufferPoolUsedBytes());
+        bundle.putLong(BitTorrentIntentConstants.EXTRA_BUFFER_POOL_MISSES, details.getBufferPoolMisses());
+        return bundle;
+    }
+
+    static DownloadProgress readDetailsBundle(Bundle bundle, int progress) {
+        if (!bundle.containsKey(BitTorrentIntentConstants.EXTRA_DOWNLOADED_BYTES)) {
+            return null;
+        }
+        return new DownloadProgress()
+                .setProgress(progress)
+                .setTotalBytes(bundle.getLong(BitTorrentIntentConstants.EXTRA_TOTAL_BYTES))
+                .setDownloadedBytes(bundle.getLong(BitTorrentIntentConstants.EXTRA_DOWNLOADED_BYTES))
+                .setUploadedBytes(bundle.getLong(BitTorrentIntentConstants.EXTRA_UPLOADED_BYTES))
+                .setDownloadRate(bundle.getLong(BitTorrentIntentConstants.EXTRA_DOWNLOAD_RATE))
+                .setUploadRate(bundle.getLong(BitTorrentIntentConstants.EXTRA_UPLOAD_RATE))
+                .setConnectedPeers(bundle.getInt(BitTorrentIntentConstants.EXTRA_CONNECTED_PEERS))
+                .setSeedingPeers(bundle.getInt(BitTorrentIntentConstants.EXTRA_SEEDING_PEERS))
+                .setEtaSeconds(bundle.getLong(
+                        BitTorrentIntentConstants.EXTRA_ETA_SECONDS,
+                        DownloadProgress.UNKNOWN_ETA))
+                .setDownloadRateLimit(bundle.getLong(BitTorrentIntentConstants.EXTRA_DOWNLOAD_RATE_LIMIT))
+                .setUploadRateLimit(bundle.getLong(BitTorrentIntentConstants.EXTRA_UPLOAD_RATE_LIMIT))
+                .setDirtyBytes(bundle.getLong(BitTorrentIntentConstants.EXTRA_DIRTY_BYTES))
+                .setFlushLatencyMillis(bundle.getLong(BitTorrentIntentConstants.EXTRA_FLUSH_LATENCY))
+                .setDiskQueueDepth(bundle.getInt(BitTorrentIntentConstants.EXTRA_DISK_QUEUE_DEPTH))
+                .setDiskLatencyMillis(bundle.getLong(BitTorrentIntentConstants.EXTRA_DISK_LATENCY))
+                .setBufferPoolUsedBytes(bundle.getLong(BitTorrentIntentConstants.EXTRA_BUFFER_POOL_USED_BYTES))
+                .setBufferPoolMisses(bundle.getLong(BitTorrentIntentConstants.EXTRA_BUFFER_POOL_MISSES));
+    }
+
 }
@@ -20,15 +20,111 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 
+import java.util.UUID;
+
 import de.sulaco.bittorrent.service.BitTorrentDownloadService;
+import de.sulaco.bittorrent.service.downloader.FileSelector;
 
 public class DownloadRequest {
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+
+    public static final int FILE_PRIORITY_SKIP = FileSelector.SKIP;
+    public static final int FILE_PRIORITY_NORMAL = FileSelector.NORMAL;
+    public static final int FILE_PRIORITY_HIGH = FileSelector.NORMAL + 1;
+
+    private String downloadId = UUID.randomUUID().toString();
+    private int priority = PRIORITY_NORMAL;
+    private long maxDownloadRate = 0;
+    private long maxUploadRate = 0;
+    private int maxPeerConnections = 0;
+    private boolean isStreaming = false;
+    private int[] filePriorities;
     private Uri torrentFile;
     private Uri destinationDirectory;
 
     public DownloadRequest() {
     }
 
+    /**
+     * Returns the id that identifies the download in abort and remove requests.
+     * A random id is assigned on construction.
+     */
+    public String getDownloadId() {
+        return downloadId;
+    }
+
+    public DownloadRequest setDownloadId(String downloadId) {
+        this.downloadId = downloadId;
+        return this;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Queued downloads with a higher priority start first, downloads with the same
+     * priority start in arrival order. Default is {@link #PRIORITY_NORMAL}.
+     */
+    public DownloadRequest setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Limits the download rate of this download in bytes per second. The global limit of
+     * {@link ConfigurationRequest#setMaxDownloadRate(long)} applies as well.
+     * Default is 0, unlimited.
+     */
+    public DownloadRequest setMaxDownloadRate(long bytesPerSecond) {
+        this.maxDownloadRate = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Limits the upload rate of this download in bytes per second. Default is 0, unlimited.
+     */
+    public DownloadRequest setMaxUploadRate(long bytesPerSecond) {
+        this.maxUploadRate = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Limits the number of connected peers of this download. Each peer connection needs
+     * threads of its own. The global limit of
+     * {@link ConfigurationRequest#setMaxPeerConnections(int)} applies as well.
+     * Default is 0, unlimited.
+     */
+    public DownloadRequest setMaxPeerConnections(int maxPeerConnections) {
+        this.maxPeerConnections = maxPeerConnections;
+        return this;
+    }
+
+    /**
+     * Downloads the pieces after the current playback position first, so that a player
+     * can start before the download is finished. The files are served while downloading,
+     * see {@link de.sulaco.bittorrent.BitTorrentDownloadManager#getStreamUri(Uri, int)}.
+     * Default is false.
+     */
+    public DownloadRequest setStreaming(boolean streaming) {
+        this.isStreaming = streaming;
+        return this;
+    }
+
+    /**
+     * Sets the priorities of the files, indexed like the files within the torrent.
+     * Pieces of files with a higher priority are requested first. Files with
+     * {@link #FILE_PRIORITY_SKIP} are not downloaded, unless they share pieces with
+     * other files. Files without a priority get {@link #FILE_PRIORITY_NORMAL}.
+     * Default is null, all files with normal priority.
+     */
+    public DownloadRequest setFilePriorities(int... filePriorities) {
+        this.filePriorities = filePriorities;
+        return this;
+    }
+
     public DownloadRequest setTorrentFile(Uri torrentFile) {
         this.torrentFile = torrentFile;
         return this;
@@ -46,8 +142,33 @@ public class DownloadRequest {
         if (destinationDirectory == null) {
             throw new IllegalStateException("destinationDirectory must not be null");
         }
+        if (downloadId == null) {
+            throw new IllegalStateException("downloadId must not be null");
+        }
+        if (maxDownloadRate < 0 || maxUploadRate < 0) {
+            throw new IllegalStateException("rate limits must not be negative");
+        }
+        if (maxPeerConnections < 0) {
+            throw new IllegalStateException("maxPeerConnections must not be negative");
+        }
+        if (filePriorities != null) {
+            for (int filePriority : filePriorities) {
+                if (filePriority < FILE_PRIORITY_SKIP) {
+                    throw new IllegalStateException("file priorities must not be negative");
+                }
+            }
+        }
         Intent intent = new Intent(context, BitTorrentDownloadService.class);
         intent.setAction(BitTorrentIntentConstants.ACTION_START_DOWNLOAD);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID, downloadId);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_PRIORITY, priority);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MAX_DOWNLOAD_RATE, maxDownloadRate);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MAX_UPLOAD_RATE, maxUploadRate);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_MAX_PEER_CONNECTIONS, maxPeerConnections);
+        intent.putExtra(BitTorrentIntentConstants.EXTRA_STREAMING, isStreaming);
+        if (filePriorities != null) {
+            intent.putExtra(BitTorrentIntentConstants.EXTRA_FILE_PRIORITIES, filePriorities);
+        }
         intent.putExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE, torrentFile.getPath());
         intent.putExtra(BitTorrentIntentConstants.EXTRA_DESTINATION_DIRECTORY, destinationDirectory.getPath());
         return intent;
@@ -26,4 +26,9 @@ public final class DownloadState {
     public static final int ERROR_DESTINATION_NOT_FOUND = 7;
     public final static int ERROR_DESTINATION_IS_NOT_A_DIRECTORY = 8;
     public final static int ERROR_DESTINATION_IS_NOT_WRITEABLE = 9;
+    public final static int STALLED = 10;
+    public final static int THROUGHPUT_TOO_LOW = 11;
+    public final static int NO_PEERS = 12;
+    public final static int DEADLINE_EXCEEDED = 13;
+    public final static int ERROR_INSUFFICIENT_SPACE = 14;
 }
@@ -24,6 +24,8 @@ import com.turn.ttorrent.core.BuildConfig;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
@@ -32,11 +34,17 @@ import org.robolectric.shadows.ShadowApplication;
 import org.robolectric.shadows.support.v4.ShadowLocalBroadcastManager;
 import org.robolectric.shadows.support.v4.Shadows;
 
+import de.sulaco.bittorrent.service.DownloadEventBus;
 import de.sulaco.bittorrent.service.downloader.DownloadListener;
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.DownloadProgressListener;
 import de.sulaco.bittorrent.service.intent.DownloadRequest;
 import de.sulaco.bittorrent.service.intent.DownloadEndBroadcast;
+import de.sulaco.bittorrent.service.intent.DownloadProgressBatchBroadcast;
 import de.sulaco.bittorrent.service.intent.DownloadProgressBroadcast;
 import de.sulaco.bittorrent.service.intent.AbortRequest;
+import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
+import de.sulaco.bittorrent.service.intent.ConfigurationRequest;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
@@ -97,18 +105,68 @@ public class BitTorrentDownloadManagerTest {
         assertThat(nextStartedIntent.filterEquals(referenceAbortIntent)).isTrue();
     }
 
+    @Test
+    public void testConfigure() {
+        BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
+        ConfigurationRequest configurationRequest = new ConfigurationRequest().setMaxActiveDownloads(3);
+        manager.configure(configurationRequest);
+        Intent nextStartedIntent = ShadowApplication.getInstance().peekNextStartedService();
+        Intent configurationIntent = configurationRequest.createIntent(RuntimeEnvironment.application);
+        assertThat(nextStartedIntent.filterEquals(configurationIntent)).isTrue();
+    }
+
     @Test
     public void testEnqueue() {
         BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
         DownloadRequest downloadRequest = new DownloadRequest();
         downloadRequest.setTorrentFile(Uri.parse("file"));
         downloadRequest.setDestinationDirectory(Uri.parse("dest"));
-        manager.enqueue(downloadRequest);
+        assertThat(manager.enqueue(downloadRequest)).isEqualTo(downloadRequest.getDownloadId());
         Intent nextStartedIntent = ShadowApplication.getInstance().peekNextStartedService();
         Intent downloadIntent = downloadRequest.createIntent(RuntimeEnvironment.application);
         assertThat(nextStartedIntent.equals(downloadIntent)).isTrue();
     }
 
+    @Test
+    public void testAbortById() {
+        BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
+        manager.abort("id");
+        Intent nextStartedIntent = ShadowApplication.getInstance().peekNextStartedService();
+        assertThat(nextStartedIntent.getAction()).isEqualTo(BitTorrentIntentConstants.ACTION_ABORT_DOWNLOAD);
+        assertThat(nextStartedIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)).isEqualTo("id");
+    }
+
+    @Test
+    public void testAbortAll() {
+        BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
+        manager.abortAll();
+        Intent nextStartedIntent = ShadowApplication.getInstance().peekNextStartedService();
+        assertThat(nextStartedIntent.getAction()).isEqualTo(BitTorrentIntentConstants.ACTION_ABORT_DOWNLOAD);
+        assertThat(nextStartedIntent.hasExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)).isFalse();
+    }
+
+    @Test
+    public void testRemove() {
+        BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
+        manager.remove("id");
+        Intent nextStartedIntent = ShadowApplication.getInstance().peekNextStartedService();
+        assertThat(nextStartedIntent.getAction()).isEqualTo(BitTorrentIntentConstants.ACTION_REMOVE_DOWNLOAD);
+        assertThat(nextStartedIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)).isEqualTo("id");
+    }
+
+    @Test
+    public void testPauseAndResume() {
+        BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
+        manager.pause("id");
+        Intent nextStartedIntent = ShadowApplication.getInstance().getNextStartedService();
+        assertThat(nextStartedIntent.getAction()).isEqualTo(BitTorrentIntentConstants.ACTION_PAUSE_DOWNLOAD);
+        assertThat(nextStartedIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)).isEqualTo("id");
+        manager.resume("id");
+        nextStartedIntent = ShadowApplication.getInstance().getNextStartedService();
+        assertThat(nextStartedIntent.getAction()).isEqualTo(BitTorrentIntentConstants.ACTION_RESUME_DOWNLOAD);
+        assertThat(nextStartedIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)).isEqualTo("id");
+    }
+
     private void sendLocalProgressBroadcast(String torrentFile, int progress) {
         LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
         ShadowLocalBroadcastManager shadowLocalBroadcastManager = Shadows.shadowOf(localBroadcastManager);
@@ -142,6 +200,56 @@ public class BitTorrentDownloadManagerTest {
         Mockito.verify(downloadListener, Mockito.times(1)).onDownloadProgress(torrentFile, progress);
     }
 
+    @Test
+    public void testNotifyDownloadProgressBatch() {
+        BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
+        DownloadListener downloadListener = Mockito.mock(DownloadListener.class);
+        manager.registerDownloadListener(downloadListener);
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
+        Shadows.shadowOf(localBroadcastManager).sendBroadcast(
+                new DownloadProgressBatchBroadcast()
+                        .addProgress("file1", 10)
+                        .addProgress("file2", 20)
+                        .createIntent());
+        manager.unregisterDownloadListener(downloadListener);
+        Mockito.verify(downloadListener, Mockito.times(1)).onDownloadProgress("file1", 10);
+        Mockito.verify(downloadListener, Mockito.times(1)).onDownloadProgress("file2", 20);
+    }
+
+    @Test
+    public void testNotifyDownloadProgressDetails() {
+        final String torrentFile = "file";
+        BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
+        DownloadProgressListener downloadListener = Mockito.mock(DownloadProgressListener.class);
+        manager.registerDownloadListener(downloadListener);
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
+        Shadows.shadowOf(localBroadcastManager).sendBroadcast(
+                new DownloadProgressBroadcast()
+                        .setTorrentFile(torrentFile)
+                        .setProgress(42)
+                        .setDetails(new DownloadProgress().setProgress(42).setConnectedPeers(3))
+                        .createIntent());
+        manager.unregisterDownloadListener(downloadListener);
+        ArgumentCaptor<DownloadProgress> details = ArgumentCaptor.forClass(DownloadProgress.class);
+        InOrder inOrder = Mockito.inOrder(downloadListener);
+        inOrder.verify(downloadListener).onDownloadProgress(Mockito.eq(torrentFile), details.capture());
+        inOrder.verify(downloadListener).onDownloadProgress(torrentFile, 42);
+        assertThat(details.getValue().getConnectedPeers()).isEqualTo(3);
+    }
+
+    @Test
+    public void testRegisterDownloadListenerWithExecutor() {
+        BitTorrentDownloadManager manager = new BitTorrentDownloadManager(RuntimeEnvironment.application);
+        DownloadListener downloadListener = Mockito.mock(DownloadListener.class);
+        manager.registerDownloadListener(downloadListener, null);
+        DownloadEventBus.getInstance().onDownloadEnd("file", 7);
+        sendLocalEndBroadcast("file", 8);
+        manager.unregisterDownloadListener(downloadListener);
+        DownloadEventBus.getInstance().onDownloadEnd("file", 9);
+        Mockito.verify(downloadListener, Mockito.times(1)).onDownloadEnd("file", 7);
+        Mockito.verifyNoMoreInteractions(downloadListener);
+    }
+
     private void sendLocalEndBroadcast(String torrentFile, int downloadState) {
         LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
         ShadowLocalBroadcastManager shadowLocalBroadcastManager = Shadows.shadowOf(localBroadcastManager);
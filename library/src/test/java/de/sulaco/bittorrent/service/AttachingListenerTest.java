@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloadListener;
+import de.sulaco.bittorrent.service.intent.DownloadState;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AttachingListenerTest {
+
+    @Test
+    public void testEventsAreSharedWithDuplicates() {
+        IdentifiedDownloadListener listener = Mockito.mock(IdentifiedDownloadListener.class);
+        AttachingListener attachingListener = new AttachingListener(listener, null);
+        attachingListener.attach("id", "file", "id1", "file");
+        attachingListener.attach("id", "file", "id2", "copy");
+        attachingListener.onDownloadStart("id", "file");
+        attachingListener.onDownloadProgress("id", "file", 50);
+        attachingListener.onDownloadEnd("id", "file", DownloadState.COMPLETED);
+        attachingListener.onDownloadEnd("id", "file", DownloadState.COMPLETED);
+        Mockito.verify(listener, Mockito.times(1)).onDownloadStart("id", "file");
+        Mockito.verify(listener, Mockito.times(1)).onDownloadStart("id2", "copy");
+        Mockito.verify(listener, Mockito.times(1)).onDownloadProgress("id", "file", 50);
+        Mockito.verify(listener, Mockito.times(1)).onDownloadProgress("id2", "copy", 50);
+        Mockito.verify(listener, Mockito.times(2)).onDownloadEnd("id", "file", DownloadState.COMPLETED);
+        Mockito.verify(listener, Mockito.times(1)).onDownloadEnd("id2", "copy", DownloadState.COMPLETED);
+        Mockito.verify(listener, Mockito.times(0)).onDownloadStart("id1", "file");
+    }
+
+    @Test
+    public void testDuplicatesAreKeyedByDownloadId() {
+        IdentifiedDownloadListener listener = Mockito.mock(IdentifiedDownloadListener.class);
+        AttachingListener attachingListener = new AttachingListener(listener, null);
+        attachingListener.attach("id", "file", "id1", "copy");
+        attachingListener.onDownloadProgress("other", "file", 50);
+        attachingListener.onDownloadEnd("other", "file", DownloadState.COMPLETED);
+        Mockito.verify(listener, Mockito.times(0)).onDownloadProgress("id1", "copy", 50);
+        assertThat(attachingListener.isAttached("id1")).isTrue();
+    }
+
+    @Test
+    public void testDetachDuplicate() {
+        IdentifiedDownloadListener listener = Mockito.mock(IdentifiedDownloadListener.class);
+        AttachingListener attachingListener = new AttachingListener(listener, null);
+        attachingListener.attach("id", "file", "id1", "copy");
+        assertThat(attachingListener.detachDuplicate("id1", DownloadState.ABORTED)).isTrue();
+        assertThat(attachingListener.detachDuplicate("id1", DownloadState.ABORTED)).isFalse();
+        attachingListener.onDownloadEnd("id", "file", DownloadState.COMPLETED);
+        Mockito.verify(listener, Mockito.times(1)).onDownloadEnd("id1", "copy", DownloadState.ABORTED);
+        Mockito.verify(listener, Mockito.times(0)).onDownloadEnd("id1", "copy", DownloadState.COMPLETED);
+    }
+
+    @Test
+    public void testEndDuplicates() {
+        IdentifiedDownloadListener listener = Mockito.mock(IdentifiedDownloadListener.class);
+        AttachingListener attachingListener = new AttachingListener(listener, null);
+        attachingListener.attach("id", "file", "id1", "copy");
+        attachingListener.endDuplicates("id", "file", DownloadState.ABORTED);
+        Mockito.verify(listener, Mockito.times(1)).onDownloadEnd("id1", "copy", DownloadState.ABORTED);
+        Mockito.verify(listener, Mockito.times(0)).onDownloadEnd("id", "file", DownloadState.ABORTED);
+        assertThat(attachingListener.detachDuplicate("id1", DownloadState.ABORTED)).isFalse();
+    }
+}
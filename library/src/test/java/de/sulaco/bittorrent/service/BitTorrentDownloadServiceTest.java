@@ -16,22 +16,44 @@
 
 package de.sulaco.bittorrent.service;
 
+import android.app.Service;
 import android.content.Intent;
 import android.net.Uri;
 
 import com.turn.ttorrent.core.BuildConfig;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.Robolectric;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import de.sulaco.bittorrent.service.downloader.DownloadListener;
+import de.sulaco.bittorrent.service.downloader.DownloaderFactory;
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloader;
+import de.sulaco.bittorrent.service.downloader.PausableDownloader;
 import de.sulaco.bittorrent.service.intent.AbortRequest;
 import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
+import de.sulaco.bittorrent.service.intent.ConfigurationRequest;
 import de.sulaco.bittorrent.service.intent.DownloadRequest;
+import de.sulaco.bittorrent.service.intent.DownloadState;
+import de.sulaco.bittorrent.service.intent.PauseRequest;
+import de.sulaco.bittorrent.service.intent.RemoveRequest;
+import de.sulaco.bittorrent.service.intent.ResumeRequest;
 import de.sulaco.bittorrent.service.downloader.Downloader;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -269,4 +291,806 @@ public class BitTorrentDownloadServiceTest {
         Intent intent = AbortRequest.createIntent(RuntimeEnvironment.application);
         assertThat(intent.getAction()).isEqualTo(BitTorrentIntentConstants.ACTION_ABORT_DOWNLOAD);
     }
+
+    private static class DownloadGate {
+        private boolean isOpen = false;
+
+        synchronized void open() {
+            isOpen = true;
+            notifyAll();
+        }
+
+        synchronized void notifyDisabled() {
+            notifyAll();
+        }
+
+        synchronized void waitUntilOpen(BlockingDownloader downloader) throws InterruptedException {
+            while (!isOpen && downloader.isEnabled()) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Downloader that blocks until the gate gets opened or the downloader gets disabled.
+     */
+    private static class BlockingDownloader implements Downloader {
+        private final List<String> downloads;
+        private final DownloadGate gate;
+        private volatile boolean isEnabled = true;
+
+        BlockingDownloader(List<String> downloads, DownloadGate gate) {
+            this.downloads = downloads;
+            this.gate = gate;
+        }
+
+        boolean isEnabled() {
+            return isEnabled;
+        }
+
+        @Override
+        public void download(String torrentFile, String destinationDirectory) {
+            downloads.add(torrentFile);
+            try {
+                gate.waitUntilOpen(this);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void setDownloadListener(DownloadListener downloadListener) {
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            isEnabled = enabled;
+            gate.notifyDisabled();
+        }
+    }
+
+    private static DownloaderFactory createBlockingDownloaderFactory(
+            final List<String> downloads,
+            final DownloadGate gate) {
+        return new DownloaderFactory() {
+            @Override
+            public Downloader createDownloader() {
+                return new BlockingDownloader(downloads, gate);
+            }
+        };
+    }
+
+    private static Intent createDownloadIntent(String torrentFile) {
+        return new DownloadRequest()
+                .setTorrentFile(Uri.parse(torrentFile))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .createIntent(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testConcurrentDownloads() {
+        final List<String> downloads = Collections.synchronizedList(new ArrayList<String>());
+        final DownloadGate gate = new DownloadGate();
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.attachDownloaderFactory(createBlockingDownloaderFactory(downloads, gate));
+        bitTorrentDownloadService.onCreate();
+        Intent configureIntent = new ConfigurationRequest()
+                .setMaxActiveDownloads(2)
+                .createIntent(RuntimeEnvironment.application);
+        Intent downloadIntentOne = createDownloadIntent("file1");
+        Intent downloadIntentTwo = createDownloadIntent("file2");
+        Intent downloadIntentThree = createDownloadIntent("file3");
+        try {
+            bitTorrentDownloadService.onStartCommand(configureIntent, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentThree, 0, 0);
+            assertThat(BitTorrentDownloadService.getMaxActiveDownloads()).isEqualTo(2);
+            bitTorrentDownloadService.onHandleIntent(configureIntent);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentTwo);
+            assertThat(bitTorrentDownloadService.getActiveDownloadCount()).isEqualTo(2);
+            gate.open();
+            bitTorrentDownloadService.onHandleIntent(downloadIntentThree);
+            assertThat(bitTorrentDownloadService.getActiveDownloadCount()).isEqualTo(0);
+            bitTorrentDownloadService.onDestroy();
+        } finally {
+            BitTorrentDownloadService.setMaxActiveDownloads(1);
+        }
+        assertThat(downloads).containsOnly("file1", "file2", "file3");
+        Mockito.verify(downloader, Mockito.times(0)).download(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testConcurrentDownloadsAbort() {
+        final List<String> downloads = Collections.synchronizedList(new ArrayList<String>());
+        final DownloadGate gate = new DownloadGate();
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.attachDownloaderFactory(createBlockingDownloaderFactory(downloads, gate));
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntentOne = createDownloadIntent("file1");
+        Intent downloadIntentTwo = createDownloadIntent("file2");
+        Intent abortIntent = AbortRequest.createIntent(RuntimeEnvironment.application);
+        BitTorrentDownloadService.setMaxActiveDownloads(2);
+        try {
+            bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+            assertThat(bitTorrentDownloadService.getActiveDownloadCount()).isEqualTo(1);
+            bitTorrentDownloadService.onStartCommand(abortIntent, 0, 0);
+            assertThat(bitTorrentDownloadService.isAbortPending()).isTrue();
+            bitTorrentDownloadService.onHandleIntent(downloadIntentTwo);
+            bitTorrentDownloadService.onHandleIntent(abortIntent);
+            assertThat(bitTorrentDownloadService.isAbortPending()).isFalse();
+            assertThat(bitTorrentDownloadService.getActiveDownloadCount()).isEqualTo(0);
+            bitTorrentDownloadService.onDestroy();
+        } finally {
+            BitTorrentDownloadService.setMaxActiveDownloads(1);
+        }
+        assertThat(downloads).containsOnly("file1");
+    }
+
+    @Test
+    public void testAbortQueuedDownloadById() {
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntentOne = createDownloadIntent("file1");
+        Intent downloadIntentTwo = createDownloadIntent("file2");
+        Intent abortIntent = AbortRequest.createIntent(
+                RuntimeEnvironment.application,
+                downloadIntentTwo.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID));
+        bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+        bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+        assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(2);
+        bitTorrentDownloadService.onStartCommand(abortIntent, 0, 0);
+        assertThat(bitTorrentDownloadService.isAbortPending()).isFalse();
+        assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(1);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentTwo);
+        bitTorrentDownloadService.onHandleIntent(abortIntent);
+        bitTorrentDownloadService.onDestroy();
+        Mockito.verify(downloader, Mockito.times(1)).download("file1", "dir");
+        Mockito.verify(downloader, Mockito.times(0)).download("file2", "dir");
+        Mockito.verify(downloader, Mockito.times(0)).setEnabled(false);
+    }
+
+    @Test
+    public void testRemoveQueuedDownload() {
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntent = createDownloadIntent("file");
+        Intent removeIntent = RemoveRequest.createIntent(
+                RuntimeEnvironment.application,
+                downloadIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID));
+        bitTorrentDownloadService.onStartCommand(downloadIntent, 0, 0);
+        bitTorrentDownloadService.onStartCommand(removeIntent, 0, 0);
+        assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(0);
+        bitTorrentDownloadService.onHandleIntent(downloadIntent);
+        bitTorrentDownloadService.onHandleIntent(removeIntent);
+        bitTorrentDownloadService.onDestroy();
+        Mockito.verify(downloader, Mockito.times(0)).download(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testAbortRunningDownloadById() {
+        final BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        final Intent downloadIntent = createDownloadIntent("file");
+        Downloader downloader = Mockito.mock(Downloader.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                bitTorrentDownloadService.onStartCommand(
+                        AbortRequest.createIntent(
+                                RuntimeEnvironment.application,
+                                downloadIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)),
+                        0,
+                        0);
+                return null;
+            }
+        }).when(downloader).download("file", "dir");
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        bitTorrentDownloadService.onStartCommand(downloadIntent, 0, 0);
+        bitTorrentDownloadService.onHandleIntent(downloadIntent);
+        assertThat(bitTorrentDownloadService.isAbortPending()).isFalse();
+        bitTorrentDownloadService.onDestroy();
+        InOrder inOrder = Mockito.inOrder(downloader);
+        inOrder.verify(downloader).download("file", "dir");
+        inOrder.verify(downloader).setEnabled(false);
+        inOrder.verify(downloader).setEnabled(true);
+    }
+
+    @Test
+    public void testAbortRunningConcurrentDownloadById() throws InterruptedException {
+        final List<String> downloads = Collections.synchronizedList(new ArrayList<String>());
+        final DownloadGate gate = new DownloadGate();
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(Mockito.mock(Downloader.class));
+        bitTorrentDownloadService.attachDownloaderFactory(createBlockingDownloaderFactory(downloads, gate));
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntent = createDownloadIntent("file");
+        Intent configureIntent = new ConfigurationRequest()
+                .setMaxActiveDownloads(2)
+                .createIntent(RuntimeEnvironment.application);
+        Intent abortIntent = AbortRequest.createIntent(
+                RuntimeEnvironment.application,
+                downloadIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID));
+        BitTorrentDownloadService.setMaxActiveDownloads(2);
+        try {
+            bitTorrentDownloadService.onStartCommand(downloadIntent, 0, 0);
+            bitTorrentDownloadService.onStartCommand(configureIntent, 0, 0);
+            bitTorrentDownloadService.onHandleIntent(downloadIntent);
+            assertThat(bitTorrentDownloadService.getActiveDownloadCount()).isEqualTo(1);
+            bitTorrentDownloadService.onStartCommand(abortIntent, 0, 0);
+            bitTorrentDownloadService.onHandleIntent(abortIntent);
+            for (int i = 0; i < 100 && bitTorrentDownloadService.getActiveDownloadCount() > 0; ++i) {
+                Thread.sleep(10);
+            }
+            assertThat(bitTorrentDownloadService.getActiveDownloadCount()).isEqualTo(0);
+            assertThat(bitTorrentDownloadService.isAbortPending()).isFalse();
+            bitTorrentDownloadService.onHandleIntent(configureIntent);
+            bitTorrentDownloadService.onDestroy();
+        } finally {
+            BitTorrentDownloadService.setMaxActiveDownloads(1);
+        }
+        assertThat(downloads).containsOnly("file");
+    }
+
+    @Test
+    public void testPauseAndResumeQueuedDownload() {
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntentOne = createDownloadIntent("file1");
+        Intent downloadIntentTwo = createDownloadIntent("file2");
+        String downloadIdOne = downloadIntentOne.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID);
+        Intent pauseIntent = PauseRequest.createIntent(RuntimeEnvironment.application, downloadIdOne);
+        Intent resumeIntent = ResumeRequest.createIntent(RuntimeEnvironment.application, downloadIdOne);
+        bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+        bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+        bitTorrentDownloadService.onStartCommand(pauseIntent, 0, 0);
+        assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(1);
+        assertThat(bitTorrentDownloadService.getPausedDownloadCount()).isEqualTo(1);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentTwo);
+        bitTorrentDownloadService.onHandleIntent(pauseIntent);
+        Mockito.verify(downloader, Mockito.times(0)).download("file1", "dir");
+        bitTorrentDownloadService.onStartCommand(resumeIntent, 0, 0);
+        assertThat(bitTorrentDownloadService.getPausedDownloadCount()).isEqualTo(0);
+        bitTorrentDownloadService.onHandleIntent(resumeIntent);
+        bitTorrentDownloadService.onDestroy();
+        InOrder inOrder = Mockito.inOrder(downloader);
+        inOrder.verify(downloader).download("file2", "dir");
+        inOrder.verify(downloader).download("file1", "dir");
+    }
+
+    @Test
+    public void testPauseAndResumeRunningDownload() {
+        final BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        final Intent downloadIntent = createDownloadIntent("file");
+        final String downloadId = downloadIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID);
+        final PausableDownloader downloader = Mockito.mock(PausableDownloader.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                bitTorrentDownloadService.onStartCommand(
+                        PauseRequest.createIntent(RuntimeEnvironment.application, downloadId), 0, 0);
+                assertThat(bitTorrentDownloadService.getPausedDownloadCount()).isEqualTo(1);
+                Mockito.verify(downloader).setPaused(true);
+                bitTorrentDownloadService.onStartCommand(
+                        ResumeRequest.createIntent(RuntimeEnvironment.application, downloadId), 0, 0);
+                assertThat(bitTorrentDownloadService.getPausedDownloadCount()).isEqualTo(0);
+                return null;
+            }
+        }).when(downloader).download("file", "dir");
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        bitTorrentDownloadService.onStartCommand(downloadIntent, 0, 0);
+        bitTorrentDownloadService.onHandleIntent(downloadIntent);
+        bitTorrentDownloadService.onDestroy();
+        InOrder inOrder = Mockito.inOrder(downloader);
+        inOrder.verify(downloader).download("file", "dir");
+        inOrder.verify(downloader).setPaused(false);
+        Mockito.verify(downloader, Mockito.times(0)).setEnabled(false);
+    }
+
+    private static Intent createDownloadIntent(String torrentFile, int priority) {
+        return new DownloadRequest()
+                .setPriority(priority)
+                .setTorrentFile(Uri.parse(torrentFile))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .createIntent(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testDownloadsStartByPriority() {
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntentOne = createDownloadIntent("file1", DownloadRequest.PRIORITY_LOW);
+        Intent downloadIntentTwo = createDownloadIntent("file2", DownloadRequest.PRIORITY_NORMAL);
+        Intent downloadIntentThree = createDownloadIntent("file3", DownloadRequest.PRIORITY_HIGH);
+        bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+        bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+        bitTorrentDownloadService.onStartCommand(downloadIntentThree, 0, 0);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentTwo);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentThree);
+        bitTorrentDownloadService.onDestroy();
+        InOrder inOrder = Mockito.inOrder(downloader);
+        inOrder.verify(downloader).download("file3", "dir");
+        inOrder.verify(downloader).download("file2", "dir");
+        inOrder.verify(downloader).download("file1", "dir");
+    }
+
+    /**
+     * Downloader that enqueues an urgent download while the first download is running.
+     * Downloads end ABORTED if the downloader got disabled.
+     */
+    private static class PreemptedDownloader implements Downloader {
+        private final List<String> downloads = new ArrayList<>();
+        private final BitTorrentDownloadService service;
+        private final Intent urgentIntent;
+        private DownloadListener downloadListener;
+        private boolean isEnabled = true;
+
+        PreemptedDownloader(BitTorrentDownloadService service, Intent urgentIntent) {
+            this.service = service;
+            this.urgentIntent = urgentIntent;
+        }
+
+        @Override
+        public void download(String torrentFile, String destinationDirectory) {
+            downloads.add(torrentFile);
+            downloadListener.onDownloadStart(torrentFile);
+            if (downloads.size() == 1) {
+                service.onStartCommand(urgentIntent, 0, 0);
+            }
+            downloadListener.onDownloadEnd(
+                    torrentFile,
+                    isEnabled ? DownloadState.COMPLETED : DownloadState.ABORTED);
+        }
+
+        @Override
+        public void setDownloadListener(DownloadListener downloadListener) {
+            this.downloadListener = downloadListener;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            isEnabled = enabled;
+        }
+    }
+
+    @Test
+    public void testPreemption() {
+        final List<String> ends = Collections.synchronizedList(new ArrayList<String>());
+        DownloadListener endListener = new DownloadListener() {
+            @Override
+            public void onDownloadStart(String torrentFile) {
+            }
+
+            @Override
+            public void onDownloadProgress(String torrentFile, int progress) {
+            }
+
+            @Override
+            public void onDownloadEnd(String torrentFile, int downloadState) {
+                ends.add(torrentFile + ":" + downloadState);
+            }
+        };
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        Intent downloadIntent = createDownloadIntent("file", DownloadRequest.PRIORITY_NORMAL);
+        Intent urgentIntent = createDownloadIntent("urgent", DownloadRequest.PRIORITY_HIGH);
+        PreemptedDownloader downloader = new PreemptedDownloader(bitTorrentDownloadService, urgentIntent);
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        DownloadEventBus.getInstance().subscribe(endListener, null);
+        BitTorrentDownloadService.setPreemptionEnabled(true);
+        try {
+            bitTorrentDownloadService.onStartCommand(downloadIntent, 0, 0);
+            bitTorrentDownloadService.onHandleIntent(downloadIntent);
+            bitTorrentDownloadService.onHandleIntent(urgentIntent);
+            bitTorrentDownloadService.onDestroy();
+        } finally {
+            BitTorrentDownloadService.setPreemptionEnabled(false);
+            DownloadEventBus.getInstance().unsubscribe(endListener);
+        }
+        assertThat(downloader.downloads).containsExactly("file", "urgent", "file");
+        assertThat(ends).containsExactly(
+                "urgent:" + DownloadState.COMPLETED,
+                "file:" + DownloadState.COMPLETED);
+    }
+
+    private static class EndRecorder implements DownloadListener {
+        final List<String> ends = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onDownloadStart(String torrentFile) {
+        }
+
+        @Override
+        public void onDownloadProgress(String torrentFile, int progress) {
+        }
+
+        @Override
+        public void onDownloadEnd(String torrentFile, int downloadState) {
+            ends.add(new File(torrentFile).getName() + ":" + downloadState);
+        }
+    }
+
+    private static final File PHOTO_TORRENT = new File("src/test/resources/torrents/photo.torrent");
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    @Test
+    public void testDuplicateRequestsShareDownload() throws IOException {
+        EndRecorder endRecorder = new EndRecorder();
+        CompletingDownloader downloader = Mockito.spy(new CompletingDownloader());
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        try {
+            File torrentCopy = new File(JOURNAL_DIRECTORY, "copy.torrent");
+            FileUtils.copyFile(PHOTO_TORRENT, torrentCopy);
+            bitTorrentDownloadService.attachJournal(new DownloadJournal(JOURNAL_FILE));
+            bitTorrentDownloadService.attachDownloader(downloader);
+            bitTorrentDownloadService.attachKeyExecutor(DIRECT_EXECUTOR);
+            bitTorrentDownloadService.onCreate();
+            DownloadEventBus.getInstance().subscribe(endRecorder, null);
+            Intent downloadIntentOne = createDownloadIntent(PHOTO_TORRENT.getPath());
+            Intent downloadIntentTwo = createDownloadIntent(PHOTO_TORRENT.getPath());
+            Intent downloadIntentThree = createDownloadIntent(torrentCopy.getPath());
+            bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentThree, 0, 0);
+            assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(1);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentTwo);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentThree);
+            bitTorrentDownloadService.onDestroy();
+            assertThat(new DownloadJournal(JOURNAL_FILE).hasUnfinishedEntries()).isFalse();
+        } finally {
+            DownloadEventBus.getInstance().unsubscribe(endRecorder);
+            FileUtils.deleteDirectory(JOURNAL_DIRECTORY);
+        }
+        Mockito.verify(downloader, Mockito.times(1)).download(Mockito.anyString(), Mockito.anyString());
+        assertThat(endRecorder.ends).containsExactly(
+                "photo.torrent:" + DownloadState.COMPLETED,
+                "copy.torrent:" + DownloadState.COMPLETED);
+    }
+
+    @Test
+    public void testDuplicateIsAttachedWhenDequeued() throws InterruptedException {
+        final List<String> downloads = Collections.synchronizedList(new ArrayList<String>());
+        final DownloadGate gate = new DownloadGate();
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(Mockito.mock(Downloader.class));
+        bitTorrentDownloadService.attachDownloaderFactory(createBlockingDownloaderFactory(downloads, gate));
+        bitTorrentDownloadService.attachKeyExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                // keys are computed when the downloads get dequeued
+            }
+        });
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntentOne = createDownloadIntent(PHOTO_TORRENT.getPath());
+        Intent downloadIntentTwo = createDownloadIntent(PHOTO_TORRENT.getPath());
+        Intent downloadIntentThree = createDownloadIntent("file3");
+        BitTorrentDownloadService.setMaxActiveDownloads(2);
+        try {
+            bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentThree, 0, 0);
+            assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(3);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentTwo);
+            for (int i = 0; i < 100 && bitTorrentDownloadService.getActiveDownloadCount() > 1; ++i) {
+                Thread.sleep(10);
+            }
+            assertThat(bitTorrentDownloadService.getActiveDownloadCount()).isEqualTo(1);
+            gate.open();
+            bitTorrentDownloadService.onHandleIntent(downloadIntentThree);
+            assertThat(bitTorrentDownloadService.getActiveDownloadCount()).isEqualTo(0);
+            bitTorrentDownloadService.onDestroy();
+        } finally {
+            BitTorrentDownloadService.setMaxActiveDownloads(1);
+        }
+        assertThat(downloads).containsOnly(PHOTO_TORRENT.getPath(), "file3");
+        assertThat(downloads.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testSameTorrentWithOtherDestinationIsNoDuplicate() {
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntentOne = createDownloadIntent(PHOTO_TORRENT.getPath());
+        Intent downloadIntentTwo = new DownloadRequest()
+                .setTorrentFile(Uri.parse(PHOTO_TORRENT.getPath()))
+                .setDestinationDirectory(Uri.parse("other"))
+                .createIntent(RuntimeEnvironment.application);
+        bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+        bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+        assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(2);
+        bitTorrentDownloadService.onDestroy();
+    }
+
+    @Test
+    public void testDownloaderIsCalledWithDownloadId() {
+        IdentifiedDownloader downloader = Mockito.mock(IdentifiedDownloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        Intent downloadIntentOne = new DownloadRequest()
+                .setDownloadId("one")
+                .setTorrentFile(Uri.parse(PHOTO_TORRENT.getPath()))
+                .setDestinationDirectory(Uri.parse("dir1"))
+                .createIntent(RuntimeEnvironment.application);
+        Intent downloadIntentTwo = new DownloadRequest()
+                .setDownloadId("two")
+                .setTorrentFile(Uri.parse(PHOTO_TORRENT.getPath()))
+                .setDestinationDirectory(Uri.parse("dir2"))
+                .createIntent(RuntimeEnvironment.application);
+        bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+        bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+        bitTorrentDownloadService.onHandleIntent(downloadIntentTwo);
+        bitTorrentDownloadService.onDestroy();
+        Mockito.verify(downloader).download("one", PHOTO_TORRENT.getPath(), "dir1");
+        Mockito.verify(downloader).download("two", PHOTO_TORRENT.getPath(), "dir2");
+        Mockito.verify(downloader, Mockito.times(0)).download(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testRemoveAttachedDuplicate() throws IOException {
+        EndRecorder endRecorder = new EndRecorder();
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        try {
+            File torrentCopy = new File(JOURNAL_DIRECTORY, "copy.torrent");
+            FileUtils.copyFile(PHOTO_TORRENT, torrentCopy);
+            bitTorrentDownloadService.attachDownloader(downloader);
+            bitTorrentDownloadService.attachKeyExecutor(DIRECT_EXECUTOR);
+            bitTorrentDownloadService.onCreate();
+            DownloadEventBus.getInstance().subscribe(endRecorder, null);
+            Intent downloadIntent = createDownloadIntent(PHOTO_TORRENT.getPath());
+            Intent duplicateIntent = createDownloadIntent(torrentCopy.getPath());
+            Intent removeIntent = RemoveRequest.createIntent(
+                    RuntimeEnvironment.application,
+                    duplicateIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID));
+            bitTorrentDownloadService.onStartCommand(downloadIntent, 0, 0);
+            bitTorrentDownloadService.onStartCommand(duplicateIntent, 0, 0);
+            bitTorrentDownloadService.onStartCommand(removeIntent, 0, 0);
+            assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(1);
+            bitTorrentDownloadService.onHandleIntent(downloadIntent);
+            bitTorrentDownloadService.onHandleIntent(duplicateIntent);
+            bitTorrentDownloadService.onHandleIntent(removeIntent);
+            bitTorrentDownloadService.onDestroy();
+        } finally {
+            DownloadEventBus.getInstance().unsubscribe(endRecorder);
+            FileUtils.deleteDirectory(JOURNAL_DIRECTORY);
+        }
+        Mockito.verify(downloader, Mockito.times(1)).download(PHOTO_TORRENT.getPath(), "dir");
+        assertThat(endRecorder.ends).containsExactly("copy.torrent:" + DownloadState.ABORTED);
+    }
+
+    private static final File JOURNAL_DIRECTORY = new File("src/test/resources/temporary_service_journal");
+    private static final File JOURNAL_FILE = new File(JOURNAL_DIRECTORY, "queue.journal");
+
+    /**
+     * Downloader that completes each download immediately.
+     */
+    private static class CompletingDownloader implements Downloader {
+        private DownloadListener downloadListener;
+
+        @Override
+        public void download(String torrentFile, String destinationDirectory) {
+            downloadListener.onDownloadStart(torrentFile);
+            downloadListener.onDownloadEnd(torrentFile, DownloadState.COMPLETED);
+        }
+
+        @Override
+        public void setDownloadListener(DownloadListener downloadListener) {
+            this.downloadListener = downloadListener;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+        }
+    }
+
+    @Test
+    public void testJournalFinishedDownload() throws IOException {
+        try {
+            BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+            bitTorrentDownloadService.attachJournal(new DownloadJournal(JOURNAL_FILE));
+            bitTorrentDownloadService.attachDownloader(new CompletingDownloader());
+            bitTorrentDownloadService.onCreate();
+            Intent downloadIntent = createDownloadIntent("file");
+            assertThat(bitTorrentDownloadService.onStartCommand(downloadIntent, 0, 0))
+                    .isEqualTo(Service.START_STICKY);
+            assertThat(new DownloadJournal(JOURNAL_FILE).getUnfinishedEntries().size()).isEqualTo(1);
+            bitTorrentDownloadService.onHandleIntent(downloadIntent);
+            bitTorrentDownloadService.onDestroy();
+            assertThat(new DownloadJournal(JOURNAL_FILE).hasUnfinishedEntries()).isFalse();
+        } finally {
+            FileUtils.deleteDirectory(JOURNAL_DIRECTORY);
+        }
+    }
+
+    @Test
+    public void testJournalInterruptedDownload() throws IOException {
+        try {
+            Downloader downloader = Mockito.mock(Downloader.class);
+            BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+            bitTorrentDownloadService.attachJournal(new DownloadJournal(JOURNAL_FILE));
+            bitTorrentDownloadService.attachDownloader(downloader);
+            bitTorrentDownloadService.onCreate();
+            Intent downloadIntentOne = createDownloadIntent("file1");
+            Intent downloadIntentTwo = createDownloadIntent("file2");
+            bitTorrentDownloadService.onStartCommand(downloadIntentOne, 0, 0);
+            bitTorrentDownloadService.onStartCommand(downloadIntentTwo, 0, 0);
+            bitTorrentDownloadService.onHandleIntent(downloadIntentOne);
+            bitTorrentDownloadService.onDestroy();
+            List<DownloadJournal.Entry> entries = new DownloadJournal(JOURNAL_FILE).getUnfinishedEntries();
+            assertThat(entries.size()).isEqualTo(2);
+            assertThat(entries.get(0).torrentFile).isEqualTo("file1");
+            assertThat(entries.get(0).isStarted).isTrue();
+            assertThat(entries.get(1).torrentFile).isEqualTo("file2");
+            assertThat(entries.get(1).isStarted).isFalse();
+        } finally {
+            FileUtils.deleteDirectory(JOURNAL_DIRECTORY);
+        }
+    }
+
+    @Test
+    public void testJournalSkippedDownload() throws IOException {
+        try {
+            Downloader downloader = Mockito.mock(Downloader.class);
+            BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+            bitTorrentDownloadService.attachJournal(new DownloadJournal(JOURNAL_FILE));
+            bitTorrentDownloadService.attachDownloader(downloader);
+            bitTorrentDownloadService.onCreate();
+            Intent downloadIntent = createDownloadIntent("file");
+            Intent abortIntent = AbortRequest.createIntent(RuntimeEnvironment.application);
+            bitTorrentDownloadService.onStartCommand(downloadIntent, 0, 0);
+            bitTorrentDownloadService.onStartCommand(abortIntent, 0, 0);
+            bitTorrentDownloadService.onHandleIntent(downloadIntent);
+            bitTorrentDownloadService.onHandleIntent(abortIntent);
+            bitTorrentDownloadService.onDestroy();
+            assertThat(new DownloadJournal(JOURNAL_FILE).hasUnfinishedEntries()).isFalse();
+        } finally {
+            FileUtils.deleteDirectory(JOURNAL_DIRECTORY);
+        }
+    }
+
+    @Test
+    public void testRecoveryAfterRestart() throws IOException {
+        File journalFile = new File(RuntimeEnvironment.application.getFilesDir(), "ttorrent-queue.journal");
+        try {
+            DownloadJournal journal = new DownloadJournal(journalFile);
+            journal.enqueue("id", "file", "dir");
+            journal.close();
+            Robolectric.buildService(BitTorrentDownloadService.class).attach().create();
+            Intent recoveredIntent = ShadowApplication.getInstance().getNextStartedService();
+            assertThat(recoveredIntent.getAction()).isEqualTo(BitTorrentIntentConstants.ACTION_START_DOWNLOAD);
+            assertThat(recoveredIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE))
+                    .isEqualTo("file");
+            assertThat(recoveredIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DESTINATION_DIRECTORY))
+                    .isEqualTo("dir");
+            assertThat(recoveredIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID))
+                    .isEqualTo("id");
+        } finally {
+            journalFile.delete();
+        }
+    }
+
+    @Test
+    public void testRecoveryKeepsPathsWithReservedCharacters() throws IOException {
+        File journalFile = new File(RuntimeEnvironment.application.getFilesDir(), "ttorrent-queue.journal");
+        try {
+            DownloadJournal journal = new DownloadJournal(journalFile);
+            journal.enqueue("id", "/sdcard/torrents/#1 100%?.torrent", "/sdcard/#downloads?%20");
+            journal.close();
+            Robolectric.buildService(BitTorrentDownloadService.class).attach().create();
+            Intent recoveredIntent = ShadowApplication.getInstance().getNextStartedService();
+            assertThat(recoveredIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILE))
+                    .isEqualTo("/sdcard/torrents/#1 100%?.torrent");
+            assertThat(recoveredIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DESTINATION_DIRECTORY))
+                    .isEqualTo("/sdcard/#downloads?%20");
+        } finally {
+            journalFile.delete();
+        }
+    }
+
+    @Test
+    public void testFileSelectionSurvivesRestart() throws IOException {
+        File journalFile = new File(RuntimeEnvironment.application.getFilesDir(), "ttorrent-queue.journal");
+        try {
+            BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+            bitTorrentDownloadService.attachJournal(new DownloadJournal(journalFile));
+            bitTorrentDownloadService.attachDownloader(Mockito.mock(Downloader.class));
+            bitTorrentDownloadService.onCreate();
+            bitTorrentDownloadService.onStartCommand(new DownloadRequest()
+                    .setDownloadId("id")
+                    .setTorrentFile(Uri.parse("file"))
+                    .setDestinationDirectory(Uri.parse("dir"))
+                    .setPriority(DownloadRequest.PRIORITY_HIGH)
+                    .setMaxDownloadRate(1024)
+                    .setStreaming(true)
+                    .setFilePriorities(
+                            DownloadRequest.FILE_PRIORITY_SKIP,
+                            DownloadRequest.FILE_PRIORITY_HIGH)
+                    .createIntent(RuntimeEnvironment.application), 0, 0);
+            bitTorrentDownloadService.onDestroy();
+
+            Robolectric.buildService(BitTorrentDownloadService.class).attach().create();
+            Intent recoveredIntent = ShadowApplication.getInstance().getNextStartedService();
+            assertThat(recoveredIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID))
+                    .isEqualTo("id");
+            assertThat(recoveredIntent.getIntArrayExtra(BitTorrentIntentConstants.EXTRA_FILE_PRIORITIES))
+                    .containsExactly(DownloadRequest.FILE_PRIORITY_SKIP, DownloadRequest.FILE_PRIORITY_HIGH);
+            assertThat(recoveredIntent.getIntExtra(BitTorrentIntentConstants.EXTRA_PRIORITY, 0))
+                    .isEqualTo(DownloadRequest.PRIORITY_HIGH);
+            assertThat(recoveredIntent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_DOWNLOAD_RATE, 0))
+                    .isEqualTo(1024);
+            assertThat(recoveredIntent.getBooleanExtra(BitTorrentIntentConstants.EXTRA_STREAMING, false))
+                    .isTrue();
+        } finally {
+            journalFile.delete();
+        }
+    }
+
+    @Test
+    public void testPausedDownloadStaysPausedAfterRestart() throws IOException {
+        File journalFile = new File(RuntimeEnvironment.application.getFilesDir(), "ttorrent-queue.journal");
+        try {
+            DownloadJournal journal = new DownloadJournal(journalFile);
+            journal.enqueue("paused", "file1", "dir");
+            journal.enqueue("queued", "file2", "dir");
+            journal.pause("paused");
+            journal.close();
+            BitTorrentDownloadService bitTorrentDownloadService =
+                    Robolectric.buildService(BitTorrentDownloadService.class).attach().create().get();
+            Intent recoveredIntent = ShadowApplication.getInstance().getNextStartedService();
+            assertThat(recoveredIntent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID))
+                    .isEqualTo("queued");
+            assertThat(ShadowApplication.getInstance().getNextStartedService()).isNull();
+            assertThat(bitTorrentDownloadService.getPausedDownloadCount()).isEqualTo(1);
+            bitTorrentDownloadService.onStartCommand(
+                    ResumeRequest.createIntent(RuntimeEnvironment.application, "paused"), 0, 0);
+            assertThat(bitTorrentDownloadService.getPausedDownloadCount()).isEqualTo(0);
+            assertThat(bitTorrentDownloadService.getQueuedDownloadCount()).isEqualTo(1);
+            bitTorrentDownloadService.onDestroy();
+        } finally {
+            journalFile.delete();
+        }
+    }
+
+    @Test
+    public void testRestartWithNullIntent() {
+        Downloader downloader = Mockito.mock(Downloader.class);
+        BitTorrentDownloadService bitTorrentDownloadService = new BitTorrentDownloadService();
+        bitTorrentDownloadService.attachDownloader(downloader);
+        bitTorrentDownloadService.onCreate();
+        bitTorrentDownloadService.onStartCommand(null, 0, 0);
+        bitTorrentDownloadService.onHandleIntent(null);
+        bitTorrentDownloadService.onDestroy();
+        Mockito.verify(downloader, Mockito.times(0)).download(Mockito.anyString(), Mockito.anyString());
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import de.sulaco.bittorrent.service.downloader.DownloadListener;
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+import de.sulaco.bittorrent.service.downloader.DownloadProgressListener;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DownloadEventBusTest {
+
+    private final DownloadEventBus eventBus = DownloadEventBus.getInstance();
+    private final List<DownloadListener> subscribedListeners = new ArrayList<>();
+
+    private void subscribe(DownloadListener listener, Executor executor) {
+        eventBus.subscribe(listener, executor);
+        subscribedListeners.add(listener);
+    }
+
+    @After
+    public void unsubscribeAll() {
+        for (DownloadListener listener : subscribedListeners) {
+            eventBus.unsubscribe(listener);
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testSubscribeWithNull() {
+        eventBus.subscribe(null, null);
+    }
+
+    @Test
+    public void testDirectDelivery() {
+        DownloadListener listener = Mockito.mock(DownloadListener.class);
+        subscribe(listener, null);
+        assertThat(eventBus.hasSubscribers()).isTrue();
+        eventBus.onDownloadStart("file");
+        eventBus.onDownloadProgress("file", 42);
+        eventBus.onDownloadProgress("file", new DownloadProgress().setProgress(43));
+        eventBus.onDownloadEnd("file", 7);
+        InOrder inOrder = Mockito.inOrder(listener);
+        inOrder.verify(listener).onDownloadStart("file");
+        inOrder.verify(listener).onDownloadProgress("file", 42);
+        inOrder.verify(listener).onDownloadEnd("file", 7);
+    }
+
+    @Test
+    public void testDeliveryOnExecutor() {
+        final List<Runnable> tasks = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                tasks.add(runnable);
+            }
+        };
+        DownloadProgressListener listener = Mockito.mock(DownloadProgressListener.class);
+        subscribe(listener, executor);
+        DownloadProgress details = new DownloadProgress().setProgress(42);
+        eventBus.onDownloadProgress("file", details);
+        eventBus.onDownloadProgress("file", 42);
+        Mockito.verifyZeroInteractions(listener);
+        assertThat(tasks.size()).isEqualTo(2);
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        InOrder inOrder = Mockito.inOrder(listener);
+        inOrder.verify(listener).onDownloadProgress("file", details);
+        inOrder.verify(listener).onDownloadProgress("file", 42);
+    }
+
+    @Test
+    public void testUnsubscribe() {
+        DownloadListener firstListener = Mockito.mock(DownloadListener.class);
+        DownloadListener secondListener = Mockito.mock(DownloadListener.class);
+        subscribe(firstListener, null);
+        subscribe(secondListener, null);
+        eventBus.unsubscribe(firstListener);
+        eventBus.onDownloadEnd("file", 7);
+        Mockito.verifyZeroInteractions(firstListener);
+        Mockito.verify(secondListener).onDownloadEnd("file", 7);
+    }
+}
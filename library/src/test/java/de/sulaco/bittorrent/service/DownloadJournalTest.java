@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import de.sulaco.bittorrent.service.intent.DownloadState;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DownloadJournalTest {
+
+    private static final String TEMPORARY_DIRECTORY = "src/test/resources/temporary_journal";
+    private static final File JOURNAL_FILE = new File(TEMPORARY_DIRECTORY, "queue.journal");
+
+    @Before
+    public void createTempDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(TEMPORARY_DIRECTORY));
+    }
+
+    @After
+    public void deleteTempDirectory() throws IOException {
+        FileUtils.deleteDirectory(new File(TEMPORARY_DIRECTORY));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testConstructionWithNull() {
+        new DownloadJournal(null);
+    }
+
+    @Test
+    public void testRecovery() {
+        DownloadJournal journal = new DownloadJournal(JOURNAL_FILE);
+        journal.enqueue("id1", "file1", "dir1");
+        journal.enqueue("id2", "file2", "dir2");
+        journal.enqueue("id3", "file3", "dir3");
+        journal.start("id1");
+        journal.end("id1", DownloadState.COMPLETED);
+        journal.start("id2");
+        journal.checkpoint("id2", 40);
+        journal.close();
+
+        DownloadJournal recoveredJournal = new DownloadJournal(JOURNAL_FILE);
+        List<DownloadJournal.Entry> entries = recoveredJournal.getUnfinishedEntries();
+        assertThat(entries.size()).isEqualTo(2);
+        assertThat(entries.get(0).id).isEqualTo("id2");
+        assertThat(entries.get(0).torrentFile).isEqualTo("file2");
+        assertThat(entries.get(0).destinationDirectory).isEqualTo("dir2");
+        assertThat(entries.get(0).isStarted).isTrue();
+        assertThat(entries.get(0).progress).isEqualTo(40);
+        assertThat(entries.get(1).id).isEqualTo("id3");
+        assertThat(entries.get(1).isStarted).isFalse();
+        assertThat(recoveredJournal.isUnfinished("id1")).isFalse();
+        assertThat(recoveredJournal.isUnfinished("id2")).isTrue();
+    }
+
+    @Test
+    public void testRecordsAreWrittenByWriteExecutor() {
+        final List<Runnable> writes = new ArrayList<>();
+        DownloadJournal journal = new DownloadJournal(JOURNAL_FILE, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                writes.add(runnable);
+            }
+        });
+        journal.enqueue("id1", "file1", "dir1");
+        assertThat(journal.isUnfinished("id1")).isTrue();
+        assertThat(JOURNAL_FILE.exists()).isFalse();
+        for (Runnable write : writes) {
+            write.run();
+        }
+        assertThat(new DownloadJournal(JOURNAL_FILE).isUnfinished("id1")).isTrue();
+    }
+
+    @Test
+    public void testJournalIsDeletedWhenQueueRunsEmpty() {
+        DownloadJournal journal = new DownloadJournal(JOURNAL_FILE);
+        journal.enqueue("id1", "file1", "dir1");
+        assertThat(JOURNAL_FILE.exists()).isTrue();
+        journal.end("id1", DownloadState.ABORTED);
+        assertThat(JOURNAL_FILE.exists()).isFalse();
+        assertThat(journal.hasUnfinishedEntries()).isFalse();
+    }
+
+    @Test
+    public void testTornRecordEndsReplay() throws IOException {
+        DownloadJournal journal = new DownloadJournal(JOURNAL_FILE);
+        journal.enqueue("id1", "file1", "dir1");
+        journal.enqueue("id2", "file2", "dir2");
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(JOURNAL_FILE, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(JOURNAL_FILE).getUnfinishedEntries();
+        assertThat(entries.size()).isEqualTo(1);
+        assertThat(entries.get(0).torrentFile).isEqualTo("file1");
+    }
+
+    @Test
+    public void testTornRecordIsTruncatedBeforeNextWrite() throws IOException {
+        DownloadJournal journal = new DownloadJournal(JOURNAL_FILE);
+        journal.enqueue("id1", "file1", "dir1");
+        journal.enqueue("id2", "file2", "dir2");
+        journal.close();
+        RandomAccessFile file = new RandomAccessFile(JOURNAL_FILE, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        // skips the compaction that would rewrite the journal without the torn record
+        DownloadJournal reopenedJournal = new DownloadJournal(JOURNAL_FILE, new Executor() {
+            private boolean isCompactionSkipped = false;
+
+            @Override
+            public void execute(Runnable runnable) {
+                if (isCompactionSkipped) {
+                    runnable.run();
+                }
+                isCompactionSkipped = true;
+            }
+        });
+        reopenedJournal.enqueue("id3", "file3", "dir3");
+        reopenedJournal.close();
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(JOURNAL_FILE).getUnfinishedEntries();
+        assertThat(entries.size()).isEqualTo(2);
+        assertThat(entries.get(0).id).isEqualTo("id1");
+        assertThat(entries.get(1).id).isEqualTo("id3");
+    }
+
+    @Test
+    public void testPausedStateIsRecovered() {
+        DownloadJournal journal = new DownloadJournal(JOURNAL_FILE);
+        journal.enqueue("id1", "file1", "dir1");
+        journal.enqueue("id2", "file2", "dir2");
+        journal.pause("id1");
+        journal.pause("id2");
+        journal.resume("id2");
+        journal.close();
+
+        new DownloadJournal(JOURNAL_FILE).close();
+        List<DownloadJournal.Entry> entries = new DownloadJournal(JOURNAL_FILE).getUnfinishedEntries();
+        assertThat(entries.get(0).isPaused).isTrue();
+        assertThat(entries.get(1).isPaused).isFalse();
+    }
+
+    @Test
+    public void testSettingsAreRecovered() {
+        DownloadJournal journal = new DownloadJournal(JOURNAL_FILE);
+        DownloadJournal.Entry entry = new DownloadJournal.Entry("id1", "file1", "dir1");
+        entry.priority = 10;
+        entry.maxDownloadRate = 1024;
+        entry.maxUploadRate = 512;
+        entry.maxPeerConnections = 20;
+        entry.isStreaming = true;
+        entry.filePriorities = new int[] {0, 1, 2};
+        journal.enqueue(entry);
+        journal.enqueue("id2", "file2", "dir2");
+        journal.close();
+
+        new DownloadJournal(JOURNAL_FILE).close();
+        List<DownloadJournal.Entry> entries = new DownloadJournal(JOURNAL_FILE).getUnfinishedEntries();
+        assertThat(entries.get(0).priority).isEqualTo(10);
+        assertThat(entries.get(0).maxDownloadRate).isEqualTo(1024);
+        assertThat(entries.get(0).maxUploadRate).isEqualTo(512);
+        assertThat(entries.get(0).maxPeerConnections).isEqualTo(20);
+        assertThat(entries.get(0).isStreaming).isTrue();
+        assertThat(entries.get(0).filePriorities).containsExactly(0, 1, 2);
+        assertThat(entries.get(1).isStreaming).isFalse();
+        assertThat(entries.get(1).filePriorities).isNull();
+    }
+
+    @Test
+    public void testCompaction() {
+        DownloadJournal journal = new DownloadJournal(JOURNAL_FILE);
+        journal.enqueue("id1", "file1", "dir1");
+        journal.enqueue("id2", "file2", "dir2");
+        for (int progress = 1; progress <= 100; ++progress) {
+            journal.checkpoint("id1", progress);
+        }
+        journal.end("id1", DownloadState.COMPLETED);
+        journal.close();
+        long length = JOURNAL_FILE.length();
+
+        new DownloadJournal(JOURNAL_FILE).close();
+        assertThat(JOURNAL_FILE.length()).isLessThan(length);
+        assertThat(new DownloadJournal(JOURNAL_FILE).getUnfinishedEntries().size()).isEqualTo(1);
+    }
+}
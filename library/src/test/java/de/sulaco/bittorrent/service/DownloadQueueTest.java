@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import android.content.Intent;
+import android.net.Uri;
+
+import com.turn.ttorrent.core.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
+import de.sulaco.bittorrent.service.intent.DownloadRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class DownloadQueueTest {
+
+    private static Intent createIntent(String downloadId, int priority) {
+        return new DownloadRequest()
+                .setDownloadId(downloadId)
+                .setPriority(priority)
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .createIntent(RuntimeEnvironment.application);
+    }
+
+    private static String pollId(DownloadQueue queue) {
+        return queue.poll().getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID);
+    }
+
+    @Test
+    public void testPollByPriorityThenArrival() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(createIntent("a", DownloadRequest.PRIORITY_NORMAL));
+        queue.add(createIntent("b", DownloadRequest.PRIORITY_LOW));
+        queue.add(createIntent("c", DownloadRequest.PRIORITY_HIGH));
+        queue.add(createIntent("d", DownloadRequest.PRIORITY_NORMAL));
+        assertThat(queue.size()).isEqualTo(4);
+        assertThat(pollId(queue)).isEqualTo("c");
+        assertThat(pollId(queue)).isEqualTo("a");
+        assertThat(pollId(queue)).isEqualTo("d");
+        assertThat(pollId(queue)).isEqualTo("b");
+        assertThat(queue.poll()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testRemove() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(createIntent("a", DownloadRequest.PRIORITY_NORMAL));
+        queue.add(createIntent("b", DownloadRequest.PRIORITY_NORMAL));
+        assertThat(queue.remove("a")).isNotNull();
+        assertThat(queue.remove("a")).isNull();
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(pollId(queue)).isEqualTo("b");
+    }
+
+    @Test
+    public void testReplacedAndRemovedIntentsAreSkipped() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(createIntent("a", DownloadRequest.PRIORITY_HIGH));
+        queue.add(createIntent("b", DownloadRequest.PRIORITY_NORMAL));
+        queue.add(createIntent("c", DownloadRequest.PRIORITY_LOW));
+        queue.add(createIntent("a", DownloadRequest.PRIORITY_LOW));
+        for (int i = 0; i < 10; ++i) {
+            queue.add(createIntent("x" + i, DownloadRequest.PRIORITY_HIGH));
+            queue.remove("x" + i);
+        }
+        assertThat(queue.size()).isEqualTo(3);
+        assertThat(pollId(queue)).isEqualTo("b");
+        assertThat(pollId(queue)).isEqualTo("c");
+        assertThat(pollId(queue)).isEqualTo("a");
+        assertThat(queue.poll()).isNull();
+    }
+
+    @Test
+    public void testRequeueGoesAheadOfSamePriority() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(createIntent("a", DownloadRequest.PRIORITY_NORMAL));
+        queue.add(createIntent("b", DownloadRequest.PRIORITY_HIGH));
+        queue.requeue(createIntent("c", DownloadRequest.PRIORITY_NORMAL));
+        assertThat(pollId(queue)).isEqualTo("b");
+        assertThat(pollId(queue)).isEqualTo("c");
+        assertThat(pollId(queue)).isEqualTo("a");
+    }
+
+    @Test
+    public void testRemoveAll() {
+        DownloadQueue queue = new DownloadQueue();
+        queue.add(createIntent("a", DownloadRequest.PRIORITY_NORMAL));
+        queue.add(createIntent("b", DownloadRequest.PRIORITY_HIGH));
+        assertThat(queue.removeAll().size()).isEqualTo(2);
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.poll()).isNull();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.sulaco.bittorrent.service.downloader.IdentifiedDownloadListener;
+import de.sulaco.bittorrent.service.intent.DownloadState;
+
+public class JournalingListenerTest {
+
+    @Test
+    public void testDownloadsOfSameTorrentFileAreJournaledSeparately() {
+        DownloadJournal journal = Mockito.mock(DownloadJournal.class);
+        IdentifiedDownloadListener listener = Mockito.mock(IdentifiedDownloadListener.class);
+        JournalingListener journalingListener = new JournalingListener(journal, listener);
+        journalingListener.track("id1");
+        journalingListener.track("id2");
+        journalingListener.onDownloadProgress("id1", "file", 50);
+        journalingListener.onDownloadEnd("id2", "file", DownloadState.COMPLETED);
+        journalingListener.onDownloadProgress("id1", "file", 60);
+        Mockito.verify(journal, Mockito.times(1)).checkpoint("id1", 50);
+        Mockito.verify(journal, Mockito.times(1)).checkpoint("id1", 60);
+        Mockito.verify(journal, Mockito.times(0)).checkpoint(Mockito.eq("id2"), Mockito.anyInt());
+        Mockito.verify(journal, Mockito.times(1)).end("id2", DownloadState.COMPLETED);
+        Mockito.verify(journal, Mockito.times(0)).end(Mockito.eq("id1"), Mockito.anyInt());
+        Mockito.verify(listener, Mockito.times(1)).onDownloadProgress("id1", "file", 60);
+    }
+
+    @Test
+    public void testUntrackedDownloadIsNotJournaled() {
+        DownloadJournal journal = Mockito.mock(DownloadJournal.class);
+        IdentifiedDownloadListener listener = Mockito.mock(IdentifiedDownloadListener.class);
+        JournalingListener journalingListener = new JournalingListener(journal, listener);
+        journalingListener.onDownloadProgress("id", "file", 50);
+        journalingListener.onDownloadEnd("id", "file", DownloadState.COMPLETED);
+        Mockito.verify(journal, Mockito.times(0)).checkpoint(Mockito.anyString(), Mockito.anyInt());
+        Mockito.verify(journal, Mockito.times(0)).end(Mockito.anyString(), Mockito.anyInt());
+        Mockito.verify(listener, Mockito.times(1)).onDownloadEnd("id", "file", DownloadState.COMPLETED);
+    }
+}
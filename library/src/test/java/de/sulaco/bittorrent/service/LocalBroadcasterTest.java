@@ -23,14 +23,19 @@ import com.turn.ttorrent.core.BuildConfig;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.support.v4.ShadowLocalBroadcastManager;
 import org.robolectric.shadows.support.v4.Shadows;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import de.sulaco.bittorrent.service.downloader.DownloadListener;
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
 import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
 import de.sulaco.bittorrent.service.intent.DownloadEndBroadcast;
 import de.sulaco.bittorrent.service.intent.DownloadProgressBroadcast;
@@ -103,4 +108,126 @@ public class LocalBroadcasterTest {
                         .createIntent();
         assertThat(broadcastIntents.get(0).equals(referenceBroadcast)).isTrue();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMinProgressDelta() {
+        final String torrentFile = "file";
+        LocalBroadcaster localBroadcaster = new LocalBroadcaster(RuntimeEnvironment.application);
+        localBroadcaster.setProgressPolicy(0, 10);
+        localBroadcaster.onDownloadStart(torrentFile);
+        localBroadcaster.onDownloadProgress(torrentFile, 5);
+        localBroadcaster.onDownloadProgress(torrentFile, 12);
+        localBroadcaster.onDownloadProgress(torrentFile, 17);
+        localBroadcaster.onDownloadEnd(torrentFile, 0);
+        List<Intent> broadcastIntents = getSentBroadcastIntents();
+        assertThat(broadcastIntents.size()).isEqualTo(4);
+        assertThat(broadcastIntents.get(1).equals(
+                DownloadProgressBroadcast.createProgressIntent(torrentFile, 12))).isTrue();
+        // final progress is broadcast before the end
+        assertThat(broadcastIntents.get(2).equals(
+                DownloadProgressBroadcast.createProgressIntent(torrentFile, 17))).isTrue();
+        assertThat(broadcastIntents.get(3).equals(
+                DownloadEndBroadcast.createIntent(torrentFile, 0))).isTrue();
+    }
+
+    @Test
+    public void testProgressBatch() {
+        LocalBroadcaster localBroadcaster = new LocalBroadcaster(RuntimeEnvironment.application);
+        localBroadcaster.setProgressPolicy(60000, 1);
+        localBroadcaster.onDownloadStart("file1");
+        localBroadcaster.onDownloadStart("file2");
+        localBroadcaster.onDownloadProgress("file1", 10);
+        localBroadcaster.onDownloadProgress("file1", 11);
+        localBroadcaster.onDownloadProgress("file2", 20);
+        assertThat(getSentBroadcastIntents().size()).isEqualTo(2);
+        localBroadcaster.broadcastProgressBatch();
+        List<Intent> broadcastIntents = getSentBroadcastIntents();
+        assertThat(broadcastIntents.size()).isEqualTo(3);
+        Intent batchIntent = broadcastIntents.get(2);
+        assertThat(batchIntent.getAction())
+                .isEqualTo(BitTorrentIntentConstants.ACTION_BROADCAST_PROGRESS_BATCH);
+        assertThat(batchIntent.getStringArrayExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILES))
+                .containsOnly("file1", "file2");
+        assertThat(batchIntent.getIntArrayExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESSES))
+                .containsOnly(11, 20);
+        localBroadcaster.broadcastProgressBatch();
+        assertThat(getSentBroadcastIntents().size()).isEqualTo(3);
+    }
+
+    private static List<Intent> getSentBroadcastIntents() {
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(RuntimeEnvironment.application);
+        ShadowLocalBroadcastManager shadowLocalBroadcastManager = Shadows.shadowOf(localBroadcastManager);
+        return shadowLocalBroadcastManager.getSentBroadcastIntents();
+    }
+
+    @Test
+    public void testProgressDetails() {
+        final String torrentFile = "file";
+        DownloadProgress details = new DownloadProgress().setProgress(42).setDownloadRate(100);
+        LocalBroadcaster localBroadcaster = new LocalBroadcaster(RuntimeEnvironment.application);
+        localBroadcaster.onDownloadProgress(torrentFile, details);
+        localBroadcaster.onDownloadProgress(torrentFile, 42);
+        localBroadcaster.onDownloadProgress(torrentFile, 43);
+        List<Intent> broadcastIntents = getSentBroadcastIntents();
+        assertThat(broadcastIntents.size()).isEqualTo(2);
+        assertThat(DownloadProgressBroadcast.getDetails(broadcastIntents.get(0)).getDownloadRate())
+                .isEqualTo(100);
+        // outdated details are not attached
+        assertThat(DownloadProgressBroadcast.getDetails(broadcastIntents.get(1))).isNull();
+    }
+
+    @Test
+    public void testEventBus() {
+        DownloadListener listener = Mockito.mock(DownloadListener.class);
+        DownloadEventBus.getInstance().subscribe(listener, null);
+        try {
+            LocalBroadcaster localBroadcaster = new LocalBroadcaster(RuntimeEnvironment.application);
+            localBroadcaster.setBroadcastEnabled(false);
+            localBroadcaster.onDownloadStart("file");
+            localBroadcaster.onDownloadProgress("file", 42);
+            localBroadcaster.onDownloadEnd("file", 7);
+            assertThat(getSentBroadcastIntents()).isEmpty();
+            InOrder inOrder = Mockito.inOrder(listener);
+            inOrder.verify(listener).onDownloadStart("file");
+            inOrder.verify(listener).onDownloadProgress("file", 42);
+            inOrder.verify(listener).onDownloadEnd("file", 7);
+        } finally {
+            DownloadEventBus.getInstance().unsubscribe(listener);
+        }
+    }
+
+    @Test
+    public void testEventBusIsCalledWithoutLock() {
+        final LocalBroadcaster localBroadcaster = new LocalBroadcaster(RuntimeEnvironment.application);
+        final List<Boolean> holdsLock = new ArrayList<>();
+        DownloadListener listener = new DownloadListener() {
+            @Override
+            public void onDownloadStart(String torrentFile) {
+                holdsLock.add(Thread.holdsLock(localBroadcaster));
+            }
+
+            @Override
+            public void onDownloadProgress(String torrentFile, int progress) {
+                holdsLock.add(Thread.holdsLock(localBroadcaster));
+            }
+
+            @Override
+            public void onDownloadEnd(String torrentFile, int downloadState) {
+                holdsLock.add(Thread.holdsLock(localBroadcaster));
+            }
+        };
+        DownloadEventBus.getInstance().subscribe(listener, null);
+        try {
+            localBroadcaster.onDownloadStart("file1");
+            localBroadcaster.onDownloadProgress("file1", 10);
+            localBroadcaster.setProgressPolicy(1000, 1);
+            localBroadcaster.onDownloadProgress("file1", 20);
+            localBroadcaster.broadcastProgressBatch();
+            localBroadcaster.onDownloadProgress("file1", 30);
+            localBroadcaster.onDownloadEnd("file1", 7);
+            assertThat(holdsLock).containsExactly(false, false, false, false, false);
+        } finally {
+            DownloadEventBus.getInstance().unsubscribe(listener);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Client;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BandwidthLimiterTest {
+
+    @Test
+    public void testAllocateWithoutGlobalLimit() {
+        assertThat(BandwidthLimiter.allocate(0, new long[] {0, 100})).containsExactly(0, 100);
+    }
+
+    @Test
+    public void testAllocateEqualShares() {
+        assertThat(BandwidthLimiter.allocate(900, new long[] {0, 0, 0})).containsExactly(300, 300, 300);
+    }
+
+    @Test
+    public void testAllocateRedistributesUnusedShare() {
+        assertThat(BandwidthLimiter.allocate(900, new long[] {0, 100, 0})).containsExactly(400, 100, 400);
+        assertThat(BandwidthLimiter.allocate(900, new long[] {2000, 100, 0})).containsExactly(400, 100, 400);
+    }
+
+    @Test
+    public void testLimitsAreAppliedToRunningClients() {
+        BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+        Client clientOne = Mockito.mock(Client.class);
+        Client clientTwo = Mockito.mock(Client.class);
+        bandwidthLimiter.setLimits("file1", 1024, 0);
+        bandwidthLimiter.register("file1", clientOne);
+        bandwidthLimiter.register("file2", clientTwo);
+        assertThat(bandwidthLimiter.getDownloadRateLimit("file1")).isEqualTo(1024);
+        assertThat(bandwidthLimiter.getDownloadRateLimit("file2")).isEqualTo(0);
+
+        bandwidthLimiter.setGlobalLimits(4096, 2048);
+        assertThat(bandwidthLimiter.getDownloadRateLimit("file1")).isEqualTo(1024);
+        assertThat(bandwidthLimiter.getDownloadRateLimit("file2")).isEqualTo(3072);
+        assertThat(bandwidthLimiter.getUploadRateLimit("file2")).isEqualTo(1024);
+        Mockito.verify(clientOne, Mockito.atLeastOnce()).setMaxDownloadRate(1.0);
+        Mockito.verify(clientTwo, Mockito.atLeastOnce()).setMaxDownloadRate(3.0);
+        Mockito.verify(clientTwo, Mockito.atLeastOnce()).setMaxUploadRate(1.0);
+
+        bandwidthLimiter.unregister("file1");
+        assertThat(bandwidthLimiter.getDownloadRateLimit("file1")).isEqualTo(0);
+        assertThat(bandwidthLimiter.getDownloadRateLimit("file2")).isEqualTo(4096);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BufferPoolTest {
+
+    private static final int BLOCK_SIZE = BufferPool.MIN_BUFFER_SIZE;
+
+    private BufferPool bufferPool;
+
+    @Before
+    public void createPool() {
+        bufferPool = new BufferPool(4 * BLOCK_SIZE);
+    }
+
+    @Test
+    public void testAcquireDirectBufferOfSizeClass() {
+        ByteBuffer buffer = bufferPool.acquire(BLOCK_SIZE + 1);
+        assertThat(buffer.isDirect()).isTrue();
+        assertThat(buffer.capacity()).isEqualTo(2 * BLOCK_SIZE);
+        assertThat(buffer.position()).isEqualTo(0);
+        assertThat(buffer.limit()).isEqualTo(BLOCK_SIZE + 1);
+        assertThat(bufferPool.getUsedBytes()).isEqualTo(2 * BLOCK_SIZE);
+        assertThat(bufferPool.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void testReuseReleasedBuffer() {
+        ByteBuffer buffer = bufferPool.acquire(100);
+        buffer.put((byte) 1);
+        bufferPool.release(buffer);
+        assertThat(bufferPool.getUsedBytes()).isEqualTo(0);
+
+        ByteBuffer reused = bufferPool.acquire(200);
+        assertThat(reused).isSameAs(buffer);
+        assertThat(reused.position()).isEqualTo(0);
+        assertThat(reused.limit()).isEqualTo(200);
+        assertThat(bufferPool.getMisses()).isEqualTo(1);
+        assertThat(bufferPool.getPooledBytes()).isEqualTo(BLOCK_SIZE);
+    }
+
+    @Test
+    public void testReleaseAfterLastReference() {
+        ByteBuffer buffer = bufferPool.acquire(100);
+        assertThat(bufferPool.retain(buffer)).isTrue();
+        bufferPool.release(buffer);
+        assertThat(bufferPool.getUsedBytes()).isEqualTo(BLOCK_SIZE);
+        bufferPool.release(buffer);
+        assertThat(bufferPool.getUsedBytes()).isEqualTo(0);
+        assertThat(bufferPool.acquire(100)).isSameAs(buffer);
+    }
+
+    @Test
+    public void testIgnoreForeignBuffers() {
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        assertThat(bufferPool.retain(buffer)).isFalse();
+        bufferPool.release(buffer);
+        assertThat(bufferPool.getUsedBytes()).isEqualTo(0);
+        assertThat(bufferPool.acquire(100)).isNotSameAs(buffer);
+    }
+
+    @Test
+    public void testAllocateHeapBuffersBeyondCap() {
+        bufferPool.acquire(4 * BLOCK_SIZE);
+        ByteBuffer buffer = bufferPool.acquire(BLOCK_SIZE);
+        assertThat(buffer.isDirect()).isFalse();
+        assertThat(buffer.limit()).isEqualTo(BLOCK_SIZE);
+        assertThat(bufferPool.getPooledBytes()).isEqualTo(4 * BLOCK_SIZE);
+        assertThat(bufferPool.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    public void testEvictFreeBuffersOfOtherSizeClasses() {
+        ByteBuffer large = bufferPool.acquire(4 * BLOCK_SIZE);
+        bufferPool.release(large);
+        ByteBuffer buffer = bufferPool.acquire(BLOCK_SIZE);
+        assertThat(buffer.isDirect()).isTrue();
+        assertThat(bufferPool.getPooledBytes()).isEqualTo(BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class DiskIoStageTest {
+
+    private static final int PIECE_LENGTH = 100;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static class QueueingExecutor implements Executor {
+        private final List<Runnable> runnables = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll() {
+            List<Runnable> queued;
+            synchronized (this) {
+                queued = new ArrayList<>(runnables);
+                runnables.clear();
+            }
+            for (Runnable runnable : queued) {
+                runnable.run();
+            }
+        }
+    }
+
+    private static class RecordingListener implements DiskIoStage.Listener {
+        final List<Boolean> notifications = new ArrayList<>();
+
+        @Override
+        public void onQueueFull() {
+            notifications.add(true);
+        }
+
+        @Override
+        public void onQueueDrained() {
+            notifications.add(false);
+        }
+    }
+
+    private MemoryStorage storage;
+    private RecordingListener listener;
+    private QueueingExecutor executor;
+    private DiskIoStage stage;
+
+    @Before
+    public void createStage() {
+        storage = new MemoryStorage(100 * PIECE_LENGTH);
+        listener = new RecordingListener();
+        executor = new QueueingExecutor();
+        stage = new DiskIoStage(storage, listener, executor, DIRECT_EXECUTOR);
+    }
+
+    private static ByteBuffer createPiece(int index) {
+        byte[] content = new byte[PIECE_LENGTH];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (index * 7 + i);
+        }
+        return ByteBuffer.wrap(content);
+    }
+
+    private void write(int count) throws IOException {
+        write(0, count);
+    }
+
+    private void write(int first, int count) throws IOException {
+        for (int i = first; i < first + count; ++i) {
+            assertThat(stage.write(createPiece(i), i * PIECE_LENGTH)).isEqualTo(PIECE_LENGTH);
+        }
+    }
+
+    @Test
+    public void testWriteOnExecutor() throws Exception {
+        write(2);
+        assertThat(storage.writes).isEqualTo(0);
+        assertThat(stage.getQueueDepth()).isEqualTo(2);
+        assertThat(stage.isQueued(PIECE_LENGTH, 1)).isTrue();
+
+        executor.runAll();
+        assertThat(storage.writes).isEqualTo(2);
+        assertThat(stage.getQueueDepth()).isEqualTo(0);
+        assertThat(stage.isQueued(PIECE_LENGTH, 1)).isFalse();
+        assertThat(storage.data[PIECE_LENGTH]).isEqualTo(createPiece(1).get(0));
+    }
+
+    @Test
+    public void testReadFromQueue() throws Exception {
+        write(2);
+        ByteBuffer content = ByteBuffer.allocate(10);
+        assertThat(stage.read(content, PIECE_LENGTH + 5)).isEqualTo(10);
+        assertThat(storage.reads).isEqualTo(0);
+        assertThat(content.get(0)).isEqualTo(createPiece(1).get(5));
+    }
+
+    @Test
+    public void testNotifyFullAndDrainedQueue() throws Exception {
+        write(DiskIoStage.MAX_QUEUED_WRITES - 1);
+        assertThat(listener.notifications).isEmpty();
+        write(DiskIoStage.MAX_QUEUED_WRITES - 1, 1);
+        assertThat(listener.notifications).containsExactly(true);
+        executor.runAll();
+        assertThat(listener.notifications).containsExactly(true, false);
+    }
+
+    @Test
+    public void testBlockWritesBeyondLimit() throws Exception {
+        write(2 * DiskIoStage.MAX_QUEUED_WRITES);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stage.write(createPiece(0), 50 * PIECE_LENGTH);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        writer.start();
+        writer.join(200);
+        assertThat(writer.isAlive()).isTrue();
+
+        executor.runAll();
+        writer.join(5000);
+        assertThat(writer.isAlive()).isFalse();
+        assertThat(stage.getQueueDepth()).isEqualTo(1);
+    }
+
+    @Test
+    public void testFailAfterFailedWrite() throws Exception {
+        storage.isFailing = true;
+        write(1);
+        executor.runAll();
+        assertThat(stage.hasFailed()).isTrue();
+        try {
+            write(1);
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expectedException) {
+        }
+    }
+
+    @Test
+    public void testFlushAfterQueuedWrites() throws Exception {
+        WriteBackCache cache = new WriteBackCache(storage, 10 * PIECE_LENGTH);
+        stage = new DiskIoStage(cache, listener, DIRECT_EXECUTOR, DIRECT_EXECUTOR);
+        write(3);
+        assertThat(cache.getDirtyBytes()).isEqualTo(3 * PIECE_LENGTH);
+        stage.flush();
+        assertThat(cache.getDirtyBytes()).isEqualTo(0);
+        assertThat(storage.writes).isEqualTo(3);
+    }
+
+    @Test
+    public void testCloseStorage() throws Exception {
+        stage = new DiskIoStage(storage, listener, DIRECT_EXECUTOR, DIRECT_EXECUTOR);
+        write(1);
+        stage.close();
+        assertThat(storage.isClosed).isTrue();
+    }
+
+    @Test
+    public void testRetainPooledBufferUntilWritten() throws Exception {
+        BufferPool bufferPool = BufferPool.getInstance();
+        long usedBytes = bufferPool.getUsedBytes();
+        ByteBuffer buffer = bufferPool.acquire(PIECE_LENGTH);
+        buffer.put(createPiece(1));
+        buffer.flip();
+        stage.write(buffer, PIECE_LENGTH);
+        bufferPool.release(buffer);
+        assertThat(bufferPool.getUsedBytes()).isGreaterThan(usedBytes);
+
+        executor.runAll();
+        assertThat(bufferPool.getUsedBytes()).isEqualTo(usedBytes);
+        assertThat(storage.data[PIECE_LENGTH]).isEqualTo(createPiece(1).get(0));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileSelectorTest {
+
+    @Test
+    public void testFilePriorities() {
+        FileSelector fileSelector = new FileSelector();
+        assertThat(fileSelector.getFilePriorities("file1")).isNull();
+        int[] priorities = new int[] {FileSelector.SKIP, FileSelector.NORMAL};
+        fileSelector.setFilePriorities("file1", priorities);
+        priorities[0] = FileSelector.NORMAL;
+        assertThat(fileSelector.getFilePriorities("file1"))
+                .containsExactly(FileSelector.SKIP, FileSelector.NORMAL);
+        assertThat(fileSelector.getFilePriorities("file2")).isNull();
+        fileSelector.removeFilePriorities("file1");
+        assertThat(fileSelector.getFilePriorities("file1")).isNull();
+    }
+
+    @Test
+    public void testPiecesGetHighestPriorityOfTheirFiles() {
+        // pieces of 100 bytes: file 0 covers 0-1, file 1 covers 1-2, file 3 covers 2-3
+        int[] piecePriorities = FileSelector.getPiecePriorities(
+                new long[] {150, 120, 0, 80},
+                new int[] {2, FileSelector.SKIP, 3},
+                FileSelector.NORMAL,
+                100,
+                4);
+        assertThat(piecePriorities).containsExactly(2, 2, FileSelector.NORMAL, FileSelector.NORMAL);
+    }
+
+    @Test
+    public void testSkippedFilesOnlySkipTheirOwnPieces() {
+        int[] piecePriorities = FileSelector.getPiecePriorities(
+                new long[] {100, 200, 100},
+                new int[] {FileSelector.SKIP, FileSelector.NORMAL, FileSelector.SKIP},
+                FileSelector.NORMAL,
+                100,
+                4);
+        assertThat(piecePriorities).containsExactly(0, 1, 1, 0);
+    }
+}
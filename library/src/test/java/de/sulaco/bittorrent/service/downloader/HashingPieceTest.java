@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.common.Torrent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HashingPieceTest {
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int LENGTH = 7 * BLOCK_SIZE + 100;
+    private static final long OFFSET = 1000;
+
+    private byte[] content;
+    private MemoryStorage storage;
+    private BufferPool bufferPool;
+
+    @Before
+    public void createContent() {
+        content = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; ++i) {
+            content[i] = (byte) (i * 31);
+        }
+        storage = new MemoryStorage(OFFSET + LENGTH);
+        bufferPool = new BufferPool(BufferPool.MAX_POOLED_BYTES);
+    }
+
+    private HashingPiece createPiece() throws NoSuchAlgorithmException {
+        return new HashingPiece(storage, 0, OFFSET, LENGTH, Torrent.hash(content), bufferPool);
+    }
+
+    private void record(HashingPiece piece, int... blocks) throws IOException {
+        for (int block : blocks) {
+            int offset = block * BLOCK_SIZE;
+            int length = Math.min(BLOCK_SIZE, LENGTH - offset);
+            piece.record(ByteBuffer.wrap(content, offset, length).slice(), offset);
+        }
+    }
+
+    @Test
+    public void testValidateInOrderBlocksWithoutRead() throws Exception {
+        HashingPiece piece = createPiece();
+        record(piece, 0, 1, 2, 3, 4, 5, 6, 7);
+        assertThat(piece.validate()).isTrue();
+        assertThat(piece.isValid()).isTrue();
+        assertThat(storage.reads).isEqualTo(0);
+        assertThat(storage.writes).isEqualTo(1);
+    }
+
+    @Test
+    public void testValidateReorderedBlocksWithoutRead() throws Exception {
+        HashingPiece piece = createPiece();
+        record(piece, 0, 2, 1, 5, 4, 3, 6, 7);
+        assertThat(piece.validate()).isTrue();
+        assertThat(storage.reads).isEqualTo(0);
+    }
+
+    @Test
+    public void testRejectCorruptBlockWithoutRead() throws Exception {
+        HashingPiece piece = createPiece();
+        record(piece, 0, 1);
+        content[2 * BLOCK_SIZE] ^= 1;
+        record(piece, 2, 3, 4, 5, 6, 7);
+        assertThat(piece.validate()).isFalse();
+        assertThat(piece.isValid()).isFalse();
+        assertThat(storage.reads).isEqualTo(0);
+    }
+
+    @Test
+    public void testReadBackIfReorderBufferOverflows() throws Exception {
+        assertThat(4 * BLOCK_SIZE).isEqualTo(HashingPiece.MAX_REORDER_BYTES);
+        HashingPiece piece = createPiece();
+        record(piece, 0, 2, 3, 4, 5, 6, 1, 7);
+        assertThat(piece.validate()).isTrue();
+        assertThat(storage.reads).isEqualTo(1);
+    }
+
+    @Test
+    public void testRestartHashingWithFirstBlock() throws Exception {
+        HashingPiece piece = createPiece();
+        record(piece, 0, 2, 0, 1, 2, 3, 4, 5, 6, 7);
+        assertThat(piece.validate()).isTrue();
+        assertThat(storage.reads).isEqualTo(0);
+    }
+
+    @Test
+    public void testValidateAgainByReading() throws Exception {
+        HashingPiece piece = createPiece();
+        record(piece, 0, 1, 2, 3, 4, 5, 6, 7);
+        assertThat(piece.validate()).isTrue();
+        assertThat(piece.validate()).isTrue();
+        assertThat(storage.reads).isEqualTo(1);
+    }
+
+    @Test
+    public void testReleaseBuffersOnceWritten() throws Exception {
+        HashingPiece piece = createPiece();
+        record(piece, 0, 2);
+        assertThat(bufferPool.getUsedBytes()).isGreaterThan(0);
+        record(piece, 1, 3, 4, 5, 6, 7);
+        assertThat(bufferPool.getUsedBytes()).isEqualTo(0);
+        long misses = bufferPool.getMisses();
+
+        record(piece, 0, 2, 1, 3, 4, 5, 6, 7);
+        assertThat(bufferPool.getMisses()).isEqualTo(misses);
+        assertThat(piece.validate()).isTrue();
+    }
+
+    @Test
+    public void testReleaseBuffersOfIncompletePiece() throws Exception {
+        HashingPiece piece = createPiece();
+        record(piece, 0, 2);
+        piece.releaseBuffers();
+        assertThat(bufferPool.getUsedBytes()).isEqualTo(0);
+    }
+}
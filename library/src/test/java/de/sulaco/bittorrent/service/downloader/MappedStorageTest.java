@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.storage.FileCollectionStorage;
+import com.turn.ttorrent.client.storage.FileStorage;
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class MappedStorageTest {
+
+    private static final String TEMPORARY_DIRECTORY = "src/test/resources/temporary_mapped";
+    private static final long[] SIZES = new long[] {1000, 0, 3000};
+
+    private File firstTarget;
+    private File lastTarget;
+    private TorrentByteStorage fileStorage;
+    private MappedStorage mappedStorage;
+
+    @Before
+    public void createStorage() throws IOException {
+        File directory = new File(TEMPORARY_DIRECTORY);
+        FileUtils.forceMkdir(directory);
+        firstTarget = new File(directory, "first.bin");
+        File emptyTarget = new File(directory, "empty.bin");
+        lastTarget = new File(directory, "last.bin");
+        fileStorage = new FileCollectionStorage(
+                Arrays.asList(
+                        new FileStorage(firstTarget, 0, SIZES[0]),
+                        new FileStorage(emptyTarget, SIZES[0], SIZES[1]),
+                        new FileStorage(lastTarget, SIZES[0] + SIZES[1], SIZES[2])),
+                SIZES[0] + SIZES[1] + SIZES[2]);
+        List<File> contentFiles = Arrays.asList(
+                ResumableSharedTorrent.getContentFile(firstTarget),
+                ResumableSharedTorrent.getContentFile(emptyTarget),
+                ResumableSharedTorrent.getContentFile(lastTarget));
+        mappedStorage = new MappedStorage(fileStorage, contentFiles, SIZES);
+    }
+
+    @After
+    public void deleteTempDirectory() throws IOException {
+        mappedStorage.close();
+        FileUtils.deleteDirectory(new File(TEMPORARY_DIRECTORY));
+    }
+
+    private static byte[] createContent(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+
+    @Test
+    public void testWriteAndReadAcrossFiles() throws IOException {
+        byte[] content = createContent(2000);
+        assertThat(mappedStorage.write(ByteBuffer.wrap(content), 500)).isEqualTo(2000);
+        assertThat(mappedStorage.isMapped()).isTrue();
+
+        ByteBuffer buffer = ByteBuffer.allocate(2000);
+        assertThat(mappedStorage.read(buffer, 500)).isEqualTo(2000);
+        assertThat(buffer.array()).isEqualTo(content);
+
+        ByteBuffer fileBuffer = ByteBuffer.allocate(2000);
+        fileStorage.read(fileBuffer, 500);
+        assertThat(fileBuffer.array()).isEqualTo(content);
+    }
+
+    @Test
+    public void testUpdateDigestFromMapping() throws Exception {
+        byte[] content = createContent(4000);
+        mappedStorage.write(ByteBuffer.wrap(content), 0);
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        mappedStorage.update(digest, 0, 4000, ByteBuffer.allocate(4000));
+        assertThat(digest.digest())
+                .isEqualTo(MessageDigest.getInstance("SHA-1").digest(content));
+    }
+
+    @Test
+    public void testRangeOutOfBounds() throws IOException {
+        try {
+            mappedStorage.write(ByteBuffer.allocate(10), 3995);
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expectedException) {
+        }
+    }
+
+    @Test
+    public void testFinishRenamesPartialFiles() throws IOException {
+        byte[] content = createContent(4000);
+        mappedStorage.write(ByteBuffer.wrap(content), 0);
+        mappedStorage.finish();
+        assertThat(mappedStorage.isFinished()).isTrue();
+        assertThat(mappedStorage.isMapped()).isFalse();
+        assertThat(FileUtils.readFileToByteArray(lastTarget))
+                .isEqualTo(Arrays.copyOfRange(content, 1000, 4000));
+
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        assertThat(mappedStorage.read(buffer, 0)).isEqualTo(1000);
+        assertThat(buffer.array()).isEqualTo(Arrays.copyOf(content, 1000));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.storage.TorrentByteStorage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage in memory that counts reads and writes and that can be made to fail.
+ */
+class MemoryStorage implements TorrentByteStorage {
+
+    final byte[] data;
+    int reads = 0;
+    int writes = 0;
+    long lastWriteOffset = -1;
+    boolean isFailing = false;
+    boolean isClosed = false;
+
+    MemoryStorage(long size) {
+        data = new byte[(int) size];
+    }
+
+    @Override
+    public long size() {
+        return data.length;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer buffer, long offset) throws IOException {
+        if (isFailing) {
+            throw new IOException("read failed");
+        }
+        ++reads;
+        int length = buffer.remaining();
+        buffer.put(data, (int) offset, length);
+        return length;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer buffer, long offset) throws IOException {
+        if (isFailing) {
+            throw new IOException("write failed");
+        }
+        ++writes;
+        lastWriteOffset = offset;
+        int length = buffer.remaining();
+        buffer.get(data, (int) offset, length);
+        return length;
+    }
+
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public boolean isFinished() {
+        return false;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Client;
+import com.turn.ttorrent.client.peer.SharingPeer;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PeerConnectionLimiterTest {
+
+    @Test
+    public void testUnlimitedByDefault() {
+        PeerConnectionLimiter peerConnectionLimiter = new PeerConnectionLimiter();
+        peerConnectionLimiter.register("file1", createClient(5, 2));
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testConnectedPeersOfAllClientsCount() {
+        PeerConnectionLimiter peerConnectionLimiter = new PeerConnectionLimiter();
+        peerConnectionLimiter.setMaxConnections(10);
+        peerConnectionLimiter.register("file1", createClient(3, 2));
+        peerConnectionLimiter.register("file2", createClient(4, 0));
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(3);
+
+        peerConnectionLimiter.setMaxConnections(5);
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(0);
+
+        peerConnectionLimiter.unregister("file2");
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(2);
+    }
+
+    @Test
+    public void testTryAcquireReservesConnections() {
+        PeerConnectionLimiter peerConnectionLimiter = new PeerConnectionLimiter();
+        peerConnectionLimiter.setMaxConnections(3);
+        peerConnectionLimiter.register("file1", createClient(1, 0));
+        assertThat(peerConnectionLimiter.tryAcquire("file1")).isTrue();
+        assertThat(peerConnectionLimiter.tryAcquire("file1")).isTrue();
+        assertThat(peerConnectionLimiter.tryAcquire("file1")).isFalse();
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(0);
+
+        peerConnectionLimiter.release("file1");
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(1);
+        assertThat(peerConnectionLimiter.tryAcquire("file1")).isTrue();
+    }
+
+    @Test
+    public void testDownloadLimit() {
+        PeerConnectionLimiter peerConnectionLimiter = new PeerConnectionLimiter();
+        peerConnectionLimiter.setLimit("file1", 5);
+        peerConnectionLimiter.register("file1", createClient(3, 2));
+        peerConnectionLimiter.register("file2", createClient(4, 0));
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(2);
+        assertThat(peerConnectionLimiter.getAvailableConnections("file2")).isEqualTo(Integer.MAX_VALUE);
+
+        peerConnectionLimiter.setMaxConnections(8);
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(1);
+
+        peerConnectionLimiter.removeLimit("file1");
+        peerConnectionLimiter.setMaxConnections(0);
+        assertThat(peerConnectionLimiter.getAvailableConnections("file1")).isEqualTo(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testTryAcquireHonorsDownloadLimit() {
+        PeerConnectionLimiter peerConnectionLimiter = new PeerConnectionLimiter();
+        peerConnectionLimiter.setLimit("file1", 2);
+        peerConnectionLimiter.register("file1", createClient(1, 0));
+        peerConnectionLimiter.register("file2", createClient(1, 0));
+        assertThat(peerConnectionLimiter.tryAcquire("file1")).isTrue();
+        assertThat(peerConnectionLimiter.tryAcquire("file1")).isFalse();
+        assertThat(peerConnectionLimiter.tryAcquire("file2")).isTrue();
+
+        peerConnectionLimiter.release("file1");
+        assertThat(peerConnectionLimiter.tryAcquire("file1")).isTrue();
+    }
+
+    private static Client createClient(int connectedPeers, int disconnectedPeers) {
+        Set<SharingPeer> peers = new HashSet<>();
+        for (int i = 0; i < connectedPeers + disconnectedPeers; i++) {
+            SharingPeer peer = Mockito.mock(SharingPeer.class);
+            Mockito.when(peer.isConnected()).thenReturn(i < connectedPeers);
+            peers.add(peer);
+        }
+        Client client = Mockito.mock(Client.class);
+        Mockito.when(client.getPeers()).thenReturn(peers);
+        return client;
+    }
+}
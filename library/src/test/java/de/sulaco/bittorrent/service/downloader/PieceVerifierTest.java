@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.common.Torrent;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public final class PieceVerifierTest {
+
+    private static final String TORRENT_FILE = "src/test/resources/torrents/photo.torrent";
+    private static final String CONTENT_FILE = "src/test/resources/content/photo.jpg";
+    private static final String CONTENT_FILE_PART = "src/test/resources/content_part/photo.jpg.part";
+    private static final String TEMPORARY_DIRECTORY = "src/test/resources/temporary_verifier";
+
+    private static final PieceVerifier.CancellationSignal NOT_CANCELLED =
+            new PieceVerifier.CancellationSignal() {
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            };
+
+    @Before
+    public void createTempDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(TEMPORARY_DIRECTORY));
+    }
+
+    @After
+    public void deleteTempDirectory() throws IOException {
+        FileUtils.deleteDirectory(new File(TEMPORARY_DIRECTORY));
+    }
+
+    private static ResumableSharedTorrent createTorrent() throws Exception {
+        return new ResumableSharedTorrent(
+                Torrent.load(new File(TORRENT_FILE)),
+                new File(TEMPORARY_DIRECTORY),
+                new BitSet());
+    }
+
+    @Test
+    public void testVerifyCompleteContent() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE), new File(TEMPORARY_DIRECTORY));
+        ResumableSharedTorrent sharedTorrent = createTorrent();
+        BitSet validPieces = new PieceVerifier(4).verify(sharedTorrent, NOT_CANCELLED);
+        sharedTorrent.init();
+        assertThat(validPieces.cardinality()).isEqualTo(sharedTorrent.getPieceCount());
+    }
+
+    @Test
+    public void testVerifyPartialContent() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE_PART), new File(TEMPORARY_DIRECTORY));
+        ResumableSharedTorrent sharedTorrent = createTorrent();
+        BitSet validPieces = new PieceVerifier(4).verify(sharedTorrent, NOT_CANCELLED);
+        sharedTorrent.init();
+        assertThat(validPieces.isEmpty()).isFalse();
+        assertThat(validPieces).isEqualTo(sharedTorrent.getCompletedPieces());
+    }
+
+    @Test
+    public void testVerifyMappedContent() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE_PART), new File(TEMPORARY_DIRECTORY));
+        ResumableSharedTorrent sharedTorrent = createTorrent();
+        assertThat(sharedTorrent.useMappedStorage()).isTrue();
+        BitSet validPieces = new PieceVerifier(4).verify(sharedTorrent, NOT_CANCELLED);
+        sharedTorrent.init();
+        assertThat(sharedTorrent.getMappedStorage().isMapped()).isTrue();
+        assertThat(validPieces.isEmpty()).isFalse();
+        assertThat(validPieces).isEqualTo(sharedTorrent.getCompletedPieces());
+    }
+
+    @Test
+    public void testVerifyWithoutContent() throws Exception {
+        ResumableSharedTorrent sharedTorrent = createTorrent();
+        BitSet validPieces = new PieceVerifier(4).verify(sharedTorrent, NOT_CANCELLED);
+        assertThat(validPieces.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testVerifyCancelled() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE), new File(TEMPORARY_DIRECTORY));
+        BitSet validPieces = new PieceVerifier(4).verify(
+                createTorrent(),
+                new PieceVerifier.CancellationSignal() {
+                    @Override
+                    public boolean isCancelled() {
+                        return true;
+                    }
+                });
+        assertThat(validPieces).isNull();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.common.Torrent;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public final class PreallocatorTest {
+
+    private static final String TORRENT_FILE = "src/test/resources/torrents/photo.torrent";
+    private static final String CONTENT_FILE = "src/test/resources/content/photo.jpg";
+    private static final long CONTENT_SIZE = 174870;
+    private static final String TEMPORARY_DIRECTORY = "src/test/resources/temporary_preallocation";
+    private static final String DESTINATION_DIRECTORY = TEMPORARY_DIRECTORY + "/destination";
+    private static final String PARTIAL_FILE = DESTINATION_DIRECTORY + "/photo.jpg.part";
+
+    private static final PieceVerifier.CancellationSignal NEVER_CANCELLED =
+            new PieceVerifier.CancellationSignal() {
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            };
+
+    @Before
+    public void createTempDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(DESTINATION_DIRECTORY));
+    }
+
+    @After
+    public void deleteTempDirectory() throws IOException {
+        FileUtils.deleteDirectory(new File(TEMPORARY_DIRECTORY));
+    }
+
+    @Test
+    public void testFileSizes() throws Exception {
+        Torrent torrent = Torrent.load(new File(TORRENT_FILE));
+        assertThat(Preallocator.getFileSizes(torrent)).containsExactly(CONTENT_SIZE);
+    }
+
+    @Test
+    public void testSparsePreallocation() throws Exception {
+        Preallocator preallocator = new Preallocator(
+                Torrent.load(new File(TORRENT_FILE)),
+                new File(DESTINATION_DIRECTORY),
+                null);
+        assertThat(preallocator.getMissingBytes()).isEqualTo(CONTENT_SIZE);
+        assertThat(preallocator.preallocate(false, NEVER_CANCELLED)).isTrue();
+        assertThat(new File(PARTIAL_FILE).length()).isEqualTo(CONTENT_SIZE);
+        assertThat(preallocator.getMissingBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testFullPreallocationKeepsContent() throws Exception {
+        byte[] content = FileUtils.readFileToByteArray(new File(CONTENT_FILE));
+        FileUtils.writeByteArrayToFile(new File(PARTIAL_FILE), Arrays.copyOf(content, 1000));
+        Preallocator preallocator = new Preallocator(
+                Torrent.load(new File(TORRENT_FILE)),
+                new File(DESTINATION_DIRECTORY),
+                null);
+        assertThat(preallocator.getMissingBytes()).isEqualTo(CONTENT_SIZE - 1000);
+        assertThat(preallocator.preallocate(true, NEVER_CANCELLED)).isTrue();
+        byte[] expected = new byte[(int) CONTENT_SIZE];
+        System.arraycopy(content, 0, expected, 0, 1000);
+        assertThat(FileUtils.readFileToByteArray(new File(PARTIAL_FILE))).isEqualTo(expected);
+    }
+
+    @Test
+    public void testExistingTargetIsNotReserved() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE), new File(DESTINATION_DIRECTORY));
+        Preallocator preallocator = new Preallocator(
+                Torrent.load(new File(TORRENT_FILE)),
+                new File(DESTINATION_DIRECTORY),
+                null);
+        assertThat(preallocator.getMissingBytes()).isEqualTo(0);
+        assertThat(preallocator.preallocate(true, NEVER_CANCELLED)).isTrue();
+        assertThat(new File(PARTIAL_FILE).exists()).isFalse();
+    }
+
+    @Test
+    public void testCancelledFullPreallocation() throws Exception {
+        Preallocator preallocator = new Preallocator(
+                Torrent.load(new File(TORRENT_FILE)),
+                new File(DESTINATION_DIRECTORY),
+                null);
+        boolean isCompleted = preallocator.preallocate(
+                true,
+                new PieceVerifier.CancellationSignal() {
+                    @Override
+                    public boolean isCancelled() {
+                        return true;
+                    }
+                });
+        assertThat(isCompleted).isFalse();
+    }
+
+    @Test
+    public void testSkippedFilesAreNotReserved() throws Exception {
+        File source = new File(TEMPORARY_DIRECTORY, "source/content");
+        File skippedFile = new File(source, "skipped.bin");
+        File selectedFile = new File(source, "selected.bin");
+        FileUtils.writeByteArrayToFile(skippedFile, new byte[3000]);
+        FileUtils.writeByteArrayToFile(selectedFile, new byte[2000]);
+        Torrent torrent = Torrent.create(
+                source,
+                Arrays.asList(skippedFile, selectedFile),
+                new URI("http://localhost/announce"),
+                "test");
+        assertThat(Preallocator.getFileSizes(torrent)).containsExactly(3000L, 2000L);
+
+        Preallocator preallocator = new Preallocator(
+                torrent,
+                new File(DESTINATION_DIRECTORY),
+                new int[] {FileSelector.SKIP});
+        assertThat(preallocator.getMissingBytes()).isEqualTo(2000);
+        assertThat(preallocator.preallocate(false, NEVER_CANCELLED)).isTrue();
+        File destination = new File(DESTINATION_DIRECTORY, "content");
+        assertThat(new File(destination, "skipped.bin.part").exists()).isFalse();
+        assertThat(new File(destination, "selected.bin.part").length()).isEqualTo(2000);
+    }
+}
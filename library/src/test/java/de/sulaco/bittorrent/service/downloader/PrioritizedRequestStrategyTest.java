@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Piece;
+import com.turn.ttorrent.client.strategy.RequestStrategy;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.BitSet;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PrioritizedRequestStrategyTest {
+
+    @Test
+    public void testAllPiecesWithoutPriorities() {
+        RequestStrategy requestStrategy = Mockito.mock(RequestStrategy.class);
+        BitSet interesting = new BitSet();
+        interesting.set(1);
+        interesting.set(2);
+        new PrioritizedRequestStrategy(requestStrategy)
+                .choosePiece(new TreeSet<Piece>(), interesting, new Piece[3]);
+        Mockito.verify(requestStrategy).choosePiece(
+                Mockito.<SortedSet<Piece>>any(),
+                Mockito.eq(interesting),
+                Mockito.<Piece[]>any());
+    }
+
+    @Test
+    public void testPiecesWithHighestPriorityOnly() {
+        RequestStrategy requestStrategy = Mockito.mock(RequestStrategy.class);
+        PrioritizedRequestStrategy prioritizedStrategy =
+                new PrioritizedRequestStrategy(requestStrategy);
+        prioritizedStrategy.setPiecePriorities(new int[] {3, 1, 2, 0, 2});
+        BitSet interesting = new BitSet();
+        interesting.set(1);
+        interesting.set(2);
+        interesting.set(3);
+        interesting.set(4);
+        prioritizedStrategy.choosePiece(new TreeSet<Piece>(), interesting, new Piece[5]);
+        BitSet prioritized = new BitSet();
+        prioritized.set(2);
+        prioritized.set(4);
+        Mockito.verify(requestStrategy).choosePiece(
+                Mockito.<SortedSet<Piece>>any(),
+                Mockito.eq(prioritized),
+                Mockito.<Piece[]>any());
+    }
+}
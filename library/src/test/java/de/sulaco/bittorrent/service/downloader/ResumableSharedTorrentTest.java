@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Piece;
+import com.turn.ttorrent.common.Torrent;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public final class ResumableSharedTorrentTest {
+
+    private static final String TEMPORARY_DIRECTORY = "src/test/resources/temporary_selection";
+    private static final String SOURCE_DIRECTORY = TEMPORARY_DIRECTORY + "/source/content";
+    private static final String DESTINATION_DIRECTORY = TEMPORARY_DIRECTORY + "/destination";
+
+    private File skippedFile;
+    private File selectedFile;
+    private Torrent torrent;
+
+    @Before
+    public void createTorrent() throws Exception {
+        FileUtils.forceMkdir(new File(DESTINATION_DIRECTORY));
+        skippedFile = createFile("skipped.bin", Torrent.DEFAULT_PIECE_LENGTH);
+        selectedFile = createFile("selected.bin", 1000);
+        torrent = Torrent.create(
+                new File(SOURCE_DIRECTORY),
+                Arrays.asList(skippedFile, selectedFile),
+                new URI("http://localhost/announce"),
+                "test");
+    }
+
+    @After
+    public void deleteTempDirectory() throws IOException {
+        FileUtils.deleteDirectory(new File(TEMPORARY_DIRECTORY));
+    }
+
+    private static File createFile(String name, int size) throws IOException {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) name.length());
+        File file = new File(SOURCE_DIRECTORY, name);
+        FileUtils.writeByteArrayToFile(file, content);
+        return file;
+    }
+
+    @Test
+    public void testSelectionIsCompleteWithoutSkippedFiles() throws Exception {
+        FileUtils.copyFileToDirectory(selectedFile, new File(DESTINATION_DIRECTORY, "content"));
+        ResumableSharedTorrent sharedTorrent = new ResumableSharedTorrent(
+                torrent,
+                new File(DESTINATION_DIRECTORY),
+                new BitSet());
+        sharedTorrent.setFilePriorities(new int[] {FileSelector.SKIP});
+        sharedTorrent.init();
+
+        assertThat(sharedTorrent.isComplete()).isFalse();
+        assertThat(sharedTorrent.isSelectionComplete()).isTrue();
+        assertThat(sharedTorrent.getCompletion()).isEqualTo(100f);
+
+        sharedTorrent.close();
+        sharedTorrent.finishSelection();
+        File skippedTarget = sharedTorrent.getTargetFiles().get(0);
+        assertThat(ResumableSharedTorrent.getContentFile(skippedTarget).exists()).isFalse();
+        assertThat(sharedTorrent.getTargetFiles().get(1).length()).isEqualTo(1000);
+        BitSet resumablePieces = new BitSet();
+        resumablePieces.set(1);
+        assertThat(sharedTorrent.getResumablePieces()).isEqualTo(resumablePieces);
+    }
+
+    @Test
+    public void testSelectionIsIncompleteWithoutSelectedFiles() throws Exception {
+        ResumableSharedTorrent sharedTorrent = new ResumableSharedTorrent(
+                torrent,
+                new File(DESTINATION_DIRECTORY),
+                new BitSet());
+        sharedTorrent.setFilePriorities(new int[] {FileSelector.SKIP});
+        sharedTorrent.init();
+
+        assertThat(sharedTorrent.isSelectionComplete()).isFalse();
+        assertThat(sharedTorrent.getCompletion()).isEqualTo(0f);
+        sharedTorrent.close();
+    }
+
+    @Test
+    public void testHashMissingPiecesOnReceive() throws Exception {
+        FileUtils.copyFileToDirectory(selectedFile, new File(DESTINATION_DIRECTORY, "content"));
+        ResumableSharedTorrent sharedTorrent = new ResumableSharedTorrent(
+                torrent,
+                new File(DESTINATION_DIRECTORY),
+                new BitSet());
+        sharedTorrent.init();
+
+        assertThat(sharedTorrent.getPiece(0)).isInstanceOf(HashingPiece.class);
+        assertThat(sharedTorrent.getPiece(0).size()).isEqualTo(Torrent.DEFAULT_PIECE_LENGTH);
+        assertThat(sharedTorrent.getPiece(1)).isNotInstanceOf(HashingPiece.class);
+        assertThat(sharedTorrent.getPiece(1).isValid()).isTrue();
+        sharedTorrent.close();
+    }
+
+    @Test
+    public void testCloseReleasesPiecesWithoutTorrentLock() throws Exception {
+        final ResumableSharedTorrent sharedTorrent = new ResumableSharedTorrent(
+                torrent,
+                new File(DESTINATION_DIRECTORY),
+                new BitSet());
+        sharedTorrent.init();
+        Piece piece = sharedTorrent.getPiece(0);
+        assertThat(piece).isInstanceOf(HashingPiece.class);
+
+        Thread closingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sharedTorrent.close();
+            }
+        });
+        Thread lockingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sharedTorrent) {
+                    sharedTorrent.getCompletion();
+                }
+            }
+        });
+        synchronized (piece) {
+            // holds the piece lock like a peer thread that records a block
+            closingThread.start();
+            while (closingThread.getState() != Thread.State.BLOCKED && closingThread.isAlive()) {
+                Thread.sleep(1);
+            }
+            lockingThread.start();
+            lockingThread.join(1000);
+            assertThat(lockingThread.isAlive()).isFalse();
+        }
+        closingThread.join();
+    }
+
+    @Test
+    public void testVerifiedContentIsNotHashedAgain() throws Exception {
+        FileUtils.copyFileToDirectory(skippedFile, new File(DESTINATION_DIRECTORY, "content"));
+        FileUtils.copyFileToDirectory(selectedFile, new File(DESTINATION_DIRECTORY, "content"));
+        ResumableSharedTorrent sharedTorrent = new ResumableSharedTorrent(
+                torrent,
+                new File(DESTINATION_DIRECTORY),
+                new BitSet());
+        BitSet validPieces = new BitSet();
+        validPieces.set(1);
+        // piece 0 is valid on disk, init takes the verification result as is
+        sharedTorrent.setVerifiedContent(validPieces);
+        sharedTorrent.init();
+
+        assertThat(sharedTorrent.getPiece(0).isValid()).isFalse();
+        assertThat(sharedTorrent.getPiece(1).isValid()).isTrue();
+        assertThat(sharedTorrent.getCompletedPieces()).isEqualTo(validPieces);
+        assertThat(sharedTorrent.getLeft()).isEqualTo(Torrent.DEFAULT_PIECE_LENGTH);
+        sharedTorrent.close();
+    }
+
+    @Test
+    public void testLeaveCachedPiecesOutOfResumablePieces() throws Exception {
+        FileUtils.copyFileToDirectory(selectedFile, new File(DESTINATION_DIRECTORY, "content"));
+        ResumableSharedTorrent sharedTorrent = new ResumableSharedTorrent(
+                torrent,
+                new File(DESTINATION_DIRECTORY),
+                new BitSet());
+        assertThat(sharedTorrent.useWriteCache(Torrent.DEFAULT_PIECE_LENGTH)).isTrue();
+        sharedTorrent.init();
+        sharedTorrent.getWriteCache().write(
+                ByteBuffer.allocate(1000),
+                Torrent.DEFAULT_PIECE_LENGTH);
+
+        assertThat(sharedTorrent.getResumablePieces().isEmpty()).isTrue();
+        sharedTorrent.flush();
+        assertThat(sharedTorrent.getResumablePieces().get(1)).isTrue();
+        sharedTorrent.close();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.common.Torrent;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public final class ResumeStoreTest {
+
+    private static final String TORRENT_FILE = "src/test/resources/torrents/photo.torrent";
+    private static final String CONTENT_FILE = "src/test/resources/content/photo.jpg";
+    private static final String CONTENT_FILE_PART = "src/test/resources/content_part/photo.jpg.part";
+    private static final String TEMPORARY_DIRECTORY = "src/test/resources/temporary_resume";
+    private static final String DESTINATION_DIRECTORY = TEMPORARY_DIRECTORY + "/destination";
+    private static final String RESUME_DIRECTORY = TEMPORARY_DIRECTORY + "/resume";
+
+    @Before
+    public void createTempDirectory() throws IOException {
+        FileUtils.forceMkdir(new File(DESTINATION_DIRECTORY));
+    }
+
+    @After
+    public void deleteTempDirectory() throws IOException {
+        FileUtils.deleteDirectory(new File(TEMPORARY_DIRECTORY));
+    }
+
+    private static ResumableSharedTorrent initTorrent(Torrent torrent, BitSet verifiedPieces)
+            throws Exception {
+        ResumableSharedTorrent sharedTorrent = new ResumableSharedTorrent(
+                torrent,
+                new File(DESTINATION_DIRECTORY),
+                verifiedPieces);
+        sharedTorrent.init();
+        return sharedTorrent;
+    }
+
+    @Test
+    public void testLoadWithoutRecord() throws Exception {
+        Torrent torrent = Torrent.load(new File(TORRENT_FILE));
+        ResumeStore resumeStore = new ResumeStore(new File(RESUME_DIRECTORY));
+        assertThat(resumeStore.load(torrent, new File(DESTINATION_DIRECTORY)).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE), new File(DESTINATION_DIRECTORY));
+        Torrent torrent = Torrent.load(new File(TORRENT_FILE));
+        ResumableSharedTorrent sharedTorrent = initTorrent(torrent, new BitSet());
+        assertThat(sharedTorrent.isComplete()).isTrue();
+        ResumeStore resumeStore = new ResumeStore(new File(RESUME_DIRECTORY));
+        resumeStore.save(sharedTorrent);
+        sharedTorrent.close();
+
+        BitSet verifiedPieces = resumeStore.load(torrent, new File(DESTINATION_DIRECTORY));
+        assertThat(verifiedPieces).isEqualTo(sharedTorrent.getCompletedPieces());
+    }
+
+    @Test
+    public void testLoadAfterContentChanged() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE), new File(DESTINATION_DIRECTORY));
+        Torrent torrent = Torrent.load(new File(TORRENT_FILE));
+        ResumableSharedTorrent sharedTorrent = initTorrent(torrent, new BitSet());
+        ResumeStore resumeStore = new ResumeStore(new File(RESUME_DIRECTORY));
+        resumeStore.save(sharedTorrent);
+        sharedTorrent.close();
+
+        File content = new File(DESTINATION_DIRECTORY, new File(CONTENT_FILE).getName());
+        assertThat(content.setLastModified(content.lastModified() - 10000)).isTrue();
+        assertThat(resumeStore.load(torrent, new File(DESTINATION_DIRECTORY)).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testLoadAfterContentRewritten() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE), new File(DESTINATION_DIRECTORY));
+        Torrent torrent = Torrent.load(new File(TORRENT_FILE));
+        ResumableSharedTorrent sharedTorrent = initTorrent(torrent, new BitSet());
+        ResumeStore resumeStore = new ResumeStore(new File(RESUME_DIRECTORY));
+        resumeStore.save(sharedTorrent);
+        sharedTorrent.close();
+
+        File content = new File(DESTINATION_DIRECTORY, new File(CONTENT_FILE).getName());
+        assertThat(content.setLastModified(content.lastModified() + 10000)).isTrue();
+        assertThat(resumeStore.load(torrent, new File(DESTINATION_DIRECTORY)).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testLoadForOtherDestination() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE), new File(DESTINATION_DIRECTORY));
+        Torrent torrent = Torrent.load(new File(TORRENT_FILE));
+        ResumableSharedTorrent sharedTorrent = initTorrent(torrent, new BitSet());
+        ResumeStore resumeStore = new ResumeStore(new File(RESUME_DIRECTORY));
+        resumeStore.save(sharedTorrent);
+        sharedTorrent.close();
+
+        assertThat(resumeStore.load(torrent, new File(TEMPORARY_DIRECTORY)).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void testVerifiedPiecesSkipHashCheck() throws Exception {
+        FileUtils.copyFileToDirectory(new File(CONTENT_FILE_PART), new File(DESTINATION_DIRECTORY));
+        Torrent torrent = Torrent.load(new File(TORRENT_FILE));
+        ResumableSharedTorrent hashedTorrent = initTorrent(torrent, new BitSet());
+        assertThat(hashedTorrent.isComplete()).isFalse();
+        int pieceCount = hashedTorrent.getPieceCount();
+        hashedTorrent.close();
+
+        BitSet allPieces = new BitSet();
+        allPieces.set(0, pieceCount);
+        ResumableSharedTorrent resumedTorrent = initTorrent(torrent, allPieces);
+        assertThat(resumedTorrent.getCompletedPieces()).isEqualTo(allPieces);
+        resumedTorrent.close();
+    }
+}
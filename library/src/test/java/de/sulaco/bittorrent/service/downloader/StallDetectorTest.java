@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import org.junit.Test;
+
+import de.sulaco.bittorrent.service.intent.DownloadState;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StallDetectorTest {
+
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    @Test
+    public void testDisabledPolicyNeverStalls() {
+        StallDetector stallDetector = new StallDetector(new StallPolicy(), 0);
+        assertThat(stallDetector.check(1000 * SECOND)).isEqualTo(StallDetector.NOT_STALLED);
+        assertThat(stallDetector.getNanosUntilNextCheck(1000 * SECOND)).isEqualTo(0);
+    }
+
+    @Test
+    public void testStalledWithoutBytesInWindow() {
+        StallDetector stallDetector = new StallDetector(
+                new StallPolicy().setStallWindow(10 * 1000), 0);
+        stallDetector.addSample(5 * SECOND, 100);
+        assertThat(stallDetector.check(14 * SECOND)).isEqualTo(StallDetector.NOT_STALLED);
+        assertThat(stallDetector.getNanosUntilNextCheck(14 * SECOND)).isEqualTo(SECOND);
+        assertThat(stallDetector.check(15 * SECOND)).isEqualTo(DownloadState.STALLED);
+    }
+
+    @Test
+    public void testStallStateIsConfigurable() {
+        StallDetector stallDetector = new StallDetector(
+                new StallPolicy().setStallWindow(10 * 1000), DownloadState.TIMED_OUT, 0);
+        assertThat(stallDetector.check(10 * SECOND)).isEqualTo(DownloadState.TIMED_OUT);
+    }
+
+    @Test
+    public void testRestartResetsStallClock() {
+        StallDetector stallDetector = new StallDetector(
+                new StallPolicy().setStallWindow(10 * 1000), 0);
+        stallDetector.restart(8 * SECOND, 0);
+        assertThat(stallDetector.check(12 * SECOND)).isEqualTo(StallDetector.NOT_STALLED);
+        assertThat(stallDetector.check(18 * SECOND)).isEqualTo(DownloadState.STALLED);
+    }
+
+    @Test
+    public void testThroughputTooLow() {
+        StallDetector stallDetector = new StallDetector(
+                new StallPolicy().setStallWindow(10 * 1000).setMinThroughput(100), 0);
+        for (int second = 1; second <= 10; second++) {
+            stallDetector.addSample(second * SECOND, second * 200);
+        }
+        assertThat(stallDetector.check(10 * SECOND)).isEqualTo(StallDetector.NOT_STALLED);
+        for (int second = 11; second <= 20; second++) {
+            stallDetector.addSample(second * SECOND, 2000 + second * 40);
+        }
+        assertThat(stallDetector.check(20 * SECOND)).isEqualTo(DownloadState.THROUGHPUT_TOO_LOW);
+    }
+
+    @Test
+    public void testNoPeersWithinGracePeriod() {
+        StallDetector stallDetector = new StallDetector(
+                new StallPolicy().setStallWindow(10 * 1000).setGracePeriod(30 * 1000), 0);
+        assertThat(stallDetector.getNanosUntilNextCheck(0)).isEqualTo(30 * SECOND);
+        assertThat(stallDetector.check(29 * SECOND)).isEqualTo(StallDetector.NOT_STALLED);
+        assertThat(stallDetector.check(30 * SECOND)).isEqualTo(DownloadState.NO_PEERS);
+    }
+
+    @Test
+    public void testStallWindowStartsAfterGracePeriod() {
+        StallDetector stallDetector = new StallDetector(
+                new StallPolicy().setStallWindow(10 * 1000).setGracePeriod(30 * 1000), 0);
+        stallDetector.addSample(25 * SECOND, 100);
+        assertThat(stallDetector.check(35 * SECOND)).isEqualTo(StallDetector.NOT_STALLED);
+        assertThat(stallDetector.check(40 * SECOND)).isEqualTo(DownloadState.STALLED);
+    }
+
+    @Test
+    public void testDeadlineExceeded() {
+        StallDetector stallDetector = new StallDetector(
+                new StallPolicy().setDeadline(60 * 1000), 0);
+        stallDetector.restart(30 * SECOND, 0);
+        stallDetector.addSample(59 * SECOND, 100);
+        assertThat(stallDetector.getNanosUntilNextCheck(59 * SECOND)).isEqualTo(SECOND);
+        assertThat(stallDetector.check(60 * SECOND)).isEqualTo(DownloadState.DEADLINE_EXCEEDED);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.sulaco.bittorrent.service.intent.DownloadState;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StallTrackerTest {
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final StallTracker stallTracker = new StallTracker(executor);
+
+    private static class StallRecorder implements StallTracker.StallListener {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final AtomicInteger downloadState = new AtomicInteger(StallDetector.NOT_STALLED);
+
+        @Override
+        public void onStalled(int downloadState) {
+            this.downloadState.set(downloadState);
+            stalled.countDown();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testStalledDownloadIsReported() throws InterruptedException {
+        StallRecorder stallRecorder = new StallRecorder();
+        stallTracker.watch(createStallDetector(100), stallRecorder);
+        assertThat(stallRecorder.stalled.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(stallRecorder.downloadState.get()).isEqualTo(DownloadState.STALLED);
+    }
+
+    @Test
+    public void testActivityPreventsStall() throws InterruptedException {
+        StallRecorder stallRecorder = new StallRecorder();
+        StallTracker.Watch watch = stallTracker.watch(createStallDetector(200), stallRecorder);
+        for (int i = 1; i <= 20; i++) {
+            watch.onActivity(System.nanoTime(), i * 1000);
+            Thread.sleep(20);
+        }
+        assertThat(stallRecorder.stalled.getCount()).isEqualTo(1);
+        assertThat(stallRecorder.stalled.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testCancelledWatchIsNotReported() throws InterruptedException {
+        StallRecorder stallRecorder = new StallRecorder();
+        StallTracker.Watch watch = stallTracker.watch(createStallDetector(100), stallRecorder);
+        watch.cancel();
+        assertThat(stallRecorder.stalled.await(300, TimeUnit.MILLISECONDS)).isFalse();
+    }
+
+    @Test
+    public void testPausedWatchIsNotReported() throws InterruptedException {
+        StallRecorder stallRecorder = new StallRecorder();
+        StallTracker.Watch watch = stallTracker.watch(createStallDetector(100), stallRecorder);
+        watch.setPaused(true);
+        assertThat(stallRecorder.stalled.await(300, TimeUnit.MILLISECONDS)).isFalse();
+        watch.setPaused(false);
+        assertThat(stallRecorder.stalled.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private static StallDetector createStallDetector(long stallWindowMillis) {
+        return new StallDetector(
+                new StallPolicy().setStallWindow(stallWindowMillis),
+                System.nanoTime());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class StreamServerTest {
+
+    private static final String TEMPORARY_DIRECTORY = "src/test/resources/temporary_stream";
+    private static final String INFO_HASH = "0123456789abcdef";
+    private static final int PIECE_LENGTH = 10;
+
+    private final StreamServer streamServer = new StreamServer();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final StreamingRequestStrategy requestStrategy = new StreamingRequestStrategy(20);
+    private byte[] content;
+    private Stream stream;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[100];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) i;
+        }
+        File file = new File(TEMPORARY_DIRECTORY, "video.mp4");
+        FileUtils.writeByteArrayToFile(file, content);
+        stream = new Stream(
+                INFO_HASH,
+                Collections.singletonList(file),
+                new long[] {content.length},
+                PIECE_LENGTH,
+                requestStrategy);
+        streamServer.register(stream);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        streamServer.stop();
+        FileUtils.deleteDirectory(new File(TEMPORARY_DIRECTORY));
+    }
+
+    @Test
+    public void testRangeRequestWaitsForPieces() throws Exception {
+        Future<byte[]> response = executor.submit(createRequest(streamServer.getStreamUrl(INFO_HASH, 0), "bytes=25-44", 206));
+        try {
+            response.get(300, TimeUnit.MILLISECONDS);
+            failBecauseExceptionWasNotThrown(TimeoutException.class);
+        } catch (TimeoutException expectedException) {
+        }
+        assertThat(requestStrategy.getPlayhead()).isEqualTo(2);
+        BitSet completedPieces = new BitSet();
+        completedPieces.set(2, 5);
+        stream.setCompletedPieces(completedPieces);
+        assertThat(response.get(5, TimeUnit.SECONDS)).isEqualTo(Arrays.copyOfRange(content, 25, 45));
+    }
+
+    @Test
+    public void testCompletedStream() throws Exception {
+        streamServer.unregister(stream, true);
+        String url = streamServer.getStreamUrl(INFO_HASH, 0);
+        assertThat(executor.submit(createRequest(url, null, 200)).get(5, TimeUnit.SECONDS))
+                .isEqualTo(content);
+        assertThat(executor.submit(createRequest(url, "bytes=-10", 206)).get(5, TimeUnit.SECONDS))
+                .isEqualTo(Arrays.copyOfRange(content, 90, 100));
+    }
+
+    @Test
+    public void testUnknownStream() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                streamServer.getStreamUrl("unknown", 0)).openConnection();
+        assertThat(connection.getResponseCode()).isEqualTo(404);
+        connection.disconnect();
+    }
+
+    @Test
+    public void testParseRange() {
+        assertThat(StreamConnection.parseRange("bytes=10-19", 100)).containsExactly(10, 19);
+        assertThat(StreamConnection.parseRange("bytes=90-", 100)).containsExactly(90, 99);
+        assertThat(StreamConnection.parseRange("bytes=50-200", 100)).containsExactly(50, 99);
+        assertThat(StreamConnection.parseRange("bytes=-200", 100)).containsExactly(0, 99);
+        assertThat(StreamConnection.parseRange("bytes=100-", 100)).isNull();
+        assertThat(StreamConnection.parseRange("bytes=0-1,5-6", 100)).isNull();
+        assertThat(StreamConnection.parseRange("items=0-1", 100)).isNull();
+    }
+
+    private static Callable<byte[]> createRequest(
+            final String url,
+            final String range,
+            final int expectedResponseCode) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                if (range != null) {
+                    connection.setRequestProperty("Range", range);
+                }
+                try {
+                    assertThat(connection.getResponseCode()).isEqualTo(expectedResponseCode);
+                    return IOUtils.toByteArray(connection.getInputStream());
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        };
+    }
+}
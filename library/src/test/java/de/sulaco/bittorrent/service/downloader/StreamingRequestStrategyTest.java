@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Piece;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.BitSet;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StreamingRequestStrategyTest {
+
+    @Test
+    public void testPiecesAfterPlayheadComeFirst() {
+        Piece[] pieces = createPieces(10, 100);
+        BitSet interesting = new BitSet();
+        interesting.set(1);
+        interesting.set(5);
+        interesting.set(8);
+        StreamingRequestStrategy requestStrategy = new StreamingRequestStrategy(300);
+        assertThat(requestStrategy.choosePiece(new TreeSet<Piece>(), interesting, pieces))
+                .isSameAs(pieces[1]);
+        requestStrategy.setPlayhead(3);
+        assertThat(requestStrategy.choosePiece(new TreeSet<Piece>(), interesting, pieces))
+                .isSameAs(pieces[5]);
+        requestStrategy.setPlayhead(6);
+        assertThat(requestStrategy.choosePiece(new TreeSet<Piece>(), interesting, pieces))
+                .isSameAs(pieces[8]);
+    }
+
+    private static Piece[] createPieces(int count, long size) {
+        Piece[] pieces = new Piece[count];
+        for (int i = 0; i < count; ++i) {
+            pieces[i] = Mockito.mock(Piece.class);
+            Mockito.when(pieces[i].size()).thenReturn(size);
+            Mockito.when(pieces[i].getIndex()).thenReturn(i);
+        }
+        return pieces;
+    }
+}
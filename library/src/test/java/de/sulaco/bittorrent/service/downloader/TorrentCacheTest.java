@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.common.Torrent;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public final class TorrentCacheTest {
+
+    private static final String TORRENT_FILE = "src/test/resources/torrents/photo.torrent";
+    private static final String TEMPORARY_DIRECTORY = "src/test/resources/temporary_cache";
+
+    private File torrentFile;
+
+    @Before
+    public void createTempDirectory() throws IOException {
+        File directory = new File(TEMPORARY_DIRECTORY);
+        FileUtils.forceMkdir(directory);
+        FileUtils.copyFileToDirectory(new File(TORRENT_FILE), directory);
+        torrentFile = new File(directory, "photo.torrent");
+    }
+
+    @After
+    public void deleteTempDirectory() throws IOException {
+        FileUtils.deleteDirectory(new File(TEMPORARY_DIRECTORY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new TorrentCache(0);
+    }
+
+    @Test
+    public void testHit() throws Exception {
+        TorrentCache cache = new TorrentCache(2);
+        Torrent torrent = cache.load(torrentFile);
+        assertThat(cache.load(torrentFile)).isSameAs(torrent);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testModifiedFileIsReloaded() throws Exception {
+        TorrentCache cache = new TorrentCache(2);
+        Torrent torrent = cache.load(torrentFile);
+        torrentFile.setLastModified(torrentFile.lastModified() - 10000);
+        Torrent reloadedTorrent = cache.load(torrentFile);
+        assertThat(reloadedTorrent).isNotSameAs(torrent);
+        assertThat(reloadedTorrent.getHexInfoHash()).isEqualTo(torrent.getHexInfoHash());
+        assertThat(cache.getMissCount()).isEqualTo(2);
+        assertThat(cache.getHitCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+        File secondFile = new File(TEMPORARY_DIRECTORY, "second.torrent");
+        File thirdFile = new File(TEMPORARY_DIRECTORY, "third.torrent");
+        FileUtils.copyFile(torrentFile, secondFile);
+        FileUtils.copyFile(torrentFile, thirdFile);
+        TorrentCache cache = new TorrentCache(2);
+        cache.load(torrentFile);
+        cache.load(secondFile);
+        cache.load(torrentFile);
+        cache.load(thirdFile);
+        assertThat(cache.size()).isEqualTo(2);
+        cache.load(torrentFile);
+        assertThat(cache.getHitCount()).isEqualTo(2);
+        cache.load(secondFile);
+        assertThat(cache.getMissCount()).isEqualTo(4);
+    }
+}
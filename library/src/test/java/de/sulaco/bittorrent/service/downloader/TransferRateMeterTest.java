@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class TransferRateMeterTest {
+
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    @Test
+    public void testWithoutSamples() {
+        TransferRateMeter meter = new TransferRateMeter(10 * SECOND);
+        assertThat(meter.getRate()).isEqualTo(0);
+        meter.addSample(0, 100);
+        assertThat(meter.getRate()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRate() {
+        TransferRateMeter meter = new TransferRateMeter(10 * SECOND);
+        meter.addSample(0, 0);
+        meter.addSample(2 * SECOND, 2000);
+        assertThat(meter.getRate()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        TransferRateMeter meter = new TransferRateMeter(10 * SECOND);
+        meter.addSample(0, 0);
+        meter.addSample(5 * SECOND, 100000);
+        meter.addSample(15 * SECOND, 110000);
+        meter.addSample(25 * SECOND, 120000);
+        assertThat(meter.getRate()).isEqualTo(1000);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.downloader;
+
+import com.turn.ttorrent.client.Client;
+import com.turn.ttorrent.client.peer.SharingPeer;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import de.sulaco.bittorrent.service.intent.DownloadState;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TtorrentClientObserverTest {
+
+    @Test
+    public void testPreparationIsWatched() throws InterruptedException {
+        TtorrentClientObserver observer = new TtorrentClientObserver();
+        observer.startWatch(new StallDetector(new StallPolicy().setDeadline(50), System.nanoTime()));
+        PieceVerifier.CancellationSignal signal = observer.createPreparationSignal();
+        try {
+            long timeoutNanos = System.nanoTime() + 5L * 1000 * 1000 * 1000;
+            while (!signal.isCancelled() && System.nanoTime() < timeoutNanos) {
+                Thread.sleep(10);
+            }
+            assertThat(signal.isCancelled()).isTrue();
+            assertThat(observer.getCancellationState()).isEqualTo(DownloadState.DEADLINE_EXCEEDED);
+        } finally {
+            observer.endWatch();
+        }
+    }
+
+    @Test
+    public void testPreparationIsCancelledWhenDisabled() {
+        TtorrentClientObserver observer = new TtorrentClientObserver();
+        observer.startWatch(new StallDetector(new StallPolicy(), System.nanoTime()));
+        PieceVerifier.CancellationSignal signal = observer.createPreparationSignal();
+        try {
+            assertThat(signal.isCancelled()).isFalse();
+            observer.setEnabled(false);
+            assertThat(signal.isCancelled()).isTrue();
+            assertThat(observer.getCancellationState()).isEqualTo(DownloadState.ABORTED);
+        } finally {
+            observer.endWatch();
+        }
+    }
+
+    @Test
+    public void testPauseIsAppliedByDownloadThread() throws InterruptedException {
+        final TtorrentClientObserver observer = new TtorrentClientObserver();
+        final Client client = Mockito.mock(Client.class);
+        ResumableSharedTorrent sharedTorrent = Mockito.mock(ResumableSharedTorrent.class);
+        Mockito.when(client.getState()).thenReturn(Client.ClientState.SHARING);
+        Mockito.when(client.getTorrent()).thenReturn(sharedTorrent);
+        Mockito.when(client.getPeers()).thenReturn(Collections.<SharingPeer>emptySet());
+        final Thread[] pausingThread = new Thread[1];
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                pausingThread[0] = Thread.currentThread();
+                return null;
+            }
+        }).when(sharedTorrent).pause(Mockito.<Collection<SharingPeer>>any());
+        observer.startWatch(new StallDetector(new StallPolicy(), System.nanoTime()));
+        Thread downloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                observer.waitForCompletionOrTimeout(client);
+            }
+        });
+        try {
+            downloadThread.start();
+            observer.setPaused(true);
+            Mockito.verify(sharedTorrent, Mockito.timeout(5000)).pause(Mockito.<Collection<SharingPeer>>any());
+        } finally {
+            observer.setEnabled(false);
+            downloadThread.join();
+            observer.endWatch();
+        }
+        assertThat(pausingThread[0]).isSameAs(downloadThread);
+    }
+}
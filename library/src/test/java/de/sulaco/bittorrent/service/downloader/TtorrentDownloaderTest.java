@@ -213,6 +213,37 @@ public final class TtorrentDownloaderTest {
         Mockito.verify(downloadListener, Mockito.times(1)).onDownloadEnd(TORRENT_FILE, DownloadState.ABORTED);
     }
 
+    @Test
+    public void testSettingsDoNotWaitForRunningDownload() throws InterruptedException {
+        final TtorrentDownloader ttorrentDownloader = new TtorrentDownloader();
+        DownloadListener downloadListener = Mockito.mock(DownloadListener.class);
+        ttorrentDownloader.setDownloadListener(downloadListener);
+        Thread downloadThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ttorrentDownloader.download(TORRENT_FILE, TEMPORARY_DIRECTORY);
+            }
+        });
+        downloadThread.start();
+        Mockito.verify(downloadListener, Mockito.timeout(5000)).onDownloadStart(TORRENT_FILE);
+        Thread configureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ttorrentDownloader.setStallPolicy(new StallPolicy());
+                ttorrentDownloader.setPreallocationMode(TtorrentDownloader.PREALLOCATION_FULL);
+                ttorrentDownloader.setMemoryMappedStorageEnabled(true);
+                ttorrentDownloader.setWriteCacheSize(0);
+            }
+        });
+        configureThread.start();
+        configureThread.join(5000);
+        boolean isConfigured = !configureThread.isAlive();
+        ttorrentDownloader.setEnabled(false);
+        downloadThread.join();
+        configureThread.join();
+        assertThat(isConfigured).isTrue();
+    }
+
     private Tracker startTracker() throws IOException, NoSuchAlgorithmException {
         Tracker tracker = new Tracker(new InetSocketAddress("127.0.0.1", 9876));
         tracker.announce(TrackedTorrent.load(new File(TORRENT_FILE)));
@@ -256,6 +287,28 @@ public final class TtorrentDownloaderTest {
         tracker.stop();
     }
 
+    @Test
+    public void testDownloadWithMappedStorage() throws IOException, NoSuchAlgorithmException {
+        Tracker tracker = startTracker();
+        Client client = startSeeder();
+
+        DownloadListener downloadListener = Mockito.mock(DownloadListener.class);
+        TtorrentDownloader ttorrentDownloader = new TtorrentDownloader();
+        ttorrentDownloader.setDownloadListener(downloadListener);
+        ttorrentDownloader.setTimeout(60 * 1000);
+        ttorrentDownloader.setPreallocationMode(TtorrentDownloader.PREALLOCATION_FULL);
+        ttorrentDownloader.setMemoryMappedStorageEnabled(true);
+        ttorrentDownloader.download(TORRENT_FILE, TEMPORARY_DIRECTORY);
+
+        Mockito.verify(downloadListener, Mockito.times(1)).onDownloadEnd(TORRENT_FILE, DownloadState.COMPLETED);
+        File source = new File(CONTENT_DIRECTORY + File.separator + CONTENT_NAME);
+        File result = new File(TEMPORARY_DIRECTORY + File.separator + CONTENT_NAME);
+        assertThat(FileUtils.contentEquals(source, result)).isTrue();
+
+        client.stop();
+        tracker.stop();
+    }
+
     @Test
     public void testDownloadWithoutDownloadListener()  throws IOException, NoSuchAlgorithmException {
         // Start seeder and tracker
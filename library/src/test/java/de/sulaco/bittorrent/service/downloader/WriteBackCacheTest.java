@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package de.sulaco.bittorrent.service.downloader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+public class WriteBackCacheTest {
+
+    private static final int PIECE_LENGTH = 100;
+
+    private MemoryStorage storage;
+    private WriteBackCache cache;
+
+    @Before
+    public void createCache() {
+        storage = new MemoryStorage(10 * PIECE_LENGTH);
+        cache = new WriteBackCache(storage, 3 * PIECE_LENGTH);
+    }
+
+    private static ByteBuffer createPiece(int index) {
+        byte[] content = new byte[PIECE_LENGTH];
+        for (int i = 0; i < content.length; ++i) {
+            content[i] = (byte) (index * 7 + i);
+        }
+        return ByteBuffer.wrap(content);
+    }
+
+    private void write(int... indices) throws IOException {
+        for (int index : indices) {
+            cache.write(createPiece(index), index * PIECE_LENGTH);
+        }
+    }
+
+    @Test
+    public void testCacheWithinBudget() throws Exception {
+        write(5, 1, 3);
+        assertThat(storage.writes).isEqualTo(0);
+        assertThat(cache.getDirtyBytes()).isEqualTo(3 * PIECE_LENGTH);
+        assertThat(cache.isDirty(PIECE_LENGTH, PIECE_LENGTH)).isTrue();
+        assertThat(cache.isDirty(2 * PIECE_LENGTH, PIECE_LENGTH)).isFalse();
+        assertThat(cache.isDirty(2 * PIECE_LENGTH, PIECE_LENGTH + 1)).isTrue();
+    }
+
+    @Test
+    public void testFlushSortedOnceBudgetIsExceeded() throws Exception {
+        write(5, 1, 3, 7);
+        assertThat(storage.writes).isEqualTo(3);
+        assertThat(storage.lastWriteOffset).isEqualTo(5 * PIECE_LENGTH);
+        assertThat(cache.getDirtyBytes()).isEqualTo(PIECE_LENGTH);
+        ByteBuffer content = ByteBuffer.allocate(PIECE_LENGTH);
+        storage.read(content, 3 * PIECE_LENGTH);
+        assertThat(content.array()).isEqualTo(createPiece(3).array());
+    }
+
+    @Test
+    public void testReplacePieceWithoutFlush() throws Exception {
+        write(1, 1, 1, 1);
+        assertThat(storage.writes).isEqualTo(0);
+        assertThat(cache.getDirtyBytes()).isEqualTo(PIECE_LENGTH);
+    }
+
+    @Test
+    public void testReadFromCache() throws Exception {
+        write(2);
+        ByteBuffer content = ByteBuffer.allocate(10);
+        assertThat(cache.read(content, 2 * PIECE_LENGTH + 5)).isEqualTo(10);
+        assertThat(storage.reads).isEqualTo(0);
+        content.flip();
+        assertThat(content.get(0)).isEqualTo(createPiece(2).get(5));
+    }
+
+    @Test
+    public void testFlushBeforeOverlappingRead() throws Exception {
+        write(2, 3);
+        ByteBuffer content = ByteBuffer.allocate(2 * PIECE_LENGTH);
+        cache.read(content, 2 * PIECE_LENGTH);
+        assertThat(storage.reads).isEqualTo(1);
+        assertThat(cache.getDirtyBytes()).isEqualTo(0);
+        assertThat(content.get(PIECE_LENGTH)).isEqualTo(createPiece(3).get(0));
+    }
+
+    @Test
+    public void testWriteThroughIfLargerThanBudget() throws Exception {
+        cache.write(ByteBuffer.allocate(4 * PIECE_LENGTH), 0);
+        assertThat(storage.writes).isEqualTo(1);
+        assertThat(cache.getDirtyBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testKeepPiecesIfFlushFails() throws Exception {
+        write(1, 2);
+        storage.isFailing = true;
+        try {
+            cache.flush();
+            failBecauseExceptionWasNotThrown(IOException.class);
+        } catch (IOException expectedException) {
+        }
+        assertThat(cache.getDirtyBytes()).isEqualTo(2 * PIECE_LENGTH);
+        storage.isFailing = false;
+        cache.flush();
+        assertThat(cache.getDirtyBytes()).isEqualTo(0);
+        assertThat(storage.writes).isEqualTo(2);
+    }
+
+    @Test
+    public void testFlushOnClose() throws Exception {
+        write(1);
+        cache.close();
+        assertThat(storage.writes).isEqualTo(1);
+        assertThat(storage.isClosed).isTrue();
+    }
+}
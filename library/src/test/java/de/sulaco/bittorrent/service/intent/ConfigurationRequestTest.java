@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.intent;
+
+import android.content.Intent;
+
+import com.turn.ttorrent.core.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class ConfigurationRequestTest {
+
+    @Test
+    public void testDefaultRequest() {
+        Intent intent = new ConfigurationRequest().createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getAction()).isEqualTo(BitTorrentIntentConstants.ACTION_CONFIGURE);
+        assertThat(intent.getIntExtra(BitTorrentIntentConstants.EXTRA_MAX_ACTIVE_DOWNLOADS, -1))
+                .isEqualTo(1);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_PROGRESS_INTERVAL, -1))
+                .isEqualTo(0);
+        assertThat(intent.getIntExtra(BitTorrentIntentConstants.EXTRA_MIN_PROGRESS_DELTA, -1))
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void testSetProgressPolicy() {
+        Intent intent = new ConfigurationRequest()
+                .setProgressInterval(500)
+                .setMinProgressDelta(5)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_PROGRESS_INTERVAL, -1))
+                .isEqualTo(500);
+        assertThat(intent.getIntExtra(BitTorrentIntentConstants.EXTRA_MIN_PROGRESS_DELTA, -1))
+                .isEqualTo(5);
+    }
+
+    @Test
+    public void testSetBroadcastEnabled() {
+        Intent intent = new ConfigurationRequest().createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getBooleanExtra(BitTorrentIntentConstants.EXTRA_BROADCAST_ENABLED, false))
+                .isTrue();
+        intent = new ConfigurationRequest()
+                .setBroadcastEnabled(false)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getBooleanExtra(BitTorrentIntentConstants.EXTRA_BROADCAST_ENABLED, true))
+                .isFalse();
+    }
+
+    @Test
+    public void testSetPreemptionEnabled() {
+        Intent intent = new ConfigurationRequest().createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getBooleanExtra(BitTorrentIntentConstants.EXTRA_PREEMPTION_ENABLED, true))
+                .isFalse();
+        intent = new ConfigurationRequest()
+                .setPreemptionEnabled(true)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getBooleanExtra(BitTorrentIntentConstants.EXTRA_PREEMPTION_ENABLED, false))
+                .isTrue();
+    }
+
+    @Test
+    public void testSetMaxRates() {
+        Intent intent = new ConfigurationRequest()
+                .setMaxDownloadRate(1000)
+                .setMaxUploadRate(500)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_DOWNLOAD_RATE, -1))
+                .isEqualTo(1000);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_UPLOAD_RATE, -1))
+                .isEqualTo(500);
+    }
+
+    @Test
+    public void testNegativeMaxRate() {
+        ConfigurationRequest configurationRequest = new ConfigurationRequest()
+                .setMaxDownloadRate(-1);
+        try {
+            configurationRequest.createIntent(RuntimeEnvironment.application);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    @Test
+    public void testSetStallSettings() {
+        Intent intent = new ConfigurationRequest()
+                .setStallWindow(30000)
+                .setMinThroughput(1024)
+                .setGracePeriod(60000)
+                .setDeadline(3600000)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_STALL_WINDOW, -1))
+                .isEqualTo(30000);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MIN_THROUGHPUT, -1))
+                .isEqualTo(1024);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_GRACE_PERIOD, -1))
+                .isEqualTo(60000);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_DEADLINE, -1))
+                .isEqualTo(3600000);
+    }
+
+    @Test
+    public void testNegativeStallWindow() {
+        ConfigurationRequest configurationRequest = new ConfigurationRequest()
+                .setStallWindow(-1);
+        try {
+            configurationRequest.createIntent(RuntimeEnvironment.application);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    @Test
+    public void testSetMaxPeerConnections() {
+        Intent intent = new ConfigurationRequest()
+                .setMaxPeerConnections(40)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getIntExtra(BitTorrentIntentConstants.EXTRA_MAX_PEER_CONNECTIONS, -1))
+                .isEqualTo(40);
+    }
+
+    @Test
+    public void testSetPreallocationMode() {
+        Intent intent = new ConfigurationRequest()
+                .setPreallocationMode(ConfigurationRequest.PREALLOCATION_FULL)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getIntExtra(BitTorrentIntentConstants.EXTRA_PREALLOCATION_MODE, -1))
+                .isEqualTo(ConfigurationRequest.PREALLOCATION_FULL);
+    }
+
+    @Test
+    public void testSetMemoryMappedStorageEnabled() {
+        Intent intent = new ConfigurationRequest()
+                .setMemoryMappedStorageEnabled(true)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getBooleanExtra(
+                BitTorrentIntentConstants.EXTRA_MEMORY_MAPPED_STORAGE_ENABLED,
+                false)).isTrue();
+    }
+
+    @Test
+    public void testSetWriteCacheSize() {
+        Intent intent = new ConfigurationRequest()
+                .setWriteCacheSize(1024)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getLongExtra(
+                BitTorrentIntentConstants.EXTRA_WRITE_CACHE_SIZE,
+                0)).isEqualTo(1024);
+    }
+
+    @Test
+    public void testNegativeWriteCacheSize() {
+        ConfigurationRequest configurationRequest = new ConfigurationRequest()
+                .setWriteCacheSize(-1);
+        try {
+            configurationRequest.createIntent(RuntimeEnvironment.application);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    @Test
+    public void testInvalidPreallocationMode() {
+        ConfigurationRequest configurationRequest = new ConfigurationRequest()
+                .setPreallocationMode(-1);
+        try {
+            configurationRequest.createIntent(RuntimeEnvironment.application);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    @Test
+    public void testMinProgressDeltaOutOfRange() {
+        ConfigurationRequest configurationRequest = new ConfigurationRequest()
+                .setMinProgressDelta(0);
+        try {
+            configurationRequest.createIntent(RuntimeEnvironment.application);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    @Test
+    public void testSetMaxActiveDownloads() {
+        ConfigurationRequest configurationRequest = new ConfigurationRequest();
+        assertThat(configurationRequest.setMaxActiveDownloads(3)).isSameAs(configurationRequest);
+        Intent intent = configurationRequest.createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getIntExtra(BitTorrentIntentConstants.EXTRA_MAX_ACTIVE_DOWNLOADS, -1))
+                .isEqualTo(3);
+    }
+
+    @Test
+    public void testMaxActiveDownloadsOutOfRange() {
+        ConfigurationRequest configurationRequest = new ConfigurationRequest()
+                .setMaxActiveDownloads(0);
+        try {
+            configurationRequest.createIntent(RuntimeEnvironment.application);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Philipp Henkel
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.sulaco.bittorrent.service.intent;
+
+import android.content.Intent;
+
+import com.turn.ttorrent.core.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class)
+public class DownloadProgressBatchBroadcastTest {
+
+    @Test
+    public void testEmptyBatch() {
+        DownloadProgressBatchBroadcast batch = new DownloadProgressBatchBroadcast();
+        assertThat(batch.isEmpty()).isTrue();
+        try {
+            batch.createIntent();
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    @Test
+    public void testProgressOutOfRange() {
+        DownloadProgressBatchBroadcast batch = new DownloadProgressBatchBroadcast()
+                .addProgress("file", 101);
+        try {
+            batch.createIntent();
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    @Test
+    public void testCreateIntent() {
+        DownloadProgressBatchBroadcast batch = new DownloadProgressBatchBroadcast();
+        assertThat(batch.addProgress("file1", 10)).isSameAs(batch);
+        batch.addProgress("file2", 20);
+        Intent intent = batch.createIntent();
+        assertThat(intent.getAction())
+                .isEqualTo(BitTorrentIntentConstants.ACTION_BROADCAST_PROGRESS_BATCH);
+        assertThat(intent.getStringArrayExtra(BitTorrentIntentConstants.EXTRA_TORRENT_FILES))
+                .containsExactly("file1", "file2");
+        assertThat(intent.getIntArrayExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_PROGRESSES))
+                .containsExactly(10, 20);
+    }
+
+    @Test
+    public void testDetails() {
+        Intent intent = new DownloadProgressBatchBroadcast()
+                .addProgress("file1", 10)
+                .addProgress("file2", 20, new DownloadProgress().setProgress(20).setDownloadRate(100))
+                .createIntent();
+        assertThat(DownloadProgressBatchBroadcast.getDetails(intent, 0)).isNull();
+        DownloadProgress details = DownloadProgressBatchBroadcast.getDetails(intent, 1);
+        assertThat(details.getProgress()).isEqualTo(20);
+        assertThat(details.getDownloadRate()).isEqualTo(100);
+    }
+}
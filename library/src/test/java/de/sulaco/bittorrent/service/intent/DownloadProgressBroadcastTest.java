@@ -25,6 +25,7 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.annotation.Config;
 
+import de.sulaco.bittorrent.service.downloader.DownloadProgress;
 import de.sulaco.bittorrent.service.intent.BitTorrentIntentConstants;
 import de.sulaco.bittorrent.service.intent.DownloadProgressBroadcast;
 
@@ -86,4 +87,55 @@ public class DownloadProgressBroadcastTest {
         } catch (IllegalStateException expectedException) {
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBroadcastWithoutDetails() {
+        Intent intent = DownloadProgressBroadcast.createProgressIntent("file", 42);
+        assertThat(DownloadProgressBroadcast.getDetails(intent)).isNull();
+    }
+
+    @Test
+    public void testDetails() {
+        DownloadProgress details = new DownloadProgress()
+                .setProgress(42)
+                .setTotalBytes(1000)
+                .setDownloadedBytes(420)
+                .setUploadedBytes(10)
+                .setDownloadRate(100)
+                .setUploadRate(5)
+                .setConnectedPeers(7)
+                .setSeedingPeers(3)
+                .setEtaSeconds(6)
+                .setDownloadRateLimit(7)
+                .setUploadRateLimit(8)
+                .setDirtyBytes(9)
+                .setFlushLatencyMillis(11)
+                .setDiskQueueDepth(12)
+                .setDiskLatencyMillis(13)
+                .setBufferPoolUsedBytes(14)
+                .setBufferPoolMisses(15);
+        Intent intent = new DownloadProgressBroadcast()
+                .setTorrentFile("file")
+                .setProgress(42)
+                .setDetails(details)
+                .createIntent();
+        DownloadProgress receivedDetails = DownloadProgressBroadcast.getDetails(intent);
+        assertThat(receivedDetails.getProgress()).isEqualTo(42);
+        assertThat(receivedDetails.getTotalBytes()).isEqualTo(1000);
+        assertThat(receivedDetails.getDownloadedBytes()).isEqualTo(420);
+        assertThat(receivedDetails.getUploadedBytes()).isEqualTo(10);
+        assertThat(receivedDetails.getDownloadRate()).isEqualTo(100);
+        assertThat(receivedDetails.getUploadRate()).isEqualTo(5);
+        assertThat(receivedDetails.getConnectedPeers()).isEqualTo(7);
+        assertThat(receivedDetails.getSeedingPeers()).isEqualTo(3);
+        assertThat(receivedDetails.getEtaSeconds()).isEqualTo(6);
+        assertThat(receivedDetails.getDownloadRateLimit()).isEqualTo(7);
+        assertThat(receivedDetails.getUploadRateLimit()).isEqualTo(8);
+        assertThat(receivedDetails.getDirtyBytes()).isEqualTo(9);
+        assertThat(receivedDetails.getFlushLatencyMillis()).isEqualTo(11);
+        assertThat(receivedDetails.getDiskQueueDepth()).isEqualTo(12);
+        assertThat(receivedDetails.getDiskLatencyMillis()).isEqualTo(13);
+        assertThat(receivedDetails.getBufferPoolUsedBytes()).isEqualTo(14);
+        assertThat(receivedDetails.getBufferPoolMisses()).isEqualTo(15);
+    }
+}
@@ -94,4 +94,104 @@ public class DownloadRequestTest {
         assertThat(intent.getStringExtra(BitTorrentIntentConstants.EXTRA_DESTINATION_DIRECTORY))
                 .isEqualToIgnoringCase(destinationDirectory);
     }
+
+    @Test
+    public void testDownloadId() {
+        DownloadRequest downloadRequest = new DownloadRequest()
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"));
+        assertThat(downloadRequest.getDownloadId()).isNotEmpty();
+        assertThat(downloadRequest.getDownloadId()).isNotEqualTo(new DownloadRequest().getDownloadId());
+        assertThat(downloadRequest.setDownloadId("id")).isSameAs(downloadRequest);
+        Intent intent = downloadRequest.createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getStringExtra(BitTorrentIntentConstants.EXTRA_DOWNLOAD_ID)).isEqualTo("id");
+    }
+
+    @Test
+    public void testRequestWithoutDownloadId() {
+        DownloadRequest downloadRequest = new DownloadRequest()
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .setDownloadId(null);
+        try {
+            downloadRequest.createIntent(RuntimeEnvironment.application);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
+
+    @Test
+    public void testPriority() {
+        DownloadRequest downloadRequest = new DownloadRequest()
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"));
+        assertThat(downloadRequest.getPriority()).isEqualTo(DownloadRequest.PRIORITY_NORMAL);
+        assertThat(downloadRequest.setPriority(DownloadRequest.PRIORITY_HIGH)).isSameAs(downloadRequest);
+        Intent intent = downloadRequest.createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getIntExtra(BitTorrentIntentConstants.EXTRA_PRIORITY, 0))
+                .isEqualTo(DownloadRequest.PRIORITY_HIGH);
+    }
+
+    @Test
+    public void testMaxRates() {
+        Intent intent = new DownloadRequest()
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .setMaxDownloadRate(1000)
+                .setMaxUploadRate(500)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_DOWNLOAD_RATE, -1))
+                .isEqualTo(1000);
+        assertThat(intent.getLongExtra(BitTorrentIntentConstants.EXTRA_MAX_UPLOAD_RATE, -1))
+                .isEqualTo(500);
+    }
+
+    @Test
+    public void testStreaming() {
+        Intent intent = new DownloadRequest()
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .setStreaming(true)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getBooleanExtra(BitTorrentIntentConstants.EXTRA_STREAMING, false)).isTrue();
+    }
+
+    @Test
+    public void testMaxPeerConnections() {
+        Intent intent = new DownloadRequest()
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .setMaxPeerConnections(20)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getIntExtra(BitTorrentIntentConstants.EXTRA_MAX_PEER_CONNECTIONS, -1))
+                .isEqualTo(20);
+    }
+
+    @Test
+    public void testFilePriorities() {
+        Intent intent = new DownloadRequest()
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .setFilePriorities(
+                        DownloadRequest.FILE_PRIORITY_SKIP,
+                        DownloadRequest.FILE_PRIORITY_HIGH)
+                .createIntent(RuntimeEnvironment.application);
+        assertThat(intent.getIntArrayExtra(BitTorrentIntentConstants.EXTRA_FILE_PRIORITIES))
+                .containsExactly(
+                        DownloadRequest.FILE_PRIORITY_SKIP,
+                        DownloadRequest.FILE_PRIORITY_HIGH);
+    }
+
+    @Test
+    public void testNegativeFilePriority() {
+        DownloadRequest downloadRequest = new DownloadRequest()
+                .setTorrentFile(Uri.parse("file"))
+                .setDestinationDirectory(Uri.parse("dir"))
+                .setFilePriorities(DownloadRequest.FILE_PRIORITY_NORMAL, -1);
+        try {
+            downloadRequest.createIntent(RuntimeEnvironment.application);
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (IllegalStateException expectedException) {
+        }
+    }
 }